@@ -0,0 +1,42 @@
+package com.oneplus.gallery.cache;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import android.graphics.Bitmap;
+
+/**
+ * Codec to write bitmap into disk tier of cache and read it back.
+ * <p>
+ * Implementation should be thread-safe.
+ * </p>
+ */
+public interface BitmapDiskCodec
+{
+	/**
+	 * Decode bitmap.
+	 * @param channel Channel to read encoded bitmap from.
+	 * @param reusableBitmap Mutable bitmap which can be reused to hold decoded pixels, or Null to create new bitmap.
+	 * @return Decoded bitmap, or Null if data is invalid.
+	 * @throws IOException Error occurred while reading.
+	 */
+	Bitmap decode(ReadableByteChannel channel, Bitmap reusableBitmap) throws IOException;
+	
+	
+	/**
+	 * Encode bitmap.
+	 * @param bitmap Bitmap to encode.
+	 * @param channel Channel to write encoded bitmap to.
+	 * @return True if bitmap is encoded successfully.
+	 * @throws IOException Error occurred while writing.
+	 */
+	boolean encode(Bitmap bitmap, WritableByteChannel channel) throws IOException;
+	
+	
+	/**
+	 * Get name of codec, which is also used to separate data written by different codecs.
+	 * @return Codec name.
+	 */
+	String getName();
+}
@@ -0,0 +1,23 @@
+package com.oneplus.gallery.cache;
+
+/**
+ * Object which keeps bitmaps in memory and shares global memory budget managed by {@link CacheManager}.
+ * <p>
+ * Methods will be called on thread of {@link CacheManager}.
+ * </p>
+ */
+public interface BitmapMemoryConsumer
+{
+	/**
+	 * Get approximate size of bitmaps currently kept in memory.
+	 * @return Memory usage in bytes.
+	 */
+	long getMemoryUsage();
+	
+	
+	/**
+	 * Called when memory budget assigned to this consumer changed. Consumer should release bitmaps to keep memory usage within budget, and keep it within budget when adding bitmaps until budget changes again.
+	 * @param budget Memory budget in bytes.
+	 */
+	void setMemoryBudget(long budget);
+}
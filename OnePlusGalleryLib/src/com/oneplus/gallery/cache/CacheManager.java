@@ -1,5 +1,7 @@
 package com.oneplus.gallery.cache;
 
+import java.util.List;
+
 import com.oneplus.base.Handle;
 import com.oneplus.base.PropertyKey;
 import com.oneplus.base.component.Component;
@@ -16,6 +18,46 @@ public interface CacheManager extends Component
 	PropertyKey<Boolean> PROP_IS_ACTIVE = new PropertyKey<>("IsActive", Boolean.class, CacheManager.class, false);
 	
 	
+	/**
+	 * Type of image cache.
+	 */
+	enum ImageCacheType
+	{
+		/**
+		 * Cache for small thumbnail image.
+		 */
+		SMALL_THUMBNAIL,
+		/**
+		 * Cache for thumbnail image.
+		 */
+		THUMBNAIL,
+	}
+	
+	
+	/**
+	 * Scope of bitmap memory consumer, consumers in scope of screen in front get larger share of memory budget.
+	 */
+	enum MemoryScope
+	{
+		/**
+		 * Consumer which is used by all screens.
+		 */
+		SHARED,
+		/**
+		 * Consumer for media set list.
+		 */
+		MEDIA_SET_LIST,
+		/**
+		 * Consumer for grid view.
+		 */
+		GRID_VIEW,
+		/**
+		 * Consumer for filmstrip.
+		 */
+		FILMSTRIP,
+	}
+	
+	
 	/**
 	 * Activate cache manager.
 	 * @param flags Flags, reserved.
@@ -24,6 +66,30 @@ public interface CacheManager extends Component
 	Handle activate(int flags);
 	
 	
+	/**
+	 * Get snapshot of statistics of memory and disk tiers of given cache, call {@link CacheStatistics#dump(java.io.PrintWriter)} to get text report. This method can be called from any thread.
+	 * @param type Cache type.
+	 * @return Statistics since creating cache or last calling {@link #resetCacheStatistics(ImageCacheType)}, or Null if cache is unavailable.
+	 */
+	CacheStatistics getCacheStatistics(ImageCacheType type);
+	
+	
+	/**
+	 * Get maximum capacity of memory tier of given cache, which is decided according to device when initializing.
+	 * @param type Cache type.
+	 * @return Maximum capacity in bytes.
+	 */
+	long getMaxMemoryCacheCapacity(ImageCacheType type);
+	
+	
+	/**
+	 * Get capacity of memory tier of given cache requested by {@link #setMemoryCacheCapacity(ImageCacheType, long)}.
+	 * @param type Cache type.
+	 * @return Capacity in bytes.
+	 */
+	long getMemoryCacheCapacity(ImageCacheType type);
+	
+	
 	/**
 	 * Get cache for small thumbnail image.
 	 * @return Cache for small thumbnail image.
@@ -31,9 +97,72 @@ public interface CacheManager extends Component
 	HybridBitmapLruCache<ImageCacheKey> getSmallThumbnailImageCache();
 	
 	
+	/**
+	 * Get packed store for small thumbnail image, which is used to restore small thumbnail images quickly after launching.
+	 * @return Packed store for small thumbnail image, or Null if store is unavailable or not opened yet. Store is opened in background after initialization.
+	 */
+	PackedBitmapStore getSmallThumbnailImageStore();
+	
+	
 	/**
 	 * Get cache for thumbnail image.
 	 * @return Cache for thumbnail image.
 	 */
 	HybridBitmapLruCache<ImageCacheKey> getThumbnailImageCache();
+	
+	
+	/**
+	 * Get total memory budget currently shared by all registered memory consumers, which is reduced when cache manager is inactive or memory pressure is raised.
+	 * @return Memory budget in bytes.
+	 */
+	long getTotalMemoryBudget();
+	
+	
+	/**
+	 * Get total memory usage reported by all registered memory consumers, including memory tiers of image caches.
+	 * @return Memory usage in bytes.
+	 */
+	long getTotalMemoryUsage();
+	
+	
+	/**
+	 * Register bitmap memory consumer to share global memory budget. Budget is divided by weights of consumers, and weights of consumers in foreground scope are raised.
+	 * @param name Name of consumer.
+	 * @param scope Scope of consumer.
+	 * @param consumer Consumer.
+	 * @param maxBudget Maximum budget in bytes which consumer can use.
+	 * @param weight Weight of consumer, should be positive.
+	 * @return Handle to registered consumer.
+	 */
+	Handle registerMemoryConsumer(String name, MemoryScope scope, BitmapMemoryConsumer consumer, long maxBudget, int weight);
+	
+	
+	/**
+	 * Reset statistics of given cache, entries currently in cache are kept. This method can be called from any thread.
+	 * @param type Cache type.
+	 */
+	void resetCacheStatistics(ImageCacheType type);
+	
+	
+	/**
+	 * Set scope of screen which is currently in front.
+	 * @param scope Foreground scope, or {@link MemoryScope#SHARED} if no screen should take precedence.
+	 */
+	void setForegroundMemoryScope(MemoryScope scope);
+	
+	
+	/**
+	 * Change capacity of memory tier of given cache, memory tier is resized immediately. Screens can grow cache while they are shown and shrink it when hidden. Capacity will be reduced further when memory budget is shared with other consumers, cache manager is inactive or memory pressure is raised.
+	 * @param type Cache type.
+	 * @param capacity New capacity in bytes, which will be limited by {@link #getMaxMemoryCacheCapacity(ImageCacheType)}.
+	 * @return Capacity actually applied in bytes.
+	 */
+	long setMemoryCacheCapacity(ImageCacheType type, long capacity);
+	
+	
+	/**
+	 * Set keys of small thumbnails visible at saved scroll position of camera roll. They will be written into warm-up manifest when deactivating and preloaded first when activating next time.
+	 * @param keys Keys ordered by position on screen, or Null to clear.
+	 */
+	void setSmallThumbnailWarmUpKeys(List<ImageCacheKey> keys);
 }
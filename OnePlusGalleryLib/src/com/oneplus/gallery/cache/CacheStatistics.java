@@ -0,0 +1,197 @@
+package com.oneplus.gallery.cache;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Snapshot of statistics of image cache.
+ */
+public final class CacheStatistics
+{
+	/**
+	 * Statistics of single tier of cache.
+	 */
+	public static final class TierStatistics
+	{
+		/**
+		 * Name of tier.
+		 */
+		public final String name;
+		/**
+		 * Number of entries currently in tier.
+		 */
+		public final long entryCount;
+		/**
+		 * Number of entries removed to keep tier within capacity.
+		 */
+		public final long evictionCount;
+		/**
+		 * Number of requests which entry is found in tier.
+		 */
+		public final long hitCount;
+		/**
+		 * Number of new entries put into tier.
+		 */
+		public final long insertionCount;
+		/**
+		 * Maximum time of reading single entry, in microseconds.
+		 */
+		public final long maxReadTime;
+		/**
+		 * Maximum time of writing single entry, in microseconds.
+		 */
+		public final long maxWriteTime;
+		/**
+		 * Number of requests which entry is not found in tier.
+		 */
+		public final long missCount;
+		/**
+		 * Number of entries read from storage, zero for memory tier.
+		 */
+		public final long readCount;
+		/**
+		 * Total time of reading entries, in microseconds.
+		 */
+		public final long readTime;
+		/**
+		 * Size of entries currently in tier, in bytes.
+		 */
+		public final long size;
+		/**
+		 * Number of entries written to storage, zero for memory tier.
+		 */
+		public final long writeCount;
+		/**
+		 * Total time of writing entries, in microseconds.
+		 */
+		public final long writeTime;
+		
+		/**
+		 * Initialize new TierStatistics instance.
+		 */
+		public TierStatistics(String name, long entryCount, long size, long hitCount, long missCount, long insertionCount, long evictionCount,
+				long readCount, long readTime, long maxReadTime, long writeCount, long writeTime, long maxWriteTime)
+		{
+			this.name = name;
+			this.entryCount = entryCount;
+			this.size = size;
+			this.hitCount = hitCount;
+			this.missCount = missCount;
+			this.insertionCount = insertionCount;
+			this.evictionCount = evictionCount;
+			this.readCount = readCount;
+			this.readTime = readTime;
+			this.maxReadTime = maxReadTime;
+			this.writeCount = writeCount;
+			this.writeTime = writeTime;
+			this.maxWriteTime = maxWriteTime;
+		}
+		
+		/**
+		 * Get average size of entries currently in tier.
+		 * @return Average entry size in bytes.
+		 */
+		public long getAverageEntrySize()
+		{
+			return (this.entryCount > 0 ? (this.size / this.entryCount) : 0);
+		}
+		
+		/**
+		 * Get average time of reading single entry.
+		 * @return Average read time in microseconds.
+		 */
+		public double getAverageReadTime()
+		{
+			return (this.readCount > 0 ? ((double)this.readTime / this.readCount) : 0);
+		}
+		
+		/**
+		 * Get average time of writing single entry.
+		 * @return Average write time in microseconds.
+		 */
+		public double getAverageWriteTime()
+		{
+			return (this.writeCount > 0 ? ((double)this.writeTime / this.writeCount) : 0);
+		}
+		
+		/**
+		 * Get ratio of requests which entry is found in tier.
+		 * @return Hit rate in [0, 1].
+		 */
+		public float getHitRate()
+		{
+			long count = (this.hitCount + this.missCount);
+			return (count > 0 ? ((float)this.hitCount / count) : 0);
+		}
+		
+		// Dump.
+		void dump(PrintWriter writer)
+		{
+			writer.println("  " + this.name + " : " + this.entryCount + " entries, " + (this.size >> 10) + " KB, " + this.getAverageEntrySize() + " bytes avg");
+			writer.println("    Requests : " + this.hitCount + " hit, " + this.missCount + " miss" + String.format(" (%.1f%%)", this.getHitRate() * 100));
+			writer.println("    Entries : " + this.insertionCount + " inserted, " + this.evictionCount + " evicted");
+			if(this.readCount > 0 || this.writeCount > 0)
+			{
+				writer.println(String.format("    Read : %d, %.0f us avg, %d us max", this.readCount, this.getAverageReadTime(), this.maxReadTime));
+				writer.println(String.format("    Write : %d, %.0f us avg, %d us max", this.writeCount, this.getAverageWriteTime(), this.maxWriteTime));
+			}
+		}
+	}
+	
+	
+	/**
+	 * Statistics of disk tier, or Null if cache has no disk tier.
+	 */
+	public final TierStatistics diskTier;
+	/**
+	 * Duration of collecting statistics since creating cache or resetting statistics, in milliseconds.
+	 */
+	public final long duration;
+	/**
+	 * Statistics of memory tier.
+	 */
+	public final TierStatistics memoryTier;
+	/**
+	 * Name of cache.
+	 */
+	public final String name;
+	
+	
+	/**
+	 * Initialize new CacheStatistics instance.
+	 * @param name Name of cache.
+	 * @param memoryTier Statistics of memory tier.
+	 * @param diskTier Statistics of disk tier, or Null if cache has no disk tier.
+	 * @param duration Duration of collecting statistics, in milliseconds.
+	 */
+	public CacheStatistics(String name, TierStatistics memoryTier, TierStatistics diskTier, long duration)
+	{
+		this.name = name;
+		this.memoryTier = memoryTier;
+		this.diskTier = diskTier;
+		this.duration = duration;
+	}
+	
+	
+	/**
+	 * Dump statistics as text report.
+	 * @param writer Writer to print report.
+	 */
+	public void dump(PrintWriter writer)
+	{
+		writer.println("[" + this.name + "] " + (this.duration / 1000) + " s");
+		this.memoryTier.dump(writer);
+		if(this.diskTier != null)
+			this.diskTier.dump(writer);
+	}
+	
+	
+	// Get text report.
+	@Override
+	public String toString()
+	{
+		StringWriter writer = new StringWriter();
+		this.dump(new PrintWriter(writer));
+		return writer.toString();
+	}
+}
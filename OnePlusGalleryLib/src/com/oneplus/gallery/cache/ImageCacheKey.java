@@ -1,7 +1,11 @@
 package com.oneplus.gallery.cache;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 import com.oneplus.gallery.media.Media;
 
@@ -9,9 +13,24 @@ import android.net.Uri;
 
 /**
  * Key to identify image in cache.
+ * <p>
+ * Call {@link #writeRecord(DataOutput)} and {@link #readRecord(DataInput)} to persist key in files such as manifests and file headers. Java serialization is kept for caches which require {@link Serializable} keys only.
+ * </p>
  */
 public class ImageCacheKey implements Serializable
 {
+	/**
+	 * Size of compact form of key in bytes.
+	 */
+	public static final int COMPACT_SIZE = 16;
+	
+	
+	// Constants.
+	private static final int RECORD_ID_NONE = 0;
+	private static final int RECORD_ID_FILE_PATH = 1;
+	private static final int RECORD_ID_CONTENT_URI = 2;
+	
+	
 	/**
 	 * Media content URI.
 	 */
@@ -32,7 +51,41 @@ public class ImageCacheKey implements Serializable
 	
 	// Static fields.
 	private static final long serialVersionUID = 6417044270020048991L;
-
+	
+	
+	// Fields.
+	private final transient long m_Fingerprint;
+	private final transient long m_IdentityHash;
+	
+	
+	// Serialized form, content URI is kept as string because Uri is not serializable.
+	private static final class SerializedForm implements Serializable
+	{
+		// Static fields.
+		private static final long serialVersionUID = -2787434312380581024L;
+		
+		// Fields.
+		private final String contentUri;
+		private final String filePath;
+		private final long fileSize;
+		private final long lastModifiedTime;
+		
+		// Constructor.
+		public SerializedForm(ImageCacheKey key)
+		{
+			this.contentUri = (key.contentUri != null ? key.contentUri.toString() : null);
+			this.filePath = key.filePath;
+			this.fileSize = key.fileSize;
+			this.lastModifiedTime = key.lastModifiedTime;
+		}
+		
+		// Create key after deserialization.
+		private Object readResolve()
+		{
+			return new ImageCacheKey(this.filePath, (this.contentUri != null ? Uri.parse(this.contentUri) : null), this.fileSize, this.lastModifiedTime);
+		}
+	}
+	
 	
 	/**
 	 * Initialize new ImageCacheKey instance.
@@ -40,10 +93,7 @@ public class ImageCacheKey implements Serializable
 	 */
 	public ImageCacheKey(Media media)
 	{
-		this.filePath = media.getFilePath();
-		this.fileSize = media.getFileSize();
-		this.lastModifiedTime = media.getLastModifiedTime();
-		this.contentUri = (this.filePath == null ? media.getContentUri() : null);
+		this(media.getFilePath(), (media.getFilePath() == null ? media.getContentUri() : null), media.getFileSize(), media.getLastModifiedTime());
 	}
 	
 	
@@ -53,10 +103,19 @@ public class ImageCacheKey implements Serializable
 	 */
 	public ImageCacheKey(File file)
 	{
-		this.filePath = file.getAbsolutePath();
-		this.fileSize = file.length();
-		this.lastModifiedTime = file.lastModified();
-		this.contentUri = null;
+		this(file.getAbsolutePath(), null, file.length(), file.lastModified());
+	}
+	
+	
+	// Constructor.
+	private ImageCacheKey(String filePath, Uri contentUri, long fileSize, long lastModifiedTime)
+	{
+		this.filePath = filePath;
+		this.contentUri = contentUri;
+		this.fileSize = fileSize;
+		this.lastModifiedTime = lastModifiedTime;
+		m_IdentityHash = ImageCacheKeyHashing.hashIdentity(filePath != null ? filePath : (contentUri != null ? contentUri.toString() : null));
+		m_Fingerprint = ImageCacheKeyHashing.fingerprint(m_IdentityHash, fileSize, lastModifiedTime);
 	}
 	
 	
@@ -64,9 +123,13 @@ public class ImageCacheKey implements Serializable
 	@Override
 	public boolean equals(Object o)
 	{
+		if(o == this)
+			return true;
 		if(o instanceof ImageCacheKey)
 		{
 			ImageCacheKey anotherKey = (ImageCacheKey)o;
+			if(m_Fingerprint != anotherKey.m_Fingerprint)
+				return false;
 			if(this.lastModifiedTime != anotherKey.lastModifiedTime || this.fileSize != anotherKey.fileSize)
 				return false;
 			if((this.filePath != null && !this.filePath.equals(anotherKey.filePath)) || (this.filePath == null && anotherKey.filePath != null))
@@ -79,16 +142,90 @@ public class ImageCacheKey implements Serializable
 	}
 	
 	
+	/**
+	 * Get 64-bit fingerprint over media identity, file size and last modified time.
+	 * @return Fingerprint.
+	 */
+	public long getFingerprint()
+	{
+		return m_Fingerprint;
+	}
+	
+	
+	/**
+	 * Get 64-bit hash of media identity (file path or content URI), which is not affected by file size and last modified time.
+	 * @return Identity hash.
+	 */
+	public long getIdentityHash()
+	{
+		return m_IdentityHash;
+	}
+	
+	
+	/**
+	 * Check whether this key still identifies current state of given media.
+	 * @param media Media to check.
+	 * @return True if key matches media.
+	 */
+	public boolean matches(Media media)
+	{
+		if(media == null)
+			return false;
+		if(this.lastModifiedTime != media.getLastModifiedTime() || this.fileSize != media.getFileSize())
+			return false;
+		String filePath = media.getFilePath();
+		if(filePath != null)
+			return filePath.equals(this.filePath);
+		return (this.filePath == null && this.contentUri != null && this.contentUri.equals(media.getContentUri()));
+	}
+	
+	
 	// Get hash code.
 	@Override
 	public int hashCode()
 	{
-		int hashCode = (int)(this.lastModifiedTime & 0xFFFFFFFFL);
-		if(this.filePath != null)
-			hashCode |= this.filePath.hashCode();
-		else if(this.contentUri != null)
-			hashCode |= this.contentUri.hashCode();
-		return hashCode;
+		return (int)(m_Fingerprint ^ (m_Fingerprint >>> 32));
+	}
+	
+	
+	/**
+	 * Read key written by {@link #writeRecord(DataOutput)}.
+	 * @param input Input to read from.
+	 * @return Key.
+	 * @throws IOException If record cannot be read, or hashes in record do not match fields.
+	 */
+	public static ImageCacheKey readRecord(DataInput input) throws IOException
+	{
+		long identityHash = input.readLong();
+		long fingerprint = input.readLong();
+		long fileSize = input.readLong();
+		long lastModifiedTime = input.readLong();
+		ImageCacheKey key;
+		int id = input.readUnsignedByte();
+		switch(id)
+		{
+			case RECORD_ID_NONE:
+				key = new ImageCacheKey(null, null, fileSize, lastModifiedTime);
+				break;
+			case RECORD_ID_FILE_PATH:
+				key = new ImageCacheKey(input.readUTF(), null, fileSize, lastModifiedTime);
+				break;
+			case RECORD_ID_CONTENT_URI:
+				key = new ImageCacheKey(null, Uri.parse(input.readUTF()), fileSize, lastModifiedTime);
+				break;
+			default:
+				throw new IOException("Unknown identity type : " + id);
+		}
+		if(key.m_IdentityHash != identityHash || key.m_Fingerprint != fingerprint)
+			throw new IOException("Hashes do not match key " + key);
+		return key;
+	}
+	
+	
+	// Re-create key deserialized from legacy form to calculate hashes.
+	private Object readResolve()
+	{
+		return new ImageCacheKey(this.filePath, this.contentUri, this.fileSize, this.lastModifiedTime);
 	}
 	
 	
@@ -102,4 +239,48 @@ public class ImageCacheKey implements Serializable
 			return ("[" + this.contentUri + " ]");
 		return ("[LMT=" + this.lastModifiedTime + "]");
 	}
+	
+	
+	// Replace with serialized form.
+	private Object writeReplace()
+	{
+		return new SerializedForm(this);
+	}
+	
+	
+	/**
+	 * Write compact form of key, which contains identity hash and fingerprint.
+	 * @param buffer Buffer to write {@link #COMPACT_SIZE} bytes at current position.
+	 */
+	public void writeCompact(ByteBuffer buffer)
+	{
+		buffer.putLong(m_IdentityHash);
+		buffer.putLong(m_Fingerprint);
+	}
+	
+	
+	/**
+	 * Write key as record which starts with compact form of key, followed by fields. Call {@link #readRecord(DataInput)} to read key back.
+	 * @param output Output to write to.
+	 * @throws IOException If record cannot be written.
+	 */
+	public void writeRecord(DataOutput output) throws IOException
+	{
+		output.writeLong(m_IdentityHash);
+		output.writeLong(m_Fingerprint);
+		output.writeLong(this.fileSize);
+		output.writeLong(this.lastModifiedTime);
+		if(this.filePath != null)
+		{
+			output.writeByte(RECORD_ID_FILE_PATH);
+			output.writeUTF(this.filePath);
+		}
+		else if(this.contentUri != null)
+		{
+			output.writeByte(RECORD_ID_CONTENT_URI);
+			output.writeUTF(this.contentUri.toString());
+		}
+		else
+			output.writeByte(RECORD_ID_NONE);
+	}
 }
@@ -0,0 +1,59 @@
+package com.oneplus.gallery.cache;
+
+/**
+ * Hash functions used by {@link ImageCacheKey}.
+ * <p>
+ * This class depends on Java runtime only, so distribution of hashes can be checked without Android framework.
+ * </p>
+ */
+public final class ImageCacheKeyHashing
+{
+	// Constructor.
+	private ImageCacheKeyHashing()
+	{}
+	
+	
+	/**
+	 * Calculate 64-bit fingerprint over media identity, file size and last modified time.
+	 * @param identityHash Identity hash returned by {@link #hashIdentity(String)}.
+	 * @param fileSize File size in bytes.
+	 * @param lastModifiedTime Last modified time.
+	 * @return Fingerprint.
+	 */
+	public static long fingerprint(long identityHash, long fileSize, long lastModifiedTime)
+	{
+		return mix64(identityHash ^ mix64(fileSize ^ 0x9E3779B97F4A7C15L) ^ mix64(lastModifiedTime ^ 0xC2B2AE3D27D4EB4FL));
+	}
+	
+	
+	/**
+	 * Calculate 64-bit hash of media identity (FNV-1a followed by SplitMix64 finalizer).
+	 * @param id File path or content URI string.
+	 * @return Identity hash, or 0 if identity is Null.
+	 */
+	public static long hashIdentity(String id)
+	{
+		if(id == null)
+			return 0;
+		long hash = 0xCBF29CE484222325L;
+		for(int i = 0, length = id.length() ; i < length ; ++i)
+		{
+			hash ^= id.charAt(i);
+			hash *= 0x100000001B3L;
+		}
+		return mix64(hash);
+	}
+	
+	
+	/**
+	 * Mix bits of 64-bit value (SplitMix64 finalizer).
+	 * @param value Value to mix.
+	 * @return Mixed value.
+	 */
+	public static long mix64(long value)
+	{
+		value = ((value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L);
+		value = ((value ^ (value >>> 27)) * 0x94D049BB133111EBL);
+		return (value ^ (value >>> 31));
+	}
+}
@@ -0,0 +1,39 @@
+package com.oneplus.gallery.cache;
+
+import com.oneplus.base.PropertyKey;
+import com.oneplus.base.component.Component;
+
+/**
+ * Component to monitor memory usage of process and notify memory pressure to other components.
+ */
+public interface MemoryGovernor extends Component
+{
+	/**
+	 * Read-only property to get current memory pressure.
+	 */
+	PropertyKey<MemoryPressure> PROP_MEMORY_PRESSURE = new PropertyKey<>("MemoryPressure", MemoryPressure.class, MemoryGovernor.class, PropertyKey.FLAG_READONLY, MemoryPressure.NORMAL);
+	
+	
+	/**
+	 * Memory pressure level.
+	 */
+	enum MemoryPressure
+	{
+		/**
+		 * Enough memory.
+		 */
+		NORMAL,
+		/**
+		 * Memory is getting low, low-priority work should be reduced.
+		 */
+		MODERATE,
+		/**
+		 * Memory is low, only work visible to user should be performed.
+		 */
+		HIGH,
+		/**
+		 * Memory is very low, all memory which can be re-created should be released.
+		 */
+		CRITICAL,
+	}
+}
@@ -0,0 +1,59 @@
+package com.oneplus.gallery.cache;
+
+import java.util.List;
+
+import android.graphics.Bitmap;
+
+/**
+ * Persistent store which keeps bitmaps in fixed-size slots of a single file, so bitmap can be restored by copying pixels without decoding.
+ * <p>
+ * Implementation should be thread-safe.
+ * </p>
+ */
+public interface PackedBitmapStore
+{
+	/**
+	 * Remove all bitmaps.
+	 */
+	void clear();
+	
+	
+	/**
+	 * Collect keys of bitmaps in store.
+	 * @param keys List to receive keys.
+	 */
+	void collectKeys(List<ImageCacheKey> keys);
+	
+	
+	/**
+	 * Check whether bitmap with given key is in store or not.
+	 * @param key Key.
+	 * @return True if bitmap is in store.
+	 */
+	boolean contains(ImageCacheKey key);
+	
+	
+	/**
+	 * Get bitmap from store.
+	 * @param key Key.
+	 * @return New bitmap with pixels copied from store, or Null if bitmap is not in store.
+	 */
+	Bitmap get(ImageCacheKey key);
+	
+	
+	/**
+	 * Put bitmap into store, bitmap larger than slot will be center-cropped.
+	 * @param key Key.
+	 * @param bitmap Bitmap to put.
+	 * @return True if bitmap is put into store successfully.
+	 */
+	boolean put(ImageCacheKey key, Bitmap bitmap);
+	
+	
+	/**
+	 * Remove bitmap from store.
+	 * @param key Key.
+	 * @return True if bitmap is removed.
+	 */
+	boolean remove(ImageCacheKey key);
+}
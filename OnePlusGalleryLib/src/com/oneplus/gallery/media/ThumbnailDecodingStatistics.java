@@ -0,0 +1,319 @@
+package com.oneplus.gallery.media;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of thumbnail image decoding statistics.
+ */
+public final class ThumbnailDecodingStatistics
+{
+	/**
+	 * Statistics of decoding for specific size of thumbnail image.
+	 */
+	public static final class ChannelStatistics
+	{
+		/**
+		 * Name of channel.
+		 */
+		public final String name;
+		/**
+		 * Time waiting for cache, in milliseconds.
+		 */
+		public final Histogram cacheWaitingTime;
+		/**
+		 * Number of cache hit in worker thread.
+		 */
+		public final long cacheHitCount;
+		/**
+		 * Number of cache miss in worker thread.
+		 */
+		public final long cacheMissCount;
+		/**
+		 * Number of requests which are closed before receiving thumbnail image.
+		 */
+		public final long cancelledRequestCount;
+		/**
+		 * Number of requests which are attached to existing decoding task.
+		 */
+		public final long coalescedRequestCount;
+		/**
+		 * Number of thumbnail images decoded successfully.
+		 */
+		public final long decodedCount;
+		/**
+		 * Time from starting decoding to completion, in milliseconds.
+		 */
+		public final Histogram decodingTime;
+		/**
+		 * Number of thumbnail images derived from larger thumbnail images in memory instead of decoding.
+		 */
+		public final long derivedCount;
+		/**
+		 * Number of decoding tasks dropped because all requests are closed.
+		 */
+		public final long droppedTaskCount;
+		/**
+		 * Number of failed decoding.
+		 */
+		public final long failedCount;
+		/**
+		 * Maximum number of decoding tasks waiting in queue.
+		 */
+		public final int maxQueueSize;
+		/**
+		 * Number of memory cache hit while requesting synchronously.
+		 */
+		public final long memoryHitCount;
+		/**
+		 * Number of memory cache miss while requesting synchronously.
+		 */
+		public final long memoryMissCount;
+		/**
+		 * Number of decoding tasks waiting in queue.
+		 */
+		public final int queueSize;
+		/**
+		 * Number of decoding requests.
+		 */
+		public final long requestCount;
+		/**
+		 * Time from requesting to delivering thumbnail image, in milliseconds.
+		 */
+		public final Histogram timeToVisible;
+		
+		/**
+		 * Initialize new ChannelStatistics instance.
+		 */
+		public ChannelStatistics(String name, int queueSize, int maxQueueSize, long requestCount, long coalescedRequestCount, long cancelledRequestCount, long droppedTaskCount,
+				long memoryHitCount, long memoryMissCount, long cacheHitCount, long cacheMissCount, long decodedCount, long derivedCount, long failedCount, Histogram cacheWaitingTime, Histogram decodingTime, Histogram timeToVisible)
+		{
+			this.name = name;
+			this.queueSize = queueSize;
+			this.maxQueueSize = maxQueueSize;
+			this.requestCount = requestCount;
+			this.coalescedRequestCount = coalescedRequestCount;
+			this.cancelledRequestCount = cancelledRequestCount;
+			this.droppedTaskCount = droppedTaskCount;
+			this.memoryHitCount = memoryHitCount;
+			this.memoryMissCount = memoryMissCount;
+			this.cacheHitCount = cacheHitCount;
+			this.cacheMissCount = cacheMissCount;
+			this.decodedCount = decodedCount;
+			this.derivedCount = derivedCount;
+			this.failedCount = failedCount;
+			this.cacheWaitingTime = cacheWaitingTime;
+			this.decodingTime = decodingTime;
+			this.timeToVisible = timeToVisible;
+		}
+		
+		/**
+		 * Get ratio of cancelled requests.
+		 * @return Cancellation rate in [0, 1].
+		 */
+		public float getCancellationRate()
+		{
+			return (this.requestCount > 0 ? ((float)this.cancelledRequestCount / this.requestCount) : 0);
+		}
+		
+		/**
+		 * Get number of thumbnail images completed per second.
+		 * @param duration Duration of collecting statistics in milliseconds.
+		 * @return Number of decoded, derived and cache hit thumbnail images per second.
+		 */
+		public float getThroughput(long duration)
+		{
+			return (duration > 0 ? ((this.decodedCount + this.derivedCount + this.cacheHitCount) * 1000f / duration) : 0);
+		}
+		
+		// Dump.
+		void dump(PrintWriter writer, long duration)
+		{
+			writer.println("[" + this.name + "]");
+			writer.println("  Queue : " + this.queueSize + " (max " + this.maxQueueSize + ")");
+			writer.println("  Requests : " + this.requestCount + ", coalesced " + this.coalescedRequestCount + ", cancelled " + this.cancelledRequestCount + String.format(" (%.1f%%)", this.getCancellationRate() * 100));
+			writer.println("  Dropped tasks : " + this.droppedTaskCount);
+			writer.println("  Memory cache : " + this.memoryHitCount + " hit, " + this.memoryMissCount + " miss");
+			writer.println("  Cache : " + this.cacheHitCount + " hit, " + this.cacheMissCount + " miss");
+			writer.println("  Decoded : " + this.decodedCount + ", derived " + this.derivedCount + ", failed " + this.failedCount);
+			writer.println("  Cache waiting time : " + this.cacheWaitingTime);
+			writer.println("  Decoding time : " + this.decodingTime);
+			writer.println("  Time to visible : " + this.timeToVisible + ", p99 " + this.timeToVisible.getPercentile(0.99f) + " ms");
+			writer.println(String.format("  Throughput : %.1f/s", this.getThroughput(duration)));
+		}
+	}
+	
+	
+	/**
+	 * Histogram of durations.
+	 */
+	public static final class Histogram
+	{
+		// Fields.
+		private final long[] m_Bounds;
+		private final long m_Count;
+		private final long[] m_Counts;
+		private final long m_Max;
+		private final long m_Sum;
+		
+		/**
+		 * Initialize new Histogram instance.
+		 * @param bounds Inclusive upper bound of each bucket, values greater than the last bound will be counted in extra bucket.
+		 * @param counts Number of values in each bucket, length should be (bounds.length + 1).
+		 * @param sum Sum of all values.
+		 * @param max Maximum value.
+		 */
+		public Histogram(long[] bounds, long[] counts, long sum, long max)
+		{
+			if(counts.length != bounds.length + 1)
+				throw new IllegalArgumentException("Invalid number of buckets");
+			long count = 0;
+			for(int i = counts.length - 1 ; i >= 0 ; --i)
+				count += counts[i];
+			m_Bounds = bounds.clone();
+			m_Counts = counts.clone();
+			m_Count = count;
+			m_Sum = sum;
+			m_Max = max;
+		}
+		
+		/**
+		 * Get number of values.
+		 * @return Number of values.
+		 */
+		public long getCount()
+		{
+			return m_Count;
+		}
+		
+		/**
+		 * Get maximum value.
+		 * @return Maximum value.
+		 */
+		public long getMax()
+		{
+			return m_Max;
+		}
+		
+		/**
+		 * Get average value.
+		 * @return Average value.
+		 */
+		public double getMean()
+		{
+			return (m_Count > 0 ? ((double)m_Sum / m_Count) : 0);
+		}
+		
+		/**
+		 * Get approximate percentile.
+		 * @param percentile Percentile in [0, 1].
+		 * @return Upper bound of bucket which contains given percentile.
+		 */
+		public long getPercentile(float percentile)
+		{
+			if(m_Count == 0)
+				return 0;
+			long threshold = (long)Math.ceil(m_Count * Math.max(0, Math.min(1, percentile)));
+			long count = 0;
+			for(int i = 0 ; i < m_Bounds.length ; ++i)
+			{
+				count += m_Counts[i];
+				if(count >= threshold)
+					return Math.min(m_Bounds[i], m_Max);
+			}
+			return m_Max;
+		}
+		
+		// Get string represents this histogram.
+		@Override
+		public String toString()
+		{
+			return String.format("count %d, mean %.1f, p50 %d, p90 %d, p99 %d, max %d", m_Count, this.getMean(), this.getPercentile(0.5f), this.getPercentile(0.9f), this.getPercentile(0.99f), m_Max);
+		}
+	}
+	
+	
+	/**
+	 * Statistics of each decoding channel.
+	 */
+	public final List<ChannelStatistics> channels;
+	/**
+	 * Number of contended lock acquisitions on decoding request and scheduling paths.
+	 */
+	public final long contendedLockCount;
+	/**
+	 * Number of decoding tasks created.
+	 */
+	public final long createdTaskCount;
+	/**
+	 * Duration of collecting statistics, in milliseconds.
+	 */
+	public final long duration;
+	/**
+	 * Number of free decoding tasks in pool.
+	 */
+	public final int freeTaskCount;
+	/**
+	 * Number of lock acquisitions on decoding request and scheduling paths.
+	 */
+	public final long lockCount;
+	/**
+	 * Total time waiting for contended lock, in microseconds.
+	 */
+	public final long lockWaitingTime;
+	/**
+	 * Number of decoding tasks reused from pool.
+	 */
+	public final long reusedTaskCount;
+	
+	
+	/**
+	 * Initialize new ThumbnailDecodingStatistics instance.
+	 * @param channels Statistics of each decoding channel.
+	 * @param createdTaskCount Number of decoding tasks created.
+	 * @param reusedTaskCount Number of decoding tasks reused from pool.
+	 * @param freeTaskCount Number of free decoding tasks in pool.
+	 * @param lockCount Number of lock acquisitions on decoding request and scheduling paths.
+	 * @param contendedLockCount Number of contended lock acquisitions.
+	 * @param lockWaitingTime Total time waiting for contended lock, in microseconds.
+	 * @param duration Duration of collecting statistics, in milliseconds.
+	 */
+	public ThumbnailDecodingStatistics(List<ChannelStatistics> channels, long createdTaskCount, long reusedTaskCount, int freeTaskCount, long lockCount, long contendedLockCount, long lockWaitingTime, long duration)
+	{
+		this.channels = Collections.unmodifiableList(channels);
+		this.createdTaskCount = createdTaskCount;
+		this.reusedTaskCount = reusedTaskCount;
+		this.freeTaskCount = freeTaskCount;
+		this.lockCount = lockCount;
+		this.contendedLockCount = contendedLockCount;
+		this.lockWaitingTime = lockWaitingTime;
+		this.duration = duration;
+	}
+	
+	
+	/**
+	 * Dump statistics as text report.
+	 * @param writer Writer to print report.
+	 */
+	public void dump(PrintWriter writer)
+	{
+		for(int i = 0, count = this.channels.size() ; i < count ; ++i)
+			this.channels.get(i).dump(writer, this.duration);
+		writer.println("[Tasks]");
+		writer.println("  Created : " + this.createdTaskCount + ", reused " + this.reusedTaskCount + ", free " + this.freeTaskCount);
+		writer.println("[Lock]");
+		writer.println("  Acquired : " + this.lockCount + ", contended " + this.contendedLockCount + ", waiting " + (this.lockWaitingTime / 1000) + " ms");
+	}
+	
+	
+	// Get text report.
+	@Override
+	public String toString()
+	{
+		StringWriter writer = new StringWriter();
+		this.dump(new PrintWriter(writer));
+		return writer.toString();
+	}
+}
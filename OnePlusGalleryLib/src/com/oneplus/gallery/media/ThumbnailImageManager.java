@@ -20,12 +20,38 @@ public interface ThumbnailImageManager extends Component
 	 * Decoding with highest priority.
 	 */
 	int FLAG_URGENT = 0x2;
+	/**
+	 * Deliver decoded thumbnail images in batch once per frame. Call-back implements {@link BatchDecodingCallback} will receive all images decoded in the same frame at once.
+	 */
+	int FLAG_BATCH_DELIVERY = 0x4;
+	/**
+	 * Deliver low-quality preview image (embedded thumbnail in EXIF) before decoding thumbnail image. Call-back implements {@link ProgressiveDecodingCallback} will receive preview image.
+	 */
+	int FLAG_PREVIEW = 0x8;
+	
+	
+	/**
+	 * Highest decoding priority, usually for media which is visible to user.
+	 */
+	int PRIORITY_HIGHEST = 0;
+	/**
+	 * Default decoding priority for request without {@link #FLAG_URGENT}.
+	 */
+	int PRIORITY_DEFAULT = 1024;
+	/**
+	 * Lowest decoding priority.
+	 */
+	int PRIORITY_LOWEST = Integer.MAX_VALUE;
 	
 	
 	/**
 	 * Read-only property to check whether thumbnail image manager is active or not.
 	 */
 	PropertyKey<Boolean> PROP_IS_ACTIVE = new PropertyKey<>("IsActive", Boolean.class, ThumbnailImageManager.class, false);
+	/**
+	 * Read-only property to get snapshot of decoding statistics, call {@link ThumbnailDecodingStatistics#dump(java.io.PrintWriter)} to get text report.
+	 */
+	PropertyKey<ThumbnailDecodingStatistics> PROP_DECODING_STATISTICS = new PropertyKey<>("DecodingStatistics", ThumbnailDecodingStatistics.class, ThumbnailImageManager.class, PropertyKey.FLAG_READONLY, null);
 	
 	
 	/**
@@ -43,6 +69,53 @@ public interface ThumbnailImageManager extends Component
 	}
 	
 	
+	/**
+	 * Thumbnail image decode call-back interface which receives decoded images in batch.
+	 */
+	public interface BatchDecodingCallback extends DecodingCallback
+	{
+		/**
+		 * Called when thumbnail images decoded in the same frame. Arrays will be reused after returning from this method, so do not keep references to them.
+		 * @param handles Handles returned from decode*ThumbnailImage methods.
+		 * @param media Media of each decoding.
+		 * @param thumbs Decoded thumbnail images, element will be Null if fail to decode.
+		 * @param count Number of decoded thumbnail images in arrays.
+		 */
+		void onThumbnailImagesDecoded(Handle[] handles, Media[] media, Bitmap[] thumbs, int count);
+	}
+	
+	
+	/**
+	 * Thumbnail image decode call-back interface which also receives preview image before thumbnail image decoded.
+	 */
+	public interface ProgressiveDecodingCallback extends DecodingCallback
+	{
+		/**
+		 * Called when preview image decoded. It will never be called after {@link #onThumbnailImageDecoded(Handle, Media, Bitmap)}.
+		 * @param handle Handle returned from decode*ThumbnailImage methods.
+		 * @param media Media.
+		 * @param preview Preview image.
+		 */
+		void onPreviewImageDecoded(Handle handle, Media media, Bitmap preview);
+	}
+	
+	
+	/**
+	 * Call-back interface to calculate new decoding priority.
+	 */
+	public interface DecodingPriorityCalculator
+	{
+		/**
+		 * Calculate new decoding priority. This method is only called for decoding which is still waiting in queue, while holding lock of decoding queue, so it should return as soon as possible.
+		 * @param handle Handle returned from decode*ThumbnailImage methods.
+		 * @param media Media to decode.
+		 * @param priority Current priority.
+		 * @return New priority, smaller value means higher priority.
+		 */
+		int calculatePriority(Handle handle, Media media, int priority);
+	}
+	
+	
 	/**
 	 * Activate thumbnail image manager.
 	 * @param flags Flags, reserved.
@@ -58,6 +131,8 @@ public interface ThumbnailImageManager extends Component
 	 * <ul>
 	 *   <li>{@link #FLAG_ASYNC}</li>
 	 *   <li>{@link #FLAG_URGENT}</li>
+	 *   <li>{@link #FLAG_BATCH_DELIVERY}</li>
+	 *   <li>{@link #FLAG_PREVIEW}</li>
 	 * </ul>
 	 * @param callback Decoding call-back.
 	 * @param handler {@link Handler} to perform call-back.
@@ -66,6 +141,24 @@ public interface ThumbnailImageManager extends Component
 	Handle decodeSmallThumbnailImage(Media media, int flags, DecodingCallback callback, Handler handler);
 	
 	
+	/**
+	 * Start decoding small thumbnail image with given priority.
+	 * @param media Media to decode.
+	 * @param priority Decoding priority, smaller value means higher priority. For example, distance from visible range.
+	 * @param flags Flags:
+	 * <ul>
+	 *   <li>{@link #FLAG_ASYNC}</li>
+	 *   <li>{@link #FLAG_URGENT}</li>
+	 *   <li>{@link #FLAG_BATCH_DELIVERY}</li>
+	 *   <li>{@link #FLAG_PREVIEW}</li>
+	 * </ul>
+	 * @param callback Decoding call-back.
+	 * @param handler {@link Handler} to perform call-back.
+	 * @return Handle to thumbnail image decoding.
+	 */
+	Handle decodeSmallThumbnailImage(Media media, int priority, int flags, DecodingCallback callback, Handler handler);
+	
+	
 	/**
 	 * Start decoding thumbnail image.
 	 * @param media Media to decode.
@@ -73,6 +166,8 @@ public interface ThumbnailImageManager extends Component
 	 * <ul>
 	 *   <li>{@link #FLAG_ASYNC}</li>
 	 *   <li>{@link #FLAG_URGENT}</li>
+	 *   <li>{@link #FLAG_BATCH_DELIVERY}</li>
+	 *   <li>{@link #FLAG_PREVIEW}</li>
 	 * </ul>
 	 * @param callback Decoding call-back.
 	 * @param handler {@link Handler} to perform call-back.
@@ -81,6 +176,24 @@ public interface ThumbnailImageManager extends Component
 	Handle decodeThumbnailImage(Media media, int flags, DecodingCallback callback, Handler handler);
 	
 	
+	/**
+	 * Start decoding thumbnail image with given priority.
+	 * @param media Media to decode.
+	 * @param priority Decoding priority, smaller value means higher priority.
+	 * @param flags Flags:
+	 * <ul>
+	 *   <li>{@link #FLAG_ASYNC}</li>
+	 *   <li>{@link #FLAG_URGENT}</li>
+	 *   <li>{@link #FLAG_BATCH_DELIVERY}</li>
+	 *   <li>{@link #FLAG_PREVIEW}</li>
+	 * </ul>
+	 * @param callback Decoding call-back.
+	 * @param handler {@link Handler} to perform call-back.
+	 * @return Handle to thumbnail image decoding.
+	 */
+	Handle decodeThumbnailImage(Media media, int priority, int flags, DecodingCallback callback, Handler handler);
+	
+	
 	/**
 	 * Get cached small thumbnail image directly.
 	 * @param media Media.
@@ -92,7 +205,38 @@ public interface ThumbnailImageManager extends Component
 	/**
 	 * Get cached thumbnail image directly.
 	 * @param media Media.
-	 * @return Small thumbnail image, or Null if there is no cached image in memory.
+	 * @return Thumbnail image, or Null if there is no cached image in memory.
 	 */
 	Bitmap getCachedThumbnailImage(Media media);
+	
+	
+	/**
+	 * Prefetch small thumbnail images of media in given range.
+	 * Range previously requested for the same media list will be replaced, only prefetching of media out of new range will be cancelled.
+	 * Media closer to the center of range will be decoded first, and range will be shrunk around its center if thumbnail images cannot fit into memory budget.
+	 * @param mediaList Media list.
+	 * @param from Index of first media to prefetch, inclusive.
+	 * @param to Index of last media to prefetch, exclusive.
+	 * @param priority Decoding priority of media at the center of range, which should be larger than {@link #PRIORITY_DEFAULT} so that prefetching won't delay decoding without priority.
+	 * @return Handle to prefetching of media list, close it to cancel all prefetching. The same handle will be returned for the same media list until closing it. Null if there is no memory budget for prefetching.
+	 */
+	Handle prefetchSmallThumbnailImages(MediaList mediaList, int from, int to, int priority);
+	
+	
+	/**
+	 * Change priority of decoding which is still waiting in queue.
+	 * @param handle Handle returned from decode*ThumbnailImage methods.
+	 * @param priority New priority, smaller value means higher priority.
+	 * @return True if priority changed successfully.
+	 */
+	boolean setDecodingPriority(Handle handle, int priority);
+	
+	
+	/**
+	 * Re-prioritize decoding which are still waiting in queue.
+	 * @param handles Handles returned from decode*ThumbnailImage methods.
+	 * @param calculator Call-back to calculate new priority for each decoding.
+	 * @return Number of re-prioritized decoding.
+	 */
+	int updateDecodingPriorities(Iterable<Handle> handles, DecodingPriorityCalculator calculator);
 }
@@ -0,0 +1,168 @@
+package com.oneplus.gallery.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import com.oneplus.gallery.cache.ImageCacheKeyHashing;
+
+/**
+ * Check collisions of hashes used by {@code ImageCacheKey} over 100,000 media paths which look like paths on device.
+ * <p>
+ * Identity hashes and fingerprints must not collide at all because they are used to name disk files and to find slots in packed store.
+ * Collisions of 32-bit hash codes are only reported and compared with expectation of ideal hash function.
+ * </p>
+ */
+public final class ImageCacheKeyCollisionCheck
+{
+	// Constants.
+	private static final int PATH_COUNT = 100000;
+	private static final int MODIFIED_MEDIA_COUNT = 10000;
+	private static final long RANDOM_SEED = 0x6F6E65706C7573L;
+	private static final long START_TIME = 1420070400000L;
+	
+	
+	// Media item.
+	private static final class MediaInfo
+	{
+		public final String id;
+		public final long fileSize;
+		public final long lastModifiedTime;
+		
+		public MediaInfo(String id, long fileSize, long lastModifiedTime)
+		{
+			this.id = id;
+			this.fileSize = fileSize;
+			this.lastModifiedTime = lastModifiedTime;
+		}
+	}
+	
+	
+	// Constructor.
+	private ImageCacheKeyCollisionCheck()
+	{}
+	
+	
+	// Count collisions of 32-bit hash codes.
+	private static int checkHashCodes(long[] fingerprints)
+	{
+		Map<Integer, Integer> counts = new HashMap<>();
+		int collisionCount = 0;
+		for(long fingerprint : fingerprints)
+		{
+			int hashCode = (int)(fingerprint ^ (fingerprint >>> 32));
+			Integer count = counts.get(hashCode);
+			if(count != null)
+				++collisionCount;
+			counts.put(hashCode, (count != null ? count + 1 : 1));
+		}
+		return collisionCount;
+	}
+	
+	
+	// Check that all hashes are unique.
+	private static int checkUnique(String name, List<MediaInfo> mediaList, long[] hashes)
+	{
+		Map<Long, MediaInfo> owners = new HashMap<>();
+		int collisionCount = 0;
+		for(int i = 0 ; i < hashes.length ; ++i)
+		{
+			MediaInfo media = mediaList.get(i);
+			MediaInfo owner = owners.put(hashes[i], media);
+			if(owner != null)
+			{
+				++collisionCount;
+				System.err.println(name + " collision : " + owner.id + " <-> " + media.id);
+			}
+		}
+		return collisionCount;
+	}
+	
+	
+	// Create path of media item.
+	private static String createPath(Random random, int index, long time)
+	{
+		String date = String.format(Locale.US, "%1$tY%1$tm%1$td_%1$tH%1$tM%1$tS", time);
+		switch(random.nextInt(10))
+		{
+			case 0:
+			case 1:
+			case 2:
+			case 3:
+				return "/storage/emulated/0/DCIM/Camera/IMG_" + date + ".jpg";
+			case 4:
+				// burst shots share timestamp and differ in one character
+				return "/storage/emulated/0/DCIM/Camera/IMG_" + date + "_BURST" + (index % 10) + ".jpg";
+			case 5:
+				return "/storage/emulated/0/DCIM/Camera/VID_" + date + ".mp4";
+			case 6:
+				return String.format(Locale.US, "/storage/emulated/0/Pictures/Screenshots/Screenshot_%1$tY-%1$tm-%1$td-%1$tH-%1$tM-%1$tS.png", time);
+			case 7:
+				return String.format(Locale.US, "/storage/emulated/0/WhatsApp/Media/WhatsApp Images/IMG-%1$tY%1$tm%1$td-WA%2$04d.jpg", time, index % 10000);
+			case 8:
+				return "/storage/sdcard1/DCIM/100ANDRO/DSC_" + String.format(Locale.US, "%04d", index % 10000) + "_" + (index / 10000) + ".JPG";
+			default:
+				return "content://media/external/images/media/" + index;
+		}
+	}
+	
+	
+	/**
+	 * Entry point.
+	 * @param args Arguments, not used.
+	 */
+	public static void main(String[] args)
+	{
+		// generate media
+		Random random = new Random(RANDOM_SEED);
+		List<MediaInfo> mediaList = new ArrayList<>(PATH_COUNT + MODIFIED_MEDIA_COUNT);
+		Map<String, Boolean> ids = new HashMap<>();
+		long time = START_TIME;
+		while(mediaList.size() < PATH_COUNT)
+		{
+			time += (random.nextInt(4) == 0 ? random.nextInt(86400) * 1000L : 1000L);
+			String path = createPath(random, mediaList.size(), time);
+			if(ids.put(path, true) != null)
+				continue;
+			mediaList.add(new MediaInfo(path, 500000 + random.nextInt(8000000), time));
+		}
+		
+		// calculate identity hashes
+		long[] identityHashes = new long[PATH_COUNT];
+		for(int i = 0 ; i < PATH_COUNT ; ++i)
+			identityHashes[i] = ImageCacheKeyHashing.hashIdentity(mediaList.get(i).id);
+		int identityCollisionCount = checkUnique("Identity hash", mediaList, identityHashes);
+		
+		// modify some media, they should get new fingerprints
+		for(int i = 0 ; i < MODIFIED_MEDIA_COUNT ; ++i)
+		{
+			MediaInfo media = mediaList.get(random.nextInt(PATH_COUNT));
+			long fileSize = (random.nextBoolean() ? media.fileSize : media.fileSize + random.nextInt(1000) - 500);
+			mediaList.add(new MediaInfo(media.id, fileSize, media.lastModifiedTime + 1000 + random.nextInt(60000)));
+		}
+		long[] fingerprints = new long[mediaList.size()];
+		for(int i = fingerprints.length - 1 ; i >= 0 ; --i)
+		{
+			MediaInfo media = mediaList.get(i);
+			fingerprints[i] = ImageCacheKeyHashing.fingerprint(ImageCacheKeyHashing.hashIdentity(media.id), media.fileSize, media.lastModifiedTime);
+		}
+		int fingerprintCollisionCount = checkUnique("Fingerprint", mediaList, fingerprints);
+		
+		// check hash codes
+		int hashCodeCollisionCount = checkHashCodes(fingerprints);
+		double expectedHashCodeCollisionCount = ((double)fingerprints.length * (fingerprints.length - 1) / 2 / 4294967296.0);
+		
+		// report
+		System.out.println("Paths : " + PATH_COUNT + ", modified media : " + MODIFIED_MEDIA_COUNT);
+		System.out.println("Identity hash collisions : " + identityCollisionCount);
+		System.out.println("Fingerprint collisions : " + fingerprintCollisionCount);
+		System.out.println(String.format(Locale.US, "Hash code collisions : %d (%.2f expected)", hashCodeCollisionCount, expectedHashCodeCollisionCount));
+		if(identityCollisionCount > 0 || fingerprintCollisionCount > 0)
+			throw new IllegalStateException("Hash collision found");
+		if(hashCodeCollisionCount > Math.max(10, expectedHashCodeCollisionCount * 4))
+			throw new IllegalStateException("Too many hash code collisions");
+	}
+}
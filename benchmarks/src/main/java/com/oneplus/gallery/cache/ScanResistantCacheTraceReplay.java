@@ -0,0 +1,271 @@
+package com.oneplus.gallery.cache;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Replay scroll traces against {@link ScanResistantAdmissionPolicy} and compare its hit rate with plain LRU cache with same capacity.
+ * <p>
+ * Capacities follow small thumbnail cache of cache manager: memory tier holds 3 screens of thumbnails and window holds 1 screen. Each access which misses cache is followed by adding the entry, like decoding thumbnail and putting it into cache.
+ * Without arguments, traces are generated by simulating scroll gestures on media grid: items of rows which become visible are accessed, browsing gestures scroll around recently viewed rows, flings pass through large part of album before jumping back, and drifting scrolls through album slowly with small steps back.
+ * Recorded traces can be replayed by passing file paths as arguments. Each line of trace file is an access in form of "&lt;fingerprint&gt; &lt;size&gt;", fingerprint can be decimal or hexadecimal with "0x" prefix, empty lines and lines start with '#' are ignored.
+ * The check fails if hit rate of the policy is lower than plain LRU by more than {@link #MAX_HIT_RATE_LOSS} for any trace, or not higher than plain LRU for generated traces with flings.
+ * </p>
+ */
+public final class ScanResistantCacheTraceReplay
+{
+	// Constants.
+	private static final int ALBUM_ROW_COUNT = 2500;
+	private static final int CACHE_SCREEN_COUNT = 3;
+	private static final int COLUMN_COUNT = 4;
+	private static final int GESTURE_COUNT = 4000;
+	private static final double MAX_HIT_RATE_LOSS = 0.02;
+	private static final int PREFETCH_ROW_COUNT = 2;
+	private static final long RANDOM_SEED = 0x5EED;
+	private static final int THUMB_SIZE = (160 * 160 * 2);
+	private static final int VISIBLE_ROW_COUNT = 7;
+	private static final int WINDOW_SCREEN_COUNT = 1;
+	
+	
+	// Recorded or generated trace.
+	private static final class Trace
+	{
+		// Fields.
+		public final List<long[]> accesses = new ArrayList<>();
+		public final boolean isScanResistanceExpected;
+		public final String name;
+		
+		// Constructor.
+		public Trace(String name, boolean isScanResistanceExpected)
+		{
+			this.name = name;
+			this.isScanResistanceExpected = isScanResistanceExpected;
+		}
+		
+		// Add access.
+		public void add(long fingerprint, int size)
+		{
+			this.accesses.add(new long[]{ fingerprint, size });
+		}
+	}
+	
+	
+	// Grid which records accesses of rows becoming visible.
+	private static final class GridView
+	{
+		// Fields.
+		private int m_FirstVisibleRow;
+		private final Trace m_Trace;
+		
+		// Constructor.
+		public GridView(Trace trace)
+		{
+			m_Trace = trace;
+			this.bindRows(0, VISIBLE_ROW_COUNT + PREFETCH_ROW_COUNT);
+		}
+		
+		// Access items in given rows.
+		private void bindRows(int startRow, int endRow)
+		{
+			startRow = Math.max(0, startRow);
+			endRow = Math.min(ALBUM_ROW_COUNT, endRow);
+			for(int row = startRow ; row < endRow ; ++row)
+			{
+				for(int column = 0 ; column < COLUMN_COUNT ; ++column)
+					m_Trace.add(getFingerprint(row * COLUMN_COUNT + column), THUMB_SIZE);
+			}
+		}
+		
+		// Get first visible row.
+		public int getFirstVisibleRow()
+		{
+			return m_FirstVisibleRow;
+		}
+		
+		// Jump to given row directly, only rows around it are bound.
+		public void jumpTo(int row)
+		{
+			m_FirstVisibleRow = Math.max(0, Math.min(ALBUM_ROW_COUNT - VISIBLE_ROW_COUNT, row));
+			this.bindRows(m_FirstVisibleRow - PREFETCH_ROW_COUNT, m_FirstVisibleRow + VISIBLE_ROW_COUNT + PREFETCH_ROW_COUNT);
+		}
+		
+		// Scroll to given row, one row at a time.
+		public void scrollTo(int row)
+		{
+			row = Math.max(0, Math.min(ALBUM_ROW_COUNT - VISIBLE_ROW_COUNT, row));
+			while(m_FirstVisibleRow < row)
+			{
+				++m_FirstVisibleRow;
+				int newRow = (m_FirstVisibleRow + VISIBLE_ROW_COUNT - 1 + PREFETCH_ROW_COUNT);
+				this.bindRows(newRow, newRow + 1);
+			}
+			while(m_FirstVisibleRow > row)
+			{
+				--m_FirstVisibleRow;
+				int newRow = (m_FirstVisibleRow - PREFETCH_ROW_COUNT);
+				this.bindRows(newRow, newRow + 1);
+			}
+		}
+	}
+	
+	
+	// Constructor.
+	private ScanResistantCacheTraceReplay()
+	{}
+	
+	
+	// Generate trace of browsing around given rows, with flings through album in given probability.
+	private static Trace generateTrace(String name, int hotRowCount, double flingProbability, boolean isScanResistanceExpected)
+	{
+		Trace trace = new Trace(name, isScanResistanceExpected);
+		GridView gridView = new GridView(trace);
+		Random random = new Random(RANDOM_SEED);
+		for(int i = 0 ; i < GESTURE_COUNT ; ++i)
+		{
+			if(random.nextDouble() < flingProbability)
+			{
+				// fling through album and jump back
+				int row = gridView.getFirstVisibleRow();
+				gridView.scrollTo(row + VISIBLE_ROW_COUNT * (10 + random.nextInt(30)));
+				gridView.jumpTo(row);
+			}
+			else
+			{
+				// browse around recently viewed rows
+				int distance = (1 + random.nextInt(VISIBLE_ROW_COUNT * 2));
+				int row = (gridView.getFirstVisibleRow() + (random.nextBoolean() ? distance : -distance));
+				gridView.scrollTo(Math.max(0, Math.min(hotRowCount - VISIBLE_ROW_COUNT, row)));
+			}
+		}
+		return trace;
+	}
+	
+	
+	// Generate trace of slow scrolling through album with small steps back.
+	private static Trace generateDriftTrace()
+	{
+		Trace trace = new Trace("Drift", false);
+		GridView gridView = new GridView(trace);
+		Random random = new Random(RANDOM_SEED);
+		for(int i = 0 ; i < GESTURE_COUNT ; ++i)
+		{
+			int row = gridView.getFirstVisibleRow();
+			if(random.nextInt(4) == 0)
+				gridView.scrollTo(row - 1 - random.nextInt(VISIBLE_ROW_COUNT));
+			else
+				gridView.scrollTo(row + 1 + random.nextInt(VISIBLE_ROW_COUNT));
+			if(gridView.getFirstVisibleRow() >= ALBUM_ROW_COUNT - VISIBLE_ROW_COUNT)
+				gridView.scrollTo(0);
+		}
+		return trace;
+	}
+	
+	
+	// Get fingerprint of given media.
+	private static long getFingerprint(int index)
+	{
+		long hash = (index * 0x9E3779B97F4A7C15L);
+		hash ^= (hash >>> 32);
+		return hash;
+	}
+	
+	
+	// Read recorded trace.
+	private static Trace readTrace(String path) throws IOException
+	{
+		Trace trace = new Trace(path, false);
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8)))
+		{
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				if(fields.length < 2)
+					throw new IOException("Invalid access in " + path + " : " + line);
+				String fingerprint = fields[0];
+				if(fingerprint.startsWith("0x") || fingerprint.startsWith("0X"))
+					trace.add(Long.parseUnsignedLong(fingerprint.substring(2), 16), Integer.parseInt(fields[1]));
+				else
+					trace.add(Long.parseLong(fingerprint), Integer.parseInt(fields[1]));
+			}
+		}
+		return trace;
+	}
+	
+	
+	// Replay trace, returns True if the policy is not worse than expected.
+	private static boolean replay(Trace trace)
+	{
+		// create policy
+		long screenSize = ((long)THUMB_SIZE * COLUMN_COUNT * VISIBLE_ROW_COUNT);
+		ScanResistantAdmissionPolicy policy = new ScanResistantAdmissionPolicy(screenSize * CACHE_SCREEN_COUNT, screenSize * WINDOW_SCREEN_COUNT, COLUMN_COUNT * VISIBLE_ROW_COUNT * CACHE_SCREEN_COUNT);
+		
+		// replay
+		List<Long> admittedEntries = new ArrayList<>();
+		List<Long> evictedEntries = new ArrayList<>();
+		long hitCount = 0;
+		for(int i = 0, count = trace.accesses.size() ; i < count ; ++i)
+		{
+			long[] access = trace.accesses.get(i);
+			if(policy.access(access[0]) != ScanResistantAdmissionPolicy.LOCATION_NONE)
+				++hitCount;
+			else
+			{
+				policy.add(access[0], (int)access[1], admittedEntries, evictedEntries);
+				admittedEntries.clear();
+				evictedEntries.clear();
+			}
+		}
+		
+		// report
+		int count = Math.max(1, trace.accesses.size());
+		double hitRate = ((double)hitCount / count);
+		double referenceHitRate = ((double)policy.getReferenceHitCount() / count);
+		System.out.println(String.format(Locale.US, "%-24s accesses : %8d, hit rate : %.4f, plain LRU : %.4f, admitted : %d, rejected : %d, window : %d%%", trace.name, trace.accesses.size(), hitRate, referenceHitRate, policy.getAdmittedCount(), policy.getRejectedCount(), policy.getWindowCapacity() * 100 / (screenSize * CACHE_SCREEN_COUNT)));
+		if(hitRate < referenceHitRate - MAX_HIT_RATE_LOSS)
+			return false;
+		if(trace.isScanResistanceExpected && hitRate <= referenceHitRate)
+			return false;
+		return true;
+	}
+	
+	
+	/**
+	 * Entry point.
+	 * @param args Paths of recorded trace files, or empty to replay generated traces.
+	 * @throws IOException If trace file cannot be read.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		// prepare traces
+		List<Trace> traces = new ArrayList<>();
+		if(args.length > 0)
+		{
+			for(String path : args)
+				traces.add(readTrace(path));
+		}
+		else
+		{
+			traces.add(generateTrace("Browse", VISIBLE_ROW_COUNT * 4, 0, false));
+			traces.add(generateTrace("Browse with flings", VISIBLE_ROW_COUNT * 2, 0.1, true));
+			traces.add(generateDriftTrace());
+		}
+		
+		// replay
+		boolean isPassed = true;
+		for(int i = 0, count = traces.size() ; i < count ; ++i)
+			isPassed &= replay(traces.get(i));
+		if(!isPassed)
+			throw new IllegalStateException("Hit rate of scan-resistant admission policy is lower than expected");
+	}
+}
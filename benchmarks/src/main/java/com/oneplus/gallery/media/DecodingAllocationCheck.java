@@ -0,0 +1,227 @@
+package com.oneplus.gallery.media;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Check memory allocated by {@link DecodingScheduler} for each request after pools of tasks and call-back envelopes are warmed up.
+ * <p>
+ * Requests are allocated for each call like decoding handles of thumbnail image manager, so they are part of measured allocation. Each cycle schedules a request, runs the task by synchronous executor, completes it and delivers result through pooled envelope.
+ * Allocated bytes of current thread are taken from {@link com.sun.management.ThreadMXBean}, the check fails if average allocation of a request exceeds {@link #MAX_ALLOCATED_BYTES_PER_REQUEST}.
+ * </p>
+ */
+public final class DecodingAllocationCheck
+{
+	// Constants.
+	private static final int CYCLE_COUNT = 200000;
+	private static final int KEY_COUNT = 256;
+	private static final long MAX_ALLOCATED_BYTES_PER_REQUEST = 96;
+	private static final int MAX_FREE_ENVELOPES = 64;
+	private static final int PRIORITY_DEFAULT = 1024;
+	private static final Object RESULT = new Object();
+	private static final int WARM_UP_CYCLE_COUNT = 50000;
+	
+	
+	// Updater to detach task from request atomically.
+	private static final AtomicReferenceFieldUpdater<Request, Task> REQUEST_TASK_UPDATER = AtomicReferenceFieldUpdater.newUpdater(Request.class, Task.class, "task");
+	
+	
+	// Reusable envelope to deliver result, like call-back envelope of thumbnail image manager.
+	private static final class Envelope implements Runnable
+	{
+		// Fields.
+		public Request request;
+		public Object result;
+		
+		// Deliver result.
+		@Override
+		public void run()
+		{
+			this.request.result = this.result;
+		}
+	}
+	
+	
+	// Decoder which completes task immediately.
+	private static final class ImmediateDecoder implements DecodingScheduler.Decoder<Request, Task, Object>
+	{
+		// Fields.
+		public long deliveredCount;
+		private final Queue<Envelope> m_FreeEnvelopes = new ArrayDeque<>(MAX_FREE_ENVELOPES);
+		public DecodingScheduler<Integer, Request, Task, Object> scheduler;
+		
+		// Create new task.
+		@Override
+		public Task createTask()
+		{
+			return new Task();
+		}
+		
+		// Complete task.
+		@Override
+		public void decode(Task task)
+		{
+			this.scheduler.complete(task, task.getGeneration(), RESULT);
+		}
+		
+		// Deliver result through pooled envelope.
+		@Override
+		public void deliver(Request request, Task task, Object result)
+		{
+			Envelope envelope = m_FreeEnvelopes.poll();
+			if(envelope == null)
+				envelope = new Envelope();
+			envelope.request = request;
+			envelope.result = result;
+			envelope.run();
+			envelope.request = null;
+			envelope.result = null;
+			if(m_FreeEnvelopes.size() < MAX_FREE_ENVELOPES)
+				m_FreeEnvelopes.add(envelope);
+			++this.deliveredCount;
+		}
+		
+		// Nothing to cancel.
+		@Override
+		public void onRunningTaskCancelled(Task task, Object cancellationToken)
+		{}
+		
+		// Nothing to record.
+		@Override
+		public void onTaskCompleted(Task task, Object result)
+		{}
+		
+		// Nothing to prepare.
+		@Override
+		public void onTaskCreated(Task task, Request request)
+		{}
+		
+		// Nothing to reset.
+		@Override
+		public void onTaskReleased(Task task)
+		{}
+	}
+	
+	
+	// Request for media, which is allocated for each call.
+	private static final class Request implements DecodingScheduler.Request<Task>
+	{
+		// Fields.
+		public volatile int priority;
+		public Object result;
+		public volatile Task task;
+		
+		// Constructor.
+		public Request(int priority)
+		{
+			this.priority = priority;
+		}
+		
+		// Change attached task.
+		@Override
+		public boolean compareAndSetTask(Task expectedTask, Task task)
+		{
+			return REQUEST_TASK_UPDATER.compareAndSet(this, expectedTask, task);
+		}
+		
+		// Get priority.
+		@Override
+		public int getPriority()
+		{
+			return this.priority;
+		}
+		
+		// Get attached task.
+		@Override
+		public Task getTask()
+		{
+			return this.task;
+		}
+		
+		// Set priority.
+		@Override
+		public void setPriority(int priority)
+		{
+			this.priority = priority;
+		}
+	}
+	
+	
+	// Task of media.
+	private static final class Task extends DecodingScheduler.Task<Integer, Request>
+	{}
+	
+	
+	// Constructor.
+	private DecodingAllocationCheck()
+	{}
+	
+	
+	// Run cycles of schedule, complete and deliver.
+	private static void runCycles(DecodingScheduler<Integer, Request, Task, Object> scheduler, Integer[] keys, int count)
+	{
+		for(int i = 0 ; i < count ; ++i)
+		{
+			Request request = new Request(PRIORITY_DEFAULT);
+			scheduler.schedule(keys[i % KEY_COUNT], request, 0, false);
+			if(request.result != RESULT)
+				throw new IllegalStateException("Result is not delivered");
+		}
+	}
+	
+	
+	/**
+	 * Entry point.
+	 * @param args Arguments, not used.
+	 */
+	public static void main(String[] args)
+	{
+		// check allocation measurement
+		java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		if(!(threadBean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemorySupported())
+		{
+			System.out.println("Thread allocated memory is not supported, skip checking");
+			return;
+		}
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+		allocationBean.setThreadAllocatedMemoryEnabled(true);
+		
+		// prepare scheduler with synchronous executor
+		ImmediateDecoder decoder = new ImmediateDecoder();
+		Executor executor = new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				command.run();
+			}
+		};
+		DecodingScheduler<Integer, Request, Task, Object> scheduler = new DecodingScheduler<>(decoder, executor, 0);
+		decoder.scheduler = scheduler;
+		Integer[] keys = new Integer[KEY_COUNT];
+		for(int i = 0 ; i < KEY_COUNT ; ++i)
+			keys[i] = Integer.valueOf(i + 1000);
+		
+		// warm up pools and JIT
+		runCycles(scheduler, keys, WARM_UP_CYCLE_COUNT);
+		
+		// measure
+		long threadId = Thread.currentThread().getId();
+		long startBytes = allocationBean.getThreadAllocatedBytes(threadId);
+		runCycles(scheduler, keys, CYCLE_COUNT);
+		long allocatedBytes = (allocationBean.getThreadAllocatedBytes(threadId) - startBytes);
+		double bytesPerRequest = ((double)allocatedBytes / CYCLE_COUNT);
+		
+		// report
+		System.out.println(String.format(Locale.US, "Requests : %d, delivered : %d, created tasks : %d, reused tasks : %d", CYCLE_COUNT, decoder.deliveredCount - WARM_UP_CYCLE_COUNT, scheduler.getCreatedTaskCount(), scheduler.getReusedTaskCount()));
+		System.out.println(String.format(Locale.US, "Allocated : %d bytes, %.1f bytes per request (max %d)", allocatedBytes, bytesPerRequest, MAX_ALLOCATED_BYTES_PER_REQUEST));
+		if(scheduler.getCreatedTaskCount() > 1)
+			throw new IllegalStateException("Tasks are not reused");
+		if(bytesPerRequest > MAX_ALLOCATED_BYTES_PER_REQUEST)
+			throw new IllegalStateException("Too many bytes allocated for each request");
+	}
+}
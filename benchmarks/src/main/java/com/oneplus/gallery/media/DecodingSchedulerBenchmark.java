@@ -0,0 +1,462 @@
+package com.oneplus.gallery.media;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link DecodingScheduler} driven by synthetic decoder with configurable latency.
+ * <p>
+ * Media are laid out in grid, requests for visible media use default priority and requests for prefetching use lower priority by distance to visible range. Scenarios:
+ * </p>
+ * <ul>
+ *   <li>scroll : Visible range moves by one row per frame, media leaving visible and prefetching ranges are cancelled and prefetched media are coalesced when becoming visible.</li>
+ *   <li>flingAndCancel : Visible range jumps several pages without waiting, then settles and waits for visible media. Most requests are cancelled before decoding.</li>
+ *   <li>burstUrgent : Burst of urgent requests is issued behind background requests with the same priority, background requests are cancelled after visible media are delivered.</li>
+ * </ul>
+ * <p>
+ * Each invocation returns when all visible media are delivered, so throughput is number of frames per second and percentiles of sample time are time-to-visible of whole frame.
+ * Delivered thumbnail images and lock contention of scheduler are reported as auxiliary counters.
+ * Run by "mvn package exec:exec@decoding-scheduler-benchmark", or run org.openjdk.jmh.Main with class path of this module to pass JMH options.
+ * </p>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodingSchedulerBenchmark
+{
+	// Constants.
+	private static final int COLUMN_COUNT = 4;
+	private static final int BACKGROUND_REQUEST_COUNT = 128;
+	private static final int FLING_FRAME_COUNT = 8;
+	private static final int PREFETCH_COUNT = (COLUMN_COUNT * 8);
+	private static final int PRIORITY_DEFAULT = 1024;
+	private static final Object RESULT = new Object();
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private static final int VISIBLE_COUNT = (COLUMN_COUNT * 6);
+	
+	
+	// Updater to detach task from request atomically.
+	private static final AtomicReferenceFieldUpdater<Request, Task> REQUEST_TASK_UPDATER = AtomicReferenceFieldUpdater.newUpdater(Request.class, Task.class, "task");
+	
+	
+	/**
+	 * Grid view which requests thumbnail images through scheduler.
+	 */
+	@State(Scope.Thread)
+	public static class GridView implements DecodingScheduler.Decoder<Request, Task, Object>, DecodingScheduler.PriorityCalculator<Request>
+	{
+		/**
+		 * Latency of synthetic decoder in microseconds.
+		 */
+		@Param({ "200", "2000" })
+		public int decodingLatency;
+		
+		/**
+		 * Number of decoder threads.
+		 */
+		@Param({ "2" })
+		public int decoderThreadCount;
+		
+		// Fields.
+		private ExecutorService m_Executor;
+		private long m_LastContendedLockCount;
+		private long m_LastDroppedTaskCount;
+		private long m_LastLockCount;
+		private long m_LastLockWaitingTime;
+		private int m_NextBackgroundKey = -1;
+		private final AtomicInteger m_PendingVisibleCount = new AtomicInteger();
+		private int m_Position;
+		private final Map<Integer, Request> m_PrefetchRequests = new HashMap<>();
+		private DecodingScheduler<Integer, Request, Task, Object> m_Scheduler;
+		private final Map<Integer, Request> m_VisibleRequests = new HashMap<>();
+		private int m_VisibleEnd;
+		private volatile Thread m_WaitingThread;
+		
+		// Wait until all visible media are delivered.
+		void awaitVisibleMedia()
+		{
+			long deadline = System.nanoTime() + TIMEOUT_NANOS;
+			m_WaitingThread = Thread.currentThread();
+			while(m_PendingVisibleCount.get() > 0)
+			{
+				if(System.nanoTime() > deadline)
+					throw new IllegalStateException("Visible media are not delivered in time");
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+			}
+			m_WaitingThread = null;
+		}
+		
+		// Cancel request.
+		void cancel(Request request)
+		{
+			if(request.state.compareAndSet(Request.STATE_PENDING, Request.STATE_CANCELLED) && request.isVisible)
+				m_PendingVisibleCount.decrementAndGet();
+			m_Scheduler.cancel(request);
+		}
+		
+		// Cancel all background requests.
+		void cancelAll(List<Request> requests)
+		{
+			for(int i = requests.size() - 1 ; i >= 0 ; --i)
+				this.cancel(requests.get(i));
+			requests.clear();
+		}
+		
+		// Cancel requests out of given range.
+		private void cancelOutOfRange(Map<Integer, Request> requests, int from, int to)
+		{
+			Iterator<Map.Entry<Integer, Request>> iterator = requests.entrySet().iterator();
+			while(iterator.hasNext())
+			{
+				Map.Entry<Integer, Request> entry = iterator.next();
+				int index = entry.getKey();
+				if(index >= from && index < to)
+					continue;
+				this.cancel(entry.getValue());
+				iterator.remove();
+			}
+		}
+		
+		// Calculate prefetching priority by distance to visible range.
+		@Override
+		public int calculatePriority(Request request, int priority)
+		{
+			return (PRIORITY_DEFAULT + 1 + (request.index - m_VisibleEnd));
+		}
+		
+		// Create new task.
+		@Override
+		public Task createTask()
+		{
+			return new Task();
+		}
+		
+		// Decode by sleeping for given latency.
+		@Override
+		public void decode(Task task)
+		{
+			int generation = task.getGeneration();
+			if(task.isCancelled() && m_Scheduler.drop(task, generation))
+				return;
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(this.decodingLatency));
+			if(task.isCancelled() && m_Scheduler.drop(task, generation))
+				return;
+			m_Scheduler.complete(task, generation, RESULT);
+		}
+		
+		// Deliver to request.
+		@Override
+		public void deliver(Request request, Task task, Object result)
+		{
+			if(request.state.compareAndSet(Request.STATE_PENDING, Request.STATE_DELIVERED) && request.isVisible && m_PendingVisibleCount.decrementAndGet() == 0)
+			{
+				Thread thread = m_WaitingThread;
+				if(thread != null)
+					LockSupport.unpark(thread);
+			}
+		}
+		
+		// Move visible range to given position, prefetching range follows visible range.
+		void moveTo(int position, boolean prefetch, boolean urgent)
+		{
+			// request visible media, prefetched media will be coalesced
+			m_Position = position;
+			int visibleEnd = (position + VISIBLE_COUNT);
+			for(int i = position ; i < visibleEnd ; ++i)
+			{
+				if(!m_VisibleRequests.containsKey(i))
+					m_VisibleRequests.put(i, this.request(i, PRIORITY_DEFAULT, true, urgent));
+			}
+			this.cancelOutOfRange(m_VisibleRequests, position, visibleEnd);
+			
+			// update prefetching, priorities of prefetching started before are updated in bulk
+			int prefetchEnd = (prefetch ? visibleEnd + PREFETCH_COUNT : visibleEnd);
+			m_VisibleEnd = visibleEnd;
+			this.cancelOutOfRange(m_PrefetchRequests, visibleEnd, prefetchEnd);
+			m_Scheduler.setPriorities(m_PrefetchRequests.values(), this);
+			for(int i = visibleEnd ; i < prefetchEnd ; ++i)
+			{
+				if(!m_PrefetchRequests.containsKey(i))
+					m_PrefetchRequests.put(i, this.request(i, PRIORITY_DEFAULT + 1 + (i - visibleEnd), false, false));
+			}
+		}
+		
+		// Cancelled task has no in-flight work to stop.
+		@Override
+		public void onRunningTaskCancelled(Task task, Object cancellationToken)
+		{}
+		
+		// Nothing to do when task completed.
+		@Override
+		public void onTaskCompleted(Task task, Object result)
+		{}
+		
+		// Nothing to prepare for new task.
+		@Override
+		public void onTaskCreated(Task task, Request request)
+		{}
+		
+		// Nothing to reset for released task.
+		@Override
+		public void onTaskReleased(Task task)
+		{}
+		
+		// Request thumbnail image of media at given position.
+		Request request(int key, int priority, boolean isVisible, boolean urgent)
+		{
+			Request request = new Request(key, priority, isVisible);
+			if(isVisible)
+				m_PendingVisibleCount.incrementAndGet();
+			m_Scheduler.schedule(key, request, 0, urgent);
+			return request;
+		}
+		
+		// Request thumbnail images which are not visible in grid.
+		void requestBackground(List<Request> requests, int count)
+		{
+			for(int i = count ; i > 0 ; --i)
+				requests.add(this.request(m_NextBackgroundKey--, PRIORITY_DEFAULT, false, false));
+		}
+		
+		/**
+		 * Create scheduler and decoder threads.
+		 */
+		@Setup(Level.Trial)
+		public void setup()
+		{
+			m_Executor = Executors.newFixedThreadPool(this.decoderThreadCount);
+			m_Scheduler = new DecodingScheduler<>(this, m_Executor, 0);
+		}
+		
+		/**
+		 * Cancel all requests and stop decoder threads.
+		 * @throws InterruptedException If interrupted while waiting for decoder threads.
+		 */
+		@TearDown(Level.Trial)
+		public void tearDown() throws InterruptedException
+		{
+			this.cancelOutOfRange(m_VisibleRequests, 0, 0);
+			this.cancelOutOfRange(m_PrefetchRequests, 0, 0);
+			m_Executor.shutdown();
+			m_Executor.awaitTermination(10, TimeUnit.SECONDS);
+		}
+		
+		// Add statistics of scheduler since last update to counters.
+		void updateCounters(SchedulerCounters counters)
+		{
+			long lockCount = m_Scheduler.getLockCount();
+			long contendedLockCount = m_Scheduler.getContendedLockCount();
+			long lockWaitingTime = m_Scheduler.getLockWaitingTime();
+			long droppedTaskCount = m_Scheduler.getDroppedTaskCount();
+			counters.lockCount += (lockCount - m_LastLockCount);
+			counters.contendedLockCount += (contendedLockCount - m_LastContendedLockCount);
+			counters.lockWaitingTimeMicros += (lockWaitingTime - m_LastLockWaitingTime);
+			counters.droppedTaskCount += (droppedTaskCount - m_LastDroppedTaskCount);
+			m_LastLockCount = lockCount;
+			m_LastContendedLockCount = contendedLockCount;
+			m_LastLockWaitingTime = lockWaitingTime;
+			m_LastDroppedTaskCount = droppedTaskCount;
+		}
+	}
+	
+	
+	/**
+	 * Number of delivered visible media, which is reported as rate.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class DeliveryCounters
+	{
+		/**
+		 * Number of visible media delivered.
+		 */
+		public long visibleMedia;
+		
+		/**
+		 * Reset counters.
+		 */
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			this.visibleMedia = 0;
+		}
+	}
+	
+	
+	/**
+	 * Lock contention and dropped tasks of scheduler, which are reported as totals in iteration.
+	 */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class SchedulerCounters
+	{
+		/**
+		 * Number of lock acquisitions waited longer than 10 microseconds.
+		 */
+		public long contendedLockCount;
+		
+		/**
+		 * Number of dropped tasks.
+		 */
+		public long droppedTaskCount;
+		
+		/**
+		 * Number of lock acquisitions.
+		 */
+		public long lockCount;
+		
+		/**
+		 * Time spent on waiting contended lock in microseconds.
+		 */
+		public long lockWaitingTimeMicros;
+		
+		/**
+		 * Reset counters.
+		 */
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			this.contendedLockCount = 0;
+			this.droppedTaskCount = 0;
+			this.lockCount = 0;
+			this.lockWaitingTimeMicros = 0;
+		}
+	}
+	
+	
+	// Request of synthetic decoding.
+	static final class Request implements DecodingScheduler.Request<Task>
+	{
+		// Constants.
+		public static final int STATE_PENDING = 0;
+		public static final int STATE_DELIVERED = 1;
+		public static final int STATE_CANCELLED = 2;
+		
+		// Fields.
+		public final int index;
+		public final boolean isVisible;
+		public volatile int priority;
+		public final AtomicInteger state = new AtomicInteger(STATE_PENDING);
+		public volatile Task task;
+		
+		// Constructor.
+		public Request(int index, int priority, boolean isVisible)
+		{
+			this.index = index;
+			this.priority = priority;
+			this.isVisible = isVisible;
+		}
+		
+		// Attach to or detach from task atomically.
+		@Override
+		public boolean compareAndSetTask(Task expectedTask, Task task)
+		{
+			return REQUEST_TASK_UPDATER.compareAndSet(this, expectedTask, task);
+		}
+		
+		// Get priority.
+		@Override
+		public int getPriority()
+		{
+			return this.priority;
+		}
+		
+		// Get attached task.
+		@Override
+		public Task getTask()
+		{
+			return this.task;
+		}
+		
+		// Set priority.
+		@Override
+		public void setPriority(int priority)
+		{
+			this.priority = priority;
+		}
+	}
+	
+	
+	// Task of synthetic decoding.
+	static final class Task extends DecodingScheduler.Task<Integer, Request>
+	{}
+	
+	
+	/**
+	 * Issue urgent requests for a page behind background requests with the same priority and wait for them.
+	 * @param gridView Grid view.
+	 * @param deliveryCounters Counters of delivered media.
+	 * @param schedulerCounters Counters of scheduler.
+	 */
+	@Benchmark
+	public void burstUrgent(GridView gridView, DeliveryCounters deliveryCounters, SchedulerCounters schedulerCounters)
+	{
+		List<Request> backgroundRequests = new ArrayList<>(BACKGROUND_REQUEST_COUNT);
+		gridView.requestBackground(backgroundRequests, BACKGROUND_REQUEST_COUNT);
+		gridView.moveTo(gridView.m_Position + VISIBLE_COUNT, false, true);
+		gridView.awaitVisibleMedia();
+		gridView.cancelAll(backgroundRequests);
+		deliveryCounters.visibleMedia += VISIBLE_COUNT;
+		gridView.updateCounters(schedulerCounters);
+	}
+	
+	
+	/**
+	 * Jump over several pages without waiting, then settle and wait for visible media.
+	 * @param gridView Grid view.
+	 * @param deliveryCounters Counters of delivered media.
+	 * @param schedulerCounters Counters of scheduler.
+	 */
+	@Benchmark
+	public void flingAndCancel(GridView gridView, DeliveryCounters deliveryCounters, SchedulerCounters schedulerCounters)
+	{
+		for(int i = FLING_FRAME_COUNT ; i > 0 ; --i)
+			gridView.moveTo(gridView.m_Position + (VISIBLE_COUNT * 2), false, false);
+		gridView.moveTo(gridView.m_Position + (VISIBLE_COUNT * 2), true, false);
+		gridView.awaitVisibleMedia();
+		deliveryCounters.visibleMedia += VISIBLE_COUNT;
+		gridView.updateCounters(schedulerCounters);
+	}
+	
+	
+	/**
+	 * Scroll by one row and wait for visible media.
+	 * @param gridView Grid view.
+	 * @param deliveryCounters Counters of delivered media.
+	 * @param schedulerCounters Counters of scheduler.
+	 */
+	@Benchmark
+	public void scroll(GridView gridView, DeliveryCounters deliveryCounters, SchedulerCounters schedulerCounters)
+	{
+		gridView.moveTo(gridView.m_Position + COLUMN_COUNT, true, false);
+		gridView.awaitVisibleMedia();
+		deliveryCounters.visibleMedia += COLUMN_COUNT;
+		gridView.updateCounters(schedulerCounters);
+	}
+}
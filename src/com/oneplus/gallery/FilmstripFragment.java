@@ -39,6 +39,7 @@ import com.oneplus.base.PropertyKey;
 import com.oneplus.base.PropertySource;
 import com.oneplus.base.ScreenSize;
 import com.oneplus.drawable.ProgressiveBitmapDrawable;
+import com.oneplus.gallery.cache.CacheManager;
 import com.oneplus.gallery.media.Media;
 import com.oneplus.gallery.media.MediaList;
 import com.oneplus.gallery.media.MediaSet;
@@ -46,7 +47,6 @@ import com.oneplus.gallery.media.OPMediaManager;
 import com.oneplus.gallery.media.PhotoMedia;
 import com.oneplus.gallery.media.ThumbnailImageManager;
 import com.oneplus.gallery.media.VideoMedia;
-import com.oneplus.media.BitmapPool;
 import com.oneplus.widget.FilmstripView;
 import com.oneplus.widget.ScaleImageView;
 import com.oneplus.widget.ScaleImageView.BoundsType;
@@ -75,7 +75,6 @@ public class FilmstripFragment extends GalleryFragment
 	
 	
 	// Constants
-	private final static BitmapPool BITMAP_POOL_MEDIUM_RESOLUTION = new BitmapPool("FilmstripMediumResBitmapPool", 64 << 20, 16 << 20, Bitmap.Config.ARGB_8888, 3, 0);
 	private static final long DURATION_ANIMATION = 150;
 	private static final long DELAY_HIDE_TOOL_BAR_TIME_MILLIS = 3000;
 	private static final boolean ENABLE_DECODE_LOG = false;
@@ -83,6 +82,7 @@ public class FilmstripFragment extends GalleryFragment
 	private static final int MEDIA_REMOVED = 2;
 	private static final int PRE_DECODE_THUMB_WINDOW_SIZE = 2;
 	private static final int PRE_DECODE_THUMB_WINDOW_SIZE_SMALL = 3;
+	private static final int THUMB_CACHE_CAPACITY_DIVISOR_HIDDEN = 2;
 	private static final int MSG_HIDE_TOOL_BAR = 10001;
 
 	
@@ -154,13 +154,12 @@ public class FilmstripFragment extends GalleryFragment
 		}
 	};
 	private MediaList m_MediaList;
-	private Handle m_MediumResBitmapActiveHandle;
-	private final BitmapPool.Callback m_MediumResBitmapDecodeCallback = new BitmapPool.Callback() 
+	private final ThumbnailImageManager.DecodingCallback m_MediumResBitmapDecodeCallback = new ThumbnailImageManager.DecodingCallback()
 	{
 		@Override
-		public void onBitmapDecoded(Handle handle, String filePath, Bitmap bitmap) 
+		public void onThumbnailImageDecoded(Handle handle, Media media, Bitmap thumb)
 		{
-			FilmstripFragment.this.onMediumResImageDecoded(handle, filePath, bitmap);
+			FilmstripFragment.this.onMediumResImageDecoded(handle, media, thumb);
 		}
 	};
 	private List<BitmapDecodeInfo> m_MediumResBitmapDecodeInfos = new ArrayList<>();
@@ -627,9 +626,13 @@ public class FilmstripFragment extends GalleryFragment
 		Media media = filmstripItem.getMedia();
 		if(m_HighResBitmapDrawable == null && media != null)
 		{
-			Bitmap thumb = BITMAP_POOL_MEDIUM_RESOLUTION.getCachedBitmap(media.getFilePath());
-			if(thumb == null && m_ThumbManager != null)
-				thumb = m_ThumbManager.getCachedSmallThumbnailImage(media);
+			Bitmap thumb = null;
+			if(m_ThumbManager != null)
+			{
+				thumb = m_ThumbManager.getCachedThumbnailImage(media);
+				if(thumb == null)
+					thumb = m_ThumbManager.getCachedSmallThumbnailImage(media);
+			}
 			m_HighResBitmapDrawable = new ProgressiveBitmapDrawable(media.getFilePath(), Bitmap.Config.ARGB_8888, thumb);
 		}
 		filmstripItem.setImageDecodeState(ImageDecodeState.LARGE_IMAGE_DECODED);
@@ -680,7 +683,8 @@ public class FilmstripFragment extends GalleryFragment
 				decodeInfo.filePath = filePath;
 				m_MediumResBitmapDecodeInfos.add(decodeInfo);
 			}
-			decodeInfo.decodeHandle = BITMAP_POOL_MEDIUM_RESOLUTION.decode(media.getFilePath(), 1280, 1280, BitmapPool.FLAG_URGENT, m_MediumResBitmapDecodeCallback, this.getHandler());
+			if(m_ThumbManager != null)
+				decodeInfo.decodeHandle = m_ThumbManager.decodeThumbnailImage(media, ThumbnailImageManager.FLAG_URGENT, m_MediumResBitmapDecodeCallback, this.getHandler());
 			
 			if(ENABLE_DECODE_LOG)
 				Log.v(TAG, "decodeMediumResolutionImage() - Start decoding medium-resolution bitmap : ", filePath);
@@ -1072,9 +1076,10 @@ public class FilmstripFragment extends GalleryFragment
 	
 	// Call when medium resolution image decoded
 	@SuppressWarnings("incomplete-switch")
-	private void onMediumResImageDecoded(Handle handle, String filePath, Bitmap bitmap)
+	private void onMediumResImageDecoded(Handle handle, Media media, Bitmap bitmap)
 	{
 		// check state
+		String filePath = media.getFilePath();
 		BitmapDecodeInfo decodeInfo = this.findBitmapDecodeInfo(m_MediumResBitmapDecodeInfos, filePath);
 		if(decodeInfo == null)
 		{
@@ -1205,6 +1210,9 @@ public class FilmstripFragment extends GalleryFragment
 		// cancel hide tool
 		this.cancelHideToolbar();
 		
+		// shrink thumbnail cache while filmstrip is hidden
+		this.updateThumbnailCacheCapacity(false);
+		
 		// call super
 		super.onPause();
 	}
@@ -1277,9 +1285,6 @@ public class FilmstripFragment extends GalleryFragment
 		
 		Log.v(TAG, "onResume()");
 		
-		// active bitmap pools
-		m_MediumResBitmapActiveHandle = BITMAP_POOL_MEDIUM_RESOLUTION.activate();
-		
 		// hide tool bar delay
 		this.hideToolbarDelay();
 		
@@ -1288,6 +1293,9 @@ public class FilmstripFragment extends GalleryFragment
 		
 		// update state
 		m_IsInstanceStateSaved = false;
+		
+		// grow thumbnail cache while filmstrip is shown
+		this.updateThumbnailCacheCapacity(true);
 	}
 	
 	
@@ -1491,9 +1499,6 @@ public class FilmstripFragment extends GalleryFragment
 		// cancel decoding
 		this.cancelDecodingImages();
 		
-		// deactivate bitmap pools
-		m_MediumResBitmapActiveHandle = Handle.close(m_MediumResBitmapActiveHandle);
-		
 		// reset state
 		if(!m_IsInstanceStateSaved)
 		{
@@ -1800,6 +1805,19 @@ public class FilmstripFragment extends GalleryFragment
 	}
 	
 	
+	// Grow memory tier of thumbnail cache to maximum capacity while filmstrip is shown, and shrink it when filmstrip is hidden
+	private void updateThumbnailCacheCapacity(boolean isShown)
+	{
+		CacheManager cacheManager = GalleryApplication.current().findComponent(CacheManager.class);
+		if(cacheManager == null)
+			return;
+		long capacity = cacheManager.getMaxMemoryCacheCapacity(CacheManager.ImageCacheType.THUMBNAIL);
+		if(!isShown)
+			capacity /= THUMB_CACHE_CAPACITY_DIVISOR_HIDDEN;
+		cacheManager.setMemoryCacheCapacity(CacheManager.ImageCacheType.THUMBNAIL, capacity);
+	}
+	
+	
 	// Update tool bar margin
 	private void updateToolbarMargins(boolean isNavbarVisible)
 	{
@@ -3,6 +3,7 @@ package com.oneplus.gallery;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -14,14 +15,14 @@ import com.oneplus.base.EventSource;
 import com.oneplus.base.Handle;
 import com.oneplus.base.Log;
 import com.oneplus.base.PropertyKey;
+import com.oneplus.gallery.cache.CacheManager;
+import com.oneplus.gallery.cache.ImageCacheKey;
 import com.oneplus.gallery.media.Media;
 import com.oneplus.gallery.media.MediaList;
 import com.oneplus.gallery.media.MediaSet;
 import com.oneplus.gallery.media.ThumbnailImageManager;
 import com.oneplus.gallery.media.VideoMedia;
 import com.oneplus.gallery.widget.GridView;
-import com.oneplus.media.BitmapPool;
-import com.oneplus.media.CenterCroppedBitmapPool;
 
 import android.app.Activity;
 import android.content.Context;
@@ -36,7 +37,6 @@ import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.SystemClock;
 import android.view.HapticFeedbackConstants;
 import android.view.LayoutInflater;
@@ -65,6 +65,7 @@ public class GridViewFragment extends GalleryFragment {
 	private static int MULTISELECT_GESTURE_THRESHOLD = 300;
 	private static int MULTISELECT_AUTOSCROLL_THRESHOLD_FORWARD = 1500;
 	private static int MULTISELECT_AUTOSCROLL_THRESHOLD_BACKWARD = 180;
+	private static final int SMALL_THUMB_CACHE_CAPACITY_DIVISOR_HIDDEN = 2;
 	
 	// Private fields
 	private boolean m_test = false;
@@ -82,6 +83,8 @@ public class GridViewFragment extends GalleryFragment {
 	private int m_LastGridViewPosition = -1;
 	private MediaList m_MediaList = null;
 	private PreDecodeBitmapRunnable m_PreDecodeBitmapRunnable;
+	private GridViewItemHolder m_BindingItemHolder;
+	private int m_PrioritizedFirstVisiblePosition = GridView.INVALID_POSITION;
 	private List<Media> m_SelectionMeidaList = new ArrayList<>();
 	private List<Media> m_TempMeidaList = new ArrayList<>();
 	private ThumbnailImageManager m_ThumbManager;
@@ -90,9 +93,24 @@ public class GridViewFragment extends GalleryFragment {
 	private String m_ToolbarTitle = null;
 	private boolean m_ToolbarActionShared = false;
 	private int m_TouchedPosition = GridView.INVALID_POSITION;
+	private final HashSet<Media> m_VisibleMediaSet = new HashSet<>();
+	private final ThumbnailImageManager.DecodingPriorityCalculator m_DecodingPriorityCalculator = new ThumbnailImageManager.DecodingPriorityCalculator()
+	{
+		@Override
+		public int calculatePriority(Handle handle, Media media, int priority)
+		{
+			if(m_VisibleMediaSet.contains(media))
+				return ThumbnailImageManager.PRIORITY_HIGHEST;
+			
+			// media is no longer visible, decode it after pre-decoding
+			if(priority == ThumbnailImageManager.PRIORITY_HIGHEST)
+				return (ThumbnailImageManager.PRIORITY_DEFAULT + PRE_DECODE_BITMAP_COUNTS + 1);
+			return priority;
+		}
+	};
+	private final HighResolutionThumbDecodeCallback m_HighResolutionThumbDecodeCallback = new HighResolutionThumbDecodeCallback();
 //	private boolean m_SetEmptyMediaView = false;
 	
-	private static BitmapPool m_SmallBitmapPool = new CenterCroppedBitmapPool("GridViewFragmentSmallBitmapPool", 32 << 20, Bitmap.Config.RGB_565, 4, BitmapPool.FLAG_USE_EMBEDDED_THUMB_ONLY);
 	private Gallery.MediaDeletionCallback m_DeleteCallback = new Gallery.MediaDeletionCallback() {
 		@Override
 		public void onDeletionProcessCompleted() {
@@ -138,41 +156,8 @@ public class GridViewFragment extends GalleryFragment {
 		public ImageView typeIconView;
 		public TextView durationTextView;
 		public String mimeType;
-		public Handle lowResolutionThumbDecodeHandle;
 		public Handle highResolutionThumbDecodeHandle;
 		public boolean highThumbDecoded;
-		public final BitmapPool.Callback lowResolutionThumbDecodeCallback = new BitmapPool.Callback()
-		{
-			public void onBitmapDecoded(Handle handle, Uri contentUri, Bitmap bitmap) 
-			{
-				if(handle == lowResolutionThumbDecodeHandle && bitmap != null && !highThumbDecoded)
-					thumbnailImageView.setImageBitmap(bitmap);
-			}
-			public void onBitmapDecoded(Handle handle, String filePath, Bitmap bitmap) 
-			{
-				Media media = (Media)GridViewFragment.this.getGridViewItemAdapter().getItem(position);
-				String mediaFilePath = null;
-				if(media != null)
-					mediaFilePath = media.getFilePath();
-				if(filePath.equals(mediaFilePath) && bitmap != null && !highThumbDecoded) {
-					thumbnailImageView.setImageBitmap(bitmap);
-					GridViewFragment.this.removeLowResDecodingHandle(filePath);
-				}
-			}
-		};
-		public final ThumbnailImageManager.DecodingCallback hightResolutionThumbDecodeCallback = new ThumbnailImageManager.DecodingCallback()
-		{
-			@Override
-			public void onThumbnailImageDecoded(Handle handle, Media media, Bitmap thumb)
-			{
-				if(GridViewFragment.this.getGridViewItemAdapter().getItem(position) == media && thumb != null)
-				{
-					highThumbDecoded = true;
-					thumbnailImageView.setImageBitmap(thumb);
-					GridViewFragment.this.removeDecodingHandle(media);
-				}
-			}
-		};
 		
 		
 		public GridViewItemHolder(View itemView)
@@ -186,58 +171,83 @@ public class GridViewFragment extends GalleryFragment {
 	}
 	
 	
+	// Call-back to receive preview and small thumbnail images of items
+	private class HighResolutionThumbDecodeCallback implements ThumbnailImageManager.BatchDecodingCallback, ThumbnailImageManager.ProgressiveDecodingCallback {
+		
+		@Override
+		public void onPreviewImageDecoded(Handle handle, Media media, Bitmap preview)
+		{
+			// show embedded thumbnail until small thumbnail image decoded
+			GridViewItemHolder holder = findItemHolder(handle);
+			if(holder != null && !holder.highThumbDecoded && getGridViewItemAdapter().getItem(holder.position) == media)
+				holder.thumbnailImageView.setImageBitmap(preview);
+		}
+		
+		@Override
+		public void onThumbnailImageDecoded(Handle handle, Media media, Bitmap thumb)
+		{
+			// cached thumbnail image is delivered directly while binding item view
+			if(m_BindingItemHolder != null)
+				onHighResolutionThumbDecoded(m_BindingItemHolder, media, thumb);
+		}
+		
+		@Override
+		public void onThumbnailImagesDecoded(Handle[] handles, Media[] media, Bitmap[] thumbs, int count)
+		{
+			// apply all thumbnail images decoded in this frame to visible items
+			if(m_GridView == null)
+				return;
+			for(int i = m_GridView.getChildCount() - 1; i >= 0; --i) {
+				Object tag = m_GridView.getChildAt(i).getTag();
+				if(!(tag instanceof GridViewItemHolder))
+					continue;
+				GridViewItemHolder holder = (GridViewItemHolder)tag;
+				for(int j = 0; j < count; ++j) {
+					if(handles[j] == holder.highResolutionThumbDecodeHandle) {
+						onHighResolutionThumbDecoded(holder, media[j], thumbs[j]);
+						break;
+					}
+				}
+			}
+		}
+	}
+	
+	
 	private class PreDecodeBitmapRunnable implements Runnable {
 		
 		private final WeakReference<GridViewFragment> m_ActivityRef;
-		private HashSet<Handle> m_HandleSet = new HashSet<>();
+		private Handle m_PrefetchHandle;
 		
 		PreDecodeBitmapRunnable(GridViewFragment gridfragment) {
 			m_ActivityRef = new WeakReference<GridViewFragment>(gridfragment);
 		}
 		
 		public void cancelAllBitmapDecoding() {
-			if(m_HandleSet != null && !m_HandleSet.isEmpty()) {
-				for(Handle handle : m_HandleSet) {
-					Handle.close(handle);
-				}
-				m_HandleSet.clear();
-			}
+			m_PrefetchHandle = Handle.close(m_PrefetchHandle);
 		}
-		private final ThumbnailImageManager.DecodingCallback preDecodeCallback = new ThumbnailImageManager.DecodingCallback()
-		{
-			@Override
-			public void onThumbnailImageDecoded(Handle handle, Media media, Bitmap thumb)
-			{
-				m_HandleSet.remove(handle);
-			}
-		};
+		
 		@Override
 		public void run() {
-			if(m_ActivityRef != null) {
-				final MediaList medialist = m_ActivityRef.get().m_MediaList;
-				if(medialist == null || medialist.isEmpty())
-					return;
-				final int visibleLastposition = m_ActivityRef.get().m_GridView.getLastVisiblePosition();
-				final int visibleFirstposition = m_ActivityRef.get().m_GridView.getFirstVisiblePosition();
-				final Handler handler = m_ActivityRef.get().getHandler();
-				// visibleLastPosition could be -1
-				if(m_ThumbManager != null)
-				{
-					for(int i = visibleLastposition; i >= 0 && i < (visibleLastposition + PRE_DECODE_BITMAP_COUNTS) && i < medialist.size() ; ++i) {
-						Media media = medialist.get(i);
-						Handle handle = m_ThumbManager.decodeSmallThumbnailImage(media, 0, preDecodeCallback, handler);
-						m_HandleSet.add(handle);
-					}
-					
-					for(int i = visibleFirstposition; i > (visibleFirstposition - PRE_DECODE_BITMAP_COUNTS) && i >= 0; --i) {
-						Media media = medialist.get(i);
-						Handle handle = m_ThumbManager.decodeSmallThumbnailImage(media, 0, preDecodeCallback, handler);
-						m_HandleSet.add(handle);
-					}
-				}
-			}
+			GridViewFragment fragment = m_ActivityRef.get();
+			if(fragment == null || fragment.m_GridView == null || m_ThumbManager == null)
+				return;
+			final MediaList medialist = fragment.m_MediaList;
+			if(medialist == null || medialist.isEmpty())
+				return;
+			// visibleLastPosition could be -1
+			int visibleFirstposition = fragment.m_GridView.getFirstVisiblePosition();
+			int visibleLastposition = fragment.m_GridView.getLastVisiblePosition();
+			if(visibleLastposition < 0)
+				return;
+			// prefetch items around visible range, decoding of items which are still in range will be kept
+			int offset = (fragment.m_IsCameraRoll ? 1 : 0);
+			int from = visibleFirstposition - offset - PRE_DECODE_BITMAP_COUNTS;
+			int to = visibleLastposition - offset + PRE_DECODE_BITMAP_COUNTS + 1;
+			Handle handle = m_ThumbManager.prefetchSmallThumbnailImages(medialist, from, to, ThumbnailImageManager.PRIORITY_DEFAULT + 1);
+			if(handle != m_PrefetchHandle)
+				Handle.close(m_PrefetchHandle);
+			m_PrefetchHandle = handle;
 		}
-		
 	}
 	
 	
@@ -277,6 +287,30 @@ public class GridViewFragment extends GalleryFragment {
 	}
 
 
+	// Re-prioritize thumbnail decoding according to visible range.
+	private void updateDecodingPriorities() {
+		if(m_ThumbManager == null || m_GridView == null || m_MediaList == null || m_GridViewItemAdapter == null)
+			return;
+		int firstPosition = m_GridView.getFirstVisiblePosition();
+		if(firstPosition == m_PrioritizedFirstVisiblePosition)
+			return;
+		m_PrioritizedFirstVisiblePosition = firstPosition;
+		
+		// collect visible media
+		int lastPosition = m_GridView.getLastVisiblePosition();
+		m_VisibleMediaSet.clear();
+		for(int i = firstPosition; i >= 0 && i <= lastPosition; ++i) {
+			int index = (m_IsCameraRoll ? i - 1 : i);
+			if(index >= 0 && index < m_MediaList.size())
+				m_VisibleMediaSet.add(m_MediaList.get(index));
+		}
+		
+		// update priorities
+		m_ThumbManager.updateDecodingPriorities(m_GridViewItemAdapter.getDecodingHandles(), m_DecodingPriorityCalculator);
+		m_VisibleMediaSet.clear();
+	}
+	
+	
 	private void hideSelectImageIcon() {
 		if(m_SelectionMeidaList.isEmpty())
 			return;
@@ -584,9 +618,6 @@ public class GridViewFragment extends GalleryFragment {
 			Log.d(TAG, "m_MediaList size: "  + m_MediaList.size());
 		else
 			Log.e(TAG, "m_MediaList size: 0 or NPE");
-		// Shrink BitmapPool size to 16MB when Gallery is not visible
-		m_SmallBitmapPool.shrink(16 << 20);
-		
 		// Cancel on-going visible gridview items 
 		cancelAllBitmapDecodeTasks();
 		
@@ -605,9 +636,46 @@ public class GridViewFragment extends GalleryFragment {
 			m_ToolbarActionShared = false;
 		}
 		
+		// keep visible thumbnails for cache warm-up
+		saveCacheWarmUpKeys();
+		
+		// shrink small thumbnail cache while grid is hidden
+		updateSmallThumbnailCacheCapacity(false);
+		
 		// deactivate thumbnail image manager
 		m_ThumbManagerActivateHandle = Handle.close(m_ThumbManagerActivateHandle);
 	}
+
+
+	// Grow memory tier of small thumbnail cache to maximum capacity while grid is shown, and shrink it when grid is hidden.
+	private void updateSmallThumbnailCacheCapacity(boolean isShown) {
+		CacheManager cacheManager = GalleryApplication.current().findComponent(CacheManager.class);
+		if(cacheManager == null)
+			return;
+		long capacity = cacheManager.getMaxMemoryCacheCapacity(CacheManager.ImageCacheType.SMALL_THUMBNAIL);
+		if(!isShown)
+			capacity /= SMALL_THUMB_CACHE_CAPACITY_DIVISOR_HIDDEN;
+		cacheManager.setMemoryCacheCapacity(CacheManager.ImageCacheType.SMALL_THUMBNAIL, capacity);
+	}
+	
+	
+	// Save keys of thumbnails visible at current scroll position of camera roll, they will be preloaded first next time.
+	private void saveCacheWarmUpKeys() {
+		if(!m_IsCameraRoll || m_GridView == null || m_MediaList == null)
+			return;
+		CacheManager cacheManager = GalleryApplication.current().findComponent(CacheManager.class);
+		if(cacheManager == null)
+			return;
+		List<ImageCacheKey> keys = new ArrayList<>();
+		int lastPosition = m_GridView.getLastVisiblePosition();
+		for(int i = m_GridView.getFirstVisiblePosition(); i >= 0 && i <= lastPosition; ++i) {
+			// -1 for the first one for CameraIcon
+			int index = i - 1;
+			if(index >= 0 && index < m_MediaList.size())
+				keys.add(new ImageCacheKey(m_MediaList.get(index)));
+		}
+		cacheManager.setSmallThumbnailWarmUpKeys(keys);
+	}
 	
 	
 	@SuppressWarnings("unchecked")
@@ -711,6 +779,9 @@ public class GridViewFragment extends GalleryFragment {
 		// activate thumbnail image manager
 		if(!Handle.isValid(m_ThumbManagerActivateHandle) && m_ThumbManager != null)
 			m_ThumbManagerActivateHandle = m_ThumbManager.activate(0);
+		
+		// grow small thumbnail cache while grid is shown
+		updateSmallThumbnailCacheCapacity(true);
 	} 
 
 
@@ -1148,16 +1219,31 @@ public class GridViewFragment extends GalleryFragment {
 	}
 
 	
+	private void onHighResolutionThumbDecoded(GridViewItemHolder holder, Media media, Bitmap thumb) {
+		if(this.getGridViewItemAdapter().getItem(holder.position) == media && thumb != null)
+		{
+			holder.highThumbDecoded = true;
+			holder.thumbnailImageView.setImageBitmap(thumb);
+			this.removeDecodingHandle(media);
+		}
+	}
+	
+	
 	private void removeDecodingHandle(Media media) {
 		if(m_GridViewItemAdapter != null) {
 			m_GridViewItemAdapter.removeDecodingHandle(media);
 		}
 	}
 	
-	private void removeLowResDecodingHandle(String filePath) {
-		if(m_GridViewItemAdapter != null) {
-			m_GridViewItemAdapter.removeLowResDecodingHandle(filePath);
+	private GridViewItemHolder findItemHolder(Handle decodingHandle) {
+		if(m_GridView == null || decodingHandle == null)
+			return null;
+		for(int i = m_GridView.getChildCount() - 1; i >= 0; --i) {
+			Object tag = m_GridView.getChildAt(i).getTag();
+			if(tag instanceof GridViewItemHolder && ((GridViewItemHolder)tag).highResolutionThumbDecodeHandle == decodingHandle)
+				return (GridViewItemHolder)tag;
 		}
+		return null;
 	}
 	
 	
@@ -1169,7 +1255,6 @@ public class GridViewFragment extends GalleryFragment {
 		private LayoutInflater m_inflater;
 //		private HashSet<Handle> m_DecodeHandleSet = new HashSet<>();
 		private HashMap<Media, Handle> m_HighResolutionDecodeHandleMap = new HashMap<>();
-		private HashMap<String, Handle> m_LowResolutionDecodeHandleMap = new HashMap<>();
 		public GridViewItemAdapter(Context context) {
 			m_Context = context;
 			m_inflater = (LayoutInflater) m_Context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
@@ -1183,12 +1268,10 @@ public class GridViewFragment extends GalleryFragment {
 				}
 				m_HighResolutionDecodeHandleMap.clear();
 			}
-			if(m_LowResolutionDecodeHandleMap != null && !m_LowResolutionDecodeHandleMap.isEmpty()) {
-				for(Handle handle : m_LowResolutionDecodeHandleMap.values()) {
-					Handle.close(handle);
-				}
-				m_LowResolutionDecodeHandleMap.clear();
-			}
+		}
+		
+		public Collection<Handle> getDecodingHandles() {
+			return m_HighResolutionDecodeHandleMap.values();
 		}
 		
 		public int getCount() {
@@ -1255,7 +1338,6 @@ public class GridViewFragment extends GalleryFragment {
 					holder.thumbnailImageView.setBackground(m_GreySquare);
 					holder.thumbnailImageView.setScaleType(ScaleType.CENTER);
 					holder.contentUri = null;
-					holder.lowResolutionThumbDecodeHandle = null;
 					holder.highResolutionThumbDecodeHandle = null;
 				}else {
 					
@@ -1272,21 +1354,13 @@ public class GridViewFragment extends GalleryFragment {
 					holder.thumbnailImageView.setScaleType(ScaleType.CENTER_CROP);
 					// -1 for the first one for CameraIcon to start camera activity
 					Media media = m_MediaList.get(m_IsCameraRoll ? position - 1 : position);
-					String filePath = media.getFilePath();
 					holder.contentUri = media.getContentUri();
 					holder.mimeType = media.getMimeType();
-					if(filePath != null)
-					{
-						holder.lowResolutionThumbDecodeHandle = m_SmallBitmapPool.decode(media.getFilePath(), m_GridviewItemWidth, m_GridviewItemHeight, BitmapPool.FLAG_URGENT/*|BitmapPool.FLAG_ASYNC*/ , holder.lowResolutionThumbDecodeCallback, GridViewFragment.this.getHandler());
-					}
-					else
-					{
-						int mediaType = (media instanceof VideoMedia ? BitmapPool.MEDIA_TYPE_VIDEO : BitmapPool.MEDIA_TYPE_PHOTO);
-						holder.lowResolutionThumbDecodeHandle = m_SmallBitmapPool.decode(getActivity(), holder.contentUri, mediaType, m_GridviewItemWidth, m_GridviewItemHeight, BitmapPool.FLAG_URGENT/*|BitmapPool.FLAG_ASYNC*/, holder.lowResolutionThumbDecodeCallback, GridViewFragment.this.getHandler());
+					if(m_ThumbManager != null) {
+						m_BindingItemHolder = holder;
+						holder.highResolutionThumbDecodeHandle = m_ThumbManager.decodeSmallThumbnailImage(media, ThumbnailImageManager.FLAG_URGENT | ThumbnailImageManager.FLAG_BATCH_DELIVERY | ThumbnailImageManager.FLAG_PREVIEW, m_HighResolutionThumbDecodeCallback, GridViewFragment.this.getHandler());
+						m_BindingItemHolder = null;
 					}
-					if(m_ThumbManager != null)
-						holder.highResolutionThumbDecodeHandle = m_ThumbManager.decodeSmallThumbnailImage(media, ThumbnailImageManager.FLAG_URGENT, holder.hightResolutionThumbDecodeCallback, GridViewFragment.this.getHandler());
-					m_LowResolutionDecodeHandleMap.put(filePath, holder.lowResolutionThumbDecodeHandle);
 					m_HighResolutionDecodeHandleMap.put(media, holder.highResolutionThumbDecodeHandle);
 					
 					if(media instanceof VideoMedia) {
@@ -1295,6 +1369,9 @@ public class GridViewFragment extends GalleryFragment {
 						holder.durationTextView.setText(getVideoTime((VideoMedia)media));
 					}
 					
+					// Decode items which are closer to visible range first.
+					GridViewFragment.this.updateDecodingPriorities();
+					
 					// Pre-Decode Bitmap for grid view items which is not visible yet. 
 					GridViewFragment.this.getHandler().removeCallbacks(m_PreDecodeBitmapRunnable);
 					GridViewFragment.this.getHandler().postDelayed(m_PreDecodeBitmapRunnable,200);
@@ -1309,11 +1386,6 @@ public class GridViewFragment extends GalleryFragment {
 			if(m_HighResolutionDecodeHandleMap != null)
 				m_HighResolutionDecodeHandleMap.remove(media);
 		}
-		
-		public void removeLowResDecodingHandle(String filePath) {
-			if(m_LowResolutionDecodeHandleMap != null)
-				m_LowResolutionDecodeHandleMap.remove(filePath);
-		}
 	}
 
 
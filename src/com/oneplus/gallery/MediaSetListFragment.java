@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Handler;
@@ -41,8 +42,12 @@ import com.oneplus.base.PropertyChangedCallback;
 import com.oneplus.base.PropertyKey;
 import com.oneplus.base.PropertySource;
 import com.oneplus.gallery.media.Media;
-import com.oneplus.cache.HybridBitmapLruCache;
+import com.oneplus.gallery.cache.BitmapMemoryConsumer;
+import com.oneplus.gallery.cache.CacheManager;
+import com.oneplus.gallery.cache.CodecBitmapLruCache;
 import com.oneplus.gallery.cache.ImageCacheKey;
+import com.oneplus.gallery.cache.ImageCacheKeyHashing;
+import com.oneplus.gallery.cache.RawBitmapDiskCodec;
 import com.oneplus.gallery.media.CameraRollMediaSet;
 import com.oneplus.gallery.media.DirectoryMediaSet;
 import com.oneplus.gallery.media.MediaComparator;
@@ -50,8 +55,6 @@ import com.oneplus.gallery.media.MediaList;
 import com.oneplus.gallery.media.MediaSet;
 import com.oneplus.gallery.media.MediaSetList;
 import com.oneplus.gallery.media.ThumbnailImageManager;
-import com.oneplus.media.BitmapPool;
-import com.oneplus.media.CenterCroppedBitmapPool;
 
 /**
  * Fragment to display media set list.
@@ -63,11 +66,16 @@ public class MediaSetListFragment extends GalleryFragment
 	private static final long DISK_CACHE_SIZE = 200 * 1024 * 1024;
 	private static final String COVER_IMAGE_CACHE_NAME = "MediaSetCoverImage";
 	private static final String CAMERA_ROLL_COVER_IMAGE_KEY = "ThankYou9527";
+	private static final int COVER_IMAGE_CACHE_MEMORY_WEIGHT = 2;
+	private static final int COVER_IMAGE_DISK_TIER_MEMORY_WEIGHT = 1;
 	
 	// static fields
-	private static HybridBitmapLruCache<String> m_CoverImageCache;
+	private static CodecBitmapLruCache<Long> m_CoverImageCache;
+	private static Handle m_CoverImageCacheMemoryConsumerHandle;
+	private static RawBitmapDiskCodec m_CoverImageCodec;
+	private static Handle m_CoverImageCodecMemoryConsumerHandle;
+	private static Handle m_CoverImageDiskWriterMemoryConsumerHandle;
 	private static volatile Executor m_CacheImageLoaderExecutor;
-	private static BitmapPool m_CenterCropBitmapPool = new CenterCroppedBitmapPool("MediaSetListFragmentCenterCropBitmapPool", 32 << 20, Bitmap.Config.RGB_565, 4, BitmapPool.FLAG_NO_EMBEDDED_THUMB);
 	
 	// Fields
 	private Activity m_Activity;
@@ -175,12 +183,12 @@ public class MediaSetListFragment extends GalleryFragment
 	{	
 		private static final long TIME_OUT = 800;
 		
-		private volatile String key;
+		private volatile Long key;
 		private volatile Bitmap defaultBitmap;
 		private volatile Handler callbackHandler;
 		private volatile CacheImageLoadedCallback callback;
 		
-		public LoadCacheImageTask(String key, Bitmap defaultBitmap, Handler callbackHandler, CacheImageLoadedCallback callback)
+		public LoadCacheImageTask(Long key, Bitmap defaultBitmap, Handler callbackHandler, CacheImageLoadedCallback callback)
 		{
 			this.key = key;
 			this.defaultBitmap = defaultBitmap;
@@ -255,7 +263,61 @@ public class MediaSetListFragment extends GalleryFragment
 		if(m_CoverImageCache == null)
 		{
 			// create cover image cache
-			m_CoverImageCache =  new HybridBitmapLruCache<>(GalleryApplication.current(), COVER_IMAGE_CACHE_NAME, Bitmap.Config.RGB_565, Bitmap.CompressFormat.JPEG, MEMORY_CACHE_SIZE, DISK_CACHE_SIZE);	
+			m_CoverImageCodec = new RawBitmapDiskCodec(true);
+			m_CoverImageCache =  new CodecBitmapLruCache<>(GalleryApplication.current(), COVER_IMAGE_CACHE_NAME, Bitmap.Config.RGB_565, MEMORY_CACHE_SIZE, DISK_CACHE_SIZE, m_CoverImageCodec);	
+		}
+		
+		// share memory budget with other bitmap consumers, cache is kept until process ends
+		if(!Handle.isValid(m_CoverImageCacheMemoryConsumerHandle))
+		{
+			CacheManager cacheManager = GalleryApplication.current().findComponent(CacheManager.class);
+			if(cacheManager != null)
+			{
+				m_CoverImageCacheMemoryConsumerHandle = cacheManager.registerMemoryConsumer(COVER_IMAGE_CACHE_NAME, CacheManager.MemoryScope.MEDIA_SET_LIST, new BitmapMemoryConsumer()
+				{
+					@Override
+					public long getMemoryUsage()
+					{
+						return m_CoverImageCache.getMemoryUsage();
+					}
+					
+					@Override
+					public void setMemoryBudget(long budget)
+					{
+						m_CoverImageCache.trimToCapacity(budget);
+					}
+				}, MEMORY_CACHE_SIZE, COVER_IMAGE_CACHE_MEMORY_WEIGHT);
+				
+				// bitmaps waiting to be written and buffers of codec also take memory
+				m_CoverImageDiskWriterMemoryConsumerHandle = cacheManager.registerMemoryConsumer(COVER_IMAGE_CACHE_NAME + "DiskWriter", CacheManager.MemoryScope.MEDIA_SET_LIST, new BitmapMemoryConsumer()
+				{
+					@Override
+					public long getMemoryUsage()
+					{
+						return m_CoverImageCache.getPendingDiskWriteSize();
+					}
+					
+					@Override
+					public void setMemoryBudget(long budget)
+					{
+						m_CoverImageCache.setMaxPendingDiskWriteSize(budget);
+					}
+				}, m_CoverImageCache.getMaxPendingDiskWriteSize(), COVER_IMAGE_DISK_TIER_MEMORY_WEIGHT);
+				m_CoverImageCodecMemoryConsumerHandle = cacheManager.registerMemoryConsumer(COVER_IMAGE_CACHE_NAME + "Codec", CacheManager.MemoryScope.MEDIA_SET_LIST, new BitmapMemoryConsumer()
+				{
+					@Override
+					public long getMemoryUsage()
+					{
+						return m_CoverImageCodec.getFreeBufferSize();
+					}
+					
+					@Override
+					public void setMemoryBudget(long budget)
+					{
+						m_CoverImageCodec.setMaxFreeBufferSize(budget);
+					}
+				}, m_CoverImageCodec.getMaxFreeBufferSize(), COVER_IMAGE_DISK_TIER_MEMORY_WEIGHT);
+			}
 		}
 	}
 	
@@ -674,7 +736,7 @@ public class MediaSetListFragment extends GalleryFragment
 			Integer mediaCount = mediaSet.get(MediaSet.PROP_MEDIA_COUNT);
 			viewInfo.sizeTextView.setText(mediaCount != null ? String.valueOf(mediaCount) : "");
 			
-			Bitmap coverImage = m_CoverImageCache.get(CoverImageInfo.getMediaSetImageKey(mediaSet), null, 0);
+			Bitmap coverImage = m_CoverImageCache.get(CoverImageInfo.getMediaSetImageFingerprint(mediaSet), null, 0);
 			
 			if(coverImage != null)
 			{
@@ -749,26 +811,41 @@ public class MediaSetListFragment extends GalleryFragment
 		final int coverWidth = m_Activity.getResources().getDisplayMetrics().widthPixels;
 		final int coverHeight = m_Activity.getResources().getDimensionPixelSize(R.dimen.media_set_list_item_cover_image_height);
 		
-		int flag = BitmapPool.FLAG_ASYNC;
+		int flag = ThumbnailImageManager.FLAG_ASYNC;
 		if(isUrgent)
-			flag = flag | BitmapPool.FLAG_URGENT;
+			flag = flag | ThumbnailImageManager.FLAG_URGENT;
 		
-		Handle handle = m_CenterCropBitmapPool.decode(mediaList.get(0).getFilePath(), coverWidth, coverHeight, flag, new BitmapPool.Callback() {
+		if(m_ThumbManager == null)
+			return;
+		Handle handle = m_ThumbManager.decodeThumbnailImage(mediaList.get(0), flag, new ThumbnailImageManager.DecodingCallback() {
 			@Override
-			public void onBitmapDecoded(Handle handle, String filePath, Bitmap bitmap) {	
-				
-				// remove from decoding set
-				m_DecodingMediaSets.remove(mediaSet);
+			public void onThumbnailImageDecoded(Handle handle, Media media, final Bitmap thumb) {
 				
-				// update bitmap table
-				m_CoverImageCache.add(CoverImageInfo.getMediaSetImageKey(mediaSet), bitmap);		
-				
-				// notify data changed
-				if(m_MediaSetListAdapter != null)
-					m_MediaSetListAdapter.notifyDataSetChanged();
+				if(thumb == null)
+				{
+					Log.w(TAG, "onThumbnailImageDecoded() - thumb is null");
+					onSingleCoverImageCreated(mediaSet, null);
+					return;
+				}
 				
-				// decode next media set
-				createMediaListCoverImageFromQueue();
+				// crop in background, media set is kept in decoding set until cover image is ready
+				final Handler handler = getHandler();
+				m_CacheImageLoaderExecutor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						final Bitmap cover = createCenterCroppedCoverImage(thumb, coverWidth, coverHeight);
+						handler.post(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								onSingleCoverImageCreated(mediaSet, cover);
+							}
+						});
+					}
+				});
 			}
 		}, getHandler());			
 		mediaSetDecodingHandleList.add(handle);
@@ -777,6 +854,42 @@ public class MediaSetListFragment extends GalleryFragment
 		
 	}
 	
+	// Called when single cover image is cropped from thumbnail (in main thread).
+	private void onSingleCoverImageCreated(MediaSet mediaSet, Bitmap cover)
+	{
+		// remove from decoding set
+		m_DecodingMediaSets.remove(mediaSet);
+		
+		// update bitmap table
+		if(cover != null)
+			m_CoverImageCache.add(CoverImageInfo.getMediaSetImageFingerprint(mediaSet), cover);
+		
+		// notify data changed
+		if(m_MediaSetListAdapter != null)
+			m_MediaSetListAdapter.notifyDataSetChanged();
+		
+		// decode next media set
+		createMediaListCoverImageFromQueue();
+	}
+	
+	// Crop and scale thumbnail image to fill cover image (in background thread).
+	private Bitmap createCenterCroppedCoverImage(Bitmap thumb, int coverWidth, int coverHeight)
+	{
+		int thumbWidth = thumb.getWidth();
+		int thumbHeight = thumb.getHeight();
+		if(thumbWidth <= 0 || thumbHeight <= 0)
+			return thumb;
+		float ratio = Math.max((float)coverWidth / thumbWidth, (float)coverHeight / thumbHeight);
+		int srcWidth = Math.min(thumbWidth, (int)(coverWidth / ratio));
+		int srcHeight = Math.min(thumbHeight, (int)(coverHeight / ratio));
+		int srcLeft = (thumbWidth - srcWidth) / 2;
+		int srcTop = (thumbHeight - srcHeight) / 2;
+		Bitmap cover = Bitmap.createBitmap(coverWidth, coverHeight, Bitmap.Config.RGB_565);
+		Canvas canvas = new Canvas(cover);
+		canvas.drawBitmap(thumb, new Rect(srcLeft, srcTop, srcLeft + srcWidth, srcTop + srcHeight), new Rect(0, 0, coverWidth, coverHeight), new Paint(Paint.FILTER_BITMAP_FLAG));
+		return cover;
+	}
+	
 	private void decodeGridCoverImage(int targetGridCount, final int gridPerRow,  final MediaSet mediaSet, MediaList mediaList, boolean isUrgent)
 	{
 		if(mediaList == null || mediaList.size() < targetGridCount)
@@ -856,7 +969,7 @@ public class MediaSetListFragment extends GalleryFragment
 						m_DecodingMediaSets.remove(mediaSet);
 						
 						// update bitmap table
-						m_CoverImageCache.add(CoverImageInfo.getMediaSetImageKey(mediaSet), gridCover);
+						m_CoverImageCache.add(CoverImageInfo.getMediaSetImageFingerprint(mediaSet), gridCover);
 						
 						// notify data changed
 						if(m_MediaSetListAdapter != null)
@@ -919,7 +1032,7 @@ public class MediaSetListFragment extends GalleryFragment
 		final int gridPerColumn;
 		if(mediaSetSize == 0)
 		{
-			m_CoverImageCache.remove(CoverImageInfo.getMediaSetImageKey(mediaSet));
+			m_CoverImageCache.remove(CoverImageInfo.getMediaSetImageFingerprint(mediaSet));
 			
 			// notify data changed
 			if(m_MediaSetListAdapter != null)
@@ -958,7 +1071,7 @@ public class MediaSetListFragment extends GalleryFragment
 					if(CoverImageInfo.isInCache(m_Preference, CoverImageInfo.getMediaSetImageKey(mediaSet), mediaList))
 					{
 						// load image from cache		
-						LoadCacheImageTask task = new LoadCacheImageTask(CoverImageInfo.getMediaSetImageKey(mediaSet), null, getHandler(), new CacheImageLoadedCallback() {
+						LoadCacheImageTask task = new LoadCacheImageTask(CoverImageInfo.getMediaSetImageFingerprint(mediaSet), null, getHandler(), new CacheImageLoadedCallback() {
 							
 							@Override
 							public void onCacheImageLoaded(Bitmap cachedImage) {				
@@ -1090,6 +1203,13 @@ public class MediaSetListFragment extends GalleryFragment
 			}
 		}
 
+		// Get 64-bit fingerprint of media set to identify cover image in cache.
+		public static Long getMediaSetImageFingerprint(MediaSet mediaSet)
+		{
+			String key = getMediaSetImageKey(mediaSet);
+			return (key != null ? ImageCacheKeyHashing.hashIdentity(key) : null);
+		}
+
 		public static String getMediaSetImageKey(MediaSet mediaSet)
 		{
 			if(mediaSet instanceof DirectoryMediaSet)
@@ -25,6 +25,8 @@ import com.oneplus.base.PropertyKey;
 import com.oneplus.base.PropertySource;
 import com.oneplus.base.ScreenSize;
 import com.oneplus.base.ThreadMonitor;
+import com.oneplus.gallery.cache.CacheManager;
+import com.oneplus.gallery.cache.CacheManager.MemoryScope;
 import com.oneplus.gallery.media.Media;
 import com.oneplus.gallery.media.MediaComparator;
 import com.oneplus.gallery.media.MediaList;
@@ -68,6 +70,7 @@ public class OPGalleryActivity extends GalleryActivity
 	
 	
 	// Fields.
+	private CacheManager m_CacheManager;
 	private GridViewFragment m_DefaultGridViewFragment;
 	private MediaList m_DefaultMediaList;
 	private MediaSet m_DefaultMediaSet;
@@ -253,6 +256,7 @@ public class OPGalleryActivity extends GalleryActivity
 		
 		// complete
 		m_Mode = mode;
+		this.updateForegroundMemoryScope();
 		return true;
 	}
 	
@@ -422,6 +426,7 @@ public class OPGalleryActivity extends GalleryActivity
 		
 		// get media manager
 		m_MediaManager = GalleryApplication.current().findComponent(MediaManager.class);
+		m_CacheManager = GalleryApplication.current().findComponent(CacheManager.class);
 
 		// setup media set list
 		this.setupMediaSetList();
@@ -565,6 +570,7 @@ public class OPGalleryActivity extends GalleryActivity
 			TextView tab = (TextView)m_EntryPageTabContainer.getChildAt(i);
 			tab.setTextAppearance(this , position == i ? R.style.EntryPageTabText_Selected : R.style.EntryPageTabText);
 		}
+		this.updateForegroundMemoryScope();
 	}
 	
 	
@@ -1214,6 +1220,31 @@ public class OPGalleryActivity extends GalleryActivity
 	}
 	
 	
+	// Update scope of bitmap memory consumers which should take precedence according to current screen.
+	private void updateForegroundMemoryScope()
+	{
+		if(m_CacheManager == null)
+			return;
+		MemoryScope scope;
+		switch(m_Mode)
+		{
+			case GRID_VIEW:
+				scope = MemoryScope.GRID_VIEW;
+				break;
+			case FILMSTRIP:
+				scope = MemoryScope.FILMSTRIP;
+				break;
+			default:
+				if(m_EntryViewPager != null && m_EntryViewPager.getCurrentItem() == 1)
+					scope = MemoryScope.MEDIA_SET_LIST;
+				else
+					scope = MemoryScope.GRID_VIEW;
+				break;
+		}
+		m_CacheManager.setForegroundMemoryScope(scope);
+	}
+	
+	
 	// Update UI margins according to current state.
 	private void updateUIMargins(boolean isStatusBarVisible, boolean isNavBarVisible)
 	{
@@ -3,6 +3,7 @@ package com.oneplus.gallery;
 import com.oneplus.base.component.Component;
 import com.oneplus.base.component.ComponentBuilder;
 import com.oneplus.gallery.cache.CacheManagerBuilder;
+import com.oneplus.gallery.cache.MemoryGovernorBuilder;
 import com.oneplus.gallery.media.MediaManager;
 import com.oneplus.gallery.media.MediaManagerBuilder;
 import com.oneplus.gallery.media.OPMediaManager;
@@ -15,6 +16,7 @@ public final class OPGalleryApplication extends GalleryApplication
 {
 	// Component builders.
 	private static final ComponentBuilder[] COMPONENT_BUILDERS = new ComponentBuilder[]{
+		new MemoryGovernorBuilder(),
 		new CacheManagerBuilder(),
 		new MediaManagerBuilder(),
 		new ThumbnailImageManagerBuilder(),
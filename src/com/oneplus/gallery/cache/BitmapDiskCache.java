@@ -0,0 +1,851 @@
+package com.oneplus.gallery.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.graphics.Bitmap;
+
+import com.oneplus.base.Log;
+
+/**
+ * Disk tier which keeps each bitmap in its own file encoded by {@link BitmapDiskCodec}.
+ * <p>
+ * Files are named by 64-bit hash of key, and each file starts with a header which contains serialized key given by caller. Key in header is compared when reading, so file of another key with same hash will not be returned.
+ * Encoded bitmap can also be read by {@link #readData(long, byte[], byte[])} and decoded later by {@link #decode(long, byte[], int, Bitmap)}, so that file I/O and decoding can be performed in different threads.
+ * Bitmaps are written on background thread, bitmaps waiting to be written are limited in total size and new bitmaps are dropped beyond that. Least recently used files are deleted when total size exceeds capacity. This class is thread-safe.
+ * </p>
+ */
+final class BitmapDiskCache
+{
+	// Constants.
+	private static final String TAG = "BitmapDiskCache";
+	private static final long CAPACITY_PENDING_BITMAPS = (8L << 20);
+	private static final int FILE_HEADER_SIZE = 12;
+	private static final int FILE_MAGIC = 0x4F504443;
+	private static final int FILE_VERSION = 1;
+	private static final int MAX_KEY_SIZE = (128 << 10);
+	private static final String FILE_EXTENSION = ".bin";
+	private static final String TEMP_FILE_EXTENSION = ".tmp";
+	private static final long DURATION_TOUCH_FILE_INTERVAL = (60 * 60 * 1000);
+	
+	
+	// Fields.
+	private final long m_Capacity;
+	private final BitmapDiskCodec m_Codec;
+	private final File m_Directory;
+	private long m_DroppedWriteCount;
+	private final LinkedHashMap<Long, Long> m_EntrySizes = new LinkedHashMap<>(16, 0.75f, true);
+	private long m_EvictionCount;
+	private final ExecutorService m_Executor = Executors.newSingleThreadExecutor();
+	private long m_HitCount;
+	private long m_InsertionCount;
+	private boolean m_IsClosed;
+	private final Object m_Lock = new Object();
+	private long m_MaxPendingSize = CAPACITY_PENDING_BITMAPS;
+	private long m_MaxReadTime;
+	private long m_MaxWriteTime;
+	private long m_MissCount;
+	private final HashMap<Long, PendingBitmap> m_PendingBitmaps = new HashMap<>();
+	private long m_PendingSize;
+	private long m_ReadCount;
+	private long m_ReadTime;
+	private long m_Size;
+	private long m_WriteCount;
+	private long m_WriteTime;
+	private long m_WrittenSize;
+	
+	
+	// Bitmap waiting to be written.
+	private static final class PendingBitmap
+	{
+		public final Bitmap bitmap;
+		public final byte[] key;
+		
+		public PendingBitmap(byte[] key, Bitmap bitmap)
+		{
+			this.key = key;
+			this.bitmap = bitmap;
+		}
+	}
+	
+	
+	/**
+	 * Initialize new BitmapDiskCache instance.
+	 * @param directory Directory to keep files.
+	 * @param codec Codec to encode and decode bitmaps.
+	 * @param capacity Capacity in bytes.
+	 */
+	public BitmapDiskCache(File directory, BitmapDiskCodec codec, long capacity)
+	{
+		m_Directory = directory;
+		m_Codec = codec;
+		m_Capacity = capacity;
+		m_Executor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				loadIndex();
+			}
+		});
+	}
+	
+	
+	/**
+	 * Remove all bitmaps.
+	 */
+	public void clear()
+	{
+		synchronized(m_Lock)
+		{
+			if(m_IsClosed)
+				return;
+			m_PendingBitmaps.clear();
+			m_PendingSize = 0;
+			m_EntrySizes.clear();
+			m_Size = 0;
+			m_Executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					File[] files = m_Directory.listFiles();
+					if(files != null)
+					{
+						for(int i = files.length - 1 ; i >= 0 ; --i)
+							files[i].delete();
+					}
+				}
+			});
+		}
+	}
+	
+	
+	/**
+	 * Close cache, pending bitmaps will still be written.
+	 */
+	public void close()
+	{
+		synchronized(m_Lock)
+		{
+			if(m_IsClosed)
+				return;
+			m_IsClosed = true;
+			Log.v(TAG, "close() - [", m_Codec.getName(), "] ", m_EntrySizes.size(), " files, ", (m_Size >> 10), " KB, ",
+					"read : ", m_ReadCount, " (", (m_ReadCount > 0 ? (m_ReadTime / m_ReadCount / 1000) : 0), " us avg), ",
+					"write : ", m_WriteCount, " (", (m_WriteCount > 0 ? (m_WriteTime / m_WriteCount / 1000) : 0), " us, ", (m_WriteCount > 0 ? (m_WrittenSize / m_WriteCount) : 0), " bytes avg), ",
+					"dropped writes : ", m_DroppedWriteCount);
+		}
+		m_Executor.shutdown();
+	}
+	
+	
+	// Close stream and ignore error.
+	private static void closeSilently(Closeable stream)
+	{
+		if(stream == null)
+			return;
+		try
+		{
+			stream.close();
+		}
+		catch(IOException ex)
+		{
+			Log.e(TAG, "closeSilently() - Fail to close stream", ex);
+		}
+	}
+	
+	
+	/**
+	 * Check whether bitmap is in cache or waiting to be written.
+	 * @param hash 64-bit hash of key.
+	 * @return True if bitmap is in cache.
+	 */
+	public boolean contains(long hash)
+	{
+		synchronized(m_Lock)
+		{
+			return (m_PendingBitmaps.containsKey(hash) || m_EntrySizes.containsKey(hash));
+		}
+	}
+	
+	
+	/**
+	 * Decode bitmap read by {@link #readData(long, byte[], byte[])}, file will be deleted if data is invalid.
+	 * @param hash 64-bit hash of key.
+	 * @param data Encoded bitmap.
+	 * @param length Length of encoded bitmap.
+	 * @param reusableBitmap Mutable bitmap which can be reused to hold pixels, or Null to create new bitmap.
+	 * @return Bitmap, or Null if data is invalid.
+	 */
+	public Bitmap decode(long hash, byte[] data, int length, Bitmap reusableBitmap)
+	{
+		Bitmap bitmap = null;
+		try
+		{
+			bitmap = m_Codec.decode(Channels.newChannel(new ByteArrayInputStream(data, 0, length)), reusableBitmap);
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "decode() - Fail to decode " + String.format(Locale.US, "%016x", hash), ex);
+		}
+		synchronized(m_Lock)
+		{
+			if(bitmap != null)
+			{
+				++m_HitCount;
+				return bitmap;
+			}
+			++m_MissCount;
+		}
+		Log.w(TAG, "decode() - Drop invalid file ", this.getFile(hash, false));
+		this.remove(hash);
+		return null;
+	}
+	
+	
+	/**
+	 * Get hashes of all bitmaps in cache, including bitmaps waiting to be written.
+	 * @return Hashes in least recently used order.
+	 */
+	public long[] getEntryHashes()
+	{
+		synchronized(m_Lock)
+		{
+			long[] hashes = new long[m_EntrySizes.size() + m_PendingBitmaps.size()];
+			int count = 0;
+			for(Long hash : m_EntrySizes.keySet())
+				hashes[count++] = hash;
+			for(Long hash : m_PendingBitmaps.keySet())
+			{
+				if(!m_EntrySizes.containsKey(hash))
+					hashes[count++] = hash;
+			}
+			return (count == hashes.length ? hashes : Arrays.copyOf(hashes, count));
+		}
+	}
+	
+	
+	// Get file for given key.
+	private File getFile(long hash, boolean isTemp)
+	{
+		return new File(m_Directory, String.format(Locale.US, "%016x", hash) + (isTemp ? TEMP_FILE_EXTENSION : FILE_EXTENSION));
+	}
+	
+	
+	/**
+	 * Get size of file which keeps bitmap, which can be used to prepare buffer for {@link #readData(long, byte[], byte[])}.
+	 * @param hash 64-bit hash of key.
+	 * @return Size of file in bytes, or 0 if bitmap is not in cache or still waiting to be written.
+	 */
+	public long getFileSize(long hash)
+	{
+		synchronized(m_Lock)
+		{
+			if(m_IsClosed || m_PendingBitmaps.containsKey(hash))
+				return 0;
+			Long size = m_EntrySizes.get(hash);
+			return (size != null ? size : 0);
+		}
+	}
+	
+	
+	/**
+	 * Get maximum total size of bitmaps waiting to be written.
+	 * @return Size in bytes.
+	 */
+	public long getMaxPendingSize()
+	{
+		synchronized(m_Lock)
+		{
+			return m_MaxPendingSize;
+		}
+	}
+	
+	
+	/**
+	 * Get total size of bitmaps waiting to be written.
+	 * @return Size in bytes.
+	 */
+	public long getPendingSize()
+	{
+		synchronized(m_Lock)
+		{
+			return m_PendingSize;
+		}
+	}
+	
+	
+	/**
+	 * Get snapshot of statistics.
+	 * @return Statistics of disk tier.
+	 */
+	public CacheStatistics.TierStatistics getStatistics()
+	{
+		synchronized(m_Lock)
+		{
+			return new CacheStatistics.TierStatistics("Disk", m_EntrySizes.size(), m_Size, m_HitCount, m_MissCount, m_InsertionCount, m_EvictionCount,
+					m_ReadCount, m_ReadTime / 1000, m_MaxReadTime / 1000, m_WriteCount, m_WriteTime / 1000, m_MaxWriteTime / 1000);
+		}
+	}
+	
+	
+	// Load existing files (in background thread).
+	private void loadIndex()
+	{
+		// list files
+		if(!m_Directory.exists() && !m_Directory.mkdirs())
+		{
+			Log.e(TAG, "loadIndex() - Fail to create directory ", m_Directory);
+			return;
+		}
+		File[] files = m_Directory.listFiles();
+		if(files == null)
+			return;
+		final long[] lastModifiedTimes = new long[files.length];
+		Integer[] indices = new Integer[files.length];
+		for(int i = files.length - 1 ; i >= 0 ; --i)
+		{
+			lastModifiedTimes[i] = files[i].lastModified();
+			indices[i] = i;
+		}
+		Arrays.sort(indices, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer lhs, Integer rhs)
+			{
+				long diff = (lastModifiedTimes[lhs] - lastModifiedTimes[rhs]);
+				return (diff < 0 ? -1 : (diff > 0 ? 1 : 0));
+			}
+		});
+		
+		// build index, least recently used first
+		synchronized(m_Lock)
+		{
+			for(int i = 0 ; i < indices.length ; ++i)
+			{
+				File file = files[indices[i]];
+				String name = file.getName();
+				if(name.length() != 16 + FILE_EXTENSION.length() || !name.endsWith(FILE_EXTENSION))
+				{
+					file.delete();
+					continue;
+				}
+				long hash;
+				try
+				{
+					hash = ((Long.parseLong(name.substring(0, 8), 16) << 32) | Long.parseLong(name.substring(8, 16), 16));
+				}
+				catch(NumberFormatException ex)
+				{
+					file.delete();
+					continue;
+				}
+				if(m_EntrySizes.containsKey(hash))
+					continue;
+				long size = file.length();
+				m_EntrySizes.put(hash, size);
+				m_Size += size;
+			}
+			Log.v(TAG, "loadIndex() - [", m_Codec.getName(), "] ", m_EntrySizes.size(), " files, ", (m_Size >> 10), " KB");
+			this.trimToCapacity();
+		}
+	}
+	
+	
+	/**
+	 * Read bitmap.
+	 * @param hash 64-bit hash of key.
+	 * @param key Serialized key, which should be same as key given when writing bitmap.
+	 * @param reusableBitmap Mutable bitmap which can be reused to hold pixels, or Null to create new bitmap.
+	 * @return Bitmap, or Null if bitmap is not in cache.
+	 */
+	public Bitmap read(long hash, byte[] key, Bitmap reusableBitmap)
+	{
+		// check pending bitmaps
+		synchronized(m_Lock)
+		{
+			if(m_IsClosed)
+				return null;
+			PendingBitmap pendingBitmap = m_PendingBitmaps.get(hash);
+			if(pendingBitmap != null)
+			{
+				if(Arrays.equals(pendingBitmap.key, key))
+				{
+					++m_HitCount;
+					return pendingBitmap.bitmap;
+				}
+				++m_MissCount;
+				return null;
+			}
+			m_EntrySizes.get(hash);
+		}
+		
+		// read file
+		File file = this.getFile(hash, false);
+		if(!file.exists())
+		{
+			synchronized(m_Lock)
+			{
+				++m_MissCount;
+			}
+			return null;
+		}
+		long startTime = System.nanoTime();
+		Bitmap bitmap = null;
+		FileInputStream stream = null;
+		try
+		{
+			stream = new FileInputStream(file);
+			byte[] fileKey = readKey(stream.getChannel());
+			if(Arrays.equals(fileKey, key))
+				bitmap = m_Codec.decode(stream.getChannel(), reusableBitmap);
+			else if(fileKey != null)
+			{
+				// file of another key with same hash
+				Log.w(TAG, "read() - Key of ", file, " does not match");
+				synchronized(m_Lock)
+				{
+					++m_MissCount;
+				}
+				return null;
+			}
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "read() - Fail to read " + file, ex);
+		}
+		finally
+		{
+			closeSilently(stream);
+		}
+		if(bitmap == null)
+		{
+			Log.w(TAG, "read() - Drop invalid file ", file);
+			this.remove(hash);
+			synchronized(m_Lock)
+			{
+				++m_MissCount;
+			}
+			return null;
+		}
+		long readTime = (System.nanoTime() - startTime);
+		synchronized(m_Lock)
+		{
+			++m_HitCount;
+			++m_ReadCount;
+			m_ReadTime += readTime;
+			m_MaxReadTime = Math.max(m_MaxReadTime, readTime);
+		}
+		
+		touchFile(file);
+		return bitmap;
+	}
+	
+	
+	/**
+	 * Read encoded bitmap into given buffer without decoding, bitmap should be decoded by {@link #decode(long, byte[], int, Bitmap)} later.
+	 * @param hash 64-bit hash of key.
+	 * @param key Serialized key, which should be same as key given when writing bitmap.
+	 * @param buffer Buffer to receive encoded bitmap.
+	 * @return Length of encoded bitmap, or -1 if bitmap is not in cache as file or buffer is too small.
+	 */
+	public int readData(long hash, byte[] key, byte[] buffer)
+	{
+		// check state
+		synchronized(m_Lock)
+		{
+			if(m_IsClosed || m_PendingBitmaps.containsKey(hash))
+				return -1;
+			m_EntrySizes.get(hash);
+		}
+		
+		// read file
+		File file = this.getFile(hash, false);
+		if(!file.exists())
+		{
+			synchronized(m_Lock)
+			{
+				++m_MissCount;
+			}
+			return -1;
+		}
+		long startTime = System.nanoTime();
+		int length = -1;
+		boolean isValid = false;
+		FileInputStream stream = null;
+		try
+		{
+			stream = new FileInputStream(file);
+			FileChannel channel = stream.getChannel();
+			byte[] fileKey = readKey(channel);
+			if(fileKey != null)
+			{
+				isValid = true;
+				if(!Arrays.equals(fileKey, key))
+					Log.w(TAG, "readData() - Key of ", file, " does not match");
+				else if(channel.size() - channel.position() <= buffer.length)
+				{
+					ByteBuffer data = ByteBuffer.wrap(buffer);
+					while(channel.read(data) > 0)
+					{}
+					length = data.position();
+				}
+			}
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "readData() - Fail to read " + file, ex);
+		}
+		finally
+		{
+			closeSilently(stream);
+		}
+		if(!isValid)
+		{
+			Log.w(TAG, "readData() - Drop invalid file ", file);
+			this.remove(hash);
+		}
+		long readTime = (System.nanoTime() - startTime);
+		synchronized(m_Lock)
+		{
+			if(length < 0)
+			{
+				++m_MissCount;
+				return -1;
+			}
+			++m_ReadCount;
+			m_ReadTime += readTime;
+			m_MaxReadTime = Math.max(m_MaxReadTime, readTime);
+		}
+		touchFile(file);
+		return length;
+	}
+	
+	
+	// Read and check file header, returns serialized key.
+	private static byte[] readKey(ReadableByteChannel channel) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+		if(!readFully(channel, header))
+			return null;
+		header.flip();
+		if(header.getInt() != FILE_MAGIC || header.getInt() != FILE_VERSION)
+			return null;
+		int keySize = header.getInt();
+		if(keySize <= 0 || keySize > MAX_KEY_SIZE)
+			return null;
+		ByteBuffer key = ByteBuffer.allocate(keySize);
+		if(!readFully(channel, key))
+			return null;
+		return key.array();
+	}
+	
+	
+	/**
+	 * Read serialized key of bitmap without reading bitmap, file with invalid header will be deleted.
+	 * @param hash 64-bit hash of key.
+	 * @return Serialized key, or Null if bitmap is not in cache or file is invalid.
+	 */
+	public byte[] readKey(long hash)
+	{
+		synchronized(m_Lock)
+		{
+			if(m_IsClosed)
+				return null;
+			PendingBitmap pendingBitmap = m_PendingBitmaps.get(hash);
+			if(pendingBitmap != null)
+				return pendingBitmap.key;
+			if(!m_EntrySizes.containsKey(hash))
+				return null;
+		}
+		File file = this.getFile(hash, false);
+		if(!file.exists())
+			return null;
+		byte[] key = null;
+		FileInputStream stream = null;
+		try
+		{
+			stream = new FileInputStream(file);
+			key = readKey(stream.getChannel());
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "readKey() - Fail to read " + file, ex);
+			return null;
+		}
+		finally
+		{
+			closeSilently(stream);
+		}
+		if(key == null)
+		{
+			Log.w(TAG, "readKey() - Drop invalid file ", file);
+			this.remove(hash);
+		}
+		return key;
+	}
+	
+	
+	// Read until buffer is full.
+	private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer) < 0)
+				return false;
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Remove bitmap.
+	 * @param hash 64-bit hash of key.
+	 * @return True if bitmap is removed.
+	 */
+	public boolean remove(long hash)
+	{
+		synchronized(m_Lock)
+		{
+			boolean isRemoved = this.removePendingBitmap(hash);
+			Long size = m_EntrySizes.remove(hash);
+			if(size != null)
+			{
+				m_Size -= size;
+				isRemoved = true;
+			}
+			return (this.getFile(hash, false).delete() || isRemoved);
+		}
+	}
+	
+	
+	// Remove bitmap waiting to be written.
+	private boolean removePendingBitmap(long hash)
+	{
+		PendingBitmap pendingBitmap = m_PendingBitmaps.remove(hash);
+		if(pendingBitmap == null)
+			return false;
+		m_PendingSize -= pendingBitmap.bitmap.getByteCount();
+		return true;
+	}
+	
+	
+	/**
+	 * Reset statistics, files in cache are kept.
+	 */
+	public void resetStatistics()
+	{
+		synchronized(m_Lock)
+		{
+			m_HitCount = 0;
+			m_MissCount = 0;
+			m_InsertionCount = 0;
+			m_EvictionCount = 0;
+			m_ReadCount = 0;
+			m_ReadTime = 0;
+			m_MaxReadTime = 0;
+			m_WriteCount = 0;
+			m_WriteTime = 0;
+			m_MaxWriteTime = 0;
+			m_WrittenSize = 0;
+			m_DroppedWriteCount = 0;
+		}
+	}
+	
+	
+	/**
+	 * Set maximum total size of bitmaps waiting to be written, bitmaps which are already waiting are still written.
+	 * @param size Maximum size in bytes, which will be limited by initial size.
+	 */
+	public void setMaxPendingSize(long size)
+	{
+		synchronized(m_Lock)
+		{
+			m_MaxPendingSize = Math.min(Math.max(0, size), CAPACITY_PENDING_BITMAPS);
+		}
+	}
+	
+	
+	// Update modified time to keep access order after restarting, but not for every access.
+	private static void touchFile(File file)
+	{
+		long currentTime = System.currentTimeMillis();
+		if(currentTime - file.lastModified() >= DURATION_TOUCH_FILE_INTERVAL)
+			file.setLastModified(currentTime);
+	}
+	
+	
+	// Delete least recently used files until total size is within capacity.
+	private void trimToCapacity()
+	{
+		Iterator<Map.Entry<Long, Long>> iterator = m_EntrySizes.entrySet().iterator();
+		while(m_Size > m_Capacity && iterator.hasNext())
+		{
+			Map.Entry<Long, Long> entry = iterator.next();
+			m_Size -= entry.getValue();
+			iterator.remove();
+			this.getFile(entry.getKey(), false).delete();
+			++m_EvictionCount;
+		}
+	}
+	
+	
+	/**
+	 * Write bitmap in background. Bitmap will be dropped if total size of bitmaps waiting to be written exceeds limit.
+	 * @param hash 64-bit hash of key.
+	 * @param key Serialized key to be written into file header.
+	 * @param bitmap Bitmap to write, it should not be changed after calling this method.
+	 * @return True if bitmap will be written.
+	 */
+	public boolean write(final long hash, byte[] key, Bitmap bitmap)
+	{
+		synchronized(m_Lock)
+		{
+			// check state
+			if(m_IsClosed || key == null || key.length == 0 || key.length > MAX_KEY_SIZE || bitmap == null || bitmap.isRecycled())
+				return false;
+			
+			// check backlog, single large bitmap is still accepted when nothing is waiting unless writing is disabled
+			boolean isWaiting = this.removePendingBitmap(hash);
+			if((!m_PendingBitmaps.isEmpty() || m_MaxPendingSize <= 0) && m_PendingSize + bitmap.getByteCount() > m_MaxPendingSize)
+			{
+				++m_DroppedWriteCount;
+				return false;
+			}
+			
+			// add to pending bitmaps
+			m_PendingBitmaps.put(hash, new PendingBitmap(key, bitmap));
+			m_PendingSize += bitmap.getByteCount();
+			if(isWaiting)
+				return true;
+			m_Executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					writeFile(hash);
+				}
+			});
+			return true;
+		}
+	}
+	
+	
+	// Write pending bitmap to file (in background thread).
+	private void writeFile(final long hash)
+	{
+		// get bitmap
+		PendingBitmap pendingBitmap;
+		synchronized(m_Lock)
+		{
+			pendingBitmap = m_PendingBitmaps.get(hash);
+			if(pendingBitmap == null)
+				return;
+			if(pendingBitmap.bitmap.isRecycled())
+			{
+				this.removePendingBitmap(hash);
+				return;
+			}
+		}
+		
+		// write to temporary file
+		long startTime = System.nanoTime();
+		File tempFile = this.getFile(hash, true);
+		File file = this.getFile(hash, false);
+		boolean isWritten = false;
+		FileOutputStream stream = null;
+		try
+		{
+			stream = new FileOutputStream(tempFile);
+			writeKey(stream.getChannel(), pendingBitmap.key);
+			isWritten = m_Codec.encode(pendingBitmap.bitmap, stream.getChannel());
+			stream.close();
+			stream = null;
+			isWritten = (isWritten && tempFile.renameTo(file));
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "writeFile() - Fail to write " + file, ex);
+		}
+		finally
+		{
+			closeSilently(stream);
+			if(!isWritten)
+				tempFile.delete();
+		}
+		
+		// update index
+		synchronized(m_Lock)
+		{
+			PendingBitmap currentPendingBitmap = m_PendingBitmaps.get(hash);
+			if(currentPendingBitmap == null)
+			{
+				// removed while writing
+				file.delete();
+				return;
+			}
+			if(currentPendingBitmap != pendingBitmap)
+			{
+				// changed while writing, write again
+				m_Executor.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						writeFile(hash);
+					}
+				});
+				return;
+			}
+			this.removePendingBitmap(hash);
+			if(!isWritten)
+				return;
+			long size = file.length();
+			long writeTime = (System.nanoTime() - startTime);
+			Long oldSize = m_EntrySizes.put(hash, size);
+			if(oldSize != null)
+				m_Size -= oldSize;
+			else
+				++m_InsertionCount;
+			m_Size += size;
+			++m_WriteCount;
+			m_WriteTime += writeTime;
+			m_MaxWriteTime = Math.max(m_MaxWriteTime, writeTime);
+			m_WrittenSize += size;
+			this.trimToCapacity();
+		}
+	}
+	
+	
+	// Write file header which contains serialized key.
+	private static void writeKey(WritableByteChannel channel, byte[] key) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(FILE_HEADER_SIZE + key.length);
+		buffer.putInt(FILE_MAGIC);
+		buffer.putInt(FILE_VERSION);
+		buffer.putInt(key.length);
+		buffer.put(key);
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+}
@@ -1,15 +1,38 @@
 package com.oneplus.gallery.cache;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import android.app.ActivityManager;
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 
 import com.oneplus.base.Handle;
 import com.oneplus.base.Log;
+import com.oneplus.base.PropertyChangeEventArgs;
+import com.oneplus.base.PropertyChangedCallback;
+import com.oneplus.base.PropertyKey;
+import com.oneplus.base.PropertySource;
 import com.oneplus.base.component.BasicComponent;
 import com.oneplus.cache.HybridBitmapLruCache;
 import com.oneplus.gallery.GalleryApplication;
+import com.oneplus.gallery.R;
+import com.oneplus.gallery.cache.MemoryGovernor.MemoryPressure;
 
 /**
  * Cache manager.
@@ -18,19 +41,84 @@ final class CacheManagerImpl extends BasicComponent implements CacheManager
 {
 	// Constants.
 	private static final String TAG = "CacheManager";
-	private static final long CAPACITY_SMALL_THUMB_MEM_CACHE = (32L << 20);
-	private static final long CAPACITY_SMALL_THUMB_MEM_CACHE_IDLE = (16L << 20);
-	private static final long CAPACITY_SMALL_THUMB_DISK_CACHE = (128L << 20);
-	private static final long CAPACITY_THUMB_MEM_CACHE = (1L << 20);
-	private static final long CAPACITY_THUMB_MEM_CACHE_IDLE = (1L << 20);
-	private static final long CAPACITY_THUMB_DISK_CACHE = (0L << 20);
+	private static final long CAPACITY_SMALL_THUMB_PACKED_STORE_MAX = (128L << 20);
+	private static final long CAPACITY_SMALL_THUMB_PACKED_STORE_MIN = (16L << 20);
+	private static final long CAPACITY_THUMB_DISK_CACHE_MAX = (128L << 20);
+	private static final long CAPACITY_THUMB_DISK_CACHE_MIN = (16L << 20);
+	private static final long CAPACITY_THUMB_MEM_CACHE_MAX = (16L << 20);
+	private static final long CAPACITY_THUMB_MEM_CACHE_MIN = (4L << 20);
+	private static final int FOREGROUND_MEMORY_WEIGHT_FACTOR = 4;
+	private static final int MANIFEST_VERSION = 2;
+	private static final int MAX_WARM_UP_KEYS = 512;
+	private static final int MEMORY_CLASS_DEFAULT = 64;
+	private static final long MIN_THUMB_DISK_CACHE_SOURCE_SIZE = (1L << 20);
+	private static final int SMALL_THUMB_MEM_CACHE_SCREEN_COUNT = 3;
+	private static final int WEIGHT_SMALL_THUMB_MEM_CACHE = 4;
+	private static final int WEIGHT_THUMB_DISK_WRITER = 1;
+	private static final int WEIGHT_THUMB_MEM_CACHE = 2;
 	
 	
 	// Fields.
 	private final List<Handle> m_ActivationHandles = new ArrayList<>();
-	private final Object m_Lock = new Object();
-	private volatile HybridBitmapLruCache<ImageCacheKey> m_SmallThumbImageCache;
-	private volatile HybridBitmapLruCache<ImageCacheKey> m_ThumbImageCache;
+	private MemoryScope m_ForegroundMemoryScope = MemoryScope.SHARED;
+	private long m_MemoryBudget;
+	private final List<MemoryConsumerHandle> m_MemoryConsumerHandles = new ArrayList<>();
+	private MemoryGovernor m_MemoryGovernor;
+	private MemoryPressure m_MemoryPressure = MemoryPressure.NORMAL;
+	private volatile ScanResistantBitmapLruCache m_SmallThumbImageCache;
+	private File m_SmallThumbManifestFile;
+	private long m_SmallThumbMemCacheCapacity;
+	private MemoryConsumerHandle m_SmallThumbMemCacheHandle;
+	private long m_SmallThumbMemCacheMaxCapacity;
+	private volatile PackedBitmapStoreImpl m_SmallThumbImageStore;
+	private volatile CodecBitmapLruCache<ImageCacheKey> m_ThumbImageCache;
+	private long m_ThumbMemCacheCapacity;
+	private MemoryConsumerHandle m_ThumbMemCacheHandle;
+	private long m_ThumbMemCacheMaxCapacity;
+	private ExecutorService m_WarmUpExecutor;
+	private final AtomicInteger m_WarmUpGeneration = new AtomicInteger();
+	private List<ImageCacheKey> m_WarmUpKeys;
+	
+	
+	// Call-backs.
+	private final PropertyChangedCallback<MemoryPressure> m_MemoryPressureChangedCallback = new PropertyChangedCallback<MemoryPressure>()
+	{
+		@Override
+		public void onPropertyChanged(PropertySource source, PropertyKey<MemoryPressure> key, PropertyChangeEventArgs<MemoryPressure> e)
+		{
+			onMemoryPressureChanged(e.getOldValue(), e.getNewValue());
+		}
+	};
+	
+	
+	// Handle to registered memory consumer.
+	private final class MemoryConsumerHandle extends Handle
+	{
+		public long budget = -1;
+		public final BitmapMemoryConsumer consumer;
+		public long limit;
+		public final long maxBudget;
+		public final String name;
+		public final MemoryScope scope;
+		public final int weight;
+		
+		public MemoryConsumerHandle(String name, MemoryScope scope, BitmapMemoryConsumer consumer, long maxBudget, int weight)
+		{
+			super("MemoryConsumer");
+			this.name = name;
+			this.scope = scope;
+			this.consumer = consumer;
+			this.maxBudget = maxBudget;
+			this.limit = maxBudget;
+			this.weight = weight;
+		}
+		
+		@Override
+		protected void onClose(int flags)
+		{
+			unregisterMemoryConsumer(this);
+		}
+	}
 	
 	
 	// Constructor.
@@ -66,6 +154,8 @@ final class CacheManagerImpl extends BasicComponent implements CacheManager
 		{
 			Log.v(TAG, "activate()");
 			this.setReadOnly(PROP_IS_ACTIVE, true);
+			this.arbitrateMemoryBudgets();
+			this.startWarmUp();
 		}
 		
 		// complete
@@ -73,6 +163,73 @@ final class CacheManagerImpl extends BasicComponent implements CacheManager
 	}
 	
 	
+	// Divide total memory budget among consumers by weights, and apply changed budgets to consumers. Consumers keep their budgets by themselves, so this is only needed when state changes.
+	private void arbitrateMemoryBudgets()
+	{
+		// Budget left by consumers which reach their limits is divided among other consumers again
+		List<MemoryConsumerHandle> handles = new ArrayList<>(m_MemoryConsumerHandles);
+		long remainingBudget = this.getTotalMemoryBudget();
+		while(!handles.isEmpty())
+		{
+			long totalWeight = 0;
+			for(int i = handles.size() - 1 ; i >= 0 ; --i)
+				totalWeight += this.getMemoryWeight(handles.get(i));
+			boolean isLimitReached = false;
+			long unusedBudget = remainingBudget;
+			for(int i = handles.size() - 1 ; i >= 0 ; --i)
+			{
+				MemoryConsumerHandle handle = handles.get(i);
+				if((double)remainingBudget * this.getMemoryWeight(handle) / totalWeight >= handle.limit)
+				{
+					this.updateMemoryBudget(handle, handle.limit);
+					unusedBudget -= handle.limit;
+					handles.remove(i);
+					isLimitReached = true;
+				}
+			}
+			remainingBudget = unusedBudget;
+			if(!isLimitReached)
+			{
+				for(int i = handles.size() - 1 ; i >= 0 ; --i)
+				{
+					MemoryConsumerHandle handle = handles.get(i);
+					this.updateMemoryBudget(handle, (long)((double)remainingBudget * this.getMemoryWeight(handle) / totalWeight));
+				}
+				break;
+			}
+		}
+	}
+	
+	
+	// Close stream and ignore error.
+	private static void closeSilently(Closeable stream)
+	{
+		if(stream == null)
+			return;
+		try
+		{
+			stream.close();
+		}
+		catch(IOException ex)
+		{
+			Log.e(TAG, "closeSilently() - Fail to close stream", ex);
+		}
+	}
+	
+	
+	// Delete directory and files in it.
+	private static void deleteDirectory(File directory)
+	{
+		File[] files = directory.listFiles();
+		if(files == null)
+			return;
+		for(int i = files.length - 1 ; i >= 0 ; --i)
+			files[i].delete();
+		if(directory.delete())
+			Log.v(TAG, "deleteDirectory() - Deleted ", directory);
+	}
+	
+	
 	// Deactivate.
 	private void deactivate(Handle handle)
 	{
@@ -83,19 +240,107 @@ final class CacheManagerImpl extends BasicComponent implements CacheManager
 		if(!m_ActivationHandles.remove(handle) || !m_ActivationHandles.isEmpty())
 			return;
 		
-		Log.v(TAG, "deactivate()");
+		Log.v(TAG, "deactivate() - Statistics :\n", this.getCacheStatistics(ImageCacheType.SMALL_THUMBNAIL), this.getCacheStatistics(ImageCacheType.THUMBNAIL));
 		
-		// deactivate
-		synchronized(m_Lock)
-		{
-			if(m_SmallThumbImageCache != null)
-				m_SmallThumbImageCache.trim(CAPACITY_SMALL_THUMB_MEM_CACHE_IDLE, null);
-			if(m_ThumbImageCache != null)
-				m_ThumbImageCache.trim(CAPACITY_THUMB_MEM_CACHE_IDLE, null);
-		}
+		// stop warming up and save manifest for next activation
+		m_WarmUpGeneration.incrementAndGet();
+		this.saveWarmUpManifest();
 		
 		// update property
 		this.setReadOnly(PROP_IS_ACTIVE, false);
+		
+		// shrink memory caches
+		this.arbitrateMemoryBudgets();
+	}
+	
+	
+	/**
+	 * Get snapshot of statistics of given cache.
+	 * @param type Cache type.
+	 * @return Statistics of cache, or Null if cache is unavailable.
+	 */
+	@Override
+	public CacheStatistics getCacheStatistics(ImageCacheType type)
+	{
+		CodecBitmapLruCache<ImageCacheKey> cache = this.getImageCache(type);
+		return (cache != null ? cache.getStatistics() : null);
+	}
+	
+	
+	// Get capacity which should be shared by memory consumers currently.
+	private long getEffectiveCapacity(long capacity)
+	{
+		// use half of capacity when idle
+		if(m_ActivationHandles.isEmpty())
+			capacity /= 2;
+		
+		// shrink step by step according to memory pressure
+		switch(m_MemoryPressure)
+		{
+			case NORMAL:
+				return capacity;
+			case MODERATE:
+				return (capacity / 2);
+			case HIGH:
+				return (capacity / 4);
+			default:
+				return 0;
+		}
+	}
+	
+	
+	// Get image cache by type.
+	private CodecBitmapLruCache<ImageCacheKey> getImageCache(ImageCacheType type)
+	{
+		switch(type)
+		{
+			case SMALL_THUMBNAIL:
+				return m_SmallThumbImageCache;
+			case THUMBNAIL:
+				return m_ThumbImageCache;
+			default:
+				throw new IllegalArgumentException("Unknown cache type : " + type);
+		}
+	}
+	
+	
+	/**
+	 * Get maximum capacity of memory tier of given cache.
+	 * @param type Cache type.
+	 * @return Maximum capacity in bytes.
+	 */
+	@Override
+	public long getMaxMemoryCacheCapacity(ImageCacheType type)
+	{
+		switch(type)
+		{
+			case SMALL_THUMBNAIL:
+				return m_SmallThumbMemCacheMaxCapacity;
+			case THUMBNAIL:
+				return m_ThumbMemCacheMaxCapacity;
+			default:
+				throw new IllegalArgumentException("Unknown cache type : " + type);
+		}
+	}
+	
+	
+	/**
+	 * Get requested capacity of memory tier of given cache.
+	 * @param type Cache type.
+	 * @return Capacity in bytes.
+	 */
+	@Override
+	public long getMemoryCacheCapacity(ImageCacheType type)
+	{
+		switch(type)
+		{
+			case SMALL_THUMBNAIL:
+				return m_SmallThumbMemCacheCapacity;
+			case THUMBNAIL:
+				return m_ThumbMemCacheCapacity;
+			default:
+				throw new IllegalArgumentException("Unknown cache type : " + type);
+		}
 	}
 	
 	
@@ -110,6 +355,26 @@ final class CacheManagerImpl extends BasicComponent implements CacheManager
 	}
 	
 	
+	/**
+	 * Get packed store for small thumbnail image.
+	 * @return Packed store for small thumbnail image, or Null if store is unavailable.
+	 */
+	@Override
+	public PackedBitmapStore getSmallThumbnailImageStore()
+	{
+		return m_SmallThumbImageStore;
+	}
+	
+	
+	// Get weight of memory consumer, weight is raised if consumer is in foreground scope.
+	private int getMemoryWeight(MemoryConsumerHandle handle)
+	{
+		if(handle.scope != MemoryScope.SHARED && handle.scope == m_ForegroundMemoryScope)
+			return (handle.weight * FOREGROUND_MEMORY_WEIGHT_FACTOR);
+		return handle.weight;
+	}
+	
+	
 	// Get cache for thumbnail image.
 	@Override
 	public HybridBitmapLruCache<ImageCacheKey> getThumbnailImageCache()
@@ -118,14 +383,89 @@ final class CacheManagerImpl extends BasicComponent implements CacheManager
 	}
 	
 	
+	/**
+	 * Get total memory budget currently shared by all registered memory consumers.
+	 * @return Memory budget in bytes.
+	 */
+	@Override
+	public long getTotalMemoryBudget()
+	{
+		this.verifyAccess();
+		long totalLimit = 0;
+		for(int i = m_MemoryConsumerHandles.size() - 1 ; i >= 0 ; --i)
+			totalLimit += m_MemoryConsumerHandles.get(i).limit;
+		return this.getEffectiveCapacity(Math.min(totalLimit, m_MemoryBudget));
+	}
+	
+	
+	/**
+	 * Get total memory usage reported by all registered memory consumers.
+	 * @return Memory usage in bytes.
+	 */
+	@Override
+	public long getTotalMemoryUsage()
+	{
+		this.verifyAccess();
+		long usage = 0;
+		for(int i = m_MemoryConsumerHandles.size() - 1 ; i >= 0 ; --i)
+			usage += m_MemoryConsumerHandles.get(i).consumer.getMemoryUsage();
+		return usage;
+	}
+	
+	
+	// Called when memory pressure changed.
+	private void onMemoryPressureChanged(MemoryPressure prevPressure, MemoryPressure pressure)
+	{
+		// Caches will grow back to their capacities after pressure is released
+		m_MemoryPressure = pressure;
+		if(pressure.compareTo(prevPressure) > 0)
+			Log.w(TAG, "onMemoryPressureChanged() - Shrink memory caches, pressure : ", pressure);
+		if(pressure.compareTo(MemoryPressure.HIGH) >= 0)
+			m_WarmUpGeneration.incrementAndGet();
+		this.arbitrateMemoryBudgets();
+	}
+	
+	
 	// Deinitialize.
 	@Override
 	protected void onDeinitialize()
 	{
+		// stop monitoring memory pressure
+		if(m_MemoryGovernor != null)
+		{
+			m_MemoryGovernor.removeCallback(MemoryGovernor.PROP_MEMORY_PRESSURE, m_MemoryPressureChangedCallback);
+			m_MemoryGovernor = null;
+		}
+		
+		// stop warming up, packed store is closed in warm-up thread after opening
+		m_WarmUpGeneration.incrementAndGet();
+		if(m_WarmUpExecutor != null)
+		{
+			m_WarmUpExecutor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					PackedBitmapStoreImpl store = m_SmallThumbImageStore;
+					m_SmallThumbImageStore = null;
+					if(store != null)
+						store.close();
+				}
+			});
+			m_WarmUpExecutor.shutdown();
+			m_WarmUpExecutor = null;
+		}
+		
 		// clear activation handle
 		m_ActivationHandles.clear();
 		this.setReadOnly(PROP_IS_ACTIVE, false);
 		
+		// clear memory consumers
+		Log.v(TAG, "onDeinitialize() - Total memory usage : ", (this.getTotalMemoryUsage() >> 10), "KB");
+		m_MemoryConsumerHandles.clear();
+		m_SmallThumbMemCacheHandle = null;
+		m_ThumbMemCacheHandle = null;
+		
 		// close caches
 		if(m_SmallThumbImageCache != null)
 		{
@@ -150,8 +490,426 @@ final class CacheManagerImpl extends BasicComponent implements CacheManager
 		// call super
 		super.onInitialize();
 		
-		// create caches
-		m_SmallThumbImageCache = new HybridBitmapLruCache<>(GalleryApplication.current(), "SmallThumbnail", Bitmap.Config.RGB_565, Bitmap.CompressFormat.JPEG, CAPACITY_SMALL_THUMB_MEM_CACHE, CAPACITY_SMALL_THUMB_DISK_CACHE);
-		m_ThumbImageCache = new HybridBitmapLruCache<>(GalleryApplication.current(), "Thumbnail", Bitmap.Config.RGB_565, Bitmap.CompressFormat.JPEG, CAPACITY_THUMB_MEM_CACHE, CAPACITY_THUMB_DISK_CACHE);
+		// get memory class
+		GalleryApplication application = GalleryApplication.current();
+		ActivityManager activityManager = (ActivityManager)application.getSystemService(Context.ACTIVITY_SERVICE);
+		long memoryClass = ((long)(activityManager != null ? activityManager.getMemoryClass() : MEMORY_CLASS_DEFAULT) << 20);
+		if(activityManager != null && activityManager.isLowRamDevice())
+			memoryClass /= 2;
+		
+		// calculate budgets (small thumbnail size is in pixels, so screen density is also taken into account)
+		m_MemoryBudget = (memoryClass / 2);
+		int smallThumbSize = application.getResources().getDimensionPixelSize(R.dimen.thumbnail_image_manager_thumb_size_small);
+		DisplayMetrics displayMetrics = application.getResources().getDisplayMetrics();
+		long screenSmallThumbSize = ((long)smallThumbSize * smallThumbSize * 2 * (displayMetrics.widthPixels / smallThumbSize + 1) * (displayMetrics.heightPixels / smallThumbSize + 1));
+		m_SmallThumbMemCacheMaxCapacity = Math.min(Math.max(memoryClass / 8, screenSmallThumbSize * SMALL_THUMB_MEM_CACHE_SCREEN_COUNT), memoryClass / 4);
+		m_ThumbMemCacheMaxCapacity = Math.min(Math.max(memoryClass / 32, CAPACITY_THUMB_MEM_CACHE_MIN), CAPACITY_THUMB_MEM_CACHE_MAX);
+		long usableSpace = application.getCacheDir().getUsableSpace();
+		final long smallThumbStoreCapacity = Math.min(Math.max(usableSpace / 32, CAPACITY_SMALL_THUMB_PACKED_STORE_MIN), CAPACITY_SMALL_THUMB_PACKED_STORE_MAX);
+		long thumbDiskCacheCapacity = Math.min(Math.max(usableSpace / 64, CAPACITY_THUMB_DISK_CACHE_MIN), CAPACITY_THUMB_DISK_CACHE_MAX);
+		m_SmallThumbMemCacheCapacity = m_SmallThumbMemCacheMaxCapacity;
+		m_ThumbMemCacheCapacity = m_ThumbMemCacheMaxCapacity;
+		Log.v(TAG, "onInitialize() - Memory class : ", (memoryClass >> 20), "MB, total memory budget : ", (m_MemoryBudget >> 10), "KB, small thumbnail cache : ", (m_SmallThumbMemCacheMaxCapacity >> 10), "KB / ", (smallThumbStoreCapacity >> 10), "KB, thumbnail cache : ", (m_ThumbMemCacheMaxCapacity >> 10), "KB / ", (thumbDiskCacheCapacity >> 10), "KB");
+		
+		// create caches, packed store is the only persistent tier of small thumbnail images so they are not written twice
+		long smallThumbWindowCapacity = Math.min(screenSmallThumbSize, m_SmallThumbMemCacheMaxCapacity / 4);
+		int smallThumbCount = (int)Math.min(Integer.MAX_VALUE, m_SmallThumbMemCacheMaxCapacity / Math.max(1, (long)smallThumbSize * smallThumbSize * 2));
+		m_SmallThumbImageCache = new ScanResistantBitmapLruCache(application, "SmallThumbnail", Bitmap.Config.RGB_565, m_SmallThumbMemCacheMaxCapacity, smallThumbWindowCapacity, 0, null, smallThumbCount);
+		m_ThumbImageCache = new CodecBitmapLruCache<ImageCacheKey>(application, "Thumbnail", Bitmap.Config.RGB_565, m_ThumbMemCacheMaxCapacity, thumbDiskCacheCapacity, new JpegBitmapDiskCodec(Bitmap.Config.RGB_565, 90))
+		{
+			// Decoding small source is almost as fast as reading from disk, so keep disk tier for large sources only
+			@Override
+			protected boolean shouldWriteToDisk(ImageCacheKey key, Bitmap bitmap)
+			{
+				return (key.fileSize <= 0 || key.fileSize >= MIN_THUMB_DISK_CACHE_SOURCE_SIZE);
+			}
+		};
+		
+		// share memory budget with other consumers
+		final ScanResistantBitmapLruCache smallThumbImageCache = m_SmallThumbImageCache;
+		m_SmallThumbMemCacheHandle = (MemoryConsumerHandle)this.registerMemoryConsumer("SmallThumbnailCache", MemoryScope.GRID_VIEW, new BitmapMemoryConsumer()
+		{
+			@Override
+			public long getMemoryUsage()
+			{
+				return smallThumbImageCache.getMemoryUsage();
+			}
+			
+			@Override
+			public void setMemoryBudget(long budget)
+			{
+				smallThumbImageCache.trimToCapacity(budget);
+			}
+		}, m_SmallThumbMemCacheMaxCapacity, WEIGHT_SMALL_THUMB_MEM_CACHE);
+		final CodecBitmapLruCache<ImageCacheKey> thumbImageCache = m_ThumbImageCache;
+		m_ThumbMemCacheHandle = (MemoryConsumerHandle)this.registerMemoryConsumer("ThumbnailCache", MemoryScope.FILMSTRIP, new BitmapMemoryConsumer()
+		{
+			@Override
+			public long getMemoryUsage()
+			{
+				return thumbImageCache.getMemoryUsage();
+			}
+			
+			@Override
+			public void setMemoryBudget(long budget)
+			{
+				thumbImageCache.trimToCapacity(budget);
+			}
+		}, m_ThumbMemCacheMaxCapacity, WEIGHT_THUMB_MEM_CACHE);
+		long thumbMaxPendingDiskWriteSize = thumbImageCache.getMaxPendingDiskWriteSize();
+		if(thumbMaxPendingDiskWriteSize > 0)
+		{
+			this.registerMemoryConsumer("ThumbnailDiskWriter", MemoryScope.FILMSTRIP, new BitmapMemoryConsumer()
+			{
+				@Override
+				public long getMemoryUsage()
+				{
+					return thumbImageCache.getPendingDiskWriteSize();
+				}
+				
+				@Override
+				public void setMemoryBudget(long budget)
+				{
+					thumbImageCache.setMaxPendingDiskWriteSize(budget);
+				}
+			}, thumbMaxPendingDiskWriteSize, WEIGHT_THUMB_DISK_WRITER);
+		}
+		
+		// prepare warm-up
+		m_SmallThumbManifestFile = new File(application.getCacheDir(), "SmallThumbnail.manifest");
+		m_WarmUpExecutor = Executors.newSingleThreadExecutor();
+		
+		// open packed store in warm-up thread because all slots are checked when opening, store is unavailable until opened
+		final File smallThumbStoreFile = new File(application.getCacheDir(), "SmallThumbnail.pack");
+		final File legacySmallThumbDirectory = new File(application.getCacheDir(), "SmallThumbnail.raw");
+		final int smallThumbStoreSlotSize = smallThumbSize;
+		m_WarmUpExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				deleteDirectory(legacySmallThumbDirectory);
+				PackedBitmapStoreImpl store = PackedBitmapStoreImpl.open(smallThumbStoreFile, smallThumbStoreSlotSize, smallThumbStoreSlotSize, smallThumbStoreCapacity);
+				if(store == null && smallThumbStoreCapacity > CAPACITY_SMALL_THUMB_PACKED_STORE_MIN)
+				{
+					// large file may not be mapped into address space, use minimum capacity instead
+					store = PackedBitmapStoreImpl.open(smallThumbStoreFile, smallThumbStoreSlotSize, smallThumbStoreSlotSize, CAPACITY_SMALL_THUMB_PACKED_STORE_MIN);
+				}
+				m_SmallThumbImageStore = store;
+			}
+		});
+		
+		// monitor memory pressure
+		m_MemoryGovernor = application.findComponent(MemoryGovernor.class);
+		if(m_MemoryGovernor != null)
+		{
+			m_MemoryGovernor.addCallback(MemoryGovernor.PROP_MEMORY_PRESSURE, m_MemoryPressureChangedCallback);
+			m_MemoryPressure = m_MemoryGovernor.get(MemoryGovernor.PROP_MEMORY_PRESSURE);
+		}
+		
+		// apply initial budgets
+		this.arbitrateMemoryBudgets();
+	}
+	
+	
+	// Read keys from warm-up manifest.
+	private static List<ImageCacheKey> readWarmUpManifest(File file)
+	{
+		List<ImageCacheKey> keys = new ArrayList<>();
+		if(!file.exists())
+			return keys;
+		DataInputStream stream = null;
+		try
+		{
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			int version = stream.readInt();
+			if(version != MANIFEST_VERSION)
+			{
+				Log.w(TAG, "readWarmUpManifest() - Unsupported version : ", version);
+				return keys;
+			}
+			for(int i = Math.min(stream.readInt(), MAX_WARM_UP_KEYS) ; i > 0 ; --i)
+				keys.add(ImageCacheKey.readRecord(stream));
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "readWarmUpManifest() - Fail to read manifest", ex);
+		}
+		finally
+		{
+			closeSilently(stream);
+		}
+		return keys;
+	}
+	
+	
+	/**
+	 * Register bitmap memory consumer to share global memory budget.
+	 * @param name Name of consumer.
+	 * @param scope Scope of consumer.
+	 * @param consumer Consumer.
+	 * @param maxBudget Maximum budget in bytes.
+	 * @param weight Weight of consumer.
+	 * @return Handle to registered consumer.
+	 */
+	@Override
+	public Handle registerMemoryConsumer(String name, MemoryScope scope, BitmapMemoryConsumer consumer, long maxBudget, int weight)
+	{
+		// check parameters
+		if(consumer == null)
+			throw new IllegalArgumentException("No consumer");
+		if(scope == null)
+			throw new IllegalArgumentException("No scope");
+		if(weight <= 0)
+			throw new IllegalArgumentException("Invalid weight : " + weight);
+		
+		// check state
+		this.verifyAccess();
+		if(!this.isRunningOrInitializing(true))
+			return null;
+		
+		// register
+		MemoryConsumerHandle handle = new MemoryConsumerHandle(name, scope, consumer, Math.max(0, maxBudget), weight);
+		m_MemoryConsumerHandles.add(handle);
+		Log.v(TAG, "registerMemoryConsumer() - Name : ", name, ", scope : ", scope, ", max budget : ", (handle.maxBudget >> 10), "KB, weight : ", weight);
+		
+		// arbitrate
+		this.arbitrateMemoryBudgets();
+		return handle;
+	}
+	
+	
+	/**
+	 * Reset statistics of given cache.
+	 * @param type Cache type.
+	 */
+	@Override
+	public void resetCacheStatistics(ImageCacheType type)
+	{
+		CodecBitmapLruCache<ImageCacheKey> cache = this.getImageCache(type);
+		if(cache != null)
+			cache.resetStatistics();
+	}
+	
+	
+	// Save keys of recently used small thumbnails to warm-up manifest.
+	private void saveWarmUpManifest()
+	{
+		// check state
+		ScanResistantBitmapLruCache cache = m_SmallThumbImageCache;
+		final File file = m_SmallThumbManifestFile;
+		if(cache == null || file == null || m_WarmUpExecutor == null)
+			return;
+		
+		// collect keys, keys visible at saved scroll position first
+		LinkedHashSet<ImageCacheKey> keySet = new LinkedHashSet<>();
+		if(m_WarmUpKeys != null)
+			keySet.addAll(m_WarmUpKeys);
+		List<ImageCacheKey> recentKeys = new ArrayList<>();
+		cache.collectRecentKeys(recentKeys, MAX_WARM_UP_KEYS);
+		keySet.addAll(recentKeys);
+		
+		// Keep previous manifest if memory tier has been cleared
+		if(keySet.isEmpty())
+			return;
+		final List<ImageCacheKey> keys = new ArrayList<>(keySet);
+		if(keys.size() > MAX_WARM_UP_KEYS)
+			keys.subList(MAX_WARM_UP_KEYS, keys.size()).clear();
+		
+		// write in background
+		m_WarmUpExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writeWarmUpManifest(file, keys);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Set scope of screen which is currently in front.
+	 * @param scope Foreground scope.
+	 */
+	@Override
+	public void setForegroundMemoryScope(MemoryScope scope)
+	{
+		// check state
+		this.verifyAccess();
+		if(scope == null)
+			scope = MemoryScope.SHARED;
+		if(m_ForegroundMemoryScope == scope)
+			return;
+		
+		Log.v(TAG, "setForegroundMemoryScope() - Scope : ", scope);
+		
+		// arbitrate
+		m_ForegroundMemoryScope = scope;
+		if(this.isRunningOrInitializing())
+			this.arbitrateMemoryBudgets();
+	}
+	
+	
+	/**
+	 * Change capacity of memory tier of given cache.
+	 * @param type Cache type.
+	 * @param capacity New capacity in bytes.
+	 * @return Capacity actually applied in bytes.
+	 */
+	@Override
+	public long setMemoryCacheCapacity(ImageCacheType type, long capacity)
+	{
+		// check state
+		this.verifyAccess();
+		if(!this.isRunningOrInitializing(true))
+			return 0;
+		
+		// update capacity
+		capacity = Math.min(Math.max(0, capacity), this.getMaxMemoryCacheCapacity(type));
+		switch(type)
+		{
+			case SMALL_THUMBNAIL:
+				if(m_SmallThumbMemCacheCapacity == capacity)
+					return capacity;
+				m_SmallThumbMemCacheCapacity = capacity;
+				if(m_SmallThumbMemCacheHandle != null)
+					m_SmallThumbMemCacheHandle.limit = capacity;
+				break;
+			case THUMBNAIL:
+				if(m_ThumbMemCacheCapacity == capacity)
+					return capacity;
+				m_ThumbMemCacheCapacity = capacity;
+				if(m_ThumbMemCacheHandle != null)
+					m_ThumbMemCacheHandle.limit = capacity;
+				break;
+		}
+		Log.v(TAG, "setMemoryCacheCapacity() - Type : ", type, ", capacity : ", capacity);
+		
+		// apply
+		this.arbitrateMemoryBudgets();
+		return capacity;
+	}
+	
+	
+	/**
+	 * Set keys of small thumbnails visible at saved scroll position of camera roll.
+	 * @param keys Keys ordered by position on screen, or Null to clear.
+	 */
+	@Override
+	public void setSmallThumbnailWarmUpKeys(List<ImageCacheKey> keys)
+	{
+		this.verifyAccess();
+		m_WarmUpKeys = (keys != null && !keys.isEmpty() ? new ArrayList<>(keys) : null);
+	}
+	
+	
+	// Start preloading small thumbnails in warm-up manifest.
+	private void startWarmUp()
+	{
+		// check state
+		final ScanResistantBitmapLruCache cache = m_SmallThumbImageCache;
+		final File file = m_SmallThumbManifestFile;
+		if(cache == null || file == null || m_WarmUpExecutor == null)
+			return;
+		if(m_MemoryPressure.compareTo(MemoryPressure.HIGH) >= 0)
+		{
+			Log.w(TAG, "startWarmUp() - Memory pressure is ", m_MemoryPressure, ", skip warming up");
+			return;
+		}
+		
+		// start, packed store is opened before warming up in the same thread
+		final int generation = m_WarmUpGeneration.incrementAndGet();
+		m_WarmUpExecutor.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				warmUp(cache, m_SmallThumbImageStore, file, generation);
+			}
+		});
+	}
+	
+	
+	// Unregister memory consumer.
+	private void unregisterMemoryConsumer(MemoryConsumerHandle handle)
+	{
+		// check thread
+		this.verifyAccess();
+		
+		// unregister
+		if(!m_MemoryConsumerHandles.remove(handle))
+			return;
+		Log.v(TAG, "unregisterMemoryConsumer() - Name : ", handle.name);
+		
+		// give budget to other consumers
+		if(this.isRunningOrInitializing())
+			this.arbitrateMemoryBudgets();
+	}
+	
+	
+	// Update memory budget of consumer, budget is applied to consumer only if it changed.
+	private void updateMemoryBudget(MemoryConsumerHandle handle, long budget)
+	{
+		if(handle.budget == budget)
+			return;
+		Log.v(TAG, "updateMemoryBudget() - ", handle.name, " : ", (budget >> 10), "KB");
+		handle.budget = budget;
+		handle.consumer.setMemoryBudget(budget);
+	}
+	
+	
+	// Preload small thumbnails in warm-up manifest (in warm-up thread).
+	private void warmUp(ScanResistantBitmapLruCache cache, PackedBitmapStore packedStore, File file, int generation)
+	{
+		// read manifest
+		List<ImageCacheKey> keys = readWarmUpManifest(file);
+		if(keys.isEmpty())
+			return;
+		
+		// preload in order of manifest until memory tier is full
+		long startTime = SystemClock.elapsedRealtime();
+		int count = 0;
+		for(int size = keys.size() ; count < size ; ++count)
+		{
+			if(m_WarmUpGeneration.get() != generation)
+			{
+				Log.w(TAG, "warmUp() - Cancelled");
+				break;
+			}
+			if(!cache.warmUp(keys.get(count), packedStore))
+				break;
+		}
+		Log.v(TAG, "warmUp() - ", count, "/", keys.size(), " entries checked, take ", (SystemClock.elapsedRealtime() - startTime), " ms");
+	}
+	
+	
+	// Write keys to warm-up manifest.
+	private static void writeWarmUpManifest(File file, List<ImageCacheKey> keys)
+	{
+		File tempFile = new File(file.getAbsolutePath() + ".tmp");
+		DataOutputStream stream = null;
+		try
+		{
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			stream.writeInt(MANIFEST_VERSION);
+			stream.writeInt(keys.size());
+			for(int i = 0, count = keys.size() ; i < count ; ++i)
+				keys.get(i).writeRecord(stream);
+			stream.close();
+			stream = null;
+			if(!tempFile.renameTo(file))
+				Log.e(TAG, "writeWarmUpManifest() - Fail to rename manifest");
+			else
+				Log.v(TAG, "writeWarmUpManifest() - ", keys.size(), " keys written");
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "writeWarmUpManifest() - Fail to write manifest", ex);
+		}
+		finally
+		{
+			closeSilently(stream);
+		}
 	}
 }
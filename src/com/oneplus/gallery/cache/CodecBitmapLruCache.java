@@ -0,0 +1,629 @@
+package com.oneplus.gallery.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+
+import com.oneplus.base.Log;
+import com.oneplus.base.Ref;
+import com.oneplus.cache.HybridBitmapLruCache;
+
+/**
+ * {@link HybridBitmapLruCache} which keeps disk tier by given {@link BitmapDiskCodec} instead of re-encoding bitmaps as JPEG.
+ * <p>
+ * Disk tier is read synchronously in {@link #get(Serializable, Bitmap, long)} when timeout is not zero, and written in background when adding bitmap.
+ * Disk files are named by hash of key and contain serialized key, which is compared when reading. {@link ImageCacheKey} is serialized as compact record, {@link Long} is taken as 64-bit fingerprint directly, and {@link String} is serialized as UTF string.
+ * Disk tier is also checked by {@link #remove(RemovingPredication)} by reading keys from files, files of other types of key can only be removed by {@link #remove(Serializable)} or LRU policy.
+ * Entries of memory tier are also recorded in LRU order to estimate memory usage and evictions, which are not reported by {@link HybridBitmapLruCache}.
+ * </p>
+ * @param <K> Type of key.
+ */
+public class CodecBitmapLruCache<K extends Serializable> extends HybridBitmapLruCache<K>
+{
+	// Constants.
+	private static final String TAG = "CodecBitmapLruCache";
+	private static final int DISK_KEY_TYPE_OTHERS = 0;
+	private static final int DISK_KEY_TYPE_IMAGE_CACHE_KEY = 1;
+	private static final int DISK_KEY_TYPE_STRING = 2;
+	private static final int DISK_KEY_TYPE_FINGERPRINT = 3;
+	
+	
+	// Fields.
+	private final BitmapDiskCache m_DiskCache;
+	private final Object m_Lock = new Object();
+	private final long m_MaxMemoryCapacity;
+	private long m_MemoryCapacity;
+	private final LinkedHashMap<K, Integer> m_MemoryEntrySizes = new LinkedHashMap<>(16, 0.75f, true);
+	private long m_MemoryEvictionCount;
+	private long m_MemoryHitCount;
+	private long m_MemoryInsertionCount;
+	private long m_MemoryMissCount;
+	private long m_MemorySize;
+	private final String m_Name;
+	private long m_StatisticsStartTime = SystemClock.elapsedRealtime();
+	
+	
+	/**
+	 * Initialize new CodecBitmapLruCache instance.
+	 * @param context Context.
+	 * @param name Cache name.
+	 * @param config Bitmap configuration.
+	 * @param memoryCapacity Capacity of memory tier in bytes.
+	 * @param diskCapacity Capacity of disk tier in bytes.
+	 * @param codec Codec of disk tier.
+	 */
+	public CodecBitmapLruCache(Context context, String name, Bitmap.Config config, long memoryCapacity, long diskCapacity, BitmapDiskCodec codec)
+	{
+		super(context, name, config, Bitmap.CompressFormat.JPEG, memoryCapacity, 0);
+		m_Name = name;
+		m_MaxMemoryCapacity = Math.max(0, memoryCapacity);
+		m_MemoryCapacity = m_MaxMemoryCapacity;
+		if(diskCapacity > 0 && codec != null)
+			m_DiskCache = new BitmapDiskCache(new File(context.getCacheDir(), name + "." + codec.getName()), codec, diskCapacity);
+		else
+			m_DiskCache = null;
+	}
+	
+	
+	// Add bitmap.
+	@Override
+	public boolean add(K key, Bitmap bitmap)
+	{
+		boolean result = super.add(key, bitmap);
+		if(result)
+			this.addMemoryEntry(key, bitmap);
+		this.writeToDisk(key, bitmap);
+		return result;
+	}
+	
+	
+	// Record bitmap put into memory tier, and keep memory tier within current capacity.
+	private void addMemoryEntry(K key, Bitmap bitmap)
+	{
+		if(key == null || bitmap == null)
+			return;
+		long capacity;
+		synchronized(m_Lock)
+		{
+			Integer oldSize = m_MemoryEntrySizes.put(key, bitmap.getByteCount());
+			if(oldSize != null)
+				m_MemorySize -= oldSize;
+			else
+				++m_MemoryInsertionCount;
+			m_MemorySize += bitmap.getByteCount();
+			capacity = m_MemoryCapacity;
+			if(m_MemorySize <= capacity)
+				return;
+			this.evictMemoryEntries(capacity);
+		}
+		
+		// Memory tier of HybridBitmapLruCache only keeps its initial capacity by itself
+		if(capacity < m_MaxMemoryCapacity)
+			this.trim(capacity, null);
+	}
+	
+	
+	// Clear cache.
+	@Override
+	public void clear()
+	{
+		super.clear();
+		synchronized(m_Lock)
+		{
+			m_MemoryEntrySizes.clear();
+			m_MemorySize = 0;
+		}
+		if(m_DiskCache != null)
+			m_DiskCache.clear();
+	}
+	
+	
+	// Close cache.
+	@Override
+	public void close()
+	{
+		super.close();
+		if(m_DiskCache != null)
+			m_DiskCache.close();
+	}
+	
+	
+	/**
+	 * Collect keys of bitmaps in memory tier, which are estimated by records of memory tier.
+	 * @param keys List to receive keys.
+	 */
+	public void collectMemoryKeys(List<K> keys)
+	{
+		synchronized(m_Lock)
+		{
+			keys.addAll(m_MemoryEntrySizes.keySet());
+		}
+	}
+	
+	
+	/**
+	 * Decode bitmap read from disk tier by {@link #readDiskData(Serializable, byte[])} and put it into memory tier.
+	 * @param key Key.
+	 * @param data Encoded bitmap.
+	 * @param length Length of encoded bitmap.
+	 * @param reusableBitmap Mutable bitmap which can be reused to hold pixels, or Null to create new bitmap. Caller still owns this bitmap if it is not returned.
+	 * @return Bitmap, or Null if data is invalid.
+	 */
+	public Bitmap decodeDiskData(K key, byte[] data, int length, Bitmap reusableBitmap)
+	{
+		if(m_DiskCache == null || key == null || data == null || length <= 0)
+			return null;
+		Bitmap bitmap = m_DiskCache.decode(getDiskKey(key), data, length, reusableBitmap);
+		if(bitmap != null)
+			this.onDiskHit(key, bitmap);
+		return bitmap;
+	}
+	
+	
+	// Remove least recently used entries from records of memory tier until total size is within capacity.
+	private void evictMemoryEntries(long capacity)
+	{
+		Iterator<Map.Entry<K, Integer>> iterator = m_MemoryEntrySizes.entrySet().iterator();
+		while(m_MemorySize > capacity && iterator.hasNext())
+		{
+			m_MemorySize -= iterator.next().getValue();
+			iterator.remove();
+			++m_MemoryEvictionCount;
+		}
+	}
+	
+	
+	/**
+	 * Get bitmap, only memory tier will be checked if timeout is zero.
+	 * @param key Key.
+	 * @param defaultValue Value to return if bitmap is not in cache.
+	 * @param timeout Zero to check memory tier only, otherwise disk tier will also be checked.
+	 * @return Bitmap, or default value if bitmap is not in cache.
+	 */
+	@Override
+	public Bitmap get(K key, Bitmap defaultValue, long timeout)
+	{
+		return this.get(key, defaultValue, timeout, null);
+	}
+	
+	
+	/**
+	 * Get bitmap, only memory tier will be checked if timeout is zero.
+	 * @param key Key.
+	 * @param defaultValue Value to return if bitmap is not in cache.
+	 * @param timeout Zero to check memory tier only, otherwise disk tier will also be checked.
+	 * @param reusableBitmap Mutable bitmap which can be reused to hold pixels read from disk tier, or Null to create new bitmap. Caller still owns this bitmap if it is not returned.
+	 * @return Bitmap, or default value if bitmap is not in cache.
+	 */
+	public Bitmap get(K key, Bitmap defaultValue, long timeout, Bitmap reusableBitmap)
+	{
+		// check memory tier
+		Bitmap bitmap = super.get(key, null, 0);
+		synchronized(m_Lock)
+		{
+			if(bitmap != null)
+			{
+				++m_MemoryHitCount;
+				if(key != null)
+					m_MemoryEntrySizes.get(key);
+			}
+			else
+			{
+				// Bitmap may be dropped by memory tier before being evicted from records
+				++m_MemoryMissCount;
+				Integer size = (key != null ? m_MemoryEntrySizes.remove(key) : null);
+				if(size != null)
+				{
+					m_MemorySize -= size;
+					++m_MemoryEvictionCount;
+				}
+			}
+		}
+		if(bitmap != null)
+			return bitmap;
+		
+		// check disk tier
+		if(timeout == 0)
+			return defaultValue;
+		bitmap = this.readFromDisk(key, reusableBitmap);
+		if(bitmap == null)
+			return defaultValue;
+		this.onDiskHit(key, bitmap);
+		return bitmap;
+	}
+	
+	
+	/**
+	 * Get size of file in disk tier, which can be used to prepare buffer for {@link #readDiskData(Serializable, byte[])}.
+	 * @param key Key.
+	 * @return Size in bytes, or 0 if bitmap is not in disk tier as file.
+	 */
+	public long getDiskDataSize(K key)
+	{
+		return (m_DiskCache != null && key != null ? m_DiskCache.getFileSize(getDiskKey(key)) : 0);
+	}
+	
+	
+	// Get 64-bit hash of key to identify file in disk tier.
+	private static long getDiskKey(Object key)
+	{
+		if(key instanceof ImageCacheKey)
+			return ((ImageCacheKey)key).getFingerprint();
+		if(key instanceof Long)
+			return (Long)key;
+		return ImageCacheKeyHashing.hashIdentity(key.toString());
+	}
+	
+	
+	// Serialize key to be written into file header of disk tier.
+	private static byte[] getDiskKeyRecord(Object key)
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+		DataOutputStream stream = new DataOutputStream(buffer);
+		try
+		{
+			if(key instanceof ImageCacheKey)
+			{
+				stream.writeByte(DISK_KEY_TYPE_IMAGE_CACHE_KEY);
+				((ImageCacheKey)key).writeRecord(stream);
+			}
+			else if(key instanceof Long)
+			{
+				stream.writeByte(DISK_KEY_TYPE_FINGERPRINT);
+				stream.writeLong((Long)key);
+			}
+			else
+			{
+				stream.writeByte(key instanceof String ? DISK_KEY_TYPE_STRING : DISK_KEY_TYPE_OTHERS);
+				stream.writeUTF(key.toString());
+			}
+			stream.flush();
+		}
+		catch(IOException ex)
+		{
+			Log.e(TAG, "getDiskKeyRecord() - Fail to serialize " + key, ex);
+			return null;
+		}
+		return buffer.toByteArray();
+	}
+	
+	
+	/**
+	 * Get statistics of memory tier.
+	 * @return Statistics of memory tier.
+	 */
+	protected CacheStatistics.TierStatistics getMemoryStatistics()
+	{
+		synchronized(m_Lock)
+		{
+			return new CacheStatistics.TierStatistics("Memory", m_MemoryEntrySizes.size(), m_MemorySize, m_MemoryHitCount, m_MemoryMissCount, m_MemoryInsertionCount, m_MemoryEvictionCount, 0, 0, 0, 0, 0, 0);
+		}
+	}
+	
+	
+	/**
+	 * Get size of bitmaps in memory tier, which is estimated by records of memory tier.
+	 * @return Memory usage in bytes.
+	 */
+	public long getMemoryUsage()
+	{
+		synchronized(m_Lock)
+		{
+			return m_MemorySize;
+		}
+	}
+	
+	
+	/**
+	 * Get maximum size of bitmaps waiting to be written to disk tier, which is changed by {@link #setMaxPendingDiskWriteSize(long)}.
+	 * @return Maximum size in bytes, or 0 if there is no disk tier.
+	 */
+	public long getMaxPendingDiskWriteSize()
+	{
+		return (m_DiskCache != null ? m_DiskCache.getMaxPendingSize() : 0);
+	}
+	
+	
+	/**
+	 * Get size of bitmaps waiting to be written to disk tier.
+	 * @return Size in bytes.
+	 */
+	public long getPendingDiskWriteSize()
+	{
+		return (m_DiskCache != null ? m_DiskCache.getPendingSize() : 0);
+	}
+	
+	
+	/**
+	 * Get snapshot of statistics of memory and disk tiers.
+	 * @return Statistics since creating cache or last calling {@link #resetStatistics()}.
+	 */
+	public CacheStatistics getStatistics()
+	{
+		long duration;
+		synchronized(m_Lock)
+		{
+			duration = (SystemClock.elapsedRealtime() - m_StatisticsStartTime);
+		}
+		return new CacheStatistics(m_Name, this.getMemoryStatistics(), (m_DiskCache != null ? m_DiskCache.getStatistics() : null), duration);
+	}
+	
+	
+	/**
+	 * Called when bitmap is read from disk tier by {@link #get(Serializable, Bitmap, long)}, default implementation puts bitmap into memory tier.
+	 * @param key Key.
+	 * @param bitmap Bitmap read from disk tier.
+	 */
+	protected void onDiskHit(K key, Bitmap bitmap)
+	{
+		if(super.add(key, bitmap))
+			this.addMemoryEntry(key, bitmap);
+	}
+	
+	
+	/**
+	 * Iterate keys in disk tier. Keys are taken as snapshot when calling this method and read from files one by one while iterating, so iterator can be kept to continue later.
+	 * Keys which are removed after taking snapshot, or which cannot be restored from files, will be skipped.
+	 * {@link Iterator#remove()} removes bitmap from all tiers.
+	 * @return Iterator of keys.
+	 */
+	public Iterator<K> iterateDiskKeys()
+	{
+		final BitmapDiskCache diskCache = m_DiskCache;
+		final long[] hashes = (diskCache != null ? diskCache.getEntryHashes() : new long[0]);
+		return new Iterator<K>()
+		{
+			private int m_Index;
+			private K m_LastKey;
+			private K m_NextKey;
+			
+			@Override
+			public boolean hasNext()
+			{
+				while(m_NextKey == null && m_Index < hashes.length)
+					m_NextKey = readDiskKeyRecord(diskCache.readKey(hashes[m_Index++]));
+				return (m_NextKey != null);
+			}
+			
+			@Override
+			public K next()
+			{
+				if(!this.hasNext())
+					throw new NoSuchElementException();
+				m_LastKey = m_NextKey;
+				m_NextKey = null;
+				return m_LastKey;
+			}
+			
+			@Override
+			public void remove()
+			{
+				if(m_LastKey == null)
+					throw new IllegalStateException();
+				CodecBitmapLruCache.this.remove(m_LastKey);
+				m_LastKey = null;
+			}
+		};
+	}
+	
+	
+	/**
+	 * Read encoded bitmap from disk tier into given buffer without decoding, so that file I/O and decoding can be performed in different threads.
+	 * Bitmap should be decoded by {@link #decodeDiskData(Serializable, byte[], int, Bitmap)} later.
+	 * @param key Key.
+	 * @param buffer Buffer to receive encoded bitmap.
+	 * @return Length of encoded bitmap, or -1 if bitmap is not in disk tier as file or buffer is too small.
+	 */
+	public int readDiskData(K key, byte[] buffer)
+	{
+		if(m_DiskCache == null || key == null || buffer == null)
+			return -1;
+		byte[] keyRecord = getDiskKeyRecord(key);
+		if(keyRecord == null)
+			return -1;
+		return m_DiskCache.readData(getDiskKey(key), keyRecord, buffer);
+	}
+	
+	
+	/**
+	 * Read bitmap from disk tier without putting into memory tier.
+	 * @param key Key.
+	 * @param reusableBitmap Mutable bitmap which can be reused to hold pixels, or Null to create new bitmap.
+	 * @return Bitmap, or Null if bitmap is not in disk tier.
+	 */
+	protected Bitmap readFromDisk(K key, Bitmap reusableBitmap)
+	{
+		if(m_DiskCache == null || key == null)
+			return null;
+		byte[] keyRecord = getDiskKeyRecord(key);
+		if(keyRecord == null)
+			return null;
+		return m_DiskCache.read(getDiskKey(key), keyRecord, reusableBitmap);
+	}
+	
+	
+	// Restore key from file header of disk tier.
+	@SuppressWarnings("unchecked")
+	private static <K> K readDiskKeyRecord(byte[] record)
+	{
+		if(record == null)
+			return null;
+		DataInputStream stream = new DataInputStream(new ByteArrayInputStream(record));
+		try
+		{
+			switch(stream.readUnsignedByte())
+			{
+				case DISK_KEY_TYPE_IMAGE_CACHE_KEY:
+					return (K)ImageCacheKey.readRecord(stream);
+				case DISK_KEY_TYPE_STRING:
+					return (K)stream.readUTF();
+				case DISK_KEY_TYPE_FINGERPRINT:
+					return (K)Long.valueOf(stream.readLong());
+				default:
+					return null;
+			}
+		}
+		catch(IOException ex)
+		{
+			Log.w(TAG, "readDiskKeyRecord() - Invalid key record");
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Check whether given bitmap should be written to disk tier or not, default implementation always returns True.
+	 * @param key Key.
+	 * @param bitmap Bitmap to write.
+	 * @return True to write bitmap to disk tier.
+	 */
+	protected boolean shouldWriteToDisk(K key, Bitmap bitmap)
+	{
+		return true;
+	}
+	
+	
+	/**
+	 * Check whether bitmap is in disk tier without reading it.
+	 * @param key Key.
+	 * @return True if bitmap is in disk tier.
+	 */
+	public boolean isInDiskTier(K key)
+	{
+		return (m_DiskCache != null && key != null && m_DiskCache.contains(getDiskKey(key)));
+	}
+	
+	
+	// Remove bitmap.
+	@Override
+	public boolean remove(K key)
+	{
+		boolean isRemoved = super.remove(key);
+		this.removeMemoryEntry(key);
+		if(m_DiskCache != null && key != null)
+			isRemoved |= m_DiskCache.remove(getDiskKey(key));
+		return isRemoved;
+	}
+	
+	
+	// Remove bitmaps.
+	@Override
+	public void remove(final RemovingPredication<K> predication)
+	{
+		// remove from memory tier
+		final Ref<Boolean> isCancelled = new Ref<>(false);
+		super.remove(new RemovingPredication<K>()
+		{
+			@Override
+			public boolean canRemove(K key, Ref<Boolean> isMemoryCheckingCancelled)
+			{
+				boolean canRemove = predication.canRemove(key, isMemoryCheckingCancelled);
+				if(isMemoryCheckingCancelled.get())
+					isCancelled.set(true);
+				if(!canRemove)
+					return false;
+				removeMemoryEntry(key);
+				return true;
+			}
+		});
+		
+		// remove from disk tier
+		if(m_DiskCache == null || isCancelled.get())
+			return;
+		for(Iterator<K> iterator = this.iterateDiskKeys() ; iterator.hasNext() ; )
+		{
+			K key = iterator.next();
+			if(predication.canRemove(key, isCancelled))
+				m_DiskCache.remove(getDiskKey(key));
+			if(isCancelled.get())
+				break;
+		}
+	}
+	
+	
+	// Remove bitmap from records of memory tier.
+	private void removeMemoryEntry(K key)
+	{
+		if(key == null)
+			return;
+		synchronized(m_Lock)
+		{
+			Integer size = m_MemoryEntrySizes.remove(key);
+			if(size != null)
+				m_MemorySize -= size;
+		}
+	}
+	
+	
+	/**
+	 * Reset statistics of memory and disk tiers, entries in cache are kept.
+	 */
+	public void resetStatistics()
+	{
+		synchronized(m_Lock)
+		{
+			m_MemoryHitCount = 0;
+			m_MemoryMissCount = 0;
+			m_MemoryInsertionCount = 0;
+			m_MemoryEvictionCount = 0;
+			m_StatisticsStartTime = SystemClock.elapsedRealtime();
+		}
+		if(m_DiskCache != null)
+			m_DiskCache.resetStatistics();
+	}
+	
+	
+	/**
+	 * Set maximum size of bitmaps waiting to be written to disk tier, bitmaps added after reaching the size will not be written.
+	 * @param size Maximum size in bytes, which will be limited by initial size.
+	 */
+	public void setMaxPendingDiskWriteSize(long size)
+	{
+		if(m_DiskCache != null)
+			m_DiskCache.setMaxPendingSize(size);
+	}
+	
+	
+	/**
+	 * Trim memory tier to given capacity. Capacity is kept when adding bitmaps until next call, so memory tier can grow back only by calling this method with larger capacity.
+	 * @param capacity Capacity of memory tier in bytes, which will be limited by initial capacity.
+	 */
+	public void trimToCapacity(long capacity)
+	{
+		capacity = Math.min(Math.max(0, capacity), m_MaxMemoryCapacity);
+		synchronized(m_Lock)
+		{
+			m_MemoryCapacity = capacity;
+			this.evictMemoryEntries(capacity);
+		}
+		this.trim(capacity, null);
+	}
+	
+	
+	/**
+	 * Write bitmap to disk tier in background if it is not in disk tier yet and {@link #shouldWriteToDisk(Serializable, Bitmap)} returns True.
+	 * @param key Key.
+	 * @param bitmap Bitmap to write.
+	 */
+	protected void writeToDisk(K key, Bitmap bitmap)
+	{
+		if(m_DiskCache == null || key == null || !this.shouldWriteToDisk(key, bitmap))
+			return;
+		long diskKey = getDiskKey(key);
+		if(!m_DiskCache.contains(diskKey))
+			m_DiskCache.write(diskKey, getDiskKeyRecord(key), bitmap);
+	}
+}
@@ -0,0 +1,110 @@
+package com.oneplus.gallery.cache;
+
+/**
+ * Count-min sketch with 4-bit counters to estimate access frequency of keys in recent history.
+ * <p>
+ * All counters are halved after number of recorded accesses reaches sample size, so frequency of keys which are no longer accessed will decay.
+ * This class is not thread-safe.
+ * </p>
+ */
+final class FrequencySketch
+{
+	// Constants.
+	private static final int DEPTH = 4;
+	private static final int MAX_TABLE_SIZE = (1 << 22);
+	private static final int MIN_TABLE_SIZE = 16;
+	private static final long ONE_MASK = 0x1111111111111111L;
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long[] SEEDS = new long[]{
+		0xC3A5C85C97CB3127L,
+		0xB492B66FBE98F273L,
+		0x9AE16A3B2F90404FL,
+		0xCBF29CE484222325L,
+	};
+	
+	
+	// Fields.
+	private final int m_SampleSize;
+	private int m_Size;
+	private final long[] m_Table;
+	private final int m_TableMask;
+	
+	
+	/**
+	 * Initialize new FrequencySketch instance.
+	 * @param maxEntryCount Maximum number of entries which frequency should be estimated accurately.
+	 */
+	public FrequencySketch(int maxEntryCount)
+	{
+		int tableSize = MIN_TABLE_SIZE;
+		while(tableSize < maxEntryCount && tableSize < MAX_TABLE_SIZE)
+			tableSize <<= 1;
+		m_Table = new long[tableSize];
+		m_TableMask = (tableSize - 1);
+		m_SampleSize = (tableSize * 10);
+	}
+	
+	
+	/**
+	 * Get estimated frequency of given key.
+	 * @param hash 64-bit hash of key.
+	 * @return Estimated frequency, from 0 to 15.
+	 */
+	public int frequency(long hash)
+	{
+		int frequency = Integer.MAX_VALUE;
+		for(int i = 0 ; i < DEPTH ; ++i)
+		{
+			long spreadHash = spread(hash, i);
+			int index = ((int)(spreadHash >>> 32) & m_TableMask);
+			int offset = (((int)spreadHash & 0xF) << 2);
+			frequency = Math.min(frequency, (int)((m_Table[index] >>> offset) & 0xFL));
+		}
+		return frequency;
+	}
+	
+	
+	/**
+	 * Record access to given key.
+	 * @param hash 64-bit hash of key.
+	 */
+	public void increment(long hash)
+	{
+		boolean isIncremented = false;
+		for(int i = 0 ; i < DEPTH ; ++i)
+		{
+			long spreadHash = spread(hash, i);
+			int index = ((int)(spreadHash >>> 32) & m_TableMask);
+			int offset = (((int)spreadHash & 0xF) << 2);
+			long mask = (0xFL << offset);
+			if((m_Table[index] & mask) != mask)
+			{
+				m_Table[index] += (1L << offset);
+				isIncremented = true;
+			}
+		}
+		if(isIncremented && ++m_Size >= m_SampleSize)
+			this.reset();
+	}
+	
+	
+	// Halve all counters.
+	private void reset()
+	{
+		int oddCount = 0;
+		for(int i = m_Table.length - 1 ; i >= 0 ; --i)
+		{
+			oddCount += Long.bitCount(m_Table[i] & ONE_MASK);
+			m_Table[i] = ((m_Table[i] >>> 1) & RESET_MASK);
+		}
+		m_Size = ((m_Size - (oddCount >>> 2)) >>> 1);
+	}
+	
+	
+	// Spread hash for given row.
+	private static long spread(long hash, int row)
+	{
+		long spreadHash = ((hash ^ SEEDS[row]) * 0x9E3779B97F4A7C15L);
+		return (spreadHash ^ (spreadHash >>> 29));
+	}
+}
@@ -0,0 +1,90 @@
+package com.oneplus.gallery.cache;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * {@link BitmapDiskCodec} which compresses bitmap as JPEG, which takes less disk space but costs more to encode and decode than {@link RawBitmapDiskCodec}.
+ */
+public final class JpegBitmapDiskCodec implements BitmapDiskCodec
+{
+	// Fields.
+	private final Bitmap.Config m_Config;
+	private final int m_Quality;
+	
+	
+	/**
+	 * Initialize new JpegBitmapDiskCodec instance.
+	 * @param config Configuration of decoded bitmap.
+	 * @param quality JPEG quality, from 0 to 100.
+	 */
+	public JpegBitmapDiskCodec(Bitmap.Config config, int quality)
+	{
+		m_Config = config;
+		m_Quality = Math.min(Math.max(0, quality), 100);
+	}
+	
+	
+	// Decode bitmap, encoded data is read into memory first so it can be decoded again if reusable bitmap is too small.
+	@Override
+	public Bitmap decode(ReadableByteChannel channel, Bitmap reusableBitmap) throws IOException
+	{
+		// read data
+		ByteArrayOutputStream data = new ByteArrayOutputStream(32 << 10);
+		InputStream stream = Channels.newInputStream(channel);
+		byte[] buffer = new byte[8192];
+		for(int length = stream.read(buffer) ; length >= 0 ; length = stream.read(buffer))
+			data.write(buffer, 0, length);
+		byte[] bytes = data.toByteArray();
+		
+		// decode
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = m_Config;
+		if(reusableBitmap != null && reusableBitmap.isMutable() && !reusableBitmap.isRecycled())
+		{
+			options.inMutable = true;
+			options.inBitmap = reusableBitmap;
+			try
+			{
+				return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+			}
+			catch(IllegalArgumentException ex)
+			{
+				// reusable bitmap cannot be used, decode into new bitmap instead
+				options.inBitmap = null;
+			}
+		}
+		return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+	}
+	
+	
+	// Encode bitmap.
+	@Override
+	public boolean encode(Bitmap bitmap, WritableByteChannel channel) throws IOException
+	{
+		if(bitmap == null || bitmap.isRecycled())
+			return false;
+		OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel));
+		if(!bitmap.compress(Bitmap.CompressFormat.JPEG, m_Quality, stream))
+			return false;
+		stream.flush();
+		return true;
+	}
+	
+	
+	// Get name.
+	@Override
+	public String getName()
+	{
+		return "jpeg";
+	}
+}
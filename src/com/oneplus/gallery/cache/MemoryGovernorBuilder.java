@@ -0,0 +1,28 @@
+package com.oneplus.gallery.cache;
+
+import com.oneplus.base.component.Component;
+import com.oneplus.base.component.ComponentCreationPriority;
+import com.oneplus.gallery.GalleryAppComponentBuilder;
+import com.oneplus.gallery.GalleryApplication;
+
+/**
+ * Component builder for {@link MemoryGovernor}.
+ */
+public final class MemoryGovernorBuilder extends GalleryAppComponentBuilder
+{
+	/**
+	 * Initialize new MemoryGovernorBuilder instance.
+	 */
+	public MemoryGovernorBuilder()
+	{
+		super(ComponentCreationPriority.LAUNCH, MemoryGovernorImpl.class);
+	}
+	
+	
+	// Create component.
+	@Override
+	protected Component create(GalleryApplication application)
+	{
+		return new MemoryGovernorImpl(application);
+	}
+}
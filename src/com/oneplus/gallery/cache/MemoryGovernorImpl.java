@@ -0,0 +1,177 @@
+package com.oneplus.gallery.cache;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.os.Bundle;
+import android.os.Debug;
+
+import com.oneplus.base.Log;
+import com.oneplus.base.component.BasicComponent;
+import com.oneplus.gallery.GalleryApplication;
+
+/**
+ * Memory governor.
+ * <p>
+ * Memory pressure is raised only by {@link ComponentCallbacks2#onTrimMemory(int)} and {@link ComponentCallbacks2#onLowMemory()}, and lowered one level per interval while UI is visible.
+ * Java heap usage is not polled because it also counts garbage which is not collected yet and bitmaps kept by caches on purpose.
+ * </p>
+ */
+final class MemoryGovernorImpl extends BasicComponent implements MemoryGovernor
+{
+	// Constants.
+	private static final String TAG = "MemoryGovernor";
+	private static final long DURATION_RELEASE_PRESSURE_INTERVAL = 5000;
+	
+	
+	// Fields.
+	private boolean m_IsUiHidden;
+	
+	
+	// Call-backs.
+	private final Application.ActivityLifecycleCallbacks m_ActivityLifecycleCallbacks = new Application.ActivityLifecycleCallbacks()
+	{
+		@Override
+		public void onActivityCreated(Activity activity, Bundle savedInstanceState)
+		{}
+		
+		@Override
+		public void onActivityDestroyed(Activity activity)
+		{}
+		
+		@Override
+		public void onActivityPaused(Activity activity)
+		{}
+		
+		@Override
+		public void onActivityResumed(Activity activity)
+		{}
+		
+		@Override
+		public void onActivitySaveInstanceState(Activity activity, Bundle outState)
+		{}
+		
+		@Override
+		public void onActivityStarted(Activity activity)
+		{
+			if(m_IsUiHidden)
+			{
+				m_IsUiHidden = false;
+				scheduleReleasingPressure();
+			}
+		}
+		
+		@Override
+		public void onActivityStopped(Activity activity)
+		{}
+	};
+	private final ComponentCallbacks2 m_ComponentCallbacks = new ComponentCallbacks2()
+	{
+		@Override
+		public void onConfigurationChanged(Configuration newConfig)
+		{}
+		
+		@Override
+		public void onLowMemory()
+		{
+			MemoryGovernorImpl.this.onTrimMemory(MemoryPressure.CRITICAL);
+		}
+		
+		@Override
+		public void onTrimMemory(int level)
+		{
+			if(level >= TRIM_MEMORY_UI_HIDDEN && !m_IsUiHidden)
+			{
+				m_IsUiHidden = true;
+				getHandler().removeCallbacks(m_ReleasePressureRunnable);
+			}
+			if(level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL)
+				MemoryGovernorImpl.this.onTrimMemory(MemoryPressure.CRITICAL);
+			else if(level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW)
+				MemoryGovernorImpl.this.onTrimMemory(MemoryPressure.HIGH);
+			else if(level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_MODERATE)
+				MemoryGovernorImpl.this.onTrimMemory(MemoryPressure.MODERATE);
+		}
+	};
+	
+	
+	// Runnables.
+	private final Runnable m_ReleasePressureRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			releasePressure();
+		}
+	};
+	
+	
+	// Constructor.
+	MemoryGovernorImpl(GalleryApplication application)
+	{
+		super("Memory governor", application, true);
+	}
+	
+	
+	// Deinitialize.
+	@Override
+	protected void onDeinitialize()
+	{
+		// stop monitoring
+		GalleryApplication.current().unregisterComponentCallbacks(m_ComponentCallbacks);
+		GalleryApplication.current().unregisterActivityLifecycleCallbacks(m_ActivityLifecycleCallbacks);
+		this.getHandler().removeCallbacks(m_ReleasePressureRunnable);
+		this.setReadOnly(PROP_MEMORY_PRESSURE, MemoryPressure.NORMAL);
+		
+		// call super
+		super.onDeinitialize();
+	}
+	
+	
+	// Initialize.
+	@Override
+	protected void onInitialize()
+	{
+		// call super
+		super.onInitialize();
+		
+		// start monitoring
+		GalleryApplication.current().registerComponentCallbacks(m_ComponentCallbacks);
+		GalleryApplication.current().registerActivityLifecycleCallbacks(m_ActivityLifecycleCallbacks);
+	}
+	
+	
+	// Called when system asks to trim memory.
+	private void onTrimMemory(MemoryPressure pressure)
+	{
+		MemoryPressure prevPressure = this.get(PROP_MEMORY_PRESSURE);
+		if(prevPressure.compareTo(pressure) >= 0)
+			return;
+		Log.w(TAG, "onTrimMemory() - Memory pressure : ", prevPressure, " -> ", pressure, ", native heap : ", (Debug.getNativeHeapAllocatedSize() >> 10), " KB");
+		this.setReadOnly(PROP_MEMORY_PRESSURE, pressure);
+		this.scheduleReleasingPressure();
+	}
+	
+	
+	// Lower memory pressure by one level, so caches will be restored step by step.
+	private void releasePressure()
+	{
+		MemoryPressure prevPressure = this.get(PROP_MEMORY_PRESSURE);
+		if(prevPressure == MemoryPressure.NORMAL)
+			return;
+		MemoryPressure pressure = MemoryPressure.values()[prevPressure.ordinal() - 1];
+		Log.v(TAG, "releasePressure() - Memory pressure : ", prevPressure, " -> ", pressure);
+		this.setReadOnly(PROP_MEMORY_PRESSURE, pressure);
+		this.scheduleReleasingPressure();
+	}
+	
+	
+	// Schedule lowering memory pressure if it is raised and UI is visible.
+	private void scheduleReleasingPressure()
+	{
+		this.getHandler().removeCallbacks(m_ReleasePressureRunnable);
+		if(!m_IsUiHidden && this.get(PROP_MEMORY_PRESSURE) != MemoryPressure.NORMAL)
+			this.getHandler().postDelayed(m_ReleasePressureRunnable, DURATION_RELEASE_PRESSURE_INTERVAL);
+	}
+}
@@ -0,0 +1,524 @@
+package com.oneplus.gallery.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.oneplus.base.Log;
+
+/**
+ * {@link PackedBitmapStore} implementation which keeps RGB_565 pixels in fixed-size slots of memory-mapped file.
+ * <p>
+ * Slot header is written after pixels and both of them are protected by checksum, so slots which were not written completely before crash will be dropped when opening or reading.
+ * Slot header also contains record of key written by {@link ImageCacheKey#writeRecord(java.io.DataOutput)}, so keys in store can be enumerated.
+ * Slots never fragment, least recently used slot will be replaced when store is full.
+ * </p>
+ */
+final class PackedBitmapStoreImpl implements PackedBitmapStore
+{
+	// Constants.
+	private static final String TAG = "PackedBitmapStore";
+	private static final int FILE_HEADER_SIZE = 64;
+	private static final int FILE_MAGIC = 0x4F505042;
+	private static final int FILE_VERSION = 3;
+	private static final int FILE_OFFSET_MAGIC = 0;
+	private static final int FILE_OFFSET_VERSION = 4;
+	private static final int FILE_OFFSET_SLOT_WIDTH = 8;
+	private static final int FILE_OFFSET_SLOT_HEIGHT = 12;
+	private static final int FILE_OFFSET_SLOT_COUNT = 16;
+	private static final int SLOT_HEADER_SIZE = 512;
+	private static final int SLOT_STATE_FREE = 0;
+	private static final int SLOT_STATE_VALID = 0x56414C44;
+	private static final int SLOT_OFFSET_STATE = 0;
+	private static final int SLOT_OFFSET_WIDTH = 4;
+	private static final int SLOT_OFFSET_HEIGHT = 6;
+	private static final int SLOT_OFFSET_KEY = 8;
+	private static final int SLOT_OFFSET_KEY_FINGERPRINT = 16;
+	private static final int SLOT_OFFSET_PIXELS_CHECKSUM = 32;
+	private static final int SLOT_OFFSET_HEADER_CHECKSUM = 36;
+	private static final int SLOT_OFFSET_KEY_RECORD_SIZE = 40;
+	private static final int SLOT_OFFSET_KEY_RECORD = 64;
+	private static final int MAX_KEY_RECORD_SIZE = (SLOT_HEADER_SIZE - SLOT_OFFSET_KEY_RECORD);
+	
+	
+	// Fields.
+	private final MappedByteBuffer m_Buffer;
+	private final CRC32 m_Checksum = new CRC32();
+	private final RandomAccessFile m_File;
+	private final byte[] m_HeaderBuffer = new byte[SLOT_HEADER_SIZE];
+	private boolean m_IsClosed;
+	private long m_NextAccessSequence;
+	private final byte[] m_PixelBuffer;
+	private final long[] m_SlotAccessSequences;
+	private final int m_SlotCount;
+	private final int m_SlotHeight;
+	private final long[] m_SlotKeyFingerprints;
+	private final long[] m_SlotKeyHashes;
+	private final int m_SlotSize;
+	private final HashMap<Long, Integer> m_SlotTable = new HashMap<>();
+	private final boolean[] m_SlotUsed;
+	private final boolean[] m_SlotVerified;
+	private final int m_SlotWidth;
+	
+	
+	// Constructor.
+	private PackedBitmapStoreImpl(RandomAccessFile file, MappedByteBuffer buffer, int slotWidth, int slotHeight, int slotCount, int slotSize)
+	{
+		m_File = file;
+		m_Buffer = buffer;
+		m_SlotWidth = slotWidth;
+		m_SlotHeight = slotHeight;
+		m_SlotCount = slotCount;
+		m_SlotSize = slotSize;
+		m_PixelBuffer = new byte[slotSize - SLOT_HEADER_SIZE];
+		m_SlotAccessSequences = new long[slotCount];
+		m_SlotKeyFingerprints = new long[slotCount];
+		m_SlotKeyHashes = new long[slotCount];
+		m_SlotUsed = new boolean[slotCount];
+		m_SlotVerified = new boolean[slotCount];
+		this.loadIndex();
+	}
+	
+	
+	/**
+	 * Open store, file will be re-created if slot size is changed or it is broken.
+	 * @param file File to store bitmaps.
+	 * @param slotWidth Width of each slot.
+	 * @param slotHeight Height of each slot.
+	 * @param capacity Maximum file size in bytes.
+	 * @return Opened store, or Null if store cannot be opened.
+	 */
+	public static PackedBitmapStoreImpl open(File file, int slotWidth, int slotHeight, long capacity)
+	{
+		// check parameters
+		if(slotWidth <= 0 || slotHeight <= 0 || slotWidth > 0xFFFF || slotHeight > 0xFFFF)
+		{
+			Log.e(TAG, "open() - Invalid slot size : " + slotWidth + "x" + slotHeight);
+			return null;
+		}
+		long slotSize = (SLOT_HEADER_SIZE + ((long)slotWidth * slotHeight * 2));
+		long slotCount = Math.min((capacity - FILE_HEADER_SIZE) / slotSize, (Integer.MAX_VALUE - FILE_HEADER_SIZE) / slotSize);
+		if(slotCount <= 0)
+		{
+			Log.e(TAG, "open() - Capacity " + capacity + " is too small");
+			return null;
+		}
+		long fileSize = (FILE_HEADER_SIZE + (slotCount * slotSize));
+		
+		// open file
+		RandomAccessFile randomAccessFile = null;
+		try
+		{
+			// map file
+			randomAccessFile = new RandomAccessFile(file, "rw");
+			boolean isNewFile = (randomAccessFile.length() != fileSize);
+			if(isNewFile)
+			{
+				randomAccessFile.setLength(0);
+				randomAccessFile.setLength(fileSize);
+			}
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+			
+			// check file header
+			if(!isNewFile && (buffer.getInt(FILE_OFFSET_MAGIC) != FILE_MAGIC
+					|| buffer.getInt(FILE_OFFSET_VERSION) != FILE_VERSION
+					|| buffer.getInt(FILE_OFFSET_SLOT_WIDTH) != slotWidth
+					|| buffer.getInt(FILE_OFFSET_SLOT_HEIGHT) != slotHeight
+					|| buffer.getInt(FILE_OFFSET_SLOT_COUNT) != slotCount))
+			{
+				Log.w(TAG, "open() - Incompatible file, clear all slots");
+				for(long i = 0 ; i < slotCount ; ++i)
+					buffer.putInt((int)(FILE_HEADER_SIZE + (i * slotSize) + SLOT_OFFSET_STATE), SLOT_STATE_FREE);
+				isNewFile = true;
+			}
+			if(isNewFile)
+			{
+				buffer.putInt(FILE_OFFSET_MAGIC, FILE_MAGIC);
+				buffer.putInt(FILE_OFFSET_VERSION, FILE_VERSION);
+				buffer.putInt(FILE_OFFSET_SLOT_WIDTH, slotWidth);
+				buffer.putInt(FILE_OFFSET_SLOT_HEIGHT, slotHeight);
+				buffer.putInt(FILE_OFFSET_SLOT_COUNT, (int)slotCount);
+			}
+			
+			// create store
+			return new PackedBitmapStoreImpl(randomAccessFile, buffer, slotWidth, slotHeight, (int)slotCount, (int)slotSize);
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "open() - Fail to open " + file, ex);
+			if(randomAccessFile != null)
+			{
+				try
+				{
+					randomAccessFile.close();
+				}
+				catch(IOException closeEx)
+				{}
+			}
+			return null;
+		}
+	}
+	
+	
+	// Calculate checksum of slot header, including key record.
+	private int calculateHeaderChecksum(int slotOffset)
+	{
+		int length = (SLOT_OFFSET_HEADER_CHECKSUM - SLOT_OFFSET_WIDTH);
+		m_Buffer.position(slotOffset + SLOT_OFFSET_WIDTH);
+		m_Buffer.get(m_HeaderBuffer, 0, length);
+		m_Buffer.clear();
+		m_Checksum.reset();
+		m_Checksum.update(m_HeaderBuffer, 0, length);
+		int recordSize = Math.min(Math.max(0, m_Buffer.getShort(slotOffset + SLOT_OFFSET_KEY_RECORD_SIZE)), MAX_KEY_RECORD_SIZE);
+		m_Buffer.position(slotOffset + SLOT_OFFSET_KEY_RECORD_SIZE);
+		m_Buffer.get(m_HeaderBuffer, 0, (SLOT_OFFSET_KEY_RECORD - SLOT_OFFSET_KEY_RECORD_SIZE) + recordSize);
+		m_Buffer.clear();
+		m_Checksum.update(m_HeaderBuffer, 0, (SLOT_OFFSET_KEY_RECORD - SLOT_OFFSET_KEY_RECORD_SIZE) + recordSize);
+		return (int)m_Checksum.getValue();
+	}
+	
+	
+	// Calculate checksum of pixels in pixel buffer.
+	private int calculatePixelsChecksum(int length)
+	{
+		m_Checksum.reset();
+		m_Checksum.update(m_PixelBuffer, 0, length);
+		return (int)m_Checksum.getValue();
+	}
+	
+	
+	/**
+	 * Remove all bitmaps.
+	 */
+	@Override
+	public synchronized void clear()
+	{
+		if(m_IsClosed)
+			return;
+		for(int i = m_SlotCount - 1 ; i >= 0 ; --i)
+		{
+			if(m_SlotUsed[i])
+				this.freeSlot(i);
+		}
+	}
+	
+	
+	/**
+	 * Close store.
+	 */
+	public synchronized void close()
+	{
+		if(m_IsClosed)
+			return;
+		m_IsClosed = true;
+		m_SlotTable.clear();
+		try
+		{
+			m_File.close();
+		}
+		catch(IOException ex)
+		{
+			Log.e(TAG, "close() - Fail to close file", ex);
+		}
+	}
+	
+	
+	/**
+	 * Collect keys of bitmaps in store, keys which were too large to be kept in slot header are skipped.
+	 * @param keys List to receive keys.
+	 */
+	@Override
+	public synchronized void collectKeys(List<ImageCacheKey> keys)
+	{
+		if(m_IsClosed)
+			return;
+		byte[] record = new byte[MAX_KEY_RECORD_SIZE];
+		for(int i = 0 ; i < m_SlotCount ; ++i)
+		{
+			if(!m_SlotUsed[i])
+				continue;
+			int slotOffset = this.getSlotOffset(i);
+			int recordSize = m_Buffer.getShort(slotOffset + SLOT_OFFSET_KEY_RECORD_SIZE);
+			if(recordSize <= 0 || recordSize > MAX_KEY_RECORD_SIZE)
+				continue;
+			m_Buffer.position(slotOffset + SLOT_OFFSET_KEY_RECORD);
+			m_Buffer.get(record, 0, recordSize);
+			m_Buffer.clear();
+			try
+			{
+				ImageCacheKey key = ImageCacheKey.readRecord(new DataInputStream(new ByteArrayInputStream(record, 0, recordSize)));
+				if(key.getIdentityHash() == m_SlotKeyHashes[i] && key.getFingerprint() == m_SlotKeyFingerprints[i])
+					keys.add(key);
+			}
+			catch(IOException ex)
+			{
+				Log.w(TAG, "collectKeys() - Invalid key record in slot ", i);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Check whether bitmap with given key is in store or not.
+	 * @param key Key.
+	 * @return True if bitmap is in store.
+	 */
+	@Override
+	public synchronized boolean contains(ImageCacheKey key)
+	{
+		return (this.findSlot(key) >= 0);
+	}
+	
+	
+	// Find slot which contains bitmap for given key.
+	private int findSlot(ImageCacheKey key)
+	{
+		if(key == null || m_IsClosed)
+			return -1;
+		Integer slot = m_SlotTable.get(key.getIdentityHash());
+		if(slot == null)
+			return -1;
+		if(m_SlotKeyFingerprints[slot] != key.getFingerprint())
+			return -1;
+		return slot;
+	}
+	
+	
+	// Mark slot as free.
+	private void freeSlot(int slot)
+	{
+		m_Buffer.putInt(this.getSlotOffset(slot) + SLOT_OFFSET_STATE, SLOT_STATE_FREE);
+		if(m_SlotUsed[slot])
+		{
+			Integer currentSlot = m_SlotTable.get(m_SlotKeyHashes[slot]);
+			if(currentSlot != null && currentSlot == slot)
+				m_SlotTable.remove(m_SlotKeyHashes[slot]);
+		}
+		m_SlotUsed[slot] = false;
+		m_SlotVerified[slot] = false;
+		m_SlotAccessSequences[slot] = 0;
+	}
+	
+	
+	/**
+	 * Get bitmap from store.
+	 * @param key Key.
+	 * @return New RGB_565 bitmap with pixels copied from store, or Null if bitmap is not in store.
+	 */
+	@Override
+	public synchronized Bitmap get(ImageCacheKey key)
+	{
+		// find slot
+		int slot = this.findSlot(key);
+		if(slot < 0)
+			return null;
+		int slotOffset = this.getSlotOffset(slot);
+		int width = (m_Buffer.getShort(slotOffset + SLOT_OFFSET_WIDTH) & 0xFFFF);
+		int height = (m_Buffer.getShort(slotOffset + SLOT_OFFSET_HEIGHT) & 0xFFFF);
+		int length = (width * height * 2);
+		
+		// copy pixels, verify checksum when reading slot first time because pixels may not be written completely before crash
+		Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		if(!m_SlotVerified[slot])
+		{
+			m_Buffer.position(slotOffset + SLOT_HEADER_SIZE);
+			m_Buffer.get(m_PixelBuffer, 0, length);
+			m_Buffer.clear();
+			if(this.calculatePixelsChecksum(length) != m_Buffer.getInt(slotOffset + SLOT_OFFSET_PIXELS_CHECKSUM))
+			{
+				Log.w(TAG, "get() - Broken slot ", slot, ", drop it");
+				this.freeSlot(slot);
+				bitmap.recycle();
+				return null;
+			}
+			m_SlotVerified[slot] = true;
+			bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(m_PixelBuffer, 0, length));
+		}
+		else
+		{
+			m_Buffer.limit(slotOffset + SLOT_HEADER_SIZE + length);
+			m_Buffer.position(slotOffset + SLOT_HEADER_SIZE);
+			bitmap.copyPixelsFromBuffer(m_Buffer);
+			m_Buffer.clear();
+		}
+		m_SlotAccessSequences[slot] = ++m_NextAccessSequence;
+		return bitmap;
+	}
+	
+	
+	// Get offset of slot in file.
+	private int getSlotOffset(int slot)
+	{
+		return (FILE_HEADER_SIZE + (slot * m_SlotSize));
+	}
+	
+	
+	// Build index from slot headers.
+	private void loadIndex()
+	{
+		int slotCount = 0;
+		for(int i = 0 ; i < m_SlotCount ; ++i)
+		{
+			// check header
+			int slotOffset = this.getSlotOffset(i);
+			if(m_Buffer.getInt(slotOffset + SLOT_OFFSET_STATE) != SLOT_STATE_VALID)
+				continue;
+			int width = (m_Buffer.getShort(slotOffset + SLOT_OFFSET_WIDTH) & 0xFFFF);
+			int height = (m_Buffer.getShort(slotOffset + SLOT_OFFSET_HEIGHT) & 0xFFFF);
+			long keyHash = m_Buffer.getLong(slotOffset + SLOT_OFFSET_KEY);
+			if(width <= 0 || height <= 0 || width > m_SlotWidth || height > m_SlotHeight
+					|| this.calculateHeaderChecksum(slotOffset) != m_Buffer.getInt(slotOffset + SLOT_OFFSET_HEADER_CHECKSUM)
+					|| m_SlotTable.containsKey(keyHash))
+			{
+				m_Buffer.putInt(slotOffset + SLOT_OFFSET_STATE, SLOT_STATE_FREE);
+				continue;
+			}
+			
+			// add to index
+			m_SlotUsed[i] = true;
+			m_SlotKeyHashes[i] = keyHash;
+			m_SlotKeyFingerprints[i] = m_Buffer.getLong(slotOffset + SLOT_OFFSET_KEY_FINGERPRINT);
+			m_SlotAccessSequences[i] = ++m_NextAccessSequence;
+			m_SlotTable.put(keyHash, i);
+			++slotCount;
+		}
+		Log.v(TAG, "loadIndex() - ", slotCount, "/", m_SlotCount, " slots used");
+	}
+	
+	
+	/**
+	 * Put bitmap into store, bitmap larger than slot will be center-cropped.
+	 * @param key Key.
+	 * @param bitmap Bitmap to put.
+	 * @return True if bitmap is put into store successfully.
+	 */
+	@Override
+	public boolean put(ImageCacheKey key, Bitmap bitmap)
+	{
+		// check parameters
+		if(key == null || bitmap == null || bitmap.isRecycled())
+			return false;
+		
+		// serialize key
+		ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+		try
+		{
+			key.writeRecord(new DataOutputStream(record));
+		}
+		catch(IOException ex)
+		{
+			Log.e(TAG, "put() - Fail to serialize " + key, ex);
+			return false;
+		}
+		byte[] recordBytes = (record.size() <= MAX_KEY_RECORD_SIZE ? record.toByteArray() : null);
+		
+		// crop and convert to RGB_565
+		int width = Math.min(bitmap.getWidth(), m_SlotWidth);
+		int height = Math.min(bitmap.getHeight(), m_SlotHeight);
+		Bitmap pixels = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+		try
+		{
+			Canvas canvas = new Canvas(pixels);
+			canvas.drawBitmap(bitmap, -((bitmap.getWidth() - width) / 2), -((bitmap.getHeight() - height) / 2), null);
+			synchronized(this)
+			{
+				// check state
+				if(m_IsClosed)
+					return false;
+				
+				// select slot
+				long keyHash = key.getIdentityHash();
+				Integer existingSlot = m_SlotTable.get(keyHash);
+				int slot = (existingSlot != null ? existingSlot : this.selectFreeSlot());
+				int slotOffset = this.getSlotOffset(slot);
+				this.freeSlot(slot);
+				
+				// write pixels
+				int length = (width * height * 2);
+				pixels.copyPixelsToBuffer(ByteBuffer.wrap(m_PixelBuffer, 0, length));
+				m_Buffer.position(slotOffset + SLOT_HEADER_SIZE);
+				m_Buffer.put(m_PixelBuffer, 0, length);
+				m_Buffer.clear();
+				
+				// write header
+				m_Buffer.putShort(slotOffset + SLOT_OFFSET_WIDTH, (short)width);
+				m_Buffer.putShort(slotOffset + SLOT_OFFSET_HEIGHT, (short)height);
+				m_Buffer.position(slotOffset + SLOT_OFFSET_KEY);
+				key.writeCompact(m_Buffer);
+				m_Buffer.clear();
+				m_Buffer.putShort(slotOffset + SLOT_OFFSET_KEY_RECORD_SIZE, (short)(recordBytes != null ? recordBytes.length : 0));
+				if(recordBytes != null)
+				{
+					m_Buffer.position(slotOffset + SLOT_OFFSET_KEY_RECORD);
+					m_Buffer.put(recordBytes);
+					m_Buffer.clear();
+				}
+				m_Buffer.putInt(slotOffset + SLOT_OFFSET_PIXELS_CHECKSUM, this.calculatePixelsChecksum(length));
+				m_Buffer.putInt(slotOffset + SLOT_OFFSET_HEADER_CHECKSUM, this.calculateHeaderChecksum(slotOffset));
+				m_Buffer.putInt(slotOffset + SLOT_OFFSET_STATE, SLOT_STATE_VALID);
+				
+				// update index
+				m_SlotUsed[slot] = true;
+				m_SlotVerified[slot] = true;
+				m_SlotKeyHashes[slot] = keyHash;
+				m_SlotKeyFingerprints[slot] = key.getFingerprint();
+				m_SlotAccessSequences[slot] = ++m_NextAccessSequence;
+				m_SlotTable.put(keyHash, slot);
+				return true;
+			}
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "put() - Fail to put bitmap for " + key, ex);
+			return false;
+		}
+		finally
+		{
+			pixels.recycle();
+		}
+	}
+	
+	
+	/**
+	 * Remove bitmap from store.
+	 * @param key Key.
+	 * @return True if bitmap is removed.
+	 */
+	@Override
+	public synchronized boolean remove(ImageCacheKey key)
+	{
+		int slot = this.findSlot(key);
+		if(slot < 0)
+			return false;
+		this.freeSlot(slot);
+		return true;
+	}
+	
+	
+	// Select free slot or least recently used slot.
+	private int selectFreeSlot()
+	{
+		int slot = 0;
+		for(int i = m_SlotCount - 1 ; i >= 0 ; --i)
+		{
+			if(!m_SlotUsed[i])
+				return i;
+			if(m_SlotAccessSequences[i] < m_SlotAccessSequences[slot])
+				slot = i;
+		}
+		return slot;
+	}
+}
@@ -0,0 +1,375 @@
+package com.oneplus.gallery.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.graphics.Bitmap;
+
+/**
+ * {@link BitmapDiskCodec} which writes raw pixels of bitmap, so decoding is only a copy from file into bitmap.
+ * <p>
+ * Pixels can be compressed optionally to reduce disk usage with small decoding cost. Reusable bitmap is reconfigured to size of stored bitmap if its allocation is large enough.
+ * Buffers for pixels are reused between calls, total size of free buffers is limited by {@link #setMaxFreeBufferSize(long)}.
+ * </p>
+ */
+public final class RawBitmapDiskCodec implements BitmapDiskCodec
+{
+	// Constants.
+	private static final long CAPACITY_FREE_BUFFERS = (8L << 20);
+	private static final int HEADER_SIZE = 32;
+	private static final int MAGIC = 0x4F505242;
+	private static final int MAX_PIXELS_SIZE = (64 << 20);
+	private static final int VERSION = 1;
+	
+	
+	// Fields.
+	private final List<ByteBuffer[]> m_FreeBuffers = new ArrayList<>();
+	private long m_FreeBufferSize;
+	private final boolean m_IsCompressed;
+	private long m_MaxFreeBufferSize = CAPACITY_FREE_BUFFERS;
+	
+	
+	/**
+	 * Initialize new RawBitmapDiskCodec instance.
+	 * @param compress True to compress pixels.
+	 */
+	public RawBitmapDiskCodec(boolean compress)
+	{
+		m_IsCompressed = compress;
+	}
+	
+	
+	// Decode bitmap.
+	@Override
+	public Bitmap decode(ReadableByteChannel channel, Bitmap reusableBitmap) throws IOException
+	{
+		ByteBuffer[] buffers = this.obtainBuffers();
+		try
+		{
+			return this.decode(channel, reusableBitmap, buffers);
+		}
+		finally
+		{
+			this.releaseBuffers(buffers);
+		}
+	}
+	
+	
+	// Decode bitmap with given buffers.
+	private Bitmap decode(ReadableByteChannel channel, Bitmap reusableBitmap, ByteBuffer[] buffers) throws IOException
+	{
+		// read header
+		ByteBuffer header = obtainBuffer(buffers, 0, HEADER_SIZE);
+		if(!readFully(channel, header))
+			return null;
+		header.flip();
+		if(header.getInt() != MAGIC || header.getInt() != VERSION)
+			return null;
+		int width = header.getInt();
+		int height = header.getInt();
+		Bitmap.Config config = getConfig(header.getInt());
+		boolean isCompressed = (header.getInt() != 0);
+		int pixelsSize = header.getInt();
+		int dataSize = header.getInt();
+		if(width <= 0 || height <= 0 || config == null || pixelsSize <= 0 || pixelsSize > MAX_PIXELS_SIZE || dataSize <= 0 || dataSize > MAX_PIXELS_SIZE)
+			return null;
+		
+		// read pixels
+		ByteBuffer pixels;
+		if(isCompressed)
+		{
+			ByteBuffer data = obtainBuffer(buffers, 1, dataSize);
+			if(!readFully(channel, data))
+				return null;
+			pixels = obtainBuffer(buffers, 2, pixelsSize);
+			Inflater inflater = new Inflater();
+			try
+			{
+				inflater.setInput(data.array(), 0, dataSize);
+				if(inflater.inflate(pixels.array(), 0, pixelsSize) != pixelsSize)
+					return null;
+			}
+			catch(DataFormatException ex)
+			{
+				return null;
+			}
+			finally
+			{
+				inflater.end();
+			}
+			pixels.position(pixelsSize);
+		}
+		else
+		{
+			pixels = obtainBuffer(buffers, 2, pixelsSize);
+			if(!readFully(channel, pixels))
+				return null;
+		}
+		pixels.flip();
+		
+		// copy pixels to bitmap
+		Bitmap bitmap = null;
+		if(reusableBitmap != null && reusableBitmap.isMutable() && !reusableBitmap.isRecycled() && reusableBitmap.getAllocationByteCount() >= pixelsSize)
+		{
+			if(reusableBitmap.getWidth() != width || reusableBitmap.getHeight() != height || reusableBitmap.getConfig() != config)
+			{
+				try
+				{
+					reusableBitmap.reconfigure(width, height, config);
+					bitmap = reusableBitmap;
+				}
+				catch(IllegalArgumentException ex)
+				{}
+			}
+			else
+				bitmap = reusableBitmap;
+		}
+		if(bitmap == null)
+			bitmap = Bitmap.createBitmap(width, height, config);
+		if(bitmap.getByteCount() != pixelsSize)
+		{
+			if(bitmap != reusableBitmap)
+				bitmap.recycle();
+			return null;
+		}
+		bitmap.copyPixelsFromBuffer(pixels);
+		return bitmap;
+	}
+	
+	
+	// Encode bitmap.
+	@Override
+	public boolean encode(Bitmap bitmap, WritableByteChannel channel) throws IOException
+	{
+		ByteBuffer[] buffers = this.obtainBuffers();
+		try
+		{
+			return this.encode(bitmap, channel, buffers);
+		}
+		finally
+		{
+			this.releaseBuffers(buffers);
+		}
+	}
+	
+	
+	// Encode bitmap with given buffers.
+	private boolean encode(Bitmap bitmap, WritableByteChannel channel, ByteBuffer[] buffers) throws IOException
+	{
+		// check bitmap
+		if(bitmap == null || bitmap.isRecycled())
+			return false;
+		int configCode = getConfigCode(bitmap.getConfig());
+		int pixelsSize = bitmap.getByteCount();
+		if(configCode < 0 || pixelsSize <= 0 || pixelsSize > MAX_PIXELS_SIZE)
+			return false;
+		
+		// copy pixels
+		ByteBuffer pixels = obtainBuffer(buffers, 2, pixelsSize);
+		bitmap.copyPixelsToBuffer(pixels);
+		pixels.flip();
+		
+		// compress
+		ByteBuffer data = pixels;
+		if(m_IsCompressed)
+		{
+			data = obtainBuffer(buffers, 1, pixelsSize + (pixelsSize >> 8) + 64);
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			try
+			{
+				deflater.setInput(pixels.array(), 0, pixelsSize);
+				deflater.finish();
+				int dataSize = deflater.deflate(data.array(), 0, data.capacity());
+				if(!deflater.finished())
+					return false;
+				data.limit(dataSize);
+			}
+			finally
+			{
+				deflater.end();
+			}
+		}
+		
+		// write header
+		ByteBuffer header = obtainBuffer(buffers, 0, HEADER_SIZE);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putInt(bitmap.getWidth());
+		header.putInt(bitmap.getHeight());
+		header.putInt(configCode);
+		header.putInt(m_IsCompressed ? 1 : 0);
+		header.putInt(pixelsSize);
+		header.putInt(data.remaining());
+		header.flip();
+		writeFully(channel, header);
+		
+		// write pixels
+		writeFully(channel, data);
+		return true;
+	}
+	
+	
+	// Get bitmap configuration from code.
+	private static Bitmap.Config getConfig(int code)
+	{
+		switch(code)
+		{
+			case 1:
+				return Bitmap.Config.ALPHA_8;
+			case 2:
+				return Bitmap.Config.RGB_565;
+			case 3:
+				return Bitmap.Config.ARGB_4444;
+			case 4:
+				return Bitmap.Config.ARGB_8888;
+			default:
+				return null;
+		}
+	}
+	
+	
+	// Get code of bitmap configuration.
+	private static int getConfigCode(Bitmap.Config config)
+	{
+		if(config == null)
+			return -1;
+		switch(config)
+		{
+			case ALPHA_8:
+				return 1;
+			case RGB_565:
+				return 2;
+			case ARGB_4444:
+				return 3;
+			case ARGB_8888:
+				return 4;
+			default:
+				return -1;
+		}
+	}
+	
+	
+	// Get name.
+	@Override
+	public String getName()
+	{
+		return (m_IsCompressed ? "raw-z" : "raw");
+	}
+	
+	
+	/**
+	 * Get total size of free buffers kept for next encoding or decoding.
+	 * @return Size in bytes.
+	 */
+	public synchronized long getFreeBufferSize()
+	{
+		return m_FreeBufferSize;
+	}
+	
+	
+	/**
+	 * Get maximum total size of free buffers, which is changed by {@link #setMaxFreeBufferSize(long)}.
+	 * @return Size in bytes.
+	 */
+	public synchronized long getMaxFreeBufferSize()
+	{
+		return m_MaxFreeBufferSize;
+	}
+	
+	
+	// Get total size of buffers.
+	private static long getBufferSize(ByteBuffer[] buffers)
+	{
+		long size = 0;
+		for(int i = buffers.length - 1 ; i >= 0 ; --i)
+		{
+			if(buffers[i] != null)
+				size += buffers[i].capacity();
+		}
+		return size;
+	}
+	
+	
+	// Obtain cleared buffer which can hold given size of data.
+	private static ByteBuffer obtainBuffer(ByteBuffer[] buffers, int index, int size)
+	{
+		ByteBuffer buffer = buffers[index];
+		if(buffer == null || buffer.capacity() < size)
+		{
+			buffer = ByteBuffer.allocate(size);
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			buffers[index] = buffer;
+		}
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+	
+	
+	// Obtain free buffers, or create new buffers.
+	private ByteBuffer[] obtainBuffers()
+	{
+		synchronized(this)
+		{
+			int count = m_FreeBuffers.size();
+			if(count > 0)
+			{
+				ByteBuffer[] buffers = m_FreeBuffers.remove(count - 1);
+				m_FreeBufferSize -= getBufferSize(buffers);
+				return buffers;
+			}
+		}
+		return new ByteBuffer[3];
+	}
+	
+	
+	// Read until buffer is full.
+	private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer) < 0)
+				return false;
+		}
+		return true;
+	}
+	
+	
+	// Return buffers for next encoding or decoding, buffers are dropped if they cannot be kept.
+	private synchronized void releaseBuffers(ByteBuffer[] buffers)
+	{
+		long size = getBufferSize(buffers);
+		if(m_FreeBufferSize + size > m_MaxFreeBufferSize)
+			return;
+		m_FreeBuffers.add(buffers);
+		m_FreeBufferSize += size;
+	}
+	
+	
+	/**
+	 * Set maximum total size of free buffers, free buffers are dropped immediately if they exceed given size.
+	 * @param size Maximum size in bytes, which will be limited by initial size.
+	 */
+	public synchronized void setMaxFreeBufferSize(long size)
+	{
+		m_MaxFreeBufferSize = Math.min(Math.max(0, size), CAPACITY_FREE_BUFFERS);
+		while(!m_FreeBuffers.isEmpty() && m_FreeBufferSize > m_MaxFreeBufferSize)
+			m_FreeBufferSize -= getBufferSize(m_FreeBuffers.remove(0));
+	}
+	
+	
+	// Write all remaining data in buffer.
+	private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+}
@@ -0,0 +1,515 @@
+package com.oneplus.gallery.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admission policy of {@link ScanResistantBitmapLruCache}, which keeps records of entries in small LRU window and main LRU region by 64-bit fingerprint and size only.
+ * <p>
+ * New entries are put into window first, entries evicted from window are admitted into main region only if they are estimated by {@link FrequencySketch} to be accessed more frequently than least recently used entry in main region.
+ * Fingerprints of entries rejected by window and entries evicted from main region are kept as ghost entries. Window grows from its initial capacity when rejected entry is added again (e.g. scrolling slowly with small steps back), and shrinks when entry evicted from main region is added again.
+ * Plain LRU cache with same capacity is also simulated, so that hit rate can be compared. This class depends on Java runtime only, so it can be checked against recorded accesses without Android framework.
+ * This class is not thread-safe.
+ * </p>
+ */
+final class ScanResistantAdmissionPolicy
+{
+	/**
+	 * Location of entry which is not in cache.
+	 */
+	public static final int LOCATION_NONE = 0;
+	/**
+	 * Location of entry in window.
+	 */
+	public static final int LOCATION_WINDOW = 1;
+	/**
+	 * Location of entry in main region.
+	 */
+	public static final int LOCATION_MAIN = 2;
+	
+	
+	// Constants.
+	private static final int MIN_MAIN_CAPACITY_DIVISOR = 32;
+	private static final int WINDOW_STEP_DIVISOR = 64;
+	
+	
+	// Fields.
+	private long m_AdmittedCount;
+	private long m_Capacity;
+	private long m_EvictionCount;
+	private long m_InsertionCount;
+	private long m_MainCapacity;
+	private final LinkedHashMap<Long, Integer> m_MainEntrySizes = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<Long, Integer> m_MainGhostSizes = new LinkedHashMap<>();
+	private long m_MainGhostSize;
+	private long m_MainSize;
+	private final long m_MaxCapacity;
+	private final long m_MaxMinWindowCapacity;
+	private long m_MinWindowCapacity;
+	private final LinkedHashMap<Long, Integer> m_ReferenceEntrySizes = new LinkedHashMap<>(16, 0.75f, true);
+	private long m_ReferenceHitCount;
+	private long m_ReferenceSize;
+	private long m_RejectedCount;
+	private final FrequencySketch m_Sketch;
+	private long m_WindowCapacity;
+	private final LinkedHashMap<Long, Integer> m_WindowEntrySizes = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<Long, Integer> m_WindowGhostSizes = new LinkedHashMap<>();
+	private long m_WindowGhostSize;
+	private long m_WindowSize;
+	
+	
+	/**
+	 * Initialize new ScanResistantAdmissionPolicy instance.
+	 * @param capacity Total capacity in bytes, including window.
+	 * @param windowCapacity Initial and minimum capacity of window in bytes.
+	 * @param maxEntryCount Maximum number of entries which access frequency should be estimated.
+	 */
+	public ScanResistantAdmissionPolicy(long capacity, long windowCapacity, int maxEntryCount)
+	{
+		capacity = Math.max(0, capacity);
+		m_MaxCapacity = capacity;
+		m_MaxMinWindowCapacity = Math.min(Math.max(0, windowCapacity), capacity);
+		m_Capacity = capacity;
+		m_MinWindowCapacity = m_MaxMinWindowCapacity;
+		m_WindowCapacity = m_MaxMinWindowCapacity;
+		m_MainCapacity = (capacity - m_MaxMinWindowCapacity);
+		m_Sketch = new FrequencySketch(maxEntryCount);
+	}
+	
+	
+	/**
+	 * Record access to entry.
+	 * @param fingerprint Fingerprint of entry.
+	 * @return Location of entry: {@link #LOCATION_NONE}, {@link #LOCATION_WINDOW} or {@link #LOCATION_MAIN}.
+	 */
+	public int access(long fingerprint)
+	{
+		// check location
+		m_Sketch.increment(fingerprint);
+		int location = LOCATION_NONE;
+		Integer size = m_WindowEntrySizes.get(fingerprint);
+		if(size != null)
+			location = LOCATION_WINDOW;
+		else
+		{
+			size = m_MainEntrySizes.get(fingerprint);
+			if(size != null)
+				location = LOCATION_MAIN;
+		}
+		
+		// update simulated plain LRU cache, entry missed by plain LRU cache is added there even if it hits this policy
+		if(m_ReferenceEntrySizes.get(fingerprint) != null)
+			++m_ReferenceHitCount;
+		else if(size != null)
+			this.addReferenceEntry(fingerprint, size);
+		return location;
+	}
+	
+	
+	/**
+	 * Add or update entry, new entry is put into window.
+	 * @param fingerprint Fingerprint of entry.
+	 * @param size Size of entry in bytes.
+	 * @param admittedEntries List to receive fingerprints of entries moved from window to main region.
+	 * @param evictedEntries List to receive fingerprints of entries evicted from window or main region.
+	 * @return Location of entry after adding: {@link #LOCATION_NONE}, {@link #LOCATION_WINDOW} or {@link #LOCATION_MAIN}.
+	 */
+	public int add(long fingerprint, int size, List<Long> admittedEntries, List<Long> evictedEntries)
+	{
+		// update simulated plain LRU cache
+		this.addReferenceEntry(fingerprint, size);
+		
+		// update entry in main region directly
+		Integer oldSize = m_MainEntrySizes.get(fingerprint);
+		if(oldSize != null)
+		{
+			m_MainEntrySizes.put(fingerprint, size);
+			m_MainSize += (size - oldSize);
+			this.trimMainEntries(m_MainCapacity, evictedEntries);
+			return (m_MainEntrySizes.containsKey(fingerprint) ? LOCATION_MAIN : LOCATION_NONE);
+		}
+		
+		// adapt window to entry which was rejected by window or evicted from main region
+		oldSize = m_WindowEntrySizes.get(fingerprint);
+		if(oldSize == null)
+		{
+			long step = Math.max(1, m_Capacity / WINDOW_STEP_DIVISOR);
+			Integer ghostSize = m_WindowGhostSizes.remove(fingerprint);
+			if(ghostSize != null)
+			{
+				m_WindowGhostSize -= ghostSize;
+				this.setWindowCapacity(m_WindowCapacity + step, true, admittedEntries, evictedEntries);
+			}
+			else
+			{
+				ghostSize = m_MainGhostSizes.remove(fingerprint);
+				if(ghostSize != null)
+				{
+					m_MainGhostSize -= ghostSize;
+					this.setWindowCapacity(m_WindowCapacity - step, true, admittedEntries, evictedEntries);
+				}
+			}
+		}
+		
+		// put into window
+		m_WindowEntrySizes.put(fingerprint, size);
+		if(oldSize != null)
+			m_WindowSize -= oldSize;
+		else
+			++m_InsertionCount;
+		m_WindowSize += size;
+		this.evictWindowEntries(m_WindowCapacity, true, admittedEntries, evictedEntries);
+		if(m_WindowEntrySizes.containsKey(fingerprint))
+			return LOCATION_WINDOW;
+		return (m_MainEntrySizes.containsKey(fingerprint) ? LOCATION_MAIN : LOCATION_NONE);
+	}
+	
+	
+	// Add ghost entry, oldest ghost entries are removed to keep total size within capacity.
+	private long addGhostEntry(LinkedHashMap<Long, Integer> ghostSizes, long ghostSize, long fingerprint, int size)
+	{
+		Integer oldSize = ghostSizes.put(fingerprint, size);
+		if(oldSize != null)
+			ghostSize -= oldSize;
+		ghostSize += size;
+		Iterator<Integer> iterator = ghostSizes.values().iterator();
+		while(ghostSize > m_Capacity && iterator.hasNext())
+		{
+			ghostSize -= iterator.next();
+			iterator.remove();
+		}
+		return ghostSize;
+	}
+	
+	
+	// Add entry to simulated plain LRU cache.
+	private void addReferenceEntry(long fingerprint, int size)
+	{
+		Integer oldSize = m_ReferenceEntrySizes.put(fingerprint, size);
+		if(oldSize != null)
+			m_ReferenceSize -= oldSize;
+		m_ReferenceSize += size;
+		Iterator<Integer> iterator = m_ReferenceEntrySizes.values().iterator();
+		while(m_ReferenceSize > m_Capacity && iterator.hasNext())
+		{
+			m_ReferenceSize -= iterator.next();
+			iterator.remove();
+		}
+	}
+	
+	
+	/**
+	 * Remove all entries.
+	 */
+	public void clear()
+	{
+		m_WindowEntrySizes.clear();
+		m_WindowSize = 0;
+		m_WindowGhostSizes.clear();
+		m_WindowGhostSize = 0;
+		m_MainEntrySizes.clear();
+		m_MainSize = 0;
+		m_MainGhostSizes.clear();
+		m_MainGhostSize = 0;
+		m_ReferenceEntrySizes.clear();
+		m_ReferenceSize = 0;
+	}
+	
+	
+	/**
+	 * Collect fingerprints of entries in window and main region, most recently used first.
+	 * @param fingerprints List to receive fingerprints.
+	 * @param maxCount Maximum number of fingerprints to collect.
+	 */
+	public void collectRecentEntries(List<Long> fingerprints, int maxCount)
+	{
+		List<Long> windowEntries = new ArrayList<>(m_WindowEntrySizes.keySet());
+		for(int i = windowEntries.size() - 1 ; i >= 0 && maxCount > 0 ; --i, --maxCount)
+			fingerprints.add(windowEntries.get(i));
+		List<Long> mainEntries = new ArrayList<>(m_MainEntrySizes.keySet());
+		for(int i = mainEntries.size() - 1 ; i >= 0 && maxCount > 0 ; --i, --maxCount)
+			fingerprints.add(mainEntries.get(i));
+	}
+	
+	
+	/**
+	 * Check whether entry is in window or main region.
+	 * @param fingerprint Fingerprint of entry.
+	 * @return True if entry is in cache.
+	 */
+	public boolean contains(long fingerprint)
+	{
+		return (m_WindowEntrySizes.containsKey(fingerprint) || m_MainEntrySizes.containsKey(fingerprint));
+	}
+	
+	
+	// Evict entries from window, entries which are accessed more frequently than victim in main region are admitted.
+	private void evictWindowEntries(long capacity, boolean admit, List<Long> admittedEntries, List<Long> evictedEntries)
+	{
+		Iterator<Map.Entry<Long, Integer>> iterator = m_WindowEntrySizes.entrySet().iterator();
+		while(m_WindowSize > capacity && iterator.hasNext())
+		{
+			// remove from window
+			Map.Entry<Long, Integer> entry = iterator.next();
+			Long fingerprint = entry.getKey();
+			int size = entry.getValue();
+			m_WindowSize -= size;
+			iterator.remove();
+			if(!admit || size > m_MainCapacity)
+			{
+				++m_EvictionCount;
+				evictedEntries.add(fingerprint);
+				continue;
+			}
+			
+			// compete with least recently used entry in main region
+			if(m_MainSize + size > m_MainCapacity)
+			{
+				Iterator<Long> victimIterator = m_MainEntrySizes.keySet().iterator();
+				if(victimIterator.hasNext() && m_Sketch.frequency(fingerprint) <= m_Sketch.frequency(victimIterator.next()))
+				{
+					++m_RejectedCount;
+					++m_EvictionCount;
+					m_WindowGhostSize = this.addGhostEntry(m_WindowGhostSizes, m_WindowGhostSize, fingerprint, size);
+					evictedEntries.add(fingerprint);
+					continue;
+				}
+			}
+			
+			// admit
+			++m_AdmittedCount;
+			m_MainEntrySizes.put(fingerprint, size);
+			m_MainSize += size;
+			this.trimMainEntries(m_MainCapacity, evictedEntries);
+			admittedEntries.add(fingerprint);
+		}
+	}
+	
+	
+	/**
+	 * Get number of entries admitted from window into main region.
+	 * @return Number of admitted entries.
+	 */
+	public long getAdmittedCount()
+	{
+		return m_AdmittedCount;
+	}
+	
+	
+	/**
+	 * Get number of entries in window and main region.
+	 * @return Number of entries.
+	 */
+	public int getEntryCount()
+	{
+		return (m_WindowEntrySizes.size() + m_MainEntrySizes.size());
+	}
+	
+	
+	/**
+	 * Get number of evicted entries.
+	 * @return Number of evicted entries.
+	 */
+	public long getEvictionCount()
+	{
+		return m_EvictionCount;
+	}
+	
+	
+	/**
+	 * Get number of entries put into window.
+	 * @return Number of inserted entries.
+	 */
+	public long getInsertionCount()
+	{
+		return m_InsertionCount;
+	}
+	
+	
+	/**
+	 * Get capacity of main region, which changes when window is adapted to accesses.
+	 * @return Capacity in bytes.
+	 */
+	public long getMainCapacity()
+	{
+		return m_MainCapacity;
+	}
+	
+	
+	/**
+	 * Get number of accesses which would hit plain LRU cache with same capacity.
+	 * @return Number of hits.
+	 */
+	public long getReferenceHitCount()
+	{
+		return m_ReferenceHitCount;
+	}
+	
+	
+	/**
+	 * Get number of entries evicted from window without being admitted into main region.
+	 * @return Number of rejected entries.
+	 */
+	public long getRejectedCount()
+	{
+		return m_RejectedCount;
+	}
+	
+	
+	/**
+	 * Get total size of entries in window and main region.
+	 * @return Size in bytes.
+	 */
+	public long getSize()
+	{
+		return (m_WindowSize + m_MainSize);
+	}
+	
+	
+	/**
+	 * Get capacity of window, which changes when window is adapted to accesses.
+	 * @return Capacity in bytes.
+	 */
+	public long getWindowCapacity()
+	{
+		return m_WindowCapacity;
+	}
+	
+	
+	/**
+	 * Check whether there is still room in main region.
+	 * @return True if main region is not full.
+	 */
+	public boolean hasRoom()
+	{
+		return (m_MainSize < m_MainCapacity);
+	}
+	
+	
+	/**
+	 * Called when entry in main region is dropped by underlying cache without being evicted by this policy.
+	 * @param fingerprint Fingerprint of entry.
+	 */
+	public void onEntryDropped(long fingerprint)
+	{
+		Integer size = m_MainEntrySizes.remove(fingerprint);
+		if(size != null)
+		{
+			m_MainSize -= size;
+			++m_EvictionCount;
+		}
+	}
+	
+	
+	/**
+	 * Put entry into main region directly without passing through window, only if there is room for it.
+	 * @param fingerprint Fingerprint of entry.
+	 * @param size Size of entry in bytes.
+	 * @return True if entry is in main region.
+	 */
+	public boolean preload(long fingerprint, int size)
+	{
+		if(m_MainEntrySizes.containsKey(fingerprint))
+			return true;
+		if(m_MainSize + size > m_MainCapacity)
+			return false;
+		m_Sketch.increment(fingerprint);
+		m_MainEntrySizes.put(fingerprint, size);
+		m_MainSize += size;
+		++m_InsertionCount;
+		return true;
+	}
+	
+	
+	/**
+	 * Remove entry.
+	 * @param fingerprint Fingerprint of entry.
+	 * @return True if entry was in window or main region.
+	 */
+	public boolean remove(long fingerprint)
+	{
+		boolean isRemoved = false;
+		Integer size = m_WindowEntrySizes.remove(fingerprint);
+		if(size != null)
+		{
+			m_WindowSize -= size;
+			isRemoved = true;
+		}
+		size = m_MainEntrySizes.remove(fingerprint);
+		if(size != null)
+		{
+			m_MainSize -= size;
+			isRemoved = true;
+		}
+		size = m_WindowGhostSizes.remove(fingerprint);
+		if(size != null)
+			m_WindowGhostSize -= size;
+		size = m_MainGhostSizes.remove(fingerprint);
+		if(size != null)
+			m_MainGhostSize -= size;
+		size = m_ReferenceEntrySizes.remove(fingerprint);
+		if(size != null)
+			m_ReferenceSize -= size;
+		return isRemoved;
+	}
+	
+	
+	/**
+	 * Reset statistics, entries are kept.
+	 */
+	public void resetStatistics()
+	{
+		m_ReferenceHitCount = 0;
+		m_InsertionCount = 0;
+		m_EvictionCount = 0;
+		m_AdmittedCount = 0;
+		m_RejectedCount = 0;
+	}
+	
+	
+	/**
+	 * Change total capacity, window and main region are shrunk proportionally.
+	 * @param capacity Total capacity in bytes, which will be limited by initial capacity.
+	 * @param evictedEntries List to receive fingerprints of evicted entries.
+	 * @return Capacity of main region in bytes.
+	 */
+	public long setCapacity(long capacity, List<Long> evictedEntries)
+	{
+		capacity = Math.min(Math.max(0, capacity), m_MaxCapacity);
+		long windowCapacity = (m_Capacity > 0 ? (long)((double)m_WindowCapacity * capacity / m_Capacity) : 0);
+		m_Capacity = capacity;
+		m_MinWindowCapacity = (m_MaxCapacity > 0 ? (long)((double)m_MaxMinWindowCapacity * capacity / m_MaxCapacity) : 0);
+		this.setWindowCapacity(windowCapacity, false, null, evictedEntries);
+		return m_MainCapacity;
+	}
+	
+	
+	// Change capacity of window within its limits, main region takes the rest of total capacity.
+	private void setWindowCapacity(long capacity, boolean admit, List<Long> admittedEntries, List<Long> evictedEntries)
+	{
+		long maxCapacity = Math.max(m_MinWindowCapacity, m_Capacity - m_Capacity / MIN_MAIN_CAPACITY_DIVISOR);
+		m_WindowCapacity = Math.min(Math.max(m_MinWindowCapacity, capacity), maxCapacity);
+		m_MainCapacity = (m_Capacity - m_WindowCapacity);
+		this.trimMainEntries(m_MainCapacity, evictedEntries);
+		this.evictWindowEntries(m_WindowCapacity, admit, admittedEntries, evictedEntries);
+	}
+	
+	
+	// Remove least recently used entries from main region.
+	private void trimMainEntries(long capacity, List<Long> evictedEntries)
+	{
+		Iterator<Map.Entry<Long, Integer>> iterator = m_MainEntrySizes.entrySet().iterator();
+		while(m_MainSize > capacity && iterator.hasNext())
+		{
+			Map.Entry<Long, Integer> entry = iterator.next();
+			m_MainSize -= entry.getValue();
+			iterator.remove();
+			++m_EvictionCount;
+			m_MainGhostSize = this.addGhostEntry(m_MainGhostSizes, m_MainGhostSize, entry.getKey(), entry.getValue());
+			evictedEntries.add(entry.getKey());
+		}
+	}
+}
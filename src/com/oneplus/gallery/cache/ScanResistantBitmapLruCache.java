@@ -0,0 +1,479 @@
+package com.oneplus.gallery.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import com.oneplus.base.Log;
+import com.oneplus.base.Ref;
+
+/**
+ * {@link CodecBitmapLruCache} which puts new bitmaps into small LRU window first, bitmaps evicted from window are admitted into memory tier only if they are accessed more frequently than least recently used bitmap in memory tier.
+ * <p>
+ * Admission is decided by {@link ScanResistantAdmissionPolicy} with estimated access frequency, so bitmaps which are accessed only once while scanning (e.g. flinging through large album) will not displace frequently accessed bitmaps.
+ * Window may grow at the expense of memory tier when recently rejected bitmaps are requested again, memory tier follows capacity of main region of the policy.
+ * All bitmaps are written to disk tier (if there is one) no matter whether they are admitted into memory tier or not. Hit rate of memory tier is compared with plain LRU cache with same capacity.
+ * </p>
+ */
+final class ScanResistantBitmapLruCache extends CodecBitmapLruCache<ImageCacheKey>
+{
+	// Constants.
+	private static final String TAG = "ScanResistantBitmapLruCache";
+	
+	
+	// Fields.
+	private long m_HitCount;
+	private final HashMap<Long, ImageCacheKey> m_Keys = new HashMap<>();
+	private final Object m_Lock = new Object();
+	private long m_MainCapacity;
+	private long m_MissCount;
+	private final ScanResistantAdmissionPolicy m_Policy;
+	private final HashMap<Long, Bitmap> m_WindowBitmaps = new HashMap<>();
+	
+	
+	/**
+	 * Initialize new ScanResistantBitmapLruCache instance.
+	 * @param context Context.
+	 * @param name Cache name.
+	 * @param config Bitmap configuration.
+	 * @param memoryCapacity Capacity of memory tier in bytes, including window.
+	 * @param windowCapacity Capacity of window in bytes.
+	 * @param diskCapacity Capacity of disk tier in bytes.
+	 * @param codec Codec of disk tier.
+	 * @param maxEntryCount Maximum number of entries which access frequency should be estimated.
+	 */
+	public ScanResistantBitmapLruCache(Context context, String name, Bitmap.Config config, long memoryCapacity, long windowCapacity, long diskCapacity, BitmapDiskCodec codec, int maxEntryCount)
+	{
+		super(context, name, config, Math.max(0, memoryCapacity - windowCapacity), diskCapacity, codec);
+		m_Policy = new ScanResistantAdmissionPolicy(memoryCapacity, windowCapacity, maxEntryCount);
+		m_MainCapacity = m_Policy.getMainCapacity();
+	}
+	
+	
+	// Add bitmap.
+	@Override
+	public boolean add(ImageCacheKey key, Bitmap bitmap)
+	{
+		// check parameter
+		if(key == null || bitmap == null)
+			return false;
+		
+		// write to disk tier
+		this.writeToDisk(key, bitmap);
+		
+		// put into memory tier
+		this.addToMemory(key, bitmap);
+		return true;
+	}
+	
+	
+	// Put bitmap into window, or update bitmap in memory tier.
+	private void addToMemory(ImageCacheKey key, Bitmap bitmap)
+	{
+		// put into window
+		long fingerprint = key.getFingerprint();
+		List<Long> admittedFingerprints = new ArrayList<>();
+		List<ImageCacheKey> admittedKeys;
+		List<Bitmap> admittedBitmaps;
+		long mainCapacity = -1;
+		synchronized(m_Lock)
+		{
+			List<Long> evictedFingerprints = new ArrayList<>();
+			m_Keys.put(fingerprint, key);
+			m_WindowBitmaps.put(fingerprint, bitmap);
+			int location = m_Policy.add(fingerprint, bitmap.getByteCount(), admittedFingerprints, evictedFingerprints);
+			this.onEntriesEvicted(evictedFingerprints);
+			if(location == ScanResistantAdmissionPolicy.LOCATION_MAIN && !admittedFingerprints.contains(fingerprint))
+				admittedFingerprints.add(fingerprint);
+			else if(location == ScanResistantAdmissionPolicy.LOCATION_NONE)
+				this.onEntryEvicted(fingerprint);
+			
+			// move admitted bitmaps out of window
+			int count = admittedFingerprints.size();
+			admittedKeys = new ArrayList<>(count);
+			admittedBitmaps = new ArrayList<>(count);
+			for(int i = 0 ; i < count ; ++i)
+			{
+				Long admittedFingerprint = admittedFingerprints.get(i);
+				Bitmap admittedBitmap = m_WindowBitmaps.remove(admittedFingerprint);
+				ImageCacheKey admittedKey = m_Keys.get(admittedFingerprint);
+				if(admittedBitmap == null || admittedKey == null)
+					continue;
+				admittedKeys.add(admittedKey);
+				admittedBitmaps.add(admittedBitmap);
+			}
+			
+			// check whether window is adapted
+			if(m_MainCapacity != m_Policy.getMainCapacity())
+			{
+				m_MainCapacity = m_Policy.getMainCapacity();
+				mainCapacity = m_MainCapacity;
+			}
+		}
+		
+		// follow capacity of main region
+		if(mainCapacity >= 0)
+			super.trimToCapacity(mainCapacity);
+		
+		// add admitted entries to memory tier
+		for(int i = 0, count = admittedKeys.size() ; i < count ; ++i)
+			super.add(admittedKeys.get(i), admittedBitmaps.get(i));
+	}
+	
+	
+	// Clear cache.
+	@Override
+	public void clear()
+	{
+		synchronized(m_Lock)
+		{
+			m_Policy.clear();
+			m_WindowBitmaps.clear();
+			m_Keys.clear();
+		}
+		super.clear();
+	}
+	
+	
+	// Close cache.
+	@Override
+	public void close()
+	{
+		synchronized(m_Lock)
+		{
+			Log.v(TAG, "close() - Hit rate : ", this.getHitRate(), ", plain LRU : ", this.getReferenceHitRate(), ", admitted : ", m_Policy.getAdmittedCount(), ", rejected : ", m_Policy.getRejectedCount());
+			m_Policy.clear();
+			m_WindowBitmaps.clear();
+			m_Keys.clear();
+		}
+		super.close();
+	}
+	
+	
+	// Collect keys of bitmaps in window and memory tier.
+	@Override
+	public void collectMemoryKeys(List<ImageCacheKey> keys)
+	{
+		this.collectRecentKeys(keys, Integer.MAX_VALUE);
+	}
+	
+	
+	/**
+	 * Collect keys of bitmaps in memory tier, most recently used first.
+	 * @param keys List to receive keys.
+	 * @param maxCount Maximum number of keys to collect.
+	 */
+	public void collectRecentKeys(List<ImageCacheKey> keys, int maxCount)
+	{
+		synchronized(m_Lock)
+		{
+			List<Long> fingerprints = new ArrayList<>();
+			m_Policy.collectRecentEntries(fingerprints, maxCount);
+			for(int i = 0, count = fingerprints.size() ; i < count ; ++i)
+			{
+				ImageCacheKey key = m_Keys.get(fingerprints.get(i));
+				if(key != null)
+					keys.add(key);
+			}
+		}
+	}
+	
+	
+	// Get bitmap.
+	@Override
+	public Bitmap get(ImageCacheKey key, Bitmap defaultValue, long timeout, Bitmap reusableBitmap)
+	{
+		// record access
+		if(key == null)
+			return defaultValue;
+		long fingerprint = key.getFingerprint();
+		int location;
+		synchronized(m_Lock)
+		{
+			location = m_Policy.access(fingerprint);
+			if(location == ScanResistantAdmissionPolicy.LOCATION_WINDOW)
+			{
+				Bitmap bitmap = this.getWindowBitmap(key);
+				if(bitmap != null)
+				{
+					++m_HitCount;
+					return bitmap;
+				}
+			}
+		}
+		
+		// get from memory tier, hit is counted only when bitmap is actually returned because memory tier may drop bitmap by itself
+		Bitmap bitmap = (location == ScanResistantAdmissionPolicy.LOCATION_MAIN ? super.get(key, null, 0, null) : null);
+		synchronized(m_Lock)
+		{
+			if(bitmap != null)
+				++m_HitCount;
+			else
+			{
+				++m_MissCount;
+				if(location == ScanResistantAdmissionPolicy.LOCATION_MAIN)
+				{
+					m_Policy.onEntryDropped(fingerprint);
+					if(!m_Policy.contains(fingerprint))
+						m_Keys.remove(fingerprint);
+				}
+			}
+		}
+		if(bitmap != null)
+			return bitmap;
+		
+		// get from disk tier
+		if(timeout == 0)
+			return defaultValue;
+		bitmap = this.readFromDisk(key, reusableBitmap);
+		if(bitmap == null)
+			return defaultValue;
+		this.onDiskHit(key, bitmap);
+		return bitmap;
+	}
+	
+	
+	// Get size of bitmaps in window and memory tier.
+	@Override
+	public long getMemoryUsage()
+	{
+		synchronized(m_Lock)
+		{
+			return m_Policy.getSize();
+		}
+	}
+	
+	
+	// Get statistics of window and memory tier.
+	@Override
+	protected CacheStatistics.TierStatistics getMemoryStatistics()
+	{
+		synchronized(m_Lock)
+		{
+			return new CacheStatistics.TierStatistics("Memory", m_Policy.getEntryCount(), m_Policy.getSize(), m_HitCount, m_MissCount, m_Policy.getInsertionCount(), m_Policy.getEvictionCount(), 0, 0, 0, 0, 0, 0);
+		}
+	}
+	
+	
+	/**
+	 * Get hit rate of memory tier.
+	 * @return Hit rate, from 0 to 1.
+	 */
+	public double getHitRate()
+	{
+		synchronized(m_Lock)
+		{
+			long count = (m_HitCount + m_MissCount);
+			return (count > 0 ? ((double)m_HitCount / count) : 0);
+		}
+	}
+	
+	
+	/**
+	 * Get hit rate which plain LRU cache with same capacity would have for same accesses.
+	 * @return Hit rate, from 0 to 1.
+	 */
+	public double getReferenceHitRate()
+	{
+		synchronized(m_Lock)
+		{
+			long count = (m_HitCount + m_MissCount);
+			return (count > 0 ? ((double)m_Policy.getReferenceHitCount() / count) : 0);
+		}
+	}
+	
+	
+	// Get bitmap in window, fingerprint collision is checked by key (must be called in lock).
+	private Bitmap getWindowBitmap(ImageCacheKey key)
+	{
+		if(key == null)
+			return null;
+		long fingerprint = key.getFingerprint();
+		if(!key.equals(m_Keys.get(fingerprint)))
+			return null;
+		return m_WindowBitmaps.get(fingerprint);
+	}
+	
+	
+	// Called when bitmap is read from disk tier.
+	@Override
+	protected void onDiskHit(ImageCacheKey key, Bitmap bitmap)
+	{
+		this.addToMemory(key, bitmap);
+	}
+	
+	
+	// Called when entries are evicted by policy (must be called in lock).
+	private void onEntriesEvicted(List<Long> fingerprints)
+	{
+		for(int i = 0, count = fingerprints.size() ; i < count ; ++i)
+			this.onEntryEvicted(fingerprints.get(i));
+	}
+	
+	
+	// Called when entry is evicted by policy (must be called in lock).
+	private void onEntryEvicted(long fingerprint)
+	{
+		m_WindowBitmaps.remove(fingerprint);
+		if(!m_Policy.contains(fingerprint))
+			m_Keys.remove(fingerprint);
+	}
+	
+	
+	// Peek bitmap.
+	@Override
+	public Bitmap peek(ImageCacheKey key)
+	{
+		synchronized(m_Lock)
+		{
+			Bitmap bitmap = this.getWindowBitmap(key);
+			if(bitmap != null)
+				return bitmap;
+		}
+		return super.peek(key);
+	}
+	
+	
+	// Remove bitmap.
+	@Override
+	public boolean remove(ImageCacheKey key)
+	{
+		boolean isRemoved = false;
+		if(key != null)
+		{
+			long fingerprint = key.getFingerprint();
+			synchronized(m_Lock)
+			{
+				isRemoved = (m_WindowBitmaps.remove(fingerprint) != null);
+				m_Policy.remove(fingerprint);
+				m_Keys.remove(fingerprint);
+			}
+		}
+		return (super.remove(key) | isRemoved);
+	}
+	
+	
+	// Remove bitmaps.
+	@Override
+	public void remove(final RemovingPredication<ImageCacheKey> predication)
+	{
+		// remove from window
+		Ref<Boolean> isCancelled = new Ref<>(false);
+		synchronized(m_Lock)
+		{
+			Iterator<Map.Entry<Long, Bitmap>> iterator = m_WindowBitmaps.entrySet().iterator();
+			while(iterator.hasNext())
+			{
+				Long fingerprint = iterator.next().getKey();
+				ImageCacheKey key = m_Keys.get(fingerprint);
+				if(key != null && predication.canRemove(key, isCancelled))
+				{
+					iterator.remove();
+					m_Policy.remove(fingerprint);
+					m_Keys.remove(fingerprint);
+				}
+				if(isCancelled.get())
+					return;
+			}
+		}
+		
+		// remove from memory and disk tiers
+		super.remove(new RemovingPredication<ImageCacheKey>()
+		{
+			@Override
+			public boolean canRemove(ImageCacheKey key, Ref<Boolean> isCancelled)
+			{
+				if(!predication.canRemove(key, isCancelled))
+					return false;
+				synchronized(m_Lock)
+				{
+					long fingerprint = key.getFingerprint();
+					if(!m_WindowBitmaps.containsKey(fingerprint))
+					{
+						m_Policy.remove(fingerprint);
+						m_Keys.remove(fingerprint);
+					}
+				}
+				return true;
+			}
+		});
+	}
+	
+	
+	// Reset statistics.
+	@Override
+	public void resetStatistics()
+	{
+		synchronized(m_Lock)
+		{
+			m_HitCount = 0;
+			m_MissCount = 0;
+			m_Policy.resetStatistics();
+		}
+		super.resetStatistics();
+	}
+	
+	
+	/**
+	 * Load bitmap from packed store or disk tier into memory tier directly without passing through window, only if there is still room in memory tier.
+	 * @param key Key.
+	 * @param packedStore Packed store to load bitmap from first, or Null to load from disk tier only.
+	 * @return False if there is no room in memory tier, True otherwise.
+	 */
+	public boolean warmUp(ImageCacheKey key, PackedBitmapStore packedStore)
+	{
+		// check state
+		long fingerprint = key.getFingerprint();
+		synchronized(m_Lock)
+		{
+			if(!m_Policy.hasRoom())
+				return false;
+			if(m_Policy.contains(fingerprint))
+				return true;
+		}
+		
+		// load bitmap
+		Bitmap bitmap = (packedStore != null ? packedStore.get(key) : null);
+		if(bitmap == null)
+			bitmap = this.readFromDisk(key, null);
+		if(bitmap == null)
+			return true;
+		
+		// put into memory tier
+		synchronized(m_Lock)
+		{
+			if(m_Policy.contains(fingerprint))
+				return true;
+			if(!m_Policy.preload(fingerprint, bitmap.getByteCount()))
+				return false;
+			m_Keys.put(fingerprint, key);
+		}
+		if(super.peek(key) != bitmap)
+			super.add(key, bitmap);
+		return true;
+	}
+	
+	
+	// Trim memory tier to given capacity (including window), window and memory tier are shrunk proportionally and kept within capacity until next call.
+	@Override
+	public void trimToCapacity(long capacity)
+	{
+		// update capacities
+		long mainCapacity;
+		synchronized(m_Lock)
+		{
+			List<Long> evictedFingerprints = new ArrayList<>();
+			mainCapacity = m_Policy.setCapacity(capacity, evictedFingerprints);
+			m_MainCapacity = mainCapacity;
+			this.onEntriesEvicted(evictedFingerprints);
+		}
+		
+		// trim memory tier
+		super.trimToCapacity(mainCapacity);
+	}
+}
@@ -0,0 +1,156 @@
+package com.oneplus.gallery.media;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of byte arrays with limited total size.
+ * <p>
+ * {@link #obtain(int)} will block calling thread until there are enough free space in pool, so it can be used to apply backpressure to producer.
+ * This class is thread-safe.
+ * </p>
+ */
+final class ByteArrayPool
+{
+	// Constants.
+	private static final int MIN_ARRAY_SIZE = (64 << 10);
+	
+	
+	// Fields.
+	private long m_Capacity;
+	private final List<byte[]> m_FreeArrays = new ArrayList<>();
+	private long m_FreeSize;
+	private final long m_MaxCapacity;
+	private long m_MaxFreeSize;
+	private final long m_MaxFreeSizeLimit;
+	private long m_ObtainedSize;
+	
+	
+	/**
+	 * Initialize new ByteArrayPool instance.
+	 * @param capacity Maximum total size of obtained arrays in bytes.
+	 * @param maxFreeSize Maximum total size of free arrays kept in pool in bytes.
+	 */
+	public ByteArrayPool(long capacity, long maxFreeSize)
+	{
+		if(capacity <= 0)
+			throw new IllegalArgumentException("Invalid capacity : " + capacity);
+		m_Capacity = capacity;
+		m_MaxCapacity = capacity;
+		m_MaxFreeSizeLimit = Math.min(capacity, Math.max(0, maxFreeSize));
+		m_MaxFreeSize = m_MaxFreeSizeLimit;
+	}
+	
+	
+	/**
+	 * Get capacity, which is changed by {@link #setCapacity(long)}.
+	 * @return Maximum total size of obtained arrays in bytes.
+	 */
+	public synchronized long getCapacity()
+	{
+		return m_Capacity;
+	}
+	
+	
+	/**
+	 * Get total size of obtained arrays and free arrays kept in pool.
+	 * @return Size in bytes.
+	 */
+	public synchronized long getSize()
+	{
+		return (m_ObtainedSize + m_FreeSize);
+	}
+	
+	
+	/**
+	 * Obtain byte array, calling thread will be blocked until there are enough free space in pool.
+	 * @param size Minimum size of array.
+	 * @return Byte array which size is greater than or equal to given size.
+	 * @throws InterruptedException If calling thread is interrupted while waiting.
+	 */
+	public byte[] obtain(int size) throws InterruptedException
+	{
+		// check parameter
+		if(size < 0)
+			throw new IllegalArgumentException("Invalid size : " + size);
+		
+		// obtain
+		int arraySize = Math.max(MIN_ARRAY_SIZE, ((size + MIN_ARRAY_SIZE - 1) / MIN_ARRAY_SIZE) * MIN_ARRAY_SIZE);
+		synchronized(this)
+		{
+			while(true)
+			{
+				// use free array
+				for(int i = m_FreeArrays.size() - 1 ; i >= 0 ; --i)
+				{
+					byte[] array = m_FreeArrays.get(i);
+					if(array.length >= size && array.length <= (size << 1) + MIN_ARRAY_SIZE)
+					{
+						m_FreeArrays.remove(i);
+						m_FreeSize -= array.length;
+						m_ObtainedSize += array.length;
+						return array;
+					}
+				}
+				
+				// wait for free space, array larger than capacity can be obtained only when there is no other obtained array
+				if(m_ObtainedSize == 0 || m_ObtainedSize + arraySize <= m_Capacity)
+					break;
+				this.wait();
+			}
+			
+			// drop free arrays to keep total size
+			while(!m_FreeArrays.isEmpty() && m_ObtainedSize + m_FreeSize + arraySize > m_Capacity)
+				m_FreeSize -= m_FreeArrays.remove(0).length;
+			m_ObtainedSize += arraySize;
+		}
+		try
+		{
+			return new byte[arraySize];
+		}
+		catch(OutOfMemoryError ex)
+		{
+			synchronized(this)
+			{
+				m_ObtainedSize -= arraySize;
+				this.notifyAll();
+			}
+			throw ex;
+		}
+	}
+	
+	
+	/**
+	 * Return byte array to pool.
+	 * @param array Byte array returned from {@link #obtain(int)}.
+	 */
+	public void release(byte[] array)
+	{
+		if(array == null)
+			return;
+		synchronized(this)
+		{
+			m_ObtainedSize -= array.length;
+			if(m_FreeSize + array.length <= m_MaxFreeSize)
+			{
+				m_FreeArrays.add(array);
+				m_FreeSize += array.length;
+			}
+			this.notifyAll();
+		}
+	}
+	
+	
+	/**
+	 * Change capacity, free arrays are dropped immediately if they exceed new capacity. Obtained arrays are kept, but new arrays can be obtained only after total size is within new capacity.
+	 * @param capacity Capacity in bytes, which will be limited by initial capacity.
+	 */
+	public synchronized void setCapacity(long capacity)
+	{
+		m_Capacity = Math.min(Math.max(MIN_ARRAY_SIZE, capacity), m_MaxCapacity);
+		m_MaxFreeSize = Math.min(m_Capacity, m_MaxFreeSizeLimit);
+		while(!m_FreeArrays.isEmpty() && (m_FreeSize > m_MaxFreeSize || m_ObtainedSize + m_FreeSize > m_Capacity))
+			m_FreeSize -= m_FreeArrays.remove(0).length;
+		this.notifyAll();
+	}
+}
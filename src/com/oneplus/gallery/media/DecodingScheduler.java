@@ -0,0 +1,793 @@
+package com.oneplus.gallery.media;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scheduling core of one decoding channel.
+ * <p>
+ * Requests for the same key are coalesced into one task, tasks wait in {@link DecodingTaskQueue} by priority and run in executor one by one, and task is dropped when all requests attached to it are cancelled.
+ * Actual work is performed by {@link Decoder}. This class depends on Java runtime only, so scheduling can be benchmarked without Android framework.
+ * </p>
+ * <p>
+ * Tasks are pooled and reused. Generation of task is increased when recycling, so work which is still running for previous use of task can be detected by comparing generation.
+ * </p>
+ * @param <TKey> Type of key.
+ * @param <TRequest> Type of request.
+ * @param <TTask> Type of task.
+ * @param <TResult> Type of decoding result.
+ */
+final class DecodingScheduler<TKey, TRequest extends DecodingScheduler.Request<TTask>, TTask extends DecodingScheduler.Task<TKey, TRequest>, TResult> implements Runnable
+{
+	// Constants.
+	private static final long LOCK_CONTENTION_THRESHOLD_NANOS = 10000;
+	private static final int MAX_FREE_TASKS = 128;
+	
+	
+	/**
+	 * Decoder which performs work of tasks.
+	 * @param <TRequest> Type of request.
+	 * @param <TTask> Type of task.
+	 * @param <TResult> Type of decoding result.
+	 */
+	interface Decoder<TRequest, TTask, TResult>
+	{
+		/**
+		 * Create new task when there is no free task to reuse.
+		 * @return Task.
+		 */
+		TTask createTask();
+		
+		/**
+		 * Run task in executor thread, {@link DecodingScheduler#complete(Task, int, Object)} or {@link DecodingScheduler#drop(Task, int)} should be called when work finished.
+		 * @param task Task to run.
+		 */
+		void decode(TTask task);
+		
+		/**
+		 * Deliver result to request.
+		 * @param request Request.
+		 * @param task Completed task.
+		 * @param result Result, or Null if decoding failed.
+		 */
+		void deliver(TRequest request, TTask task, TResult result);
+		
+		/**
+		 * Called when running task is cancelled, work started with given cancellation token should be stopped here.
+		 * @param task Cancelled task.
+		 * @param cancellationToken Token set by {@link DecodingScheduler#setCancellationToken(Task, int, Object)}.
+		 */
+		void onRunningTaskCancelled(TTask task, Object cancellationToken);
+		
+		/**
+		 * Called when task is completed before delivering result to requests.
+		 * @param task Completed task.
+		 * @param result Result, or Null if decoding failed.
+		 */
+		void onTaskCompleted(TTask task, TResult result);
+		
+		/**
+		 * Called when new task is created for request, this method is called with lock of scheduler held.
+		 * @param task New task.
+		 * @param request First request attached to task.
+		 */
+		void onTaskCreated(TTask task, TRequest request);
+		
+		/**
+		 * Called when all references to task are released, state of task held by decoder should be reset here. This method is called with lock of scheduler held.
+		 * @param task Task to be recycled.
+		 */
+		void onTaskReleased(TTask task);
+	}
+	
+	
+	/**
+	 * Call-back to calculate new priority of request.
+	 * @param <TRequest> Type of request.
+	 */
+	interface PriorityCalculator<TRequest>
+	{
+		/**
+		 * Calculate new priority of request whose task is still waiting in queue, this method is called with lock of scheduler held so it should return as soon as possible.
+		 * @param request Request.
+		 * @param priority Current priority.
+		 * @return New priority, smaller value means higher priority.
+		 */
+		int calculatePriority(TRequest request, int priority);
+	}
+	
+	
+	/**
+	 * Request which can be attached to task.
+	 * @param <TTask> Type of task.
+	 */
+	interface Request<TTask>
+	{
+		/**
+		 * Change attached task atomically.
+		 * @param expectedTask Expected attached task.
+		 * @param task New task, or Null to detach.
+		 * @return True if attached task changed.
+		 */
+		boolean compareAndSetTask(TTask expectedTask, TTask task);
+		
+		/**
+		 * Get priority of request.
+		 * @return Priority, smaller value means higher priority.
+		 */
+		int getPriority();
+		
+		/**
+		 * Get attached task.
+		 * @return Task, or Null if request is not attached.
+		 */
+		TTask getTask();
+		
+		/**
+		 * Set priority of request.
+		 * @param priority New priority.
+		 */
+		void setPriority(int priority);
+	}
+	
+	
+	/**
+	 * Base class of task, which is shared by all requests for the same key.
+	 * @param <TKey> Type of key.
+	 * @param <TRequest> Type of request.
+	 */
+	static abstract class Task<TKey, TRequest> extends DecodingTaskQueue.Entry
+	{
+		// Fields.
+		volatile Object cancellationToken;
+		volatile int flags;
+		volatile int generation;
+		boolean isCompleted;
+		volatile boolean isRunning;
+		volatile TKey key;
+		final AtomicInteger referenceCount = new AtomicInteger();
+		final List<TRequest> requests = new ArrayList<>();
+		
+		/**
+		 * Get flags combined from all attached requests.
+		 * @return Flags.
+		 */
+		public final int getFlags()
+		{
+			return this.flags;
+		}
+		
+		/**
+		 * Get generation of task, which is increased when task is recycled.
+		 * @return Generation.
+		 */
+		public final int getGeneration()
+		{
+			return this.generation;
+		}
+		
+		/**
+		 * Get key of task.
+		 * @return Key, or Null if task is recycled.
+		 */
+		public final TKey getKey()
+		{
+			return this.key;
+		}
+		
+		/**
+		 * Check whether all requests attached to task are cancelled or not.
+		 * @return True if task is cancelled.
+		 */
+		public final boolean isCancelled()
+		{
+			// only the reference held by scheduler is left
+			return (this.referenceCount.get() <= 1);
+		}
+	}
+	
+	
+	// Fields.
+	private final HashMap<TKey, TTask> m_ActiveTasks = new HashMap<>();
+	private final AtomicLong m_CancelledRequestCount = new AtomicLong();
+	private long m_CoalescedRequestCount;
+	private final AtomicLong m_ContendedLockCount = new AtomicLong();
+	private long m_CreatedTaskCount;
+	private final Decoder<TRequest, TTask, TResult> m_Decoder;
+	private int m_DeferredRunCount;
+	private final AtomicLong m_DroppedTaskCount = new AtomicLong();
+	private final Executor m_Executor;
+	private final Queue<TTask> m_FreeTasks = new ArrayDeque<>(MAX_FREE_TASKS);
+	private final int m_IntersectedFlags;
+	private final Object m_Lock = new Object();
+	private final AtomicLong m_LockCount = new AtomicLong();
+	private final AtomicLong m_LockWaitingTime = new AtomicLong();
+	private int m_MaxQueueSize;
+	private volatile int m_MaxRunnablePriority = Integer.MAX_VALUE;
+	private final DecodingTaskQueue<TTask> m_Queue = new DecodingTaskQueue<>();
+	private long m_RequestCount;
+	private long m_ReusedTaskCount;
+	
+	
+	/**
+	 * Initialize new DecodingScheduler instance.
+	 * @param decoder Decoder to perform work of tasks.
+	 * @param executor Executor to run tasks.
+	 * @param intersectedFlags Flags which are kept by task only when all attached requests have them, other flags of requests are combined.
+	 */
+	public DecodingScheduler(Decoder<TRequest, TTask, TResult> decoder, Executor executor, int intersectedFlags)
+	{
+		if(decoder == null)
+			throw new IllegalArgumentException("No decoder");
+		if(executor == null)
+			throw new IllegalArgumentException("No executor");
+		m_Decoder = decoder;
+		m_Executor = executor;
+		m_IntersectedFlags = intersectedFlags;
+	}
+	
+	
+	/**
+	 * Cancel request, task is dropped when all requests attached to it are cancelled.
+	 * <p>
+	 * Task in queue will be dropped when polling, running task is cancelled only if it has cancellation token.
+	 * </p>
+	 * @param request Request to cancel.
+	 */
+	public void cancel(TRequest request)
+	{
+		// detach from task, other requests attached to the same task are not affected
+		TTask task;
+		do
+		{
+			task = request.getTask();
+			if(task == null)
+				return;
+		}
+		while(!request.compareAndSetTask(task, null));
+		m_CancelledRequestCount.incrementAndGet();
+		
+		// cancel running task if the last request is being cancelled
+		Object cancellationToken = null;
+		if(task.isRunning)
+		{
+			synchronized(m_Lock)
+			{
+				// Reference held by cancelling request and scheduler, task will be dropped by itself if there is no cancellation token yet
+				if(!task.isCompleted && task.cancellationToken != null && task.referenceCount.get() <= 2)
+				{
+					cancellationToken = task.cancellationToken;
+					task.isCompleted = true;
+					m_DroppedTaskCount.incrementAndGet();
+					this.removeActiveTask(task);
+				}
+			}
+		}
+		if(cancellationToken != null)
+		{
+			m_Decoder.onRunningTaskCancelled(task, cancellationToken);
+			this.release(task);
+		}
+		this.release(task);
+	}
+	
+	
+	/**
+	 * Complete task and deliver result to all attached requests.
+	 * @param task Task to complete.
+	 * @param generation Generation of task when work started.
+	 * @param result Result, or Null if decoding failed.
+	 * @return True if task is completed, False if task has been completed, dropped or recycled already.
+	 */
+	public boolean complete(TTask task, int generation, TResult result)
+	{
+		// complete
+		synchronized(m_Lock)
+		{
+			if(task.generation != generation || task.isCompleted)
+				return false;
+			task.isCompleted = true;
+			this.removeActiveTask(task);
+		}
+		m_Decoder.onTaskCompleted(task, result);
+		
+		// No more request can be attached after removing from active tasks, so it is safe to access request list here
+		List<TRequest> requests = task.requests;
+		for(int i = 0, count = requests.size() ; i < count ; ++i)
+		{
+			TRequest request = requests.get(i);
+			if(request.compareAndSetTask(task, null))
+			{
+				m_Decoder.deliver(request, task, result);
+				this.release(task);
+			}
+		}
+		
+		// release reference held by scheduler
+		this.release(task);
+		return true;
+	}
+	
+	
+	/**
+	 * Drop task if all requests attached to it are cancelled.
+	 * @param task Task to drop.
+	 * @param generation Generation of task when work started.
+	 * @return True if task is dropped.
+	 */
+	public boolean drop(TTask task, int generation)
+	{
+		synchronized(m_Lock)
+		{
+			// check state, task may be attached by new request again
+			if(task.generation != generation || task.isCompleted || task.referenceCount.get() > 1)
+				return false;
+			
+			// remove from scheduler
+			task.isCompleted = true;
+			m_DroppedTaskCount.incrementAndGet();
+			m_Queue.remove(task);
+			this.removeActiveTask(task);
+		}
+		this.release(task);
+		return true;
+	}
+	
+	
+	/**
+	 * Collect requests which are still attached to task.
+	 * @param task Task.
+	 * @param generation Generation of task when work started.
+	 * @param result List to receive requests.
+	 * @return False if task has been completed, dropped or recycled already.
+	 */
+	public boolean getAttachedRequests(TTask task, int generation, List<TRequest> result)
+	{
+		synchronized(m_Lock)
+		{
+			if(task.generation != generation || task.isCompleted)
+				return false;
+			List<TRequest> requests = task.requests;
+			for(int i = 0, count = requests.size() ; i < count ; ++i)
+			{
+				TRequest request = requests.get(i);
+				if(request.getTask() == task)
+					result.add(request);
+			}
+			return true;
+		}
+	}
+	
+	
+	/**
+	 * Get number of cancelled requests.
+	 * @return Number of cancelled requests.
+	 */
+	public long getCancelledRequestCount()
+	{
+		return m_CancelledRequestCount.get();
+	}
+	
+	
+	/**
+	 * Get number of requests which are coalesced into existent tasks.
+	 * @return Number of coalesced requests.
+	 */
+	public long getCoalescedRequestCount()
+	{
+		synchronized(m_Lock)
+		{
+			return m_CoalescedRequestCount;
+		}
+	}
+	
+	
+	/**
+	 * Get number of lock acquisitions on request and scheduling paths which waited longer than 10 microseconds.
+	 * @return Number of contended lock acquisitions.
+	 */
+	public long getContendedLockCount()
+	{
+		return m_ContendedLockCount.get();
+	}
+	
+	
+	/**
+	 * Get number of created tasks.
+	 * @return Number of created tasks.
+	 */
+	public long getCreatedTaskCount()
+	{
+		synchronized(m_Lock)
+		{
+			return m_CreatedTaskCount;
+		}
+	}
+	
+	
+	/**
+	 * Get number of dropped tasks.
+	 * @return Number of dropped tasks.
+	 */
+	public long getDroppedTaskCount()
+	{
+		return m_DroppedTaskCount.get();
+	}
+	
+	
+	/**
+	 * Get number of free tasks in pool.
+	 * @return Number of free tasks.
+	 */
+	public int getFreeTaskCount()
+	{
+		synchronized(m_Lock)
+		{
+			return m_FreeTasks.size();
+		}
+	}
+	
+	
+	/**
+	 * Get number of lock acquisitions on request and scheduling paths.
+	 * @return Number of lock acquisitions.
+	 */
+	public long getLockCount()
+	{
+		return m_LockCount.get();
+	}
+	
+	
+	/**
+	 * Get total time spent on waiting contended lock.
+	 * @return Waiting time in microseconds.
+	 */
+	public long getLockWaitingTime()
+	{
+		return m_LockWaitingTime.get();
+	}
+	
+	
+	/**
+	 * Get maximum number of tasks waiting in queue.
+	 * @return Maximum queue size.
+	 */
+	public int getMaxQueueSize()
+	{
+		synchronized(m_Lock)
+		{
+			return m_MaxQueueSize;
+		}
+	}
+	
+	
+	/**
+	 * Get number of tasks waiting in queue.
+	 * @return Queue size.
+	 */
+	public int getQueueSize()
+	{
+		synchronized(m_Lock)
+		{
+			return m_Queue.size();
+		}
+	}
+	
+	
+	/**
+	 * Get number of scheduled requests.
+	 * @return Number of requests.
+	 */
+	public long getRequestCount()
+	{
+		synchronized(m_Lock)
+		{
+			return m_RequestCount;
+		}
+	}
+	
+	
+	/**
+	 * Get number of tasks reused from pool.
+	 * @return Number of reused tasks.
+	 */
+	public long getReusedTaskCount()
+	{
+		synchronized(m_Lock)
+		{
+			return m_ReusedTaskCount;
+		}
+	}
+	
+	
+	// Calculate priority of task according to all attached requests.
+	private int getTaskPriority(TTask task)
+	{
+		int priority = Integer.MAX_VALUE;
+		List<TRequest> requests = task.requests;
+		for(int i = requests.size() - 1 ; i >= 0 ; --i)
+		{
+			TRequest request = requests.get(i);
+			if(request.getTask() == task && request.getPriority() < priority)
+				priority = request.getPriority();
+		}
+		return priority;
+	}
+	
+	
+	// Obtain a task, this method should be called with lock held.
+	private TTask obtainTask()
+	{
+		TTask task = m_FreeTasks.poll();
+		if(task != null)
+		{
+			++m_ReusedTaskCount;
+			return task;
+		}
+		++m_CreatedTaskCount;
+		return m_Decoder.createTask();
+	}
+	
+	
+	// Called after acquiring lock on request and scheduling paths to measure lock contention.
+	private void onLockAcquired(long startTimeNanos)
+	{
+		long waitingTime = (System.nanoTime() - startTimeNanos);
+		m_LockCount.incrementAndGet();
+		if(waitingTime >= LOCK_CONTENTION_THRESHOLD_NANOS)
+		{
+			m_ContendedLockCount.incrementAndGet();
+			m_LockWaitingTime.addAndGet(waitingTime / 1000);
+		}
+	}
+	
+	
+	// Release reference to task, task will be recycled when all references are released.
+	private void release(TTask task)
+	{
+		if(task.referenceCount.decrementAndGet() != 0)
+			return;
+		synchronized(m_Lock)
+		{
+			++task.generation;
+			task.cancellationToken = null;
+			task.flags = 0;
+			task.requests.clear();
+			task.isCompleted = false;
+			task.isRunning = false;
+			task.key = null;
+			m_Decoder.onTaskReleased(task);
+			if(m_FreeTasks.size() < MAX_FREE_TASKS)
+				m_FreeTasks.add(task);
+		}
+	}
+	
+	
+	// Remove task from active tasks so no more request will be attached, this method should be called with lock held.
+	private void removeActiveTask(TTask task)
+	{
+		if(m_ActiveTasks.get(task.key) == task)
+			m_ActiveTasks.remove(task.key);
+	}
+	
+	
+	/**
+	 * Poll and run next task which is not cancelled, this method is called in executor thread.
+	 */
+	@Override
+	public void run()
+	{
+		while(true)
+		{
+			TTask task;
+			long lockTime = System.nanoTime();
+			synchronized(m_Lock)
+			{
+				this.onLockAcquired(lockTime);
+				
+				// defer low-priority task, it will be resumed after raising maximum runnable priority
+				task = m_Queue.peek();
+				if(task == null)
+					return;
+				if(!task.isCancelled() && task.getPriority() > m_MaxRunnablePriority)
+				{
+					++m_DeferredRunCount;
+					return;
+				}
+				m_Queue.poll();
+				if(!task.isCancelled())
+					task.isRunning = true;
+				else
+				{
+					// drop task which all requests are cancelled
+					task.isCompleted = true;
+					m_DroppedTaskCount.incrementAndGet();
+					this.removeActiveTask(task);
+				}
+			}
+			if(task.isRunning)
+			{
+				m_Decoder.decode(task);
+				return;
+			}
+			this.release(task);
+		}
+	}
+	
+	
+	/**
+	 * Attach request to task for the same key, new task will be created and queued if there is no such task.
+	 * @param key Key.
+	 * @param request Request to attach, with priority set already.
+	 * @param flags Flags of request.
+	 * @param urgent True to run new task before other tasks with the same priority.
+	 */
+	public void schedule(TKey key, TRequest request, int flags, boolean urgent)
+	{
+		boolean isNewTask;
+		int priority = request.getPriority();
+		long lockTime = System.nanoTime();
+		synchronized(m_Lock)
+		{
+			this.onLockAcquired(lockTime);
+			
+			// find task for the same key
+			TTask task = m_ActiveTasks.get(key);
+			isNewTask = (task == null);
+			++m_RequestCount;
+			if(isNewTask)
+			{
+				task = this.obtainTask();
+				task.key = key;
+				task.referenceCount.set(1);
+				m_ActiveTasks.put(key, task);
+				m_Decoder.onTaskCreated(task, request);
+			}
+			
+			// attach
+			if(isNewTask)
+				task.flags = flags;
+			else
+				task.flags = (((task.flags | flags) & ~m_IntersectedFlags) | (task.flags & flags & m_IntersectedFlags));
+			task.requests.add(request);
+			task.referenceCount.incrementAndGet();
+			request.compareAndSetTask(null, task);
+			
+			// enqueue or raise priority
+			if(isNewTask)
+			{
+				m_Queue.add(task, priority, urgent);
+				m_MaxQueueSize = Math.max(m_MaxQueueSize, m_Queue.size());
+			}
+			else
+			{
+				++m_CoalescedRequestCount;
+				if(priority < task.getPriority())
+					m_Queue.updatePriority(task, priority);
+			}
+		}
+		
+		// start running
+		if(isNewTask)
+			m_Executor.execute(this);
+	}
+	
+	
+	/**
+	 * Set token to cancel running work of task, running task can be cancelled only after setting token.
+	 * @param task Running task.
+	 * @param generation Generation of task when work started.
+	 * @param cancellationToken Token which will be passed to {@link Decoder#onRunningTaskCancelled(Task, Object)}.
+	 * @return True if token is set, False if task has been completed, dropped or recycled already.
+	 */
+	public boolean setCancellationToken(TTask task, int generation, Object cancellationToken)
+	{
+		synchronized(m_Lock)
+		{
+			if(task.generation != generation || task.isCompleted)
+				return false;
+			task.cancellationToken = cancellationToken;
+			return true;
+		}
+	}
+	
+	
+	/**
+	 * Set maximum priority of tasks which can be run, tasks with lower priority (larger value) are deferred until maximum priority is raised.
+	 * @param priority Maximum runnable priority.
+	 */
+	public void setMaxRunnablePriority(int priority)
+	{
+		// update priority
+		int runCount;
+		synchronized(m_Lock)
+		{
+			int prevPriority = m_MaxRunnablePriority;
+			m_MaxRunnablePriority = priority;
+			if(priority <= prevPriority)
+				return;
+			runCount = m_DeferredRunCount;
+			m_DeferredRunCount = 0;
+		}
+		
+		// resume deferred tasks
+		for(int i = runCount ; i > 0 ; --i)
+			m_Executor.execute(this);
+	}
+	
+	
+	/**
+	 * Re-calculate priorities of requests whose tasks are still waiting in queue of this scheduler, all requests are updated in one lock acquisition.
+	 * @param requests Requests, requests which are not attached to task in queue of this scheduler are skipped.
+	 * @param calculator Call-back to calculate new priority of each request.
+	 * @return Number of requests whose priority changed.
+	 */
+	public int setPriorities(Iterable<? extends TRequest> requests, PriorityCalculator<? super TRequest> calculator)
+	{
+		int count = 0;
+		long lockTime = System.nanoTime();
+		synchronized(m_Lock)
+		{
+			this.onLockAcquired(lockTime);
+			for(TRequest request : requests)
+			{
+				TTask task = request.getTask();
+				if(task == null || !m_Queue.contains(task))
+					continue;
+				int prevPriority = request.getPriority();
+				int priority = calculator.calculatePriority(request, prevPriority);
+				if(priority == prevPriority)
+					continue;
+				request.setPriority(priority);
+				if(m_Queue.updatePriority(task, this.getTaskPriority(task)))
+					++count;
+			}
+		}
+		return count;
+	}
+	
+	
+	/**
+	 * Change priority of request whose task is still waiting in queue.
+	 * @param request Request.
+	 * @param priority New priority, smaller value means higher priority.
+	 * @return True if priority of task is updated.
+	 */
+	public boolean setPriority(TRequest request, int priority)
+	{
+		long lockTime = System.nanoTime();
+		synchronized(m_Lock)
+		{
+			this.onLockAcquired(lockTime);
+			TTask task = request.getTask();
+			if(task == null || !m_Queue.contains(task))
+				return false;
+			request.setPriority(priority);
+			return m_Queue.updatePriority(task, this.getTaskPriority(task));
+		}
+	}
+	
+	
+	/**
+	 * Stop attaching new requests to task if it still has any of given flags, new requests for the same key will create new task.
+	 * @param task Task.
+	 * @param flags Flags to check.
+	 * @return True if task will not accept new requests.
+	 */
+	public boolean stopCoalescing(TTask task, int flags)
+	{
+		synchronized(m_Lock)
+		{
+			if((task.flags & flags) == 0)
+				return false;
+			this.removeActiveTask(task);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package com.oneplus.gallery.media;
+
+import java.util.Arrays;
+
+/**
+ * Priority queue of decoding tasks.
+ * <p>
+ * Task with smaller priority value will be polled first. Tasks with same priority will be polled in FIFO order, or LIFO order if they are added as urgent tasks.
+ * This class is not thread-safe.
+ * </p>
+ * @param <TTask> Type of task.
+ */
+final class DecodingTaskQueue<TTask extends DecodingTaskQueue.Entry>
+{
+	// Constants.
+	private static final int DEFAULT_CAPACITY = 64;
+	
+	
+	/**
+	 * Base class for task which can be put into {@link DecodingTaskQueue}.
+	 */
+	static abstract class Entry
+	{
+		// Fields.
+		int priority;
+		int queueIndex = -1;
+		long sequence;
+		
+		/**
+		 * Get current priority.
+		 * @return Priority.
+		 */
+		public final int getPriority()
+		{
+			return this.priority;
+		}
+		
+		/**
+		 * Check whether entry is in queue or not.
+		 * @return True if entry is in queue.
+		 */
+		public final boolean isQueued()
+		{
+			return (this.queueIndex >= 0);
+		}
+	}
+	
+	
+	// Fields.
+	private Entry[] m_Entries = new Entry[DEFAULT_CAPACITY];
+	private long m_NextSequence;
+	private int m_Size;
+	
+	
+	/**
+	 * Add task to queue.
+	 * @param task Task to add.
+	 * @param priority Priority, smaller value means higher priority.
+	 * @param urgent True to poll this task before other tasks with same priority.
+	 * @return True if task added successfully.
+	 */
+	public boolean add(TTask task, int priority, boolean urgent)
+	{
+		if(task.queueIndex >= 0)
+			return false;
+		if(m_Size == m_Entries.length)
+			m_Entries = Arrays.copyOf(m_Entries, (m_Size << 1));
+		++m_NextSequence;
+		task.priority = priority;
+		task.sequence = (urgent ? -m_NextSequence : m_NextSequence);
+		task.queueIndex = m_Size;
+		m_Entries[m_Size++] = task;
+		this.siftUp(task.queueIndex);
+		return true;
+	}
+	
+	
+	/**
+	 * Remove all tasks.
+	 */
+	public void clear()
+	{
+		for(int i = m_Size - 1 ; i >= 0 ; --i)
+		{
+			m_Entries[i].queueIndex = -1;
+			m_Entries[i] = null;
+		}
+		m_Size = 0;
+	}
+	
+	
+	// Compare priorities of two entries.
+	private static boolean isPrior(Entry lhs, Entry rhs)
+	{
+		if(lhs.priority != rhs.priority)
+			return (lhs.priority < rhs.priority);
+		return (lhs.sequence < rhs.sequence);
+	}
+	
+	
+	/**
+	 * Check whether queue contains given task or not.
+	 * @param task Task to check.
+	 * @return True if task is in this queue.
+	 */
+	public boolean contains(TTask task)
+	{
+		int index = task.queueIndex;
+		return (index >= 0 && index < m_Size && m_Entries[index] == task);
+	}
+	
+	
+	/**
+	 * Check whether queue is empty or not.
+	 * @return True if queue is empty.
+	 */
+	public boolean isEmpty()
+	{
+		return (m_Size == 0);
+	}
+	
+	
+	/**
+	 * Get task with highest priority without removing it.
+	 * @return Task, or Null if queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public TTask peek()
+	{
+		return (m_Size > 0 ? (TTask)m_Entries[0] : null);
+	}
+	
+	
+	/**
+	 * Remove and return task with highest priority.
+	 * @return Task, or Null if queue is empty.
+	 */
+	@SuppressWarnings("unchecked")
+	public TTask poll()
+	{
+		if(m_Size == 0)
+			return null;
+		Entry entry = m_Entries[0];
+		this.removeAt(0);
+		return (TTask)entry;
+	}
+	
+	
+	/**
+	 * Remove task from queue.
+	 * @param task Task to remove.
+	 * @return True if task removed from this queue.
+	 */
+	public boolean remove(TTask task)
+	{
+		if(!this.contains(task))
+			return false;
+		this.removeAt(task.queueIndex);
+		return true;
+	}
+	
+	
+	// Remove entry at given position.
+	private void removeAt(int index)
+	{
+		Entry entry = m_Entries[index];
+		Entry lastEntry = m_Entries[--m_Size];
+		m_Entries[m_Size] = null;
+		entry.queueIndex = -1;
+		if(lastEntry != entry)
+		{
+			m_Entries[index] = lastEntry;
+			lastEntry.queueIndex = index;
+			this.siftDown(index);
+			if(lastEntry.queueIndex == index)
+				this.siftUp(index);
+		}
+	}
+	
+	
+	// Move entry toward root.
+	private void siftUp(int index)
+	{
+		Entry entry = m_Entries[index];
+		while(index > 0)
+		{
+			int parentIndex = ((index - 1) >>> 1);
+			Entry parent = m_Entries[parentIndex];
+			if(!isPrior(entry, parent))
+				break;
+			m_Entries[index] = parent;
+			parent.queueIndex = index;
+			index = parentIndex;
+		}
+		m_Entries[index] = entry;
+		entry.queueIndex = index;
+	}
+	
+	
+	// Move entry toward leaves.
+	private void siftDown(int index)
+	{
+		Entry entry = m_Entries[index];
+		int half = (m_Size >>> 1);
+		while(index < half)
+		{
+			int childIndex = (index << 1) + 1;
+			Entry child = m_Entries[childIndex];
+			int rightIndex = childIndex + 1;
+			if(rightIndex < m_Size && isPrior(m_Entries[rightIndex], child))
+			{
+				childIndex = rightIndex;
+				child = m_Entries[childIndex];
+			}
+			if(!isPrior(child, entry))
+				break;
+			m_Entries[index] = child;
+			child.queueIndex = index;
+			index = childIndex;
+		}
+		m_Entries[index] = entry;
+		entry.queueIndex = index;
+	}
+	
+	
+	/**
+	 * Get number of tasks in queue.
+	 * @return Number of tasks.
+	 */
+	public int size()
+	{
+		return m_Size;
+	}
+	
+	
+	/**
+	 * Change priority of task in queue.
+	 * @param task Task.
+	 * @param priority New priority.
+	 * @return True if priority updated.
+	 */
+	public boolean updatePriority(TTask task, int priority)
+	{
+		if(!this.contains(task))
+			return false;
+		if(task.priority == priority)
+			return true;
+		task.priority = priority;
+		int index = task.queueIndex;
+		this.siftUp(index);
+		if(task.queueIndex == index)
+			this.siftDown(index);
+		return true;
+	}
+}
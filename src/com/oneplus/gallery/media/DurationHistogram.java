@@ -0,0 +1,51 @@
+package com.oneplus.gallery.media;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram to record durations in milliseconds with exponential buckets.
+ */
+final class DurationHistogram
+{
+	// Constants.
+	private static final long[] BOUNDS = new long[]{ 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096 };
+	
+	
+	// Fields.
+	private final AtomicLongArray m_Counts = new AtomicLongArray(BOUNDS.length + 1);
+	private final AtomicLong m_Max = new AtomicLong();
+	private final AtomicLong m_Sum = new AtomicLong();
+	
+	
+	/**
+	 * Record duration.
+	 * @param duration Duration in milliseconds.
+	 */
+	public void record(long duration)
+	{
+		if(duration < 0)
+			duration = 0;
+		int index = 0;
+		while(index < BOUNDS.length && duration > BOUNDS[index])
+			++index;
+		m_Counts.incrementAndGet(index);
+		m_Sum.addAndGet(duration);
+		long max = m_Max.get();
+		while(duration > max && !m_Max.compareAndSet(max, duration))
+			max = m_Max.get();
+	}
+	
+	
+	/**
+	 * Take snapshot of current histogram.
+	 * @return Snapshot.
+	 */
+	public ThumbnailDecodingStatistics.Histogram snapshot()
+	{
+		long[] counts = new long[m_Counts.length()];
+		for(int i = counts.length - 1 ; i >= 0 ; --i)
+			counts[i] = m_Counts.get(i);
+		return new ThumbnailDecodingStatistics.Histogram(BOUNDS, counts, m_Sum.get(), m_Max.get());
+	}
+}
@@ -0,0 +1,138 @@
+package com.oneplus.gallery.media;
+
+/**
+ * Parser to locate embedded thumbnail in APP1 (EXIF) segment of JPEG data without decoding image.
+ */
+final class ExifThumbnailParser
+{
+	// Constants.
+	private static final int MARKER_APP1 = 0xE1;
+	private static final int MARKER_EOI = 0xD9;
+	private static final int MARKER_SOI = 0xD8;
+	private static final int MARKER_SOS = 0xDA;
+	private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+	private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+	
+	
+	// Constructor.
+	private ExifThumbnailParser()
+	{}
+	
+	
+	/**
+	 * Find embedded thumbnail in JPEG data.
+	 * @param data JPEG data.
+	 * @param length Length of data.
+	 * @param result Array with at least 2 elements to receive offset and length of embedded thumbnail.
+	 * @return True if embedded thumbnail found.
+	 */
+	public static boolean findThumbnail(byte[] data, int length, int[] result)
+	{
+		// check SOI
+		length = Math.min(length, data.length);
+		if(length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != MARKER_SOI)
+			return false;
+		
+		// find APP1 segment
+		int offset = 2;
+		while(offset + 4 <= length)
+		{
+			if((data[offset] & 0xFF) != 0xFF)
+				return false;
+			int marker = (data[offset + 1] & 0xFF);
+			if(marker == 0xFF)
+			{
+				++offset;
+				continue;
+			}
+			if(marker == MARKER_SOS || marker == MARKER_EOI)
+				return false;
+			int segmentLength = readUInt16(data, offset + 2, false);
+			if(segmentLength < 2)
+				return false;
+			int segmentStart = offset + 4;
+			int segmentEnd = Math.min(length, offset + 2 + segmentLength);
+			if(marker == MARKER_APP1 && segmentEnd - segmentStart > 6
+					&& data[segmentStart] == 'E' && data[segmentStart + 1] == 'x' && data[segmentStart + 2] == 'i' && data[segmentStart + 3] == 'f'
+					&& data[segmentStart + 4] == 0 && data[segmentStart + 5] == 0)
+			{
+				return findThumbnail(data, segmentStart + 6, segmentEnd, result);
+			}
+			offset = segmentEnd;
+		}
+		return false;
+	}
+	
+	
+	// Find embedded thumbnail in TIFF structure.
+	private static boolean findThumbnail(byte[] data, int tiffStart, int tiffEnd, int[] result)
+	{
+		// check byte order
+		if(tiffEnd - tiffStart < 8)
+			return false;
+		boolean isLittleEndian;
+		if(data[tiffStart] == 'I' && data[tiffStart + 1] == 'I')
+			isLittleEndian = true;
+		else if(data[tiffStart] == 'M' && data[tiffStart + 1] == 'M')
+			isLittleEndian = false;
+		else
+			return false;
+		if(readUInt16(data, tiffStart + 2, isLittleEndian) != 0x2A)
+			return false;
+		
+		// skip IFD0
+		long ifdOffset = readUInt32(data, tiffStart + 4, isLittleEndian);
+		if(ifdOffset < 8 || tiffStart + ifdOffset + 2 > tiffEnd)
+			return false;
+		int ifdStart = (int)(tiffStart + ifdOffset);
+		int entryCount = readUInt16(data, ifdStart, isLittleEndian);
+		int nextIfdOffsetPos = ifdStart + 2 + (entryCount * 12);
+		if(nextIfdOffsetPos + 4 > tiffEnd)
+			return false;
+		
+		// parse IFD1
+		ifdOffset = readUInt32(data, nextIfdOffsetPos, isLittleEndian);
+		if(ifdOffset < 8 || tiffStart + ifdOffset + 2 > tiffEnd)
+			return false;
+		ifdStart = (int)(tiffStart + ifdOffset);
+		entryCount = readUInt16(data, ifdStart, isLittleEndian);
+		long thumbOffset = -1;
+		long thumbLength = -1;
+		for(int i = 0, entryStart = ifdStart + 2 ; i < entryCount && entryStart + 12 <= tiffEnd ; ++i, entryStart += 12)
+		{
+			int tag = readUInt16(data, entryStart, isLittleEndian);
+			if(tag == TAG_JPEG_INTERCHANGE_FORMAT)
+				thumbOffset = readUInt32(data, entryStart + 8, isLittleEndian);
+			else if(tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH)
+				thumbLength = readUInt32(data, entryStart + 8, isLittleEndian);
+		}
+		if(thumbOffset <= 0 || thumbLength < 2 || tiffStart + thumbOffset + thumbLength > tiffEnd)
+			return false;
+		
+		// check thumbnail data
+		int thumbStart = (int)(tiffStart + thumbOffset);
+		if((data[thumbStart] & 0xFF) != 0xFF || (data[thumbStart + 1] & 0xFF) != MARKER_SOI)
+			return false;
+		result[0] = thumbStart;
+		result[1] = (int)thumbLength;
+		return true;
+	}
+	
+	
+	// Read unsigned 16-bit integer.
+	private static int readUInt16(byte[] data, int offset, boolean isLittleEndian)
+	{
+		if(isLittleEndian)
+			return ((data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8));
+		return (((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF));
+	}
+	
+	
+	// Read unsigned 32-bit integer.
+	private static long readUInt32(byte[] data, int offset, boolean isLittleEndian)
+	{
+		if(isLittleEndian)
+			return ((long)readUInt16(data, offset, true) | ((long)readUInt16(data, offset + 2, true) << 16));
+		return (((long)readUInt16(data, offset, false) << 16) | (long)readUInt16(data, offset + 2, false));
+	}
+}
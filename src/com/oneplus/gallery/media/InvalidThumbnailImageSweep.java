@@ -0,0 +1,164 @@
+package com.oneplus.gallery.media;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import com.oneplus.cache.HybridBitmapLruCache;
+import com.oneplus.gallery.cache.CodecBitmapLruCache;
+import com.oneplus.gallery.cache.ImageCacheKey;
+import com.oneplus.gallery.cache.PackedBitmapStore;
+
+/**
+ * Sweep which removes thumbnail images of deleted or changed media from memory and disk tiers of caches and from packed store.
+ * <p>
+ * Keys are visited tier by tier. Keys in memory tiers and packed store are taken as snapshot when sweep reaches them, keys in disk tiers are read from files one by one, so sweep can be stopped at any time and continued later from where it stopped.
+ * Media table is built once when creating sweep, file system is only accessed for media which are unknown to media manager. This class is not thread-safe.
+ * </p>
+ */
+final class InvalidThumbnailImageSweep
+{
+	// Fields.
+	private final List<HybridBitmapLruCache<ImageCacheKey>> m_Caches;
+	private Iterator<ImageCacheKey> m_Keys;
+	private final HashMap<String, Media> m_MediaTable = new HashMap<>();
+	private final PackedBitmapStore m_PackedStore;
+	private int m_RemovedCount;
+	private int m_Stage;
+	private int m_VerifiedCount;
+	
+	
+	/**
+	 * Initialize new InvalidThumbnailImageSweep instance.
+	 * @param mediaList Media known by media manager.
+	 * @param caches Caches to sweep.
+	 * @param packedStore Packed store to sweep, or Null.
+	 */
+	public InvalidThumbnailImageSweep(Collection<Media> mediaList, List<HybridBitmapLruCache<ImageCacheKey>> caches, PackedBitmapStore packedStore)
+	{
+		for(Media media : mediaList)
+		{
+			String filePath = media.getFilePath();
+			if(filePath != null)
+				m_MediaTable.put(filePath, media);
+		}
+		m_Caches = caches;
+		m_PackedStore = packedStore;
+	}
+	
+	
+	/**
+	 * Get number of removed thumbnail images.
+	 * @return Number of removed images.
+	 */
+	public int getRemovedCount()
+	{
+		return m_RemovedCount;
+	}
+	
+	
+	/**
+	 * Get number of verified thumbnail images.
+	 * @return Number of verified images, including removed images.
+	 */
+	public int getVerifiedCount()
+	{
+		return m_VerifiedCount;
+	}
+	
+	
+	// Check whether cached thumbnail image is still valid or not.
+	private boolean isValidThumbnailImage(ImageCacheKey key)
+	{
+		// check media
+		if(key.filePath == null)
+			return true;
+		Media media = m_MediaTable.get(key.filePath);
+		if(media != null)
+			return key.matches(media);
+		
+		// check file
+		try
+		{
+			File file = new File(key.filePath);
+			return (file.exists() && file.lastModified() == key.lastModifiedTime && file.length() == key.fileSize);
+		}
+		catch(Throwable ex)
+		{
+			return false;
+		}
+	}
+	
+	
+	// Take keys of next tier, returns False if all tiers are visited.
+	@SuppressWarnings("unchecked")
+	private boolean moveToNextTier()
+	{
+		int cacheCount = m_Caches.size();
+		while(m_Stage <= (cacheCount << 1))
+		{
+			int stage = m_Stage++;
+			if(stage < (cacheCount << 1))
+			{
+				HybridBitmapLruCache<ImageCacheKey> cache = m_Caches.get(stage >> 1);
+				if(!(cache instanceof CodecBitmapLruCache<?>))
+					continue;
+				CodecBitmapLruCache<ImageCacheKey> codecCache = (CodecBitmapLruCache<ImageCacheKey>)cache;
+				if((stage & 1) == 0)
+				{
+					List<ImageCacheKey> keys = new ArrayList<>();
+					codecCache.collectMemoryKeys(keys);
+					m_Keys = keys.iterator();
+				}
+				else
+					m_Keys = codecCache.iterateDiskKeys();
+				return true;
+			}
+			if(m_PackedStore != null)
+			{
+				List<ImageCacheKey> keys = new ArrayList<>();
+				m_PackedStore.collectKeys(keys);
+				m_Keys = keys.iterator();
+				return true;
+			}
+		}
+		m_Keys = null;
+		return false;
+	}
+	
+	
+	/**
+	 * Verify next keys and remove invalid thumbnail images from all tiers.
+	 * @param maxCount Maximum number of keys to verify.
+	 * @return True if all keys are verified.
+	 */
+	public boolean verify(int maxCount)
+	{
+		while(maxCount > 0)
+		{
+			// get next key
+			if(m_Keys == null || !m_Keys.hasNext())
+			{
+				if(!this.moveToNextTier())
+					return true;
+				continue;
+			}
+			ImageCacheKey key = m_Keys.next();
+			--maxCount;
+			
+			// check key
+			++m_VerifiedCount;
+			if(this.isValidThumbnailImage(key))
+				continue;
+			++m_RemovedCount;
+			for(int i = m_Caches.size() - 1 ; i >= 0 ; --i)
+				m_Caches.get(i).remove(key);
+			if(m_PackedStore != null)
+				m_PackedStore.remove(key);
+		}
+		return false;
+	}
+}
@@ -4,6 +4,7 @@ import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -728,6 +729,32 @@ public class MediaManagerImpl extends BasicComponent implements OPMediaManager
 	}
 	
 	
+	/**
+	 * Collect all media instances which are created.
+	 * @param result Collection to receive media instances.
+	 * @return Number of collected media instances.
+	 */
+	@Override
+	public int collectMedia(Collection<? super Media> result)
+	{
+		if(result == null)
+			return 0;
+		int count = 0;
+		synchronized(m_MediaTable)
+		{
+			for(Media media : m_MediaTable.values())
+			{
+				if(media != null)
+				{
+					result.add(media);
+					++count;
+				}
+			}
+		}
+		return count;
+	}
+	
+	
 	/**
 	 * Create temporary {@link Media} instance for specific content URI.
 	 * @param contentUri Content URI of media.
@@ -1,5 +1,7 @@
 package com.oneplus.gallery.media;
 
+import java.util.Collection;
+
 import com.oneplus.base.Handle;
 
 import android.database.Cursor;
@@ -65,6 +67,14 @@ public interface OPMediaManager extends MediaManager
 	boolean addOnePlusFlags(Uri contentUri, final int flags);
 	
 	
+	/**
+	 * Collect all media instances which are created.
+	 * @param result Collection to receive media instances.
+	 * @return Number of collected media instances.
+	 */
+	int collectMedia(Collection<? super Media> result);
+	
+	
 	/**
 	 * Create temporary {@link Media} instance for specific content URI.
 	 * @param contentUri Content URI of media.
@@ -0,0 +1,184 @@
+package com.oneplus.gallery.media;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of mutable bitmaps which can be reused as decoding target by {@link android.graphics.BitmapFactory.Options#inBitmap}.
+ * <p>
+ * Only bitmaps which are not referenced by anyone else should be returned to pool. This class is thread-safe.
+ * </p>
+ */
+final class ReusableBitmapPool
+{
+	// Fields.
+	private final long m_Capacity;
+	private final List<Bitmap> m_FreeBitmaps = new ArrayList<>();
+	private long m_FreeSize;
+	private long m_MaxFreeSize;
+	private long m_ReusedCount;
+	
+	
+	/**
+	 * Initialize new ReusableBitmapPool instance.
+	 * @param maxFreeSize Maximum total size of free bitmaps kept in pool in bytes.
+	 */
+	public ReusableBitmapPool(long maxFreeSize)
+	{
+		m_Capacity = Math.max(0, maxFreeSize);
+		m_MaxFreeSize = m_Capacity;
+	}
+	
+	
+	/**
+	 * Remove and recycle all free bitmaps.
+	 */
+	public void clear()
+	{
+		Bitmap[] bitmaps;
+		synchronized(this)
+		{
+			bitmaps = m_FreeBitmaps.toArray(new Bitmap[m_FreeBitmaps.size()]);
+			m_FreeBitmaps.clear();
+			m_FreeSize = 0;
+		}
+		for(int i = bitmaps.length - 1 ; i >= 0 ; --i)
+			bitmaps[i].recycle();
+	}
+	
+	
+	/**
+	 * Get total size of free bitmaps kept in pool.
+	 * @return Size in bytes.
+	 */
+	public synchronized long getFreeSize()
+	{
+		return m_FreeSize;
+	}
+	
+	
+	/**
+	 * Get number of bitmaps reused by {@link #obtain(int, int, Bitmap.Config)}.
+	 * @return Number of reused bitmaps.
+	 */
+	public synchronized long getReusedCount()
+	{
+		return m_ReusedCount;
+	}
+	
+	
+	/**
+	 * Obtain free bitmap which is large enough to hold pixels with given size.
+	 * @param width Width of image.
+	 * @param height Height of image.
+	 * @param config Pixel format of image.
+	 * @return Free bitmap, or Null if there is no suitable bitmap.
+	 */
+	public Bitmap obtain(int width, int height, Bitmap.Config config)
+	{
+		// calculate size
+		long size = ((long)width * height * getBytesPerPixel(config));
+		if(size <= 0)
+			return null;
+		
+		// find smallest suitable bitmap
+		synchronized(this)
+		{
+			int index = -1;
+			long bestSize = Long.MAX_VALUE;
+			for(int i = m_FreeBitmaps.size() - 1 ; i >= 0 ; --i)
+			{
+				long bitmapSize = m_FreeBitmaps.get(i).getAllocationByteCount();
+				if(bitmapSize >= size && bitmapSize < bestSize)
+				{
+					index = i;
+					bestSize = bitmapSize;
+				}
+			}
+			if(index < 0 || bestSize > (size << 2))
+				return null;
+			m_FreeSize -= bestSize;
+			++m_ReusedCount;
+			return m_FreeBitmaps.remove(index);
+		}
+	}
+	
+	
+	/**
+	 * Return bitmap to pool, bitmap will be recycled directly if it cannot be kept.
+	 * @param bitmap Bitmap which is no longer used by anyone.
+	 */
+	public void release(Bitmap bitmap)
+	{
+		if(bitmap == null || bitmap.isRecycled())
+			return;
+		if(bitmap.isMutable())
+		{
+			long size = bitmap.getAllocationByteCount();
+			synchronized(this)
+			{
+				// drop oldest free bitmaps to keep total size
+				while(!m_FreeBitmaps.isEmpty() && m_FreeSize + size > m_MaxFreeSize)
+				{
+					Bitmap oldBitmap = m_FreeBitmaps.remove(0);
+					m_FreeSize -= oldBitmap.getAllocationByteCount();
+					oldBitmap.recycle();
+				}
+				if(size <= m_MaxFreeSize)
+				{
+					m_FreeBitmaps.add(bitmap);
+					m_FreeSize += size;
+					return;
+				}
+			}
+		}
+		bitmap.recycle();
+	}
+	
+	
+	/**
+	 * Change maximum total size of free bitmaps, oldest free bitmaps are recycled immediately if they exceed given size.
+	 * @param maxFreeSize Maximum size in bytes, which will be limited by initial size.
+	 */
+	public void setMaxFreeSize(long maxFreeSize)
+	{
+		List<Bitmap> bitmaps = null;
+		synchronized(this)
+		{
+			m_MaxFreeSize = Math.min(Math.max(0, maxFreeSize), m_Capacity);
+			while(!m_FreeBitmaps.isEmpty() && m_FreeSize > m_MaxFreeSize)
+			{
+				Bitmap bitmap = m_FreeBitmaps.remove(0);
+				m_FreeSize -= bitmap.getAllocationByteCount();
+				if(bitmaps == null)
+					bitmaps = new ArrayList<>();
+				bitmaps.add(bitmap);
+			}
+		}
+		if(bitmaps != null)
+		{
+			for(int i = bitmaps.size() - 1 ; i >= 0 ; --i)
+				bitmaps.get(i).recycle();
+		}
+	}
+	
+	
+	// Get number of bytes per pixel.
+	private static int getBytesPerPixel(Bitmap.Config config)
+	{
+		if(config == null)
+			return 4;
+		switch(config)
+		{
+			case ALPHA_8:
+				return 1;
+			case RGB_565:
+			case ARGB_4444:
+				return 2;
+			default:
+				return 4;
+		}
+	}
+}
@@ -1,31 +1,59 @@
 package com.oneplus.gallery.media;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.MediaMetadataRetriever;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemClock;
+import android.util.LruCache;
+import android.view.Choreographer;
 
 import com.oneplus.base.Handle;
 import com.oneplus.base.Log;
-import com.oneplus.base.Ref;
+import com.oneplus.base.PropertyChangeEventArgs;
+import com.oneplus.base.PropertyChangedCallback;
+import com.oneplus.base.PropertyKey;
+import com.oneplus.base.PropertySource;
 import com.oneplus.base.component.BasicComponent;
 import com.oneplus.cache.Cache;
 import com.oneplus.cache.HybridBitmapLruCache;
 import com.oneplus.gallery.GalleryApplication;
 import com.oneplus.gallery.R;
+import com.oneplus.gallery.cache.BitmapMemoryConsumer;
 import com.oneplus.gallery.cache.CacheManager;
+import com.oneplus.gallery.cache.CacheManager.MemoryScope;
+import com.oneplus.gallery.cache.CodecBitmapLruCache;
 import com.oneplus.gallery.cache.ImageCacheKey;
+import com.oneplus.gallery.cache.MemoryGovernor;
+import com.oneplus.gallery.cache.MemoryGovernor.MemoryPressure;
+import com.oneplus.gallery.cache.PackedBitmapStore;
 import com.oneplus.media.BitmapPool;
 
 /**
@@ -37,24 +65,100 @@ final class ThumbnailImageManagerImpl extends BasicComponent implements Thumbnai
 	private static final String TAG = "ThumbnailImageManager";
 	private static final long IDLE_POOL_CAPACITY = (16 << 20);
 	private static final long THUMB_POOL_CAPACITY = (64 << 20);
+	private static final int THUMB_POOL_MEMORY_WEIGHT = 2;
 	private static final long MAX_CACHE_WAITING_TIME = 1000;
-	private static final int MAX_FREE_DECODING_TASKS = 256;
+	private static final int MAX_CACHE_KEYS = 1024;
+	private static final int MAX_FREE_CALLBACK_ENVELOPES = 64;
+	private static final int CLEAR_INVALID_THUMBS_BATCH_SIZE = 16;
 	private static final long DURATION_CLEAR_INVALID_THUMBS_DELAY = 1500;
-	private static final long DURATION_MAX_CLEAR_INVALID_THUMBS = 1000;
+	private static final long DURATION_MAX_CLEAR_INVALID_THUMBS = 300;
+	private static final long DURATION_THUMB_POOL_USAGE_HALF_LIFE = 5000;
+	private static final int THUMB_SIZE = 1280;
+	private static final int FLAG_DERIVE_ONLY = 0x40000000;
+	private static final int IO_THREAD_COUNT = 2;
+	private static final int IMAGE_DECODE_QUEUE_SIZE_PER_THREAD = 2;
+	private static final long ENCODED_DATA_POOL_CAPACITY = (24 << 20);
+	private static final long ENCODED_DATA_POOL_FREE_CAPACITY = (8 << 20);
+	private static final int ENCODED_DATA_POOL_MEMORY_WEIGHT = 1;
+	private static final long MAX_ENCODED_DATA_SIZE = (32 << 20);
+	private static final int MAX_VIDEO_FRAME_TIMES = 1024;
+	private static final long PREFETCH_MEMORY_BUDGET = (16 << 20);
+	private static final long REUSABLE_BITMAP_POOL_CAPACITY = (8 << 20);
+	private static final int REUSABLE_BITMAP_POOL_MEMORY_WEIGHT = 1;
+	private static final float[] VIDEO_FRAME_CANDIDATE_POSITIONS = new float[]{ 0, 0.1f, 0.33f };
+	private static final int MIN_VIDEO_FRAME_CONTRAST = 24;
+	private static final int VIDEO_FRAME_SAMPLE_COUNT = 8;
+	
+	
+	// Put task into queue directly and wait if queue is full, so that producer will be blocked when consumer is busy.
+	private static final RejectedExecutionHandler BLOCKING_POLICY = new RejectedExecutionHandler()
+	{
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+		{
+			try
+			{
+				executor.getQueue().put(r);
+			}
+			catch(InterruptedException ex)
+			{
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(ex);
+			}
+		}
+	};
+	
+	
+	// Updater to detach task from decoding handle atomically without allocating AtomicReference for each handle.
+	private static final AtomicReferenceFieldUpdater<DecodingHandle, DecodingTask> DECODING_HANDLE_TASK_UPDATER = AtomicReferenceFieldUpdater.newUpdater(DecodingHandle.class, DecodingTask.class, "task");
 	
 	
 	// Fields.
 	private final List<Handle> m_ActivationHandles = new ArrayList<>();
+	private volatile Handler m_BitmapDecodedHandler;
+	private HandlerThread m_BitmapDecodedThread;
 	private CacheManager m_CacheManager;
 	private Handle m_CacheManagerActivateHandle;
-	private final Queue<DecodingTask> m_FreeDecodingTasks = new ArrayDeque<>(MAX_FREE_DECODING_TASKS);
-	private final Object m_Lock = new Object();
-	private volatile Executor m_SmallThumbDecodeExecutor;
-	private volatile BitmapPool m_SmallThumbDecoder;
-	private volatile LinkedList<DecodingTask> m_SmallThumbDecodeQueue;
+	private final LruCache<Media, ImageCacheKey> m_CacheKeys = new LruCache<>(MAX_CACHE_KEYS);
+	private final HashMap<Handler, DeliveryBatch> m_DeliveryBatches = new HashMap<>();
+	private volatile Choreographer m_MainChoreographer;
+	private volatile DecodingChannel[] m_DecodingChannels = new DecodingChannel[0];
+	private volatile ByteArrayPool m_EncodedDataPool;
+	private Handle m_EncodedDataPoolMemoryConsumerHandle;
+	private volatile boolean m_IsActive;
+	private final Queue<CallbackEnvelope> m_FreeCallbackEnvelopes = new ArrayDeque<>(MAX_FREE_CALLBACK_ENVELOPES);
+	private volatile Executor m_ImageDecodeExecutor;
+	private InvalidThumbnailImageSweep m_InvalidThumbSweep;
+	private final Object m_InvalidThumbSweepLock = new Object();
+	private volatile OPMediaManager m_MediaManager;
+	private MemoryGovernor m_MemoryGovernor;
+	private volatile long m_PrefetchMemoryBudget = PREFETCH_MEMORY_BUDGET;
+	private final Map<MediaList, PrefetchWindow> m_PrefetchWindows = new IdentityHashMap<>();
+	private volatile ReusableBitmapPool m_ReusableBitmapPool;
+	private Handle m_ReusableBitmapPoolMemoryConsumerHandle;
+	private volatile DecodingChannel m_SmallThumbDecodingChannel;
 	private volatile int m_SmallThumbSize;
-	private volatile Executor m_ThumbDecodeExecutor;
+	private volatile DecodingChannel m_ThumbDecodingChannel;
+	private volatile long m_StatisticsStartTime;
 	private volatile BitmapPool m_ThumbPool;
+	private Handle m_ThumbPoolActivateHandle;
+	private volatile long m_ThumbPoolMemoryBudget = THUMB_POOL_CAPACITY;
+	private Handle m_ThumbPoolMemoryConsumerHandle;
+	private long m_ThumbPoolMemoryUsage;
+	private final Object m_ThumbPoolMemoryUsageLock = new Object();
+	private long m_ThumbPoolMemoryUsageTime;
+	private final LruCache<ImageCacheKey, Long> m_VideoFrameTimes = new LruCache<>(MAX_VIDEO_FRAME_TIMES);
+	
+	
+	// Call-backs.
+	private final PropertyChangedCallback<MemoryPressure> m_MemoryPressureChangedCallback = new PropertyChangedCallback<MemoryPressure>()
+	{
+		@Override
+		public void onPropertyChanged(PropertySource source, PropertyKey<MemoryPressure> key, PropertyChangeEventArgs<MemoryPressure> e)
+		{
+			onMemoryPressureChanged(e.getNewValue());
+		}
+	};
 	
 	
 	// Runnables.
@@ -71,189 +175,513 @@ final class ThumbnailImageManagerImpl extends BasicComponent implements Thumbnai
 		@Override
 		public void run()
 		{
-			if(m_SmallThumbDecodeExecutor != null)
-				m_SmallThumbDecodeExecutor.execute(m_ClearInvalidThumbsRunnable);
+			DecodingChannel channel = m_SmallThumbDecodingChannel;
+			if(channel != null && m_ActivationHandles.isEmpty())
+				channel.executor.execute(m_ClearInvalidThumbsRunnable);
 		}
 	};
-	private final Runnable m_DecodeSmallThumbRunnable = new Runnable()
+	private final Runnable m_ShrinkThumbPoolRunnable = new Runnable()
 	{
 		@Override
 		public void run()
 		{
-			DecodingTask task;
-			synchronized(m_Lock)
-			{
-				task = m_SmallThumbDecodeQueue.pollFirst();
-			}
-			if(task != null)
-				task.run();
+			shrinkThumbPool(m_ThumbPoolMemoryBudget);
 		}
 	};
 	
 	
-	// Handle for thumbnail image decoding.
-	private final class DecodingHandle extends Handle
+	// Reusable envelope to perform decoding call-back in thread of Handler.
+	private final class CallbackEnvelope implements Runnable
 	{
 		// Fields.
-		private final DecodingTask decodingTask;
-		private final Collection<DecodingTask> decodingTaskQueue;
+		public Bitmap bitmap;
+		public DecodingHandle handle;
+		public boolean isPreview;
 		
-		// Constructor.
-		public DecodingHandle(Collection<DecodingTask> decodingTaskQueue, DecodingTask decodingTask)
-		{
-			super("DecodeThumbnailImage");
-			this.decodingTaskQueue = decodingTaskQueue;
-			this.decodingTask = decodingTask;
-		}
-
-		// Close handle.
+		// Perform call-back.
 		@Override
-		protected void onClose(int flags)
+		public void run()
 		{
-			synchronized(m_Lock)
+			// take parameters and return to pool before calling back
+			DecodingHandle handle = this.handle;
+			Bitmap bitmap = this.bitmap;
+			boolean isPreview = this.isPreview;
+			releaseCallbackEnvelope(this);
+			
+			// call back
+			if(!Handle.isValid(handle))
+				return;
+			if(!isPreview)
 			{
-				this.decodingTaskQueue.remove(this.decodingTask);
+				handle.onDelivered();
+				handle.callback.onThumbnailImageDecoded(handle, handle.media, bitmap);
 			}
+			else if(handle.task != null)
+				((ProgressiveDecodingCallback)handle.callback).onPreviewImageDecoded(handle, handle.media, bitmap);
 		}
 	}
 	
 	
-	// Thumbnail image decoding task.
-	private final class DecodingTask implements Runnable
+	// Decoded thumbnail images to be delivered to the same Handler in next frame.
+	private final class DeliveryBatch implements Choreographer.FrameCallback, Runnable
 	{
 		// Fields.
-		public volatile BitmapPool bitmapDecoder;
-		private final BitmapPool.Callback bitmapDecodingCallback = new BitmapPool.Callback()
+		private volatile Choreographer m_Choreographer;
+		private int m_Count;
+		private Bitmap[] m_DeliveringThumbs = new Bitmap[16];
+		private DecodingHandle[] m_DeliveringHandles = new DecodingHandle[16];
+		private Handle[] m_CallbackHandles = new Handle[16];
+		private Media[] m_CallbackMedia = new Media[16];
+		private Bitmap[] m_CallbackThumbs = new Bitmap[16];
+		private DecodingHandle[] m_Handles = new DecodingHandle[16];
+		private boolean m_IsScheduled;
+		private Bitmap[] m_Thumbs = new Bitmap[16];
+		public final Handler handler;
+		
+		// Constructor.
+		public DeliveryBatch(Handler handler)
 		{
-			public void onBitmapDecoded(Handle handle, String filePath, Bitmap bitmap)
+			this.handler = handler;
+			if(handler.getLooper() == Looper.getMainLooper())
+				m_Choreographer = m_MainChoreographer;
+		}
+		
+		// Add decoded thumbnail image to batch.
+		public void add(DecodingHandle handle, Bitmap thumb)
+		{
+			synchronized(this)
 			{
-				if(cache != null && bitmap != null)
+				if(m_Count == m_Handles.length)
 				{
-					ImageCacheKey key = new ImageCacheKey(media);
-					if(!(cache instanceof HybridBitmapLruCache<?>) || ((HybridBitmapLruCache<ImageCacheKey>)cache).peek(key) != bitmap)
-						cache.add(key, bitmap);
+					m_Handles = Arrays.copyOf(m_Handles, m_Count << 1);
+					m_Thumbs = Arrays.copyOf(m_Thumbs, m_Count << 1);
 				}
-				callOnThumbnailImageDecoded(bitmap, true);
+				m_Handles[m_Count] = handle;
+				m_Thumbs[m_Count] = thumb;
+				++m_Count;
+				if(m_IsScheduled)
+					return;
+				m_IsScheduled = true;
 			}
-			public void onBitmapDecoded(Handle handle, Uri contentUri, Bitmap bitmap)
+			
+			// Choreographer can only be obtained in thread of Handler, but it can be used in any thread after that
+			Choreographer choreographer = m_Choreographer;
+			if(choreographer != null)
+				choreographer.postFrameCallback(this);
+			else
+				this.handler.post(this);
+		}
+		
+		// Deliver all decoded thumbnail images.
+		@Override
+		public void doFrame(long frameTimeNanos)
+		{
+			// take thumbnail images
+			int count;
+			DecodingHandle[] handles;
+			Bitmap[] thumbs;
+			synchronized(this)
+			{
+				count = m_Count;
+				handles = m_Handles;
+				thumbs = m_Thumbs;
+				m_Handles = m_DeliveringHandles;
+				m_Thumbs = m_DeliveringThumbs;
+				m_DeliveringHandles = handles;
+				m_DeliveringThumbs = thumbs;
+				m_Count = 0;
+				m_IsScheduled = false;
+			}
+			
+			// deliver
+			for(int i = 0 ; i < count ; ++i)
 			{
-				if(cache != null && bitmap != null)
+				DecodingHandle handle = handles[i];
+				if(handle == null)
+					continue;
+				if(!(handle.callback instanceof BatchDecodingCallback))
+				{
+					if(Handle.isValid(handle))
+					{
+						handle.onDelivered();
+						handle.callback.onThumbnailImageDecoded(handle, handle.media, thumbs[i]);
+					}
+					continue;
+				}
+				DecodingCallback callback = handle.callback;
+				if(m_CallbackHandles.length < count - i)
+				{
+					m_CallbackHandles = new Handle[handles.length];
+					m_CallbackMedia = new Media[handles.length];
+					m_CallbackThumbs = new Bitmap[handles.length];
+				}
+				int callbackCount = 0;
+				for(int j = i ; j < count ; ++j)
 				{
-					ImageCacheKey key = new ImageCacheKey(media);
-					if(!(cache instanceof HybridBitmapLruCache<?>) || ((HybridBitmapLruCache<ImageCacheKey>)cache).peek(key) != bitmap)
-						cache.add(key, bitmap);
+					handle = handles[j];
+					if(handle == null || handle.callback != callback)
+						continue;
+					if(Handle.isValid(handle))
+					{
+						handle.onDelivered();
+						m_CallbackHandles[callbackCount] = handle;
+						m_CallbackMedia[callbackCount] = handle.media;
+						m_CallbackThumbs[callbackCount] = thumbs[j];
+						++callbackCount;
+					}
+					handles[j] = null;
+				}
+				if(callbackCount > 0)
+				{
+					((BatchDecodingCallback)callback).onThumbnailImagesDecoded(m_CallbackHandles, m_CallbackMedia, m_CallbackThumbs, callbackCount);
+					Arrays.fill(m_CallbackHandles, 0, callbackCount, null);
+					Arrays.fill(m_CallbackMedia, 0, callbackCount, null);
+					Arrays.fill(m_CallbackThumbs, 0, callbackCount, null);
 				}
-				callOnThumbnailImageDecoded(bitmap, true);
 			}
-		};
-		public volatile Handle bitmapDecodingHandle;
-		public volatile Cache<ImageCacheKey, Bitmap> cache;
-		public volatile DecodingCallback callback;
-		public volatile Handler callbackHandler;
-		public volatile boolean centerCrop;
-		public volatile DecodingHandle decodingHandle;
-		public volatile int flags;
-		public volatile Media media;
-		public volatile int targetHeight;
-		public volatile int targetWidth;
+			
+			// clear references
+			Arrays.fill(handles, 0, count, null);
+			Arrays.fill(thumbs, 0, count, null);
+			
+			// remove idle batch to prevent leaking Handler
+			synchronized(m_DeliveryBatches)
+			{
+				synchronized(this)
+				{
+					if(!m_IsScheduled && m_DeliveryBatches.get(this.handler) == this)
+						m_DeliveryBatches.remove(this.handler);
+				}
+			}
+		}
 		
-		// Call DecodingCallback.onThumbnailImageDecoded().
-		public void callOnThumbnailImageDecoded(final Bitmap thumb, final boolean completed)
+		// Schedule delivery in thread of Handler.
+		@Override
+		public void run()
+		{
+			Choreographer choreographer = m_Choreographer;
+			if(choreographer == null)
+			{
+				choreographer = Choreographer.getInstance();
+				m_Choreographer = choreographer;
+				if(this.handler.getLooper() == Looper.getMainLooper())
+					m_MainChoreographer = choreographer;
+			}
+			choreographer.postFrameCallback(this);
+		}
+	}
+	
+	
+	// Decoding channel for specific size of thumbnail image, scheduling of decoding is performed by DecodingScheduler.
+	private abstract class DecodingChannel implements DecodingScheduler.Decoder<DecodingHandle, DecodingTask, Bitmap>
+	{
+		// Fields.
+		public final boolean centerCrop;
+		public final BitmapPool decoder;
+		public final Executor executor;
+		public final String name;
+		public final DecodingScheduler<ImageCacheKey, DecodingHandle, DecodingTask, Bitmap> scheduler;
+		public final int targetHeight;
+		public final int targetWidth;
+		public final boolean useStagedDecoding;
+		
+		// Statistics.
+		public final AtomicLong cacheHitCount = new AtomicLong();
+		public final AtomicLong cacheMissCount = new AtomicLong();
+		public final DurationHistogram cacheWaitingTime = new DurationHistogram();
+		public final AtomicLong decodedCount = new AtomicLong();
+		public final DurationHistogram decodingTime = new DurationHistogram();
+		public final AtomicLong derivedCount = new AtomicLong();
+		public final AtomicLong failedCount = new AtomicLong();
+		public final AtomicLong memoryHitCount = new AtomicLong();
+		public final AtomicLong memoryMissCount = new AtomicLong();
+		public final DurationHistogram timeToVisible = new DurationHistogram();
+		
+		// Constructor.
+		public DecodingChannel(String name, BitmapPool decoder, Executor executor, int targetWidth, int targetHeight, boolean centerCrop, boolean useStagedDecoding)
+		{
+			this.name = name;
+			this.decoder = decoder;
+			this.executor = executor;
+			this.targetWidth = targetWidth;
+			this.targetHeight = targetHeight;
+			this.centerCrop = centerCrop;
+			this.useStagedDecoding = useStagedDecoding;
+			this.scheduler = new DecodingScheduler<>(this, executor, FLAG_DERIVE_ONLY);
+		}
+		
+		// Create new decoding task.
+		@Override
+		public DecodingTask createTask()
+		{
+			return new DecodingTask(this);
+		}
+		
+		// Run I/O stage of decoding task.
+		@Override
+		public void decode(DecodingTask task)
+		{
+			task.run();
+		}
+		
+		// Deliver thumbnail image to handle.
+		@Override
+		public void deliver(DecodingHandle handle, DecodingTask task, Bitmap thumb)
+		{
+			handle.callOnThumbnailImageDecoded(thumb, true);
+		}
+		
+		// Get cache for decoded thumbnail images.
+		public abstract HybridBitmapLruCache<ImageCacheKey> getCache();
+		
+		// Get thumbnail image in memory directly.
+		public abstract Bitmap getCachedBitmap(Media media, ImageCacheKey key);
+		
+		// Get packed store to restore thumbnail images without decoding.
+		public PackedBitmapStore getPackedStore()
+		{
+			return null;
+		}
+		
+		// Close in-flight bitmap decoding of cancelled task.
+		@Override
+		public void onRunningTaskCancelled(DecodingTask task, Object cancellationToken)
+		{
+			Handle.close((Handle)cancellationToken);
+		}
+		
+		// Update statistics of completed task.
+		@Override
+		public void onTaskCompleted(DecodingTask task, Bitmap thumb)
+		{
+			onDecodingTaskCompleted(task, thumb);
+		}
+		
+		// Prepare new decoding task.
+		@Override
+		public void onTaskCreated(DecodingTask task, DecodingHandle handle)
+		{
+			task.media = handle.media;
+		}
+		
+		// Reset decoding task before recycling.
+		@Override
+		public void onTaskReleased(DecodingTask task)
+		{
+			onDecodingTaskReleased(task);
+		}
+	}
+	
+	
+	// Handle for thumbnail image decoding.
+	private final class DecodingHandle extends Handle implements DecodingScheduler.Request<DecodingTask>
+	{
+		// Fields.
+		public final DecodingCallback callback;
+		public final Handler callbackHandler;
+		public final DecodingChannel channel;
+		public final boolean isBatchDelivery;
+		public final boolean isPreviewRequested;
+		public final Media media;
+		public volatile int priority;
+		public final long requestTime;
+		public volatile DecodingTask task;
+		
+		// Constructor.
+		public DecodingHandle(DecodingChannel channel, Media media, int priority, int flags, DecodingCallback callback, Handler callbackHandler)
 		{
+			super("DecodeThumbnailImage");
+			this.channel = channel;
+			this.requestTime = SystemClock.elapsedRealtime();
+			this.media = media;
+			this.priority = priority;
+			this.isBatchDelivery = ((flags & FLAG_BATCH_DELIVERY) != 0 && callbackHandler != null);
+			this.isPreviewRequested = ((flags & FLAG_PREVIEW) != 0 && callback instanceof ProgressiveDecodingCallback);
+			this.callback = callback;
+			this.callbackHandler = callbackHandler;
+		}
+		
+		// Attach to or detach from decoding task atomically.
+		@Override
+		public boolean compareAndSetTask(DecodingTask expectedTask, DecodingTask task)
+		{
+			return DECODING_HANDLE_TASK_UPDATER.compareAndSet(this, expectedTask, task);
+		}
+		
+		// Call ProgressiveDecodingCallback.onPreviewImageDecoded().
+		public void callOnPreviewImageDecoded(Bitmap preview)
+		{
+			// Preview image will be dropped if handle has been detached from task, so it won't be delivered after thumbnail image
 			if(this.callbackHandler != null && this.callbackHandler.getLooper().getThread() != Thread.currentThread())
+				this.callbackHandler.post(obtainCallbackEnvelope(this, preview, true));
+			else if(Handle.isValid(this) && this.task != null)
+				((ProgressiveDecodingCallback)this.callback).onPreviewImageDecoded(this, this.media, preview);
+		}
+		
+		// Call DecodingCallback.onThumbnailImageDecoded().
+		public void callOnThumbnailImageDecoded(Bitmap thumb, boolean canBatch)
+		{
+			if(this.callback == null)
+				return;
+			if(canBatch && this.isBatchDelivery)
+				deliverInBatch(this, thumb);
+			else if(this.callbackHandler != null && this.callbackHandler.getLooper().getThread() != Thread.currentThread())
+				this.callbackHandler.post(obtainCallbackEnvelope(this, thumb, false));
+			else if(Handle.isValid(this))
 			{
-				this.callbackHandler.post(new Runnable()
-				{
-					@Override
-					public void run()
-					{
-						if(Handle.isValid(decodingHandle))
-							callback.onThumbnailImageDecoded(decodingHandle, media, thumb);
-						if(completed)
-							onDecodingTaskCompleted(DecodingTask.this);
-					}
-				});
+				this.onDelivered();
+				this.callback.onThumbnailImageDecoded(this, this.media, thumb);
 			}
-			else if(Handle.isValid(this.decodingHandle))
+		}
+		
+		// Get decoding priority.
+		@Override
+		public int getPriority()
+		{
+			return this.priority;
+		}
+		
+		// Get attached decoding task.
+		@Override
+		public DecodingTask getTask()
+		{
+			return this.task;
+		}
+		
+		// Called before delivering thumbnail image to call-back.
+		public void onDelivered()
+		{
+			this.channel.timeToVisible.record(SystemClock.elapsedRealtime() - this.requestTime);
+		}
+		
+		// Close handle.
+		@Override
+		protected void onClose(int flags)
+		{
+			this.channel.scheduler.cancel(this);
+		}
+		
+		// Set decoding priority.
+		@Override
+		public void setPriority(int priority)
+		{
+			this.priority = priority;
+		}
+	}
+	
+	
+	// Thumbnail image decoding task, which is shared by all decoding requests for the same media.
+	private final class DecodingTask extends DecodingScheduler.Task<ImageCacheKey, DecodingHandle> implements Runnable
+	{
+		// Fields.
+		public final DecodingChannel channel;
+		public volatile byte[] encodedData;
+		public volatile int encodedDataLength;
+		public volatile long decodingStartTime;
+		public final Runnable imageDecodingStageRunnable = new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				this.callback.onThumbnailImageDecoded(this.decodingHandle, this.media, thumb);
-				if(completed)
-					onDecodingTaskCompleted(DecodingTask.this);
+				runImageDecodingStage(DecodingTask.this);
 			}
+		};
+		public volatile boolean isEncodedDataCached;
+		public volatile Media media;
+		public volatile boolean useBitmapDecoderOnly;
+		public volatile MediaMetadataRetriever videoRetriever;
+		
+		// Constructor.
+		public DecodingTask(DecodingChannel channel)
+		{
+			this.channel = channel;
 		}
 		
-		// Run task.
+		// Run I/O stage of task, which reads files and leaves CPU-bound work to image decoding stage.
 		@Override
 		public void run()
 		{
-			// check handle
-			if(!Handle.isValid(this.decodingHandle))
+			// get from memory tier
+			final int generation = this.getGeneration();
+			final DecodingChannel channel = this.channel;
+			final HybridBitmapLruCache<ImageCacheKey> cache = channel.getCache();
+			if(cache != null)
 			{
-				onDecodingTaskCompleted(this);
-				return;
+				Bitmap thumb = cache.get(this.getKey(), null, 0);
+				if(thumb != null)
+				{
+					channel.cacheHitCount.incrementAndGet();
+					channel.scheduler.complete(this, generation, thumb);
+					return;
+				}
 			}
 			
-			// get from cache
-			if(this.cache != null)
+			// get from packed store and put into memory tier
+			PackedBitmapStore packedStore = channel.getPackedStore();
+			if(packedStore != null)
 			{
-				Bitmap thumb = this.cache.get(new ImageCacheKey(this.media), null, MAX_CACHE_WAITING_TIME);
+				Bitmap thumb = packedStore.get(this.getKey());
 				if(thumb != null)
 				{
-					this.callOnThumbnailImageDecoded(thumb, true);
+					channel.cacheHitCount.incrementAndGet();
+					if(cache != null)
+						cache.add(this.getKey(), thumb);
+					channel.scheduler.complete(this, generation, thumb);
 					return;
 				}
 			}
 			
-			// check handle
-			if(!Handle.isValid(this.decodingHandle))
-			{
-				onDecodingTaskCompleted(this);
+			// check state
+			if(this.isCancelled() && channel.scheduler.drop(this, generation))
 				return;
-			}
+			if(this.decodingStartTime == 0)
+				this.decodingStartTime = SystemClock.elapsedRealtime();
 			
-			// start decoding
-			if(this.bitmapDecoder != null)
+			// read from disk tier, open video or read encoded photo if thumbnail image cannot be derived from larger thumbnail image
+			if((this.getFlags() & FLAG_DERIVE_ONLY) == 0 && !canDeriveThumbnailImage(channel, this.media, this.getKey()))
 			{
-				// calculate decoding size
-				int originalWidth = this.media.getWidth();
-				int originalHeight = this.media.getHeight();
-				if(originalWidth <= 0 || originalHeight <= 0)
+				boolean isRead;
+				if(isInDiskTier(cache, this.getKey()))
 				{
-					Log.e(TAG, "Unknown media size");
-					this.callOnThumbnailImageDecoded(null, true);
-					return;
+					long time = SystemClock.elapsedRealtime();
+					isRead = readCachedData(this, (CodecBitmapLruCache<ImageCacheKey>)cache);
+					channel.cacheWaitingTime.record(SystemClock.elapsedRealtime() - time);
 				}
-				float ratioX = ((float)this.targetWidth / originalWidth);
-				float ratioY = ((float)this.targetHeight / originalHeight);
-				float ratio = Math.min(1, Math.max(ratioX, ratioY));
-				if(this.centerCrop)
-					ratio = Math.min(1, Math.max(ratioX, ratioY));
-				else
-					ratio = Math.min(1, Math.min(ratioX, ratioY));
-				final int targetWidth = (int)(originalWidth * ratio);
-				final int targetHeight = (int)(originalHeight * ratio);
-				
-				// prepare decoding
-				int decodingFlags = BitmapPool.FLAG_ASYNC;
-				if((this.flags & FLAG_URGENT) != 0)
-					decodingFlags |= BitmapPool.FLAG_URGENT;
-				
-				// start decoding
-				String filePath = this.media.getFilePath();
-				if(filePath != null)
-					this.bitmapDecodingHandle = this.bitmapDecoder.decode(filePath, targetWidth, targetHeight, decodingFlags, this.bitmapDecodingCallback, this.callbackHandler);
+				else if(this.media.getType() == MediaType.VIDEO)
+					isRead = openVideo(this);
+				else if(channel.useStagedDecoding && this.media.getType() == MediaType.PHOTO)
+					isRead = readEncodedData(this);
 				else
-				{
-					Uri contentUri = this.media.getContentUri();
-					if(contentUri != null)
-					{
-						int mediaType = (this.media.getType() == MediaType.VIDEO ? BitmapPool.MEDIA_TYPE_VIDEO : BitmapPool.MEDIA_TYPE_PHOTO);
-						this.bitmapDecodingHandle = this.bitmapDecoder.decode(GalleryApplication.current(), contentUri, mediaType, targetWidth, targetHeight, decodingFlags, this.bitmapDecodingCallback, this.callbackHandler);
-					}
-				}
-				if(!Handle.isValid(this.bitmapDecodingHandle))
-					this.callOnThumbnailImageDecoded(null, true);
+					isRead = false;
+				if(isRead && this.isCancelled() && channel.scheduler.drop(this, generation))
+					return;
 			}
+			
+			// decode in image decoding stage
+			m_ImageDecodeExecutor.execute(this.imageDecodingStageRunnable);
+		}
+	}
+	
+	
+	// Range of media list to prefetch thumbnail images.
+	private final class PrefetchWindow extends Handle
+	{
+		// Fields.
+		public HashMap<Media, Handle> decodingHandles = new HashMap<>();
+		public final MediaList mediaList;
+		
+		// Constructor.
+		public PrefetchWindow(MediaList mediaList)
+		{
+			super("PrefetchThumbnailImages");
+			this.mediaList = mediaList;
+		}
+		
+		// Close handle.
+		@Override
+		protected void onClose(int flags)
+		{
+			closePrefetchWindow(this);
 		}
 	}
 	
@@ -290,6 +718,7 @@ final class ThumbnailImageManagerImpl extends BasicComponent implements Thumbnai
 		if(m_ActivationHandles.size() == 1)
 		{
 			Log.v(TAG, "activate()");
+			m_IsActive = true;
 			this.setReadOnly(PROP_IS_ACTIVE, true);
 		}
 		
@@ -297,6 +726,10 @@ final class ThumbnailImageManagerImpl extends BasicComponent implements Thumbnai
 		if(!Handle.isValid(m_CacheManagerActivateHandle) && m_CacheManager != null)
 			m_CacheManagerActivateHandle = m_CacheManager.activate(0);
 		
+		// activate thumbnail image pool
+		if(!Handle.isValid(m_ThumbPoolActivateHandle) && m_ThumbPool != null)
+			m_ThumbPoolActivateHandle = m_ThumbPool.activate();
+		
 		// cancel clearing invalid thumbnail images
 		GalleryApplication.current().getHandler().removeCallbacks(m_ClearInvalidThumbsDelayedRunnable);
 		
@@ -305,56 +738,68 @@ final class ThumbnailImageManagerImpl extends BasicComponent implements Thumbnai
 	}
 	
 	
-	// Clear invalid thumbnail images in cache.
+	// Clear invalid thumbnail images in caches and packed store, continue from where previous clearing stopped.
 	private void clearInvalidThumbnailImages()
 	{
-		// get cache
-		if(m_CacheManager == null)
-			return;
-		Cache<ImageCacheKey, Bitmap> cache = m_CacheManager.getSmallThumbnailImageCache();
-		if(cache == null)
+		// check state
+		CacheManager cacheManager = m_CacheManager;
+		if(cacheManager == null)
 			return;
 		
-		// clear
-		Log.v(TAG, "clearInvalidThumbnailImages() - Start");
-		final long startTime = SystemClock.elapsedRealtime();
-		final int[] count = new int[1];
-		cache.remove(new Cache.RemovingPredication<ImageCacheKey>()
+		synchronized(m_InvalidThumbSweepLock)
 		{
-			@Override
-			public boolean canRemove(ImageCacheKey key, Ref<Boolean> isCancelled)
+			// start new sweep, media table is built once for whole sweep
+			InvalidThumbnailImageSweep sweep = m_InvalidThumbSweep;
+			if(sweep == null)
 			{
-				// check time
-				if((SystemClock.elapsedRealtime() - startTime) >= DURATION_MAX_CLEAR_INVALID_THUMBS)
-				{
-					Log.w(TAG, "clearInvalidThumbnailImages() - Take long time to clear, interrupt");
-					isCancelled.set(true);
-					return false;
-				}
-				
-				// check file
-				if(key.filePath != null)
-				{
-					try
-					{
-						File file = new File(key.filePath);
-						if(!file.exists() || file.lastModified() != key.lastModifiedTime || file.length() != key.fileSize)
-						{
-							++count[0];
-							return true;
-						}
-					}
-					catch(Throwable ex)
-					{
-						++count[0];
-						return true;
-					}
-				}
-				return false;
+				List<HybridBitmapLruCache<ImageCacheKey>> caches = new ArrayList<>(2);
+				HybridBitmapLruCache<ImageCacheKey> cache = cacheManager.getSmallThumbnailImageCache();
+				if(cache != null)
+					caches.add(cache);
+				cache = cacheManager.getThumbnailImageCache();
+				if(cache != null)
+					caches.add(cache);
+				List<Media> mediaList = new ArrayList<>();
+				OPMediaManager mediaManager = m_MediaManager;
+				if(mediaManager != null)
+					mediaManager.collectMedia(mediaList);
+				sweep = new InvalidThumbnailImageSweep(mediaList, caches, cacheManager.getSmallThumbnailImageStore());
+				m_InvalidThumbSweep = sweep;
+				Log.v(TAG, "clearInvalidThumbnailImages() - Start new sweep, ", mediaList.size(), " media known");
+			}
+			
+			// verify until activated or time is up
+			long startTime = SystemClock.elapsedRealtime();
+			int verifiedCount = sweep.getVerifiedCount();
+			boolean isCompleted = false;
+			while(!isCompleted && !m_IsActive && (SystemClock.elapsedRealtime() - startTime) < DURATION_MAX_CLEAR_INVALID_THUMBS)
+				isCompleted = sweep.verify(CLEAR_INVALID_THUMBS_BATCH_SIZE);
+			Log.v(TAG, "clearInvalidThumbnailImages() - Take ", (SystemClock.elapsedRealtime() - startTime), " ms to verify ", (sweep.getVerifiedCount() - verifiedCount), " images");
+			
+			// start next sweep when deactivating next time if all images are verified
+			if(isCompleted)
+			{
+				Log.v(TAG, "clearInvalidThumbnailImages() - Sweep completed, ", sweep.getVerifiedCount(), " images verified, ", sweep.getRemovedCount(), " invalid images removed");
+				m_InvalidThumbSweep = null;
+				return;
 			}
-		});
-		long time = (SystemClock.elapsedRealtime() - startTime);
-		Log.v(TAG, "clearInvalidThumbnailImages() - Take ", time , " ms to removed ", count[0], " invalid images");
+		}
+		
+		// continue clearing in next idle period
+		if(!m_IsActive)
+			GalleryApplication.current().getHandler().postDelayed(m_ClearInvalidThumbsDelayedRunnable, DURATION_CLEAR_INVALID_THUMBS_DELAY);
+	}
+	
+	
+	// Halve estimated usage of thumbnail pool for each half-life elapsed, so that estimation drops after pooled bitmaps being reused or evicted (must hold m_ThumbPoolMemoryUsageLock).
+	private void decayThumbPoolMemoryUsage()
+	{
+		long time = SystemClock.elapsedRealtime();
+		long halfLives = ((time - m_ThumbPoolMemoryUsageTime) / DURATION_THUMB_POOL_USAGE_HALF_LIFE);
+		if(halfLives <= 0)
+			return;
+		m_ThumbPoolMemoryUsage = (halfLives < 64 ? (m_ThumbPoolMemoryUsage >> halfLives) : 0);
+		m_ThumbPoolMemoryUsageTime += (halfLives * DURATION_THUMB_POOL_USAGE_HALF_LIFE);
 	}
 	
 	
@@ -368,27 +813,43 @@ final class ThumbnailImageManagerImpl extends BasicComponent implements Thumbnai
 		if(!m_ActivationHandles.remove(handle) || !m_ActivationHandles.isEmpty())
 			return;
 		
-		Log.v(TAG, "deactivate()");
+		Log.v(TAG, "deactivate() - Statistics :\n", this.getDecodingStatistics());
+		if(m_ReusableBitmapPool != null)
+			Log.v(TAG, "deactivate() - Reused bitmaps : ", m_ReusableBitmapPool.getReusedCount());
 		
 		// deactivate
 		m_CacheManagerActivateHandle = Handle.close(m_CacheManagerActivateHandle);
+		m_ThumbPoolActivateHandle = Handle.close(m_ThumbPoolActivateHandle);
 		
 		// clear invalid thumbnail images
 		GalleryApplication.current().getHandler().postDelayed(m_ClearInvalidThumbsDelayedRunnable, DURATION_CLEAR_INVALID_THUMBS_DELAY);
 		
 		// update property
+		m_IsActive = false;
 		this.setReadOnly(PROP_IS_ACTIVE, false);
 	}
 	
 	
+	// Cancel all prefetching in window.
+	private void closePrefetchWindow(PrefetchWindow window)
+	{
+		synchronized(m_PrefetchWindows)
+		{
+			if(m_PrefetchWindows.get(window.mediaList) == window)
+				m_PrefetchWindows.remove(window.mediaList);
+		}
+		synchronized(window)
+		{
+			for(Handle handle : window.decodingHandles.values())
+				Handle.close(handle);
+			window.decodingHandles.clear();
+		}
+	}
+	
+	
 	/**
 	 * Start decoding small thumbnail image.
 	 * @param media Media to decode.
-	 * @param flags Flags:
-	 * <ul>
-	 *   <li>{@link #FLAG_ASYNC}</li>
-	 *   <li>{@link #FLAG_URGENT}</li>
-	 * </ul>
 	 * @param callback Decoding call-back.
 	 * @param handler {@link Handler} to perform call-back.
 	 * @return Handle to thumbnail image decoding.
@@ -406,6 +867,8 @@ final class ThumbnailImageManagerImpl extends BasicComponent implements Thumbnai
 	 * <ul>
 	 *   <li>{@link #FLAG_ASYNC}</li>
 	 *   <li>{@link #FLAG_URGENT}</li>
+	 *   <li>{@link #FLAG_BATCH_DELIVERY}</li>
+	 *   <li>{@link #FLAG_PREVIEW}</li>
 	 * </ul>
 	 * @param callback Decoding call-back.
 	 * @param handler {@link Handler} to perform call-back.
@@ -414,70 +877,513 @@ final class ThumbnailImageManagerImpl extends BasicComponent implements Thumbnai
 	@Override
 	public Handle decodeSmallThumbnailImage(Media media, int flags, DecodingCallback callback, Handler handler)
 	{
-		// check parameter
-		if(media == null)
-		{
-			Log.e(TAG, "decodeSmallThumbnailImage() - No media to decode");
+		return decodeSmallThumbnailImage(media, getDefaultPriority(flags), flags, callback, handler);
+	}
+	
+	
+	/**
+	 * Start decoding small thumbnail image with given priority.
+	 * @param media Media to decode.
+	 * @param priority Decoding priority, smaller value means higher priority.
+	 * @param flags Flags:
+	 * <ul>
+	 *   <li>{@link #FLAG_ASYNC}</li>
+	 *   <li>{@link #FLAG_URGENT}</li>
+	 *   <li>{@link #FLAG_BATCH_DELIVERY}</li>
+	 *   <li>{@link #FLAG_PREVIEW}</li>
+	 * </ul>
+	 * @param callback Decoding call-back.
+	 * @param handler {@link Handler} to perform call-back.
+	 * @return Handle to thumbnail image decoding.
+	 */
+	@Override
+	public Handle decodeSmallThumbnailImage(Media media, int priority, int flags, DecodingCallback callback, Handler handler)
+	{
+		// check parameter
+		if(media == null)
+		{
+			Log.e(TAG, "decodeSmallThumbnailImage() - No media to decode");
 			return null;
 		}
 		
-		// create task
-		HybridBitmapLruCache<ImageCacheKey> cache = (m_CacheManager != null ? m_CacheManager.getSmallThumbnailImageCache() : null);
-		DecodingTask task = obtainDecodingTask();
-		task.bitmapDecoder = m_SmallThumbDecoder;
-		task.cache = cache;
-		task.callback = callback;
-		task.callbackHandler = handler;
-		task.centerCrop = true;
-		task.flags = flags;
-		task.media = media;
-		task.targetHeight = m_SmallThumbSize;
-		task.targetWidth = m_SmallThumbSize;
+		// decode
+		return this.decodeThumbnailImage(m_SmallThumbDecodingChannel, media, priority, (flags & ~FLAG_DERIVE_ONLY), callback, handler);
+	}
+	
+	
+	// Decode thumbnail image from encoded data, intermediate bitmap will be decoded into reusable bitmap if available.
+	private static Bitmap decodeThumbnailImage(byte[] data, int offset, int length, int orientation, int targetWidth, int targetHeight, boolean centerCrop, ReusableBitmapPool reusePool)
+	{
+		// get image size
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeByteArray(data, offset, length, options);
+		if(options.outWidth <= 0 || options.outHeight <= 0)
+			return null;
+		boolean isRotated = ((orientation % 180) != 0);
+		int originalWidth = (isRotated ? options.outHeight : options.outWidth);
+		int originalHeight = (isRotated ? options.outWidth : options.outHeight);
+		
+		// calculate decoding size
+		float ratio = getThumbnailScaleRatio(originalWidth, originalHeight, targetWidth, targetHeight, centerCrop);
+		int width = Math.max(1, (int)(originalWidth * ratio));
+		int height = Math.max(1, (int)(originalHeight * ratio));
+		
+		// decode
+		options.inJustDecodeBounds = false;
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inSampleSize = 1;
+		while((originalWidth / (options.inSampleSize << 1)) >= width && (originalHeight / (options.inSampleSize << 1)) >= height)
+			options.inSampleSize <<= 1;
+		if(reusePool != null)
+		{
+			int sampledWidth = ((options.outWidth + options.inSampleSize - 1) / options.inSampleSize);
+			int sampledHeight = ((options.outHeight + options.inSampleSize - 1) / options.inSampleSize);
+			options.inMutable = true;
+			options.inBitmap = reusePool.obtain(sampledWidth, sampledHeight, options.inPreferredConfig);
+		}
+		Bitmap bitmap;
+		try
+		{
+			bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+		}
+		catch(IllegalArgumentException ex)
+		{
+			// reusable bitmap cannot be used, decode into new bitmap instead
+			if(options.inBitmap == null)
+				throw ex;
+			reusePool.release(options.inBitmap);
+			options.inBitmap = null;
+			bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+		}
+		if(bitmap == null)
+		{
+			if(options.inBitmap != null)
+				reusePool.release(options.inBitmap);
+			return null;
+		}
 		
-		// create decoding queue
-		synchronized(m_Lock)
+		// scale and rotate, intermediate bitmap can be reused by next decoding
+		Bitmap result = scaleThumbnailImage(bitmap, orientation, width, height);
+		if(result != bitmap)
+		{
+			if(reusePool != null)
+				reusePool.release(bitmap);
+			else
+				bitmap.recycle();
+		}
+		return result;
+	}
+	
+	
+	// Start decoding thumbnail image by given channel.
+	private Handle decodeThumbnailImage(DecodingChannel channel, Media media, int priority, int flags, DecodingCallback callback, Handler handler)
+	{
+		// check state
+		if(channel == null)
 		{
-			if(m_SmallThumbDecodeQueue == null)
-				m_SmallThumbDecodeQueue = new LinkedList<>();
+			Log.e(TAG, "decodeThumbnailImage() - Component is not initialized");
+			return null;
 		}
 		
 		// create handle
-		DecodingHandle handle = new DecodingHandle(m_SmallThumbDecodeQueue, task);
-		task.decodingHandle = handle;
+		ImageCacheKey key = this.getImageCacheKey(media);
+		DecodingHandle handle = new DecodingHandle(channel, media, priority, flags, callback, handler);
 		
 		// use cached bitmap
 		if((flags & FLAG_ASYNC) == 0)
 		{
-			Bitmap thumb = cache.peek(new ImageCacheKey(media));
+			Bitmap thumb = channel.getCachedBitmap(media, key);
 			if(thumb != null)
 			{
-				task.callOnThumbnailImageDecoded(thumb, true);
+				channel.memoryHitCount.incrementAndGet();
+				handle.callOnThumbnailImageDecoded(thumb, false);
 				return handle;
 			}
+			channel.memoryMissCount.incrementAndGet();
 		}
 		
-		// start decode
-		synchronized(m_Lock)
-		{
-			if((flags & FLAG_URGENT) == 0)
-				m_SmallThumbDecodeQueue.addLast(task);
-			else
-				m_SmallThumbDecodeQueue.addFirst(task);
-		}
-		m_SmallThumbDecodeExecutor.execute(m_DecodeSmallThumbRunnable);
+		// attach to decoding task for the same media, task is derived only until request which needs decoding is attached
+		channel.scheduler.schedule(key, handle, flags, (flags & FLAG_URGENT) != 0);
 		return handle;
 	}
 	
 	
-	// Decode thumbnail image.
+	/**
+	 * Start decoding thumbnail image.
+	 * @param media Media to decode.
+	 * @param flags Flags:
+	 * <ul>
+	 *   <li>{@link #FLAG_ASYNC}</li>
+	 *   <li>{@link #FLAG_URGENT}</li>
+	 *   <li>{@link #FLAG_BATCH_DELIVERY}</li>
+	 *   <li>{@link #FLAG_PREVIEW}</li>
+	 * </ul>
+	 * @param callback Decoding call-back.
+	 * @param handler {@link Handler} to perform call-back.
+	 * @return Handle to thumbnail image decoding.
+	 */
 	@Override
 	public Handle decodeThumbnailImage(Media media, int flags, DecodingCallback callback, Handler handler)
 	{
-		Log.e(TAG, "decodeThumbnailImage() - Not implemented");
+		return decodeThumbnailImage(media, getDefaultPriority(flags), flags, callback, handler);
+	}
+	
+	
+	/**
+	 * Start decoding thumbnail image with given priority.
+	 * @param media Media to decode.
+	 * @param priority Decoding priority, smaller value means higher priority.
+	 * @param flags Flags:
+	 * <ul>
+	 *   <li>{@link #FLAG_ASYNC}</li>
+	 *   <li>{@link #FLAG_URGENT}</li>
+	 *   <li>{@link #FLAG_BATCH_DELIVERY}</li>
+	 *   <li>{@link #FLAG_PREVIEW}</li>
+	 * </ul>
+	 * @param callback Decoding call-back.
+	 * @param handler {@link Handler} to perform call-back.
+	 * @return Handle to thumbnail image decoding.
+	 */
+	@Override
+	public Handle decodeThumbnailImage(Media media, int priority, int flags, DecodingCallback callback, Handler handler)
+	{
+		// check parameter
+		if(media == null)
+		{
+			Log.e(TAG, "decodeThumbnailImage() - No media to decode");
+			return null;
+		}
+		
+		// decode
+		return this.decodeThumbnailImage(m_ThumbDecodingChannel, media, priority, (flags & ~FLAG_DERIVE_ONLY), callback, handler);
+	}
+	
+	
+	// Deliver decoded thumbnail image in next frame.
+	private void deliverInBatch(DecodingHandle handle, Bitmap thumb)
+	{
+		DeliveryBatch batch;
+		synchronized(m_DeliveryBatches)
+		{
+			batch = m_DeliveryBatches.get(handle.callbackHandler);
+			if(batch == null)
+			{
+				batch = new DeliveryBatch(handle.callbackHandler);
+				m_DeliveryBatches.put(handle.callbackHandler, batch);
+			}
+			batch.add(handle, thumb);
+		}
+	}
+	
+	
+	// Extract representative frame of video opened in I/O stage and put it into caches of all channels, returns thumbnail image for channel of task.
+	private Bitmap extractVideoFrame(DecodingTask task, Media media, MediaMetadataRetriever retriever)
+	{
+		// extract frame
+		Bitmap frame = null;
+		try
+		{
+			// use frame selected before
+			Long frameTime = m_VideoFrameTimes.get(task.getKey());
+			if(frameTime != null)
+				frame = retriever.getFrameAtTime(frameTime, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+			else
+			{
+				// select key frame with enough contrast to skip black or faded frames at beginning
+				long duration = 0;
+				String durationString = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+				if(durationString != null)
+				{
+					try
+					{
+						duration = (Long.parseLong(durationString) * 1000);
+					}
+					catch(NumberFormatException ex)
+					{}
+				}
+				long selectedTime = 0;
+				int selectedContrast = -1;
+				for(int i = 0 ; i < VIDEO_FRAME_CANDIDATE_POSITIONS.length ; ++i)
+				{
+					long time = (long)(duration * VIDEO_FRAME_CANDIDATE_POSITIONS[i]);
+					if(i > 0 && time <= selectedTime)
+						break;
+					Bitmap candidate = retriever.getFrameAtTime(time, MediaMetadataRetriever.OPTION_CLOSEST_SYNC);
+					if(candidate == null)
+						continue;
+					int contrast = getVideoFrameContrast(candidate);
+					if(contrast > selectedContrast)
+					{
+						if(frame != null)
+							frame.recycle();
+						frame = candidate;
+						selectedTime = time;
+						selectedContrast = contrast;
+					}
+					else
+						candidate.recycle();
+					if(contrast >= MIN_VIDEO_FRAME_CONTRAST || task.isCancelled())
+						break;
+				}
+				if(frame != null)
+					m_VideoFrameTimes.put(task.getKey(), selectedTime);
+			}
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "extractVideoFrame() - Fail to extract frame from " + media, ex);
+		}
+		if(frame == null)
+			return null;
+		
+		// create thumbnail images for all channels
+		Bitmap result = null;
+		boolean isFrameUsed = false;
+		for(DecodingChannel channel : m_DecodingChannels)
+		{
+			HybridBitmapLruCache<ImageCacheKey> cache = channel.getCache();
+			if(channel != task.channel && (cache == null || cache.peek(task.getKey()) != null))
+				continue;
+			float ratio = getThumbnailScaleRatio(frame.getWidth(), frame.getHeight(), channel.targetWidth, channel.targetHeight, channel.centerCrop);
+			Bitmap thumb = scaleThumbnailImage(frame, 0, Math.max(1, (int)(frame.getWidth() * ratio)), Math.max(1, (int)(frame.getHeight() * ratio)));
+			if(thumb == frame)
+				isFrameUsed = true;
+			if(channel == task.channel)
+				result = thumb;
+			else
+				cache.add(task.getKey(), thumb);
+		}
+		if(!isFrameUsed)
+			frame.recycle();
+		return result;
+	}
+	
+	
+	// Check whether larger thumbnail image which can be used to derive thumbnail image for given channel is in memory or not.
+	private boolean canDeriveThumbnailImage(DecodingChannel channel, Media media, ImageCacheKey key)
+	{
+		DecodingChannel[] channels = m_DecodingChannels;
+		for(int i = channels.length - 1 ; i >= 0 ; --i)
+		{
+			DecodingChannel largerChannel = channels[i];
+			if(largerChannel == channel)
+				break;
+			if(largerChannel.getCachedBitmap(media, key) != null)
+				return true;
+		}
+		return false;
+	}
+	
+	
+	// Derive thumbnail image for given channel from larger thumbnail image in memory.
+	private Bitmap deriveThumbnailImage(DecodingChannel channel, Media media, ImageCacheKey key)
+	{
+		DecodingChannel[] channels = m_DecodingChannels;
+		for(int i = channels.length - 1 ; i >= 0 ; --i)
+		{
+			// find larger thumbnail image
+			DecodingChannel largerChannel = channels[i];
+			if(largerChannel == channel)
+				break;
+			Bitmap largerThumb = largerChannel.getCachedBitmap(media, key);
+			if(largerThumb == null)
+				continue;
+			Bitmap thumb = deriveThumbnailImage(channel, largerChannel, largerThumb);
+			if(thumb != null)
+				return thumb;
+		}
 		return null;
 	}
 	
 	
+	// Derive thumbnail image for given channel from thumbnail image of larger channel.
+	private static Bitmap deriveThumbnailImage(DecodingChannel channel, DecodingChannel largerChannel, Bitmap largerThumb)
+	{
+		try
+		{
+			// Larger thumbnail image can be used only if it is large enough, or it is not down-scaled from original image
+			if(largerThumb.isRecycled())
+				return null;
+			int width = largerThumb.getWidth();
+			int height = largerThumb.getHeight();
+			float ratioX = ((float)channel.targetWidth / width);
+			float ratioY = ((float)channel.targetHeight / height);
+			float ratio = (channel.centerCrop ? Math.max(ratioX, ratioY) : Math.min(ratioX, ratioY));
+			if(ratio > 1 && (width >= largerChannel.targetWidth || height >= largerChannel.targetHeight))
+				return null;
+			
+			// scale
+			ratio = Math.min(1, ratio);
+			Bitmap thumb = scaleThumbnailImage(largerThumb, 0, Math.max(1, (int)(width * ratio)), Math.max(1, (int)(height * ratio)));
+			if(thumb == largerThumb)
+				thumb = largerThumb.copy(largerThumb.getConfig(), false);
+			return thumb;
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "deriveThumbnailImage() - Fail to derive thumbnail image", ex);
+			return null;
+		}
+	}
+	
+	
+	// Request deriving thumbnail images for smaller channels from decoded thumbnail image with lowest priority, so the original image won't be decoded again for smaller size.
+	private void deriveSmallerThumbnailImages(DecodingChannel channel, Media media, ImageCacheKey key)
+	{
+		DecodingChannel[] channels = m_DecodingChannels;
+		for(int i = 0 ; i < channels.length ; ++i)
+		{
+			DecodingChannel smallerChannel = channels[i];
+			if(smallerChannel == channel)
+				break;
+			HybridBitmapLruCache<ImageCacheKey> cache = smallerChannel.getCache();
+			if(cache == null || cache.peek(key) != null)
+				continue;
+			this.decodeThumbnailImage(smallerChannel, media, PRIORITY_LOWEST, (FLAG_ASYNC | FLAG_DERIVE_ONLY), null, null);
+		}
+	}
+	
+	
+	// Decode embedded thumbnail in encoded data and deliver to handles which request preview image.
+	private void deliverPreviewImage(DecodingTask task, int generation, byte[] data, int length)
+	{
+		// find embedded thumbnail
+		int[] range = new int[2];
+		if(!ExifThumbnailParser.findThumbnail(data, length, range))
+			return;
+		
+		// collect handles
+		List<DecodingHandle> handles = new ArrayList<>();
+		if(!task.channel.scheduler.getAttachedRequests(task, generation, handles))
+			return;
+		for(int i = handles.size() - 1 ; i >= 0 ; --i)
+		{
+			if(!handles.get(i).isPreviewRequested)
+				handles.remove(i);
+		}
+		if(handles.isEmpty())
+			return;
+		
+		// decode
+		DecodingChannel channel = task.channel;
+		int orientation = (task.media instanceof PhotoMedia ? ((PhotoMedia)task.media).getOrientation() : 0);
+		Bitmap preview;
+		try
+		{
+			preview = decodeThumbnailImage(data, range[0], range[1], orientation, channel.targetWidth, channel.targetHeight, channel.centerCrop, m_ReusableBitmapPool);
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "deliverPreviewImage() - Fail to decode embedded thumbnail of " + task.media.getFilePath(), ex);
+			return;
+		}
+		if(preview == null)
+			return;
+		
+		// deliver
+		for(int i = handles.size() - 1 ; i >= 0 ; --i)
+			handles.get(i).callOnPreviewImageDecoded(preview);
+	}
+	
+	
+	// Check whether thumbnail image is in disk tier of cache without reading it.
+	private static boolean isInDiskTier(HybridBitmapLruCache<ImageCacheKey> cache, ImageCacheKey key)
+	{
+		return (cache instanceof CodecBitmapLruCache<?> && ((CodecBitmapLruCache<ImageCacheKey>)cache).isInDiskTier(key));
+	}
+	
+	
+	// Get property.
+	@SuppressWarnings("unchecked")
+	@Override
+	public <TValue> TValue get(PropertyKey<TValue> key)
+	{
+		if(key == PROP_DECODING_STATISTICS)
+			return (TValue)this.getDecodingStatistics();
+		return super.get(key);
+	}
+	
+	
+	// Calculate scale ratio from original size to thumbnail image size.
+	private static float getThumbnailScaleRatio(int originalWidth, int originalHeight, int targetWidth, int targetHeight, boolean centerCrop)
+	{
+		float ratioX = ((float)targetWidth / originalWidth);
+		float ratioY = ((float)targetHeight / originalHeight);
+		if(centerCrop)
+			return Math.min(1, Math.max(ratioX, ratioY));
+		return Math.min(1, Math.min(ratioX, ratioY));
+	}
+	
+	
+	// Calculate contrast of video frame by standard deviation of sampled luminance.
+	private static int getVideoFrameContrast(Bitmap frame)
+	{
+		int width = frame.getWidth();
+		int height = frame.getHeight();
+		long sum = 0;
+		long squareSum = 0;
+		for(int y = 0 ; y < VIDEO_FRAME_SAMPLE_COUNT ; ++y)
+		{
+			for(int x = 0 ; x < VIDEO_FRAME_SAMPLE_COUNT ; ++x)
+			{
+				int color = frame.getPixel((width * ((x << 1) + 1)) / (VIDEO_FRAME_SAMPLE_COUNT << 1), (height * ((y << 1) + 1)) / (VIDEO_FRAME_SAMPLE_COUNT << 1));
+				int luminance = ((((color >> 16) & 0xFF) * 77) + (((color >> 8) & 0xFF) * 150) + ((color & 0xFF) * 29)) >> 8;
+				sum += luminance;
+				squareSum += (luminance * luminance);
+			}
+		}
+		int count = (VIDEO_FRAME_SAMPLE_COUNT * VIDEO_FRAME_SAMPLE_COUNT);
+		long mean = (sum / count);
+		return (int)Math.sqrt(Math.max(0, (squareSum / count) - (mean * mean)));
+	}
+	
+	
+	// Take snapshot of decoding statistics.
+	private ThumbnailDecodingStatistics getDecodingStatistics()
+	{
+		List<ThumbnailDecodingStatistics.ChannelStatistics> channelStatistics = new ArrayList<>();
+		long createdTaskCount = 0, reusedTaskCount = 0, lockCount = 0, contendedLockCount = 0, lockWaitingTime = 0;
+		int freeTaskCount = 0;
+		for(DecodingChannel channel : m_DecodingChannels)
+		{
+			DecodingScheduler<ImageCacheKey, DecodingHandle, DecodingTask, Bitmap> scheduler = channel.scheduler;
+			channelStatistics.add(new ThumbnailDecodingStatistics.ChannelStatistics(channel.name, scheduler.getQueueSize(), scheduler.getMaxQueueSize(), 
+					scheduler.getRequestCount(), scheduler.getCoalescedRequestCount(), scheduler.getCancelledRequestCount(), scheduler.getDroppedTaskCount(),
+					channel.memoryHitCount.get(), channel.memoryMissCount.get(), channel.cacheHitCount.get(), channel.cacheMissCount.get(),
+					channel.decodedCount.get(), channel.derivedCount.get(), channel.failedCount.get(), channel.cacheWaitingTime.snapshot(), channel.decodingTime.snapshot(), channel.timeToVisible.snapshot()));
+			createdTaskCount += scheduler.getCreatedTaskCount();
+			reusedTaskCount += scheduler.getReusedTaskCount();
+			freeTaskCount += scheduler.getFreeTaskCount();
+			lockCount += scheduler.getLockCount();
+			contendedLockCount += scheduler.getContendedLockCount();
+			lockWaitingTime += scheduler.getLockWaitingTime();
+		}
+		return new ThumbnailDecodingStatistics(channelStatistics, createdTaskCount, reusedTaskCount, freeTaskCount,
+				lockCount, contendedLockCount, lockWaitingTime, SystemClock.elapsedRealtime() - m_StatisticsStartTime);
+	}
+	
+	
+	// Get default decoding priority.
+	private static int getDefaultPriority(int flags)
+	{
+		return ((flags & FLAG_URGENT) != 0 ? PRIORITY_HIGHEST : PRIORITY_DEFAULT);
+	}
+	
+	
+	// Get cache key of media, key is reused until media changed.
+	private ImageCacheKey getImageCacheKey(Media media)
+	{
+		ImageCacheKey key = m_CacheKeys.get(media);
+		if(key == null || !key.matches(media))
+		{
+			key = new ImageCacheKey(media);
+			m_CacheKeys.put(media, key);
+		}
+		return key;
+	}
+	
+	
 	/**
 	 * Get cached small thumbnail image directly.
 	 * @param media Media.
@@ -492,85 +1398,884 @@ final class ThumbnailImageManagerImpl extends BasicComponent implements Thumbnai
 		Cache<ImageCacheKey, Bitmap> cache = m_CacheManager.getSmallThumbnailImageCache();
 		if(cache == null)
 			return null;
-		return cache.get(new ImageCacheKey(media), null, 0);
+		return cache.get(this.getImageCacheKey(media), null, 0);
 	}
 	
 	
-	// Get cached thumbnail image.
+	/**
+	 * Get cached thumbnail image directly.
+	 * @param media Media.
+	 * @return Thumbnail image, or Null if there is no cached image in memory.
+	 */
 	@Override
 	public Bitmap getCachedThumbnailImage(Media media)
 	{
-		// TODO Auto-generated method stub
-		return null;
+		if(media == null)
+			return null;
+		return this.getCachedThumbnailImage(media, this.getImageCacheKey(media));
 	}
 	
 	
-	// Obtain a decoding task.
-	private DecodingTask obtainDecodingTask()
+	// Get cached thumbnail image directly.
+	private Bitmap getCachedThumbnailImage(Media media, ImageCacheKey key)
 	{
-		synchronized(m_Lock)
+		// get from decoder
+		String filePath = media.getFilePath();
+		if(filePath != null && m_ThumbPool != null)
 		{
-			DecodingTask task = m_FreeDecodingTasks.poll();
-			if(task != null)
-				return task;
-			return new DecodingTask();
+			Bitmap thumb = m_ThumbPool.getCachedBitmap(filePath);
+			if(thumb != null)
+				return thumb;
 		}
+		
+		// get from cache
+		if(m_CacheManager == null)
+			return null;
+		HybridBitmapLruCache<ImageCacheKey> cache = m_CacheManager.getThumbnailImageCache();
+		if(cache == null)
+			return null;
+		return cache.peek(key);
 	}
 	
 	
-	// Called when decoding task completed.
-	private void onDecodingTaskCompleted(DecodingTask task)
+	// Obtain a call-back envelope.
+	private CallbackEnvelope obtainCallbackEnvelope(DecodingHandle handle, Bitmap bitmap, boolean isPreview)
 	{
-		synchronized(m_Lock)
+		CallbackEnvelope envelope;
+		synchronized(m_FreeCallbackEnvelopes)
 		{
-			if(m_FreeDecodingTasks.size() >= MAX_FREE_DECODING_TASKS)
-				return;
-			m_FreeDecodingTasks.add(task);
-			task.bitmapDecoder = null;
-			task.bitmapDecodingHandle = null;
-			task.cache = null;
-			task.callback = null;
-			task.callbackHandler = null;
-			task.decodingHandle = null;
-			task.media = null;
+			envelope = m_FreeCallbackEnvelopes.poll();
 		}
+		if(envelope == null)
+			envelope = new CallbackEnvelope();
+		envelope.handle = handle;
+		envelope.bitmap = bitmap;
+		envelope.isPreview = isPreview;
+		return envelope;
 	}
 	
 	
-	// Deinitialize.
-	@Override
-	protected void onDeinitialize()
+	// Open video of task in I/O stage, so that only frames are extracted in image decoding stage.
+	private boolean openVideo(DecodingTask task)
 	{
-		// deactivate
-		m_ActivationHandles.clear();
-		m_CacheManagerActivateHandle = Handle.close(m_CacheManagerActivateHandle);
-		this.setReadOnly(PROP_IS_ACTIVE, false);
-		
-		// call super
-		super.onDeinitialize();
+		String filePath = task.media.getFilePath();
+		Uri contentUri = task.media.getContentUri();
+		if(filePath == null && contentUri == null)
+			return false;
+		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+		try
+		{
+			if(filePath != null)
+				retriever.setDataSource(filePath);
+			else
+				retriever.setDataSource(GalleryApplication.current(), contentUri);
+		}
+		catch(Throwable ex)
+		{
+			Log.e(TAG, "openVideo() - Fail to open " + task.media, ex);
+			retriever.release();
+			return false;
+		}
+		task.videoRetriever = retriever;
+		return true;
 	}
 	
 	
-	// Initialize.
-	@Override
-	protected void onInitialize()
+	// Read thumbnail image in disk tier into pooled buffer, it will be decoded in image decoding stage.
+	private boolean readCachedData(DecodingTask task, CodecBitmapLruCache<ImageCacheKey> cache)
 	{
-		// call super
-		super.onInitialize();
+		// check file
+		long dataSize = cache.getDiskDataSize(task.getKey());
+		if(dataSize <= 0 || dataSize > MAX_ENCODED_DATA_SIZE)
+			return false;
 		
-		// find components
-		m_CacheManager = GalleryApplication.current().findComponent(CacheManager.class);
+		// obtain buffer, thread will be blocked here if there are too many encoded data waiting for decoding
+		byte[] data;
+		try
+		{
+			data = m_EncodedDataPool.obtain((int)dataSize);
+		}
+		catch(InterruptedException ex)
+		{
+			Log.w(TAG, "readCachedData() - Interrupted");
+			return false;
+		}
 		
-		// create bitmap pools
-		m_SmallThumbDecoder = new BitmapPool("SmallThumbDecoder", (1 << 10), Bitmap.Config.ARGB_8888, 3, 0);
-		m_ThumbPool = new BitmapPool("ThumbPool", THUMB_POOL_CAPACITY, IDLE_POOL_CAPACITY, Bitmap.Config.ARGB_8888, 2, 0);
+		// read file
+		int length = cache.readDiskData(task.getKey(), data);
+		if(length <= 0)
+		{
+			m_EncodedDataPool.release(data);
+			return false;
+		}
+		task.encodedData = data;
+		task.encodedDataLength = length;
+		task.isEncodedDataCached = true;
+		return true;
+	}
+	
+	
+	// Read encoded data of media into pooled buffer.
+	private boolean readEncodedData(DecodingTask task)
+	{
+		// check file
+		String filePath = task.media.getFilePath();
+		if(filePath == null)
+			return false;
+		File file = new File(filePath);
+		long fileSize = file.length();
+		if(fileSize <= 0 || fileSize > MAX_ENCODED_DATA_SIZE)
+			return false;
 		
-		// get dimensions
-		Resources res = GalleryApplication.current().getResources();
-		m_SmallThumbSize = res.getDimensionPixelSize(R.dimen.thumbnail_image_manager_thumb_size_small);
+		// obtain buffer, thread will be blocked here if there are too many encoded data waiting for decoding
+		byte[] data;
+		try
+		{
+			data = m_EncodedDataPool.obtain((int)fileSize);
+		}
+		catch(InterruptedException ex)
+		{
+			Log.w(TAG, "readEncodedData() - Interrupted");
+			return false;
+		}
 		
-		// create executor
-		m_SmallThumbDecodeExecutor = Executors.newFixedThreadPool(4);
-		m_ThumbDecodeExecutor = Executors.newFixedThreadPool(4);
+		// read file
+		int length = 0;
+		InputStream stream = null;
+		try
+		{
+			stream = new FileInputStream(file);
+			while(length < data.length)
+			{
+				int readCount = stream.read(data, length, data.length - length);
+				if(readCount < 0)
+					break;
+				length += readCount;
+			}
+		}
+		catch(IOException ex)
+		{
+			Log.e(TAG, "readEncodedData() - Fail to read " + filePath, ex);
+			m_EncodedDataPool.release(data);
+			return false;
+		}
+		finally
+		{
+			if(stream != null)
+			{
+				try
+				{
+					stream.close();
+				}
+				catch(IOException ex)
+				{}
+			}
+		}
+		if(length <= 0)
+		{
+			m_EncodedDataPool.release(data);
+			return false;
+		}
+		task.encodedData = data;
+		task.encodedDataLength = length;
+		return true;
+	}
+	
+	
+	// Decode thumbnail image read from disk tier by I/O stage, pixels are put into reusable bitmap if available.
+	private Bitmap decodeCachedData(DecodingChannel channel, CodecBitmapLruCache<ImageCacheKey> cache, ImageCacheKey key, byte[] data, int length)
+	{
+		ReusableBitmapPool reusableBitmapPool = m_ReusableBitmapPool;
+		Bitmap reusableBitmap = (reusableBitmapPool != null ? reusableBitmapPool.obtain(channel.targetWidth, channel.targetHeight, Bitmap.Config.RGB_565) : null);
+		Bitmap bitmap = cache.decodeDiskData(key, data, length, reusableBitmap);
+		if(reusableBitmap != null && bitmap != reusableBitmap)
+			reusableBitmapPool.release(reusableBitmap);
+		return bitmap;
+	}
+	
+	
+	// Get thumbnail image which is still waiting to be written to disk tier, files in disk tier are read by I/O stage instead.
+	private static Bitmap getPendingThumbnailImage(HybridBitmapLruCache<ImageCacheKey> cache, ImageCacheKey key)
+	{
+		if(!isInDiskTier(cache, key) || ((CodecBitmapLruCache<ImageCacheKey>)cache).getDiskDataSize(key) > 0)
+			return null;
+		return cache.get(key, null, MAX_CACHE_WAITING_TIME);
+	}
+	
+	
+	// Called when bitmap decoded by BitmapPool (in call-back thread of decoded bitmaps), thumbnail image will be delivered to handles through their own Handlers.
+	private void onBitmapDecoded(DecodingTask task, int generation, Cache<ImageCacheKey, Bitmap> cache, ImageCacheKey key, Media media, Bitmap bitmap)
+	{
+		if(cache != null && bitmap != null)
+		{
+			if(!(cache instanceof HybridBitmapLruCache<?>) || ((HybridBitmapLruCache<ImageCacheKey>)cache).peek(key) != bitmap)
+				cache.add(key, bitmap);
+		}
+		DecodingChannel channel = task.channel;
+		if(bitmap != null && channel != null && channel.decoder == m_ThumbPool)
+			this.onThumbPoolBitmapDecoded(bitmap);
+		if(bitmap != null && channel != null && task.getGeneration() == generation)
+		{
+			PackedBitmapStore packedStore = channel.getPackedStore();
+			if(packedStore != null && !packedStore.contains(key))
+				packedStore.put(key, bitmap);
+			this.deriveSmallerThumbnailImages(channel, media, key);
+		}
+		task.channel.scheduler.complete(task, generation, bitmap);
+	}
+	
+	
+	// Called when decoding task is completed, before delivering thumbnail image to attached handles.
+	private void onDecodingTaskCompleted(DecodingTask task, Bitmap thumb)
+	{
+		if(task.decodingStartTime > 0)
+		{
+			task.channel.decodingTime.record(SystemClock.elapsedRealtime() - task.decodingStartTime);
+			if(thumb != null)
+				task.channel.decodedCount.incrementAndGet();
+			else
+				task.channel.failedCount.incrementAndGet();
+		}
+	}
+	
+	
+	// Called when all references to decoding task are released (with lock of scheduler held).
+	private void onDecodingTaskReleased(DecodingTask task)
+	{
+		task.media = null;
+		task.decodingStartTime = 0;
+		task.useBitmapDecoderOnly = false;
+		task.isEncodedDataCached = false;
+		if(task.encodedData != null)
+		{
+			m_EncodedDataPool.release(task.encodedData);
+			task.encodedData = null;
+		}
+		if(task.videoRetriever != null)
+		{
+			task.videoRetriever.release();
+			task.videoRetriever = null;
+		}
+	}
+	
+	
+	// Scale and rotate thumbnail image to given size, source bitmap will be returned directly if there is no need to change.
+	private static Bitmap scaleThumbnailImage(Bitmap bitmap, int orientation, int width, int height)
+	{
+		boolean isRotated = ((orientation % 180) != 0);
+		int bitmapWidth = (isRotated ? bitmap.getHeight() : bitmap.getWidth());
+		int bitmapHeight = (isRotated ? bitmap.getWidth() : bitmap.getHeight());
+		if(bitmapWidth == width && bitmapHeight == height && orientation == 0)
+			return bitmap;
+		Matrix matrix = new Matrix();
+		matrix.setScale((float)width / bitmapWidth, (float)height / bitmapHeight);
+		if(orientation != 0)
+			matrix.postRotate(orientation);
+		return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+	}
+	
+	
+	/**
+	 * Prefetch small thumbnail images of media in given range.
+	 * @param mediaList Media list.
+	 * @param from Index of first media to prefetch, inclusive.
+	 * @param to Index of last media to prefetch, exclusive.
+	 * @param priority Decoding priority of media at the center of range.
+	 * @return Handle to prefetching of media list, or Null if there is no memory budget for prefetching.
+	 */
+	@Override
+	public Handle prefetchSmallThumbnailImages(MediaList mediaList, int from, int to, int priority)
+	{
+		// check parameter
+		if(mediaList == null)
+		{
+			Log.e(TAG, "prefetchSmallThumbnailImages() - No media list");
+			return null;
+		}
+		
+		// check state
+		DecodingChannel channel = m_SmallThumbDecodingChannel;
+		if(channel == null)
+		{
+			Log.e(TAG, "prefetchSmallThumbnailImages() - Component is not initialized");
+			return null;
+		}
+		
+		// stop prefetching if there is no memory budget
+		int maxCount = (int)Math.min(Integer.MAX_VALUE, m_PrefetchMemoryBudget / ((long)channel.targetWidth * channel.targetHeight * 4));
+		if(maxCount <= 0)
+		{
+			PrefetchWindow window;
+			synchronized(m_PrefetchWindows)
+			{
+				window = m_PrefetchWindows.get(mediaList);
+			}
+			Handle.close(window);
+			return null;
+		}
+		
+		// limit range by memory budget
+		from = Math.max(0, from);
+		to = Math.min(mediaList.size(), to);
+		int center = ((from + to) / 2);
+		if(to - from > maxCount)
+		{
+			from = Math.max(from, center - (maxCount / 2));
+			to = Math.min(to, from + maxCount);
+		}
+		
+		// get window
+		PrefetchWindow window;
+		synchronized(m_PrefetchWindows)
+		{
+			window = m_PrefetchWindows.get(mediaList);
+			if(window == null)
+			{
+				window = new PrefetchWindow(mediaList);
+				m_PrefetchWindows.put(mediaList, window);
+			}
+		}
+		
+		// update window
+		synchronized(window)
+		{
+			// prefetch media in new range, keep decoding started before
+			HashMap<Media, Handle> decodingHandles = new HashMap<>();
+			for(int i = from ; i < to ; ++i)
+			{
+				Media media = mediaList.get(i);
+				if(media == null || decodingHandles.containsKey(media))
+					continue;
+				int mediaPriority = (int)Math.min(PRIORITY_LOWEST, (long)priority + Math.abs(i - center));
+				Handle handle = window.decodingHandles.remove(media);
+				if(handle != null)
+					this.setDecodingPriority(handle, mediaPriority);
+				else if(channel.getCachedBitmap(media, this.getImageCacheKey(media)) == null)
+					handle = this.decodeThumbnailImage(channel, media, mediaPriority, FLAG_ASYNC, null, null);
+				if(handle != null)
+					decodingHandles.put(media, handle);
+			}
+			
+			// cancel prefetching out of range
+			for(Handle handle : window.decodingHandles.values())
+				Handle.close(handle);
+			window.decodingHandles = decodingHandles;
+		}
+		return window;
+	}
+	
+	
+	// Called when memory pressure changed.
+	private void onMemoryPressureChanged(MemoryPressure pressure)
+	{
+		// update limitations, only prefetching and decoding for media out of screen (lower priority than default) can be deferred
+		int maxPriority;
+		long prefetchBudget;
+		switch(pressure)
+		{
+			case NORMAL:
+				maxPriority = PRIORITY_LOWEST;
+				prefetchBudget = PREFETCH_MEMORY_BUDGET;
+				break;
+			case MODERATE:
+				maxPriority = PRIORITY_LOWEST;
+				prefetchBudget = (PREFETCH_MEMORY_BUDGET / 2);
+				break;
+			default:
+				maxPriority = PRIORITY_DEFAULT;
+				prefetchBudget = 0;
+				break;
+		}
+		m_PrefetchMemoryBudget = prefetchBudget;
+		Log.w(TAG, "onMemoryPressureChanged() - Pressure : ", pressure, ", max runnable priority : ", maxPriority);
+		
+		// release pooled thumbnail images
+		if(pressure == MemoryPressure.CRITICAL)
+			this.shrinkThumbPool(0);
+		else if(pressure == MemoryPressure.HIGH)
+			this.shrinkThumbPool(IDLE_POOL_CAPACITY);
+		ReusableBitmapPool reusableBitmapPool = m_ReusableBitmapPool;
+		if(reusableBitmapPool != null && pressure.compareTo(MemoryPressure.HIGH) >= 0)
+			reusableBitmapPool.clear();
+		
+		// defer or resume decoding
+		for(DecodingChannel channel : m_DecodingChannels)
+			channel.scheduler.setMaxRunnablePriority(maxPriority);
+	}
+	
+	
+	// Called when bitmap decoded by thumbnail pool, BitmapPool evicts bitmaps only when exceeding its initial capacity, so it is shrunk again when exceeding reduced budget.
+	private void onThumbPoolBitmapDecoded(Bitmap bitmap)
+	{
+		long budget = Math.min(m_ThumbPoolMemoryBudget, THUMB_POOL_CAPACITY);
+		synchronized(m_ThumbPoolMemoryUsageLock)
+		{
+			this.decayThumbPoolMemoryUsage();
+			m_ThumbPoolMemoryUsage += bitmap.getByteCount();
+			if(m_ThumbPoolMemoryUsage <= budget)
+				return;
+			m_ThumbPoolMemoryUsage = budget;
+		}
+		if(budget < THUMB_POOL_CAPACITY)
+		{
+			Handler handler = GalleryApplication.current().getHandler();
+			handler.removeCallbacks(m_ShrinkThumbPoolRunnable);
+			handler.post(m_ShrinkThumbPoolRunnable);
+		}
+	}
+	
+	
+	// Return call-back envelope to pool.
+	private void releaseCallbackEnvelope(CallbackEnvelope envelope)
+	{
+		envelope.handle = null;
+		envelope.bitmap = null;
+		synchronized(m_FreeCallbackEnvelopes)
+		{
+			if(m_FreeCallbackEnvelopes.size() < MAX_FREE_CALLBACK_ENVELOPES)
+				m_FreeCallbackEnvelopes.add(envelope);
+		}
+	}
+	
+	
+	// Run image decoding stage of task: derive from larger thumbnail image, or decode disk tier, video or encoded data opened by I/O stage.
+	private void runImageDecodingStage(DecodingTask task)
+	{
+		// take encoded data and opened video
+		int generation = task.getGeneration();
+		Media media = task.media;
+		byte[] data = task.encodedData;
+		int length = task.encodedDataLength;
+		boolean isDataCached = task.isEncodedDataCached;
+		MediaMetadataRetriever retriever = task.videoRetriever;
+		task.encodedData = null;
+		task.isEncodedDataCached = false;
+		task.videoRetriever = null;
+		
+		try
+		{
+			// check state
+			if(task.isCancelled() && task.channel.scheduler.drop(task, generation))
+				return;
+			
+			// derive from larger thumbnail image in memory
+			DecodingChannel channel = task.channel;
+			HybridBitmapLruCache<ImageCacheKey> cache = channel.getCache();
+			Bitmap thumb = this.deriveThumbnailImage(channel, media, task.getKey());
+			if(thumb != null)
+			{
+				channel.derivedCount.incrementAndGet();
+				this.onBitmapDecoded(task, generation, cache, task.getKey(), media, thumb);
+				return;
+			}
+			if((task.getFlags() & FLAG_DERIVE_ONLY) != 0)
+			{
+				// give up deriving, request attached meanwhile will be handled by new task
+				if(channel.scheduler.stopCoalescing(task, FLAG_DERIVE_ONLY))
+				{
+					task.decodingStartTime = 0;
+					task.channel.scheduler.complete(task, generation, null);
+					return;
+				}
+			}
+			
+			// decode disk tier read by I/O stage, or get bitmap still waiting to be written
+			if(cache != null)
+			{
+				if(isDataCached)
+				{
+					thumb = this.decodeCachedData(channel, (CodecBitmapLruCache<ImageCacheKey>)cache, task.getKey(), data, length);
+					m_EncodedDataPool.release(data);
+					data = null;
+				}
+				else if(data == null && retriever == null)
+					thumb = getPendingThumbnailImage(cache, task.getKey());
+				if(thumb != null)
+				{
+					channel.cacheHitCount.incrementAndGet();
+					task.channel.scheduler.complete(task, generation, thumb);
+					return;
+				}
+				channel.cacheMissCount.incrementAndGet();
+			}
+			
+			// extract frame of video directly
+			if(retriever != null)
+			{
+				thumb = this.extractVideoFrame(task, media, retriever);
+				retriever.release();
+				retriever = null;
+				if(thumb != null)
+				{
+					this.onBitmapDecoded(task, generation, cache, task.getKey(), media, thumb);
+					return;
+				}
+				if(task.isCancelled() && task.channel.scheduler.drop(task, generation))
+					return;
+			}
+			
+			// decode encoded data
+			if(data != null)
+			{
+				if((task.getFlags() & FLAG_PREVIEW) != 0)
+					this.deliverPreviewImage(task, generation, data, length);
+				int orientation = (media instanceof PhotoMedia ? ((PhotoMedia)media).getOrientation() : 0);
+				try
+				{
+					thumb = decodeThumbnailImage(data, 0, length, orientation, channel.targetWidth, channel.targetHeight, channel.centerCrop, m_ReusableBitmapPool);
+				}
+				catch(Throwable ex)
+				{
+					Log.e(TAG, "runImageDecodingStage() - Fail to decode " + media.getFilePath(), ex);
+				}
+				if(thumb != null)
+				{
+					this.onBitmapDecoded(task, generation, cache, task.getKey(), media, thumb);
+					return;
+				}
+				
+				// decode by BitmapPool again to handle formats which are not supported by BitmapFactory
+				Log.w(TAG, "runImageDecodingStage() - Fail to decode " + media.getFilePath() + ", use bitmap decoder instead");
+				task.useBitmapDecoderOnly = true;
+			}
+			
+			// decode by BitmapPool
+			this.startBitmapDecoding(task, generation);
+		}
+		finally
+		{
+			if(data != null)
+				m_EncodedDataPool.release(data);
+			if(retriever != null)
+				retriever.release();
+		}
+	}
+	
+	
+	/**
+	 * Change priority of decoding which is still waiting in queue.
+	 * @param handle Handle returned from decode*ThumbnailImage methods.
+	 * @param priority New priority, smaller value means higher priority.
+	 * @return True if priority changed successfully.
+	 */
+	@Override
+	public boolean setDecodingPriority(Handle handle, int priority)
+	{
+		if(!(handle instanceof DecodingHandle) || !Handle.isValid(handle))
+			return false;
+		DecodingHandle decodingHandle = (DecodingHandle)handle;
+		return decodingHandle.channel.scheduler.setPriority(decodingHandle, priority);
+	}
+	
+	
+	// Shrink thumbnail pool to given size (in main thread).
+	private void shrinkThumbPool(long size)
+	{
+		BitmapPool thumbPool = m_ThumbPool;
+		if(thumbPool == null)
+			return;
+		thumbPool.shrink(size);
+		synchronized(m_ThumbPoolMemoryUsageLock)
+		{
+			this.decayThumbPoolMemoryUsage();
+			if(m_ThumbPoolMemoryUsage > size)
+				m_ThumbPoolMemoryUsage = size;
+		}
+	}
+	
+	
+	// Start decoding by BitmapPool of channel, thumbnail image will be received in call-back thread of decoded bitmaps instead of UI thread.
+	private void startBitmapDecoding(final DecodingTask task, final int generation)
+	{
+		// check decoder
+		DecodingChannel channel = task.channel;
+		if(channel.decoder == null)
+		{
+			task.channel.scheduler.complete(task, generation, null);
+			return;
+		}
+		
+		// calculate decoding size
+		final Media media = task.media;
+		int originalWidth = media.getWidth();
+		int originalHeight = media.getHeight();
+		if(originalWidth <= 0 || originalHeight <= 0)
+		{
+			Log.e(TAG, "Unknown media size");
+			task.channel.scheduler.complete(task, generation, null);
+			return;
+		}
+		float ratio = getThumbnailScaleRatio(originalWidth, originalHeight, channel.targetWidth, channel.targetHeight, channel.centerCrop);
+		int targetWidth = (int)(originalWidth * ratio);
+		int targetHeight = (int)(originalHeight * ratio);
+		
+		// prepare decoding
+		int decodingFlags = BitmapPool.FLAG_ASYNC;
+		if((task.getFlags() & FLAG_URGENT) != 0)
+			decodingFlags |= BitmapPool.FLAG_URGENT;
+		final HybridBitmapLruCache<ImageCacheKey> cache = channel.getCache();
+		final ImageCacheKey key = task.getKey();
+		BitmapPool.Callback callback = new BitmapPool.Callback()
+		{
+			public void onBitmapDecoded(Handle handle, String filePath, Bitmap bitmap)
+			{
+				ThumbnailImageManagerImpl.this.onBitmapDecoded(task, generation, cache, key, media, bitmap);
+			}
+			public void onBitmapDecoded(Handle handle, Uri contentUri, Bitmap bitmap)
+			{
+				ThumbnailImageManagerImpl.this.onBitmapDecoded(task, generation, cache, key, media, bitmap);
+			}
+		};
+		
+		// start decoding
+		Handle bitmapDecodingHandle = null;
+		Handler callbackHandler = m_BitmapDecodedHandler;
+		String filePath = media.getFilePath();
+		if(filePath != null)
+			bitmapDecodingHandle = channel.decoder.decode(filePath, targetWidth, targetHeight, decodingFlags, callback, callbackHandler);
+		else
+		{
+			Uri contentUri = media.getContentUri();
+			if(contentUri != null)
+			{
+				int mediaType = (media.getType() == MediaType.VIDEO ? BitmapPool.MEDIA_TYPE_VIDEO : BitmapPool.MEDIA_TYPE_PHOTO);
+				bitmapDecodingHandle = channel.decoder.decode(GalleryApplication.current(), contentUri, mediaType, targetWidth, targetHeight, decodingFlags, callback, callbackHandler);
+			}
+		}
+		if(!Handle.isValid(bitmapDecodingHandle))
+		{
+			task.channel.scheduler.complete(task, generation, null);
+			return;
+		}
+		
+		// Task may be completed by call-back already, so it should not be touched after that
+		if(!channel.scheduler.setCancellationToken(task, generation, bitmapDecodingHandle))
+			return;
+		
+		// cancel decoding if all handles have been closed during starting decoding
+		if(task.isCancelled() && task.channel.scheduler.drop(task, generation))
+			Handle.close(bitmapDecodingHandle);
+	}
+	
+	
+	/**
+	 * Re-prioritize decoding which are still waiting in queue.
+	 * @param handles Handles returned from decode*ThumbnailImage methods.
+	 * @param calculator Call-back to calculate new priority for each decoding.
+	 * @return Number of re-prioritized decoding.
+	 */
+	@Override
+	public int updateDecodingPriorities(Iterable<Handle> handles, final DecodingPriorityCalculator calculator)
+	{
+		// check parameters
+		if(handles == null || calculator == null)
+			return 0;
+		
+		// collect decoding handles
+		List<DecodingHandle> decodingHandles = new ArrayList<>();
+		for(Handle handle : handles)
+		{
+			if(handle instanceof DecodingHandle && Handle.isValid(handle))
+				decodingHandles.add((DecodingHandle)handle);
+		}
+		if(decodingHandles.isEmpty())
+			return 0;
+		
+		// update priorities, each channel takes its lock once and only updates decoding waiting in its queue
+		DecodingScheduler.PriorityCalculator<DecodingHandle> schedulerCalculator = new DecodingScheduler.PriorityCalculator<DecodingHandle>()
+		{
+			@Override
+			public int calculatePriority(DecodingHandle handle, int priority)
+			{
+				return calculator.calculatePriority(handle, handle.media, priority);
+			}
+		};
+		int count = 0;
+		for(DecodingChannel channel : m_DecodingChannels)
+			count += channel.scheduler.setPriorities(decodingHandles, schedulerCalculator);
+		return count;
+	}
+	
+	
+	// Deinitialize.
+	@Override
+	protected void onDeinitialize()
+	{
+		// stop monitoring memory pressure
+		if(m_MemoryGovernor != null)
+		{
+			m_MemoryGovernor.removeCallback(MemoryGovernor.PROP_MEMORY_PRESSURE, m_MemoryPressureChangedCallback);
+			m_MemoryGovernor = null;
+		}
+		
+		// deactivate
+		m_ActivationHandles.clear();
+		m_IsActive = false;
+		m_CacheManagerActivateHandle = Handle.close(m_CacheManagerActivateHandle);
+		m_ThumbPoolActivateHandle = Handle.close(m_ThumbPoolActivateHandle);
+		m_ThumbPoolMemoryConsumerHandle = Handle.close(m_ThumbPoolMemoryConsumerHandle);
+		m_EncodedDataPoolMemoryConsumerHandle = Handle.close(m_EncodedDataPoolMemoryConsumerHandle);
+		m_ReusableBitmapPoolMemoryConsumerHandle = Handle.close(m_ReusableBitmapPoolMemoryConsumerHandle);
+		GalleryApplication.current().getHandler().removeCallbacks(m_ShrinkThumbPoolRunnable);
+		this.setReadOnly(PROP_IS_ACTIVE, false);
+		
+		// cancel prefetching
+		PrefetchWindow[] windows;
+		synchronized(m_PrefetchWindows)
+		{
+			windows = m_PrefetchWindows.values().toArray(new PrefetchWindow[m_PrefetchWindows.size()]);
+		}
+		for(int i = windows.length - 1 ; i >= 0 ; --i)
+			Handle.close(windows[i]);
+		
+		// stop call-back thread of decoded bitmaps after handling pending call-backs
+		if(m_BitmapDecodedThread != null)
+		{
+			m_BitmapDecodedThread.quitSafely();
+			m_BitmapDecodedThread = null;
+			m_BitmapDecodedHandler = null;
+		}
+		
+		// call super
+		super.onDeinitialize();
+	}
+	
+	
+	// Initialize.
+	@Override
+	protected void onInitialize()
+	{
+		// call super
+		super.onInitialize();
+		
+		// start collecting statistics
+		m_StatisticsStartTime = SystemClock.elapsedRealtime();
+		
+		// find components
+		m_CacheManager = GalleryApplication.current().findComponent(CacheManager.class);
+		m_MediaManager = GalleryApplication.current().findComponent(OPMediaManager.class);
+		
+		// get dimensions
+		Resources res = GalleryApplication.current().getResources();
+		m_SmallThumbSize = res.getDimensionPixelSize(R.dimen.thumbnail_image_manager_thumb_size_small);
+		
+		// create bitmap pools
+		BitmapPool smallThumbDecoder = new BitmapPool("SmallThumbDecoder", (1 << 10), Bitmap.Config.ARGB_8888, 3, 0);
+		m_ThumbPool = new BitmapPool("ThumbPool", THUMB_POOL_CAPACITY, IDLE_POOL_CAPACITY, Bitmap.Config.ARGB_8888, 2, 0);
+		
+		// start call-back thread of decoded bitmaps, so that caches and packed store are updated without blocking UI thread
+		m_BitmapDecodedThread = new HandlerThread("Thumbnail image decoded call-back thread");
+		m_BitmapDecodedThread.start();
+		m_BitmapDecodedHandler = new Handler(m_BitmapDecodedThread.getLooper());
+		
+		// create image decoding stage
+		int imageDecodeThreadCount = Math.max(1, Runtime.getRuntime().availableProcessors());
+		final ByteArrayPool encodedDataPool = new ByteArrayPool(ENCODED_DATA_POOL_CAPACITY, ENCODED_DATA_POOL_FREE_CAPACITY);
+		final ReusableBitmapPool reusableBitmapPool = new ReusableBitmapPool(REUSABLE_BITMAP_POOL_CAPACITY);
+		m_EncodedDataPool = encodedDataPool;
+		m_ReusableBitmapPool = reusableBitmapPool;
+		m_ImageDecodeExecutor = new ThreadPoolExecutor(imageDecodeThreadCount, imageDecodeThreadCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(imageDecodeThreadCount * IMAGE_DECODE_QUEUE_SIZE_PER_THREAD), BLOCKING_POLICY);
+		Log.v(TAG, "onInitialize() - Image decoding threads : ", imageDecodeThreadCount);
+		
+		// share memory budget of pools with other bitmap consumers
+		if(m_CacheManager != null)
+		{
+			m_ThumbPoolMemoryConsumerHandle = m_CacheManager.registerMemoryConsumer("ThumbPool", MemoryScope.FILMSTRIP, new BitmapMemoryConsumer()
+			{
+				@Override
+				public long getMemoryUsage()
+				{
+					// BitmapPool does not report its size, so usage is estimated by recently decoded bitmaps
+					synchronized(m_ThumbPoolMemoryUsageLock)
+					{
+						decayThumbPoolMemoryUsage();
+						return m_ThumbPoolMemoryUsage;
+					}
+				}
+				
+				@Override
+				public void setMemoryBudget(long budget)
+				{
+					m_ThumbPoolMemoryBudget = budget;
+					if(budget < THUMB_POOL_CAPACITY)
+						shrinkThumbPool(budget);
+				}
+			}, THUMB_POOL_CAPACITY, THUMB_POOL_MEMORY_WEIGHT);
+			m_EncodedDataPoolMemoryConsumerHandle = m_CacheManager.registerMemoryConsumer("EncodedDataPool", MemoryScope.SHARED, new BitmapMemoryConsumer()
+			{
+				@Override
+				public long getMemoryUsage()
+				{
+					return encodedDataPool.getSize();
+				}
+				
+				@Override
+				public void setMemoryBudget(long budget)
+				{
+					encodedDataPool.setCapacity(budget);
+				}
+			}, ENCODED_DATA_POOL_CAPACITY, ENCODED_DATA_POOL_MEMORY_WEIGHT);
+			m_ReusableBitmapPoolMemoryConsumerHandle = m_CacheManager.registerMemoryConsumer("ReusableBitmapPool", MemoryScope.SHARED, new BitmapMemoryConsumer()
+			{
+				@Override
+				public long getMemoryUsage()
+				{
+					return reusableBitmapPool.getFreeSize();
+				}
+				
+				@Override
+				public void setMemoryBudget(long budget)
+				{
+					reusableBitmapPool.setMaxFreeSize(budget);
+				}
+			}, REUSABLE_BITMAP_POOL_CAPACITY, REUSABLE_BITMAP_POOL_MEMORY_WEIGHT);
+		}
+		
+		// create decoding channels from smallest to largest, thumbnail images are decoded by BitmapPool because it also be used as memory cache
+		// Photos are not read by I/O stage of thumbnail channel for the same reason, decoding them by BitmapFactory would bypass memory of ThumbPool, disk tier and videos are still opened by I/O stage
+		m_SmallThumbDecodingChannel = new DecodingChannel("SmallThumbnail", smallThumbDecoder, Executors.newFixedThreadPool(IO_THREAD_COUNT), m_SmallThumbSize, m_SmallThumbSize, true, true)
+		{
+			@Override
+			public HybridBitmapLruCache<ImageCacheKey> getCache()
+			{
+				return (m_CacheManager != null ? m_CacheManager.getSmallThumbnailImageCache() : null);
+			}
+			
+			@Override
+			public Bitmap getCachedBitmap(Media media, ImageCacheKey key)
+			{
+				HybridBitmapLruCache<ImageCacheKey> cache = this.getCache();
+				return (cache != null ? cache.peek(key) : null);
+			}
+			
+			@Override
+			public PackedBitmapStore getPackedStore()
+			{
+				return (m_CacheManager != null ? m_CacheManager.getSmallThumbnailImageStore() : null);
+			}
+		};
+		m_ThumbDecodingChannel = new DecodingChannel("Thumbnail", m_ThumbPool, Executors.newFixedThreadPool(IO_THREAD_COUNT), THUMB_SIZE, THUMB_SIZE, false, false)
+		{
+			@Override
+			public HybridBitmapLruCache<ImageCacheKey> getCache()
+			{
+				return (m_CacheManager != null ? m_CacheManager.getThumbnailImageCache() : null);
+			}
+			
+			@Override
+			public Bitmap getCachedBitmap(Media media, ImageCacheKey key)
+			{
+				return getCachedThumbnailImage(media, key);
+			}
+		};
+		m_DecodingChannels = new DecodingChannel[]{ m_SmallThumbDecodingChannel, m_ThumbDecodingChannel };
+		
+		// monitor memory pressure
+		m_MemoryGovernor = GalleryApplication.current().findComponent(MemoryGovernor.class);
+		if(m_MemoryGovernor != null)
+		{
+			m_MemoryGovernor.addCallback(MemoryGovernor.PROP_MEMORY_PRESSURE, m_MemoryPressureChangedCallback);
+			this.onMemoryPressureChanged(m_MemoryGovernor.get(MemoryGovernor.PROP_MEMORY_PRESSURE));
+		}
 	}
 }